@@ -12,8 +12,8 @@ import com.dropbox.core.oauth.DbxCredential
 import com.dropbox.core.v2.DbxClientV2
 import com.dropbox.core.v2.files.FolderMetadata
 import com.dropbox.core.v2.files.GetMetadataErrorException
+import com.dropbox.core.v2.files.ListFolderContinueErrorException
 import com.dropbox.core.v2.files.Metadata
-import com.dropbox.core.v2.files.WriteMode
 import org.acra.util.StreamReader
 import org.totschnig.dropbox.activity.ACTION_RE_AUTHENTICATE
 import org.totschnig.dropbox.activity.DropboxSetup
@@ -27,10 +27,12 @@ import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 class DropboxBackendProvider internal constructor(context: Context, folderName: String) :
     AbstractSyncBackendProvider<Metadata>(context) {
     private lateinit var mDbxClient: DbxClientV2
+    private lateinit var files: DropboxFiles
     private val basePath: String = "/$folderName"
     private lateinit var accountName: String
 
@@ -50,7 +52,7 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
 
     override val isEmpty: Boolean
         get() = tryWithWrappedException {
-            mDbxClient.files().listFolder(basePath).entries.isEmpty()
+            children(basePath).isEmpty()
         }
 
     private fun setupClient(accountManager: AccountManager, account: android.accounts.Account) {
@@ -75,8 +77,23 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
             SyncAdapter.log().i("Authenticating with legacy access token")
             DbxClientV2(requestConfig, authToken)
         }
+        files = DbxFiles(mDbxClient.files())
     }
 
+    /**
+     * listings are kept across syncs, so that they only need to be continued from their cursor
+     */
+    private val folderListing: DropboxFolderListing
+        get() = folderListings.getOrPut(accountName) { DropboxFolderListing() }
+
+    private fun children(path: String) = folderListing.children(files, path)
+
+    /**
+     * while set, attachments are collected and uploaded together once all of them are known
+     */
+    @Volatile
+    private var attachmentBatch: DropboxUploadBatch? = null
+
     override fun readFileContents(
         fromAccountDir: Boolean,
         fileName: String,
@@ -167,6 +184,7 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
         tryWithWrappedException {
             mDbxClient.files().deleteV2("$basePath/$uuid")
         }
+        folderListing.invalidate("$basePath/$uuid")
     }
 
     override fun getInputStream(resource: Metadata): InputStream = getInputStream(resource.pathLower)
@@ -185,6 +203,31 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
     private val lockFilePath: String
         get() = getResourcePath(LOCK_FILE)
 
+    /**
+     * uses a cursor on the account folder, which only needs to be continued to learn if anything
+     * other than the lock file has changed
+     */
+    override fun probeChanges(lastProbe: String?): String = tryWithWrappedException {
+        lastProbe?.let { cursor ->
+            try {
+                var changed = false
+                var result = mDbxClient.files().listFolderContinue(cursor)
+                while (true) {
+                    changed = changed || result.entries.any { it.name != LOCK_FILE }
+                    if (!result.hasMore) break
+                    result = mDbxClient.files().listFolderContinue(result.cursor)
+                }
+                if (changed) result.cursor else cursor
+            } catch (e: ListFolderContinueErrorException) {
+                //cursor has expired
+                null
+            }
+        } ?: mDbxClient.files().listFolderGetLatestCursorBuilder(accountPath)
+            .withRecursive(true)
+            .start()
+            .cursor
+    }
+
     override fun getResInAccountDir(resourceName: String) = metadata("$accountPath/$resourceName")
 
     override fun getCollection(collectionName: String, require: Boolean): Metadata? {
@@ -197,7 +240,7 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
 
 
     override fun childrenForCollection(folder: Metadata?): List<Metadata> =
-        mDbxClient.files().listFolder(folder?.pathLower ?: accountPath).entries
+        tryWithWrappedException { children(folder?.pathLower ?: accountPath) }
 
     override fun nameForResource(resource: Metadata): String = resource.name
 
@@ -210,14 +253,50 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
         collection: Metadata,
         maybeEncrypt: Boolean
     ) {
-        saveInputStream(
-            "${collection.pathLower}/${getLastFileNamePart(fileName)}",
-            maybeEncrypt(
-                context.contentResolver.openInputStream(uri)
-                    ?: throw IOException("Could not read $uri"),
-                maybeEncrypt
-            )
-        )
+        saveInputStream(pathInCollection(fileName, collection), openUri(uri, maybeEncrypt))
+    }
+
+    private fun pathInCollection(fileName: String, collection: Metadata) =
+        "${collection.pathLower}/${getLastFileNamePart(fileName)}"
+
+    @Throws(IOException::class)
+    private fun openUri(uri: Uri, maybeEncrypt: Boolean) = maybeEncrypt(
+        context.contentResolver.openInputStream(uri) ?: throw IOException("Could not read $uri"),
+        maybeEncrypt
+    )
+
+    /**
+     * the attachment is only opened when the batch is committed
+     */
+    @Throws(IOException::class)
+    override fun saveAttachmentToCollection(
+        fileName: String,
+        uri: Uri,
+        collection: Metadata,
+        onStored: () -> Unit
+    ) {
+        attachmentBatch?.add(pathInCollection(fileName, collection), onStored) {
+            openUri(uri, true)
+        } ?: super.saveAttachmentToCollection(fileName, uri, collection, onStored)
+    }
+
+    /**
+     * the attachments of a change set are uploaded in one batch, which is committed before the
+     * change file is written
+     */
+    @Throws(IOException::class)
+    override fun storeAttachments(transfer: () -> Unit) {
+        val batch = DropboxUploadBatch(files)
+        attachmentBatch = batch
+        try {
+            transfer()
+        } catch (e: Exception) {
+            batch.discard()
+            throw e
+        } finally {
+            attachmentBatch = null
+        }
+        tryWithWrappedException { batch.finish() }
     }
 
     override fun getLastSequence(start: SequenceNumber): SequenceNumber {
@@ -258,15 +337,13 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
     @Throws(IOException::class)
     private fun saveInputStream(path: String, contents: InputStream) {
         tryWithWrappedException {
-            mDbxClient.files().uploadBuilder(path)
-                .withMode(WriteMode.OVERWRITE)
-                .uploadAndFinish(contents)
+            contents.use { files.upload(path, it) }
         }
     }
 
     override val remoteAccountList: List<Result<AccountMetaData>>
         get() = tryWithWrappedException {
-            mDbxClient.files().listFolder(basePath).entries
+            children(basePath)
                 .asSequence()
                 .filterIsInstance<FolderMetadata>()
                 .filter { metadata: Metadata -> metadata.name != BACKUP_FOLDER_NAME }
@@ -288,6 +365,10 @@ class DropboxBackendProvider internal constructor(context: Context, folderName:
 
     override val sharedPreferencesName = "dropbox"
 
+    companion object {
+        private val folderListings = ConcurrentHashMap<String, DropboxFolderListing>()
+    }
+
     private fun reAuthenticationIntent() = Intent(context, DropboxSetup::class.java).apply {
         action = ACTION_RE_AUTHENTICATE
         putExtra(DatabaseConstants.KEY_SYNC_ACCOUNT_NAME, accountName)
@@ -0,0 +1,69 @@
+package org.totschnig.dropbox.sync
+
+import com.dropbox.core.v2.files.DbxUserFilesRequests
+import com.dropbox.core.v2.files.ListFolderResult
+import com.dropbox.core.v2.files.UploadSessionCursor
+import com.dropbox.core.v2.files.UploadSessionFinishArg
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry
+import com.dropbox.core.v2.files.WriteMode
+import java.io.FilterInputStream
+import java.io.InputStream
+
+/**
+ * the calls to the Dropbox API used for listing folders and uploading files, so that
+ * [DropboxFolderListing] and [DropboxUploadBatch] can be tested against a fake
+ */
+interface DropboxFiles {
+    fun listFolder(path: String): ListFolderResult
+
+    fun listFolderContinue(cursor: String): ListFolderResult
+
+    fun upload(path: String, contents: InputStream)
+
+    /**
+     * uploads [contents] to a new upload session, which is closed, so that it can be finished
+     * in a batch
+     */
+    fun uploadSessionStart(contents: InputStream): UploadSessionCursor
+
+    fun uploadSessionFinishBatch(
+        entries: List<UploadSessionFinishArg>
+    ): List<UploadSessionFinishBatchResultEntry>
+}
+
+class DbxFiles(private val files: DbxUserFilesRequests) : DropboxFiles {
+    override fun listFolder(path: String): ListFolderResult = files.listFolder(path)
+
+    override fun listFolderContinue(cursor: String): ListFolderResult =
+        files.listFolderContinue(cursor)
+
+    override fun upload(path: String, contents: InputStream) {
+        files.uploadBuilder(path)
+            .withMode(WriteMode.OVERWRITE)
+            .uploadAndFinish(contents)
+    }
+
+    override fun uploadSessionStart(contents: InputStream): UploadSessionCursor {
+        val counting = CountingInputStream(contents)
+        val sessionId = files.uploadSessionStartBuilder()
+            .withClose(true)
+            .uploadAndFinish(counting)
+            .sessionId
+        return UploadSessionCursor(sessionId, counting.count)
+    }
+
+    override fun uploadSessionFinishBatch(entries: List<UploadSessionFinishArg>) =
+        files.uploadSessionFinishBatchV2(entries).entries
+
+    private class CountingInputStream(input: InputStream) : FilterInputStream(input) {
+        var count = 0L
+            private set
+
+        override fun read() = super.read().also { if (it != -1) count++ }
+
+        override fun read(b: ByteArray, off: Int, len: Int) =
+            super.read(b, off, len).also { if (it > 0) count += it }
+
+        override fun skip(n: Long) = super.skip(n).also { count += it }
+    }
+}
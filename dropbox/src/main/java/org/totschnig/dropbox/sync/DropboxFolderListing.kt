@@ -0,0 +1,72 @@
+package org.totschnig.dropbox.sync
+
+import com.dropbox.core.v2.files.DeletedMetadata
+import com.dropbox.core.v2.files.ListFolderContinueErrorException
+import com.dropbox.core.v2.files.ListFolderResult
+import com.dropbox.core.v2.files.Metadata
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * children of Dropbox folders, listed once and afterwards kept up to date by continuing from the
+ * cursor of the previous listing, so that only entries changed since are transferred. Pages are
+ * followed as long as [ListFolderResult.hasMore] is set.
+ */
+class DropboxFolderListing {
+    private class Listing(val cursor: String, val entries: Map<String, Metadata>)
+
+    private val listings = ConcurrentHashMap<String, Listing>()
+
+    /**
+     * The network calls happen outside of the map's locks. If the listing is invalidated in the
+     * meantime, the result is returned but not stored.
+     */
+    fun children(files: DropboxFiles, path: String): List<Metadata> {
+        val key = path.lowercase()
+        val previous = listings[key]
+        val listing = previous?.let { update(files, it) } ?: list(files, path)
+        if (previous == null) {
+            listings.putIfAbsent(key, listing)
+        } else {
+            listings.replace(key, previous, listing)
+        }
+        return listing.entries.values.toList()
+    }
+
+    fun invalidate(path: String) {
+        listings.remove(path.lowercase())
+    }
+
+    private fun list(files: DropboxFiles, path: String) =
+        collect(files, files.listFolder(path), emptyMap())
+
+    /**
+     * @return null if the cursor is no longer valid
+     */
+    private fun update(files: DropboxFiles, listing: Listing) = try {
+        collect(files, files.listFolderContinue(listing.cursor), listing.entries)
+    } catch (e: ListFolderContinueErrorException) {
+        null
+    }
+
+    private fun collect(
+        files: DropboxFiles,
+        first: ListFolderResult,
+        entries: Map<String, Metadata>
+    ): Listing {
+        val result = entries.toMutableMap()
+        var page = first
+        while (true) {
+            page.entries.forEach {
+                val key = it.pathLower ?: it.name.lowercase()
+                if (it is DeletedMetadata) {
+                    result.remove(key)
+                } else {
+                    result[key] = it
+                }
+            }
+            if (!page.hasMore) break
+            page = files.listFolderContinue(page.cursor)
+        }
+        return Listing(page.cursor, result)
+    }
+}
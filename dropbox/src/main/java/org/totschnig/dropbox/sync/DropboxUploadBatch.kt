@@ -0,0 +1,90 @@
+package org.totschnig.dropbox.sync
+
+import com.dropbox.core.v2.files.CommitInfo
+import com.dropbox.core.v2.files.UploadSessionCursor
+import com.dropbox.core.v2.files.UploadSessionFinishArg
+import com.dropbox.core.v2.files.WriteMode
+import org.totschnig.myexpenses.sync.AttachmentTransferQueue
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * collects files that are committed together, e.g. the attachments of a change set. A single file
+ * is uploaded directly, several are uploaded in parallel through [transferQueue] to upload sessions
+ * that are then committed with one batch call. Contents are only opened while they are uploaded, so
+ * that a large batch does not hold open streams.
+ */
+class DropboxUploadBatch(
+    private val files: DropboxFiles,
+    private val transferQueue: AttachmentTransferQueue = AttachmentTransferQueue()
+) {
+    private class Entry(
+        val path: String,
+        private val contents: () -> InputStream,
+        private var onStored: (() -> Unit)?
+    ) {
+        fun <T> read(block: (InputStream) -> T): T = try {
+            contents().use(block)
+        } finally {
+            release()
+        }
+
+        fun release() {
+            onStored?.invoke()
+            onStored = null
+        }
+    }
+
+    private val pending = mutableListOf<Entry>()
+
+    /**
+     * attachments are added from parallel transfers
+     * @param onStored called once [contents] has been read or the batch is discarded
+     */
+    @Synchronized
+    fun add(path: String, onStored: (() -> Unit)? = null, contents: () -> InputStream) {
+        pending.add(Entry(path, contents, onStored))
+    }
+
+    @Throws(IOException::class)
+    fun finish() {
+        try {
+            when (pending.size) {
+                0 -> {}
+                1 -> pending.first().let { entry -> entry.read { files.upload(entry.path, it) } }
+                else -> pending.chunked(MAX_BATCH_SIZE).forEach { chunk ->
+                    val cursors = arrayOfNulls<UploadSessionCursor>(chunk.size)
+                    transferQueue.transfer(chunk.indices.toList()) { index ->
+                        cursors[index] = chunk[index].read { files.uploadSessionStart(it) }
+                    }
+                    val args = chunk.mapIndexed { index, entry ->
+                        UploadSessionFinishArg(
+                            cursors[index]!!,
+                            CommitInfo.newBuilder(entry.path).withMode(WriteMode.OVERWRITE).build()
+                        )
+                    }
+                    files.uploadSessionFinishBatch(args).forEachIndexed { index, entry ->
+                        if (!entry.isSuccess) {
+                            throw IOException("Upload of ${chunk[index].path} failed: ${entry.failureValue}")
+                        }
+                    }
+                }
+            }
+        } finally {
+            discard()
+        }
+    }
+
+    @Synchronized
+    fun discard() {
+        pending.forEach { it.release() }
+        pending.clear()
+    }
+
+    companion object {
+        /**
+         * maximum number of entries Dropbox accepts in one call to finish upload sessions
+         */
+        const val MAX_BATCH_SIZE = 1000
+    }
+}
@@ -0,0 +1,69 @@
+package org.totschnig.dropbox.sync
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.Before
+import org.junit.Test
+
+class DropboxFolderListingTest {
+    private lateinit var files: FakeDropboxFiles
+    private lateinit var listing: DropboxFolderListing
+
+    @Before
+    fun setup() {
+        files = FakeDropboxFiles(pageSize = 2)
+        listing = DropboxFolderListing()
+        (1..5).forEach { files.add("_$it.json") }
+    }
+
+    private fun names() = listing.children(files, "/folder").map { it.name }
+
+    @Test
+    fun followsAllPages() {
+        assertThat(names()).containsExactlyInAnyOrder(
+            "_1.json", "_2.json", "_3.json", "_4.json", "_5.json"
+        )
+        assertThat(files.listCalls).isEqualTo(1)
+        assertThat(files.continueCalls).isEqualTo(2)
+    }
+
+    @Test
+    fun continuesFromCursor() {
+        names()
+        files.add("_6.json")
+        files.delete("_1.json")
+        assertThat(names()).containsExactlyInAnyOrder(
+            "_2.json", "_3.json", "_4.json", "_5.json", "_6.json"
+        )
+        assertThat(files.listCalls).isEqualTo(1)
+    }
+
+    @Test
+    fun listsAgainIfCursorIsReset() {
+        names()
+        files.cursorExpired = true
+        files.add("_6.json")
+        assertThat(names()).hasSize(6)
+        assertThat(files.listCalls).isEqualTo(2)
+    }
+
+    @Test
+    fun listsAgainAfterInvalidate() {
+        names()
+        listing.invalidate("/Folder")
+        names()
+        assertThat(files.listCalls).isEqualTo(2)
+    }
+
+    @Test
+    fun invalidateWhileListingIsNotOverwritten() {
+        names()
+        files.add("_6.json")
+        files.onContinue = {
+            files.onContinue = null
+            listing.invalidate("/folder")
+        }
+        assertThat(names()).hasSize(6)
+        names()
+        assertThat(files.listCalls).isEqualTo(2)
+    }
+}
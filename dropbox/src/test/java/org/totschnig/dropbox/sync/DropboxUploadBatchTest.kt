@@ -0,0 +1,107 @@
+package org.totschnig.dropbox.sync
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.Test
+import org.totschnig.myexpenses.sync.AttachmentTransferQueue
+import java.io.FilterInputStream
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+class DropboxUploadBatchTest {
+    private val files = FakeDropboxFiles()
+
+    private val open = AtomicInteger()
+    private val maxOpen = AtomicInteger()
+    private val stored: MutableList<String> = Collections.synchronizedList(mutableListOf())
+
+    private fun DropboxUploadBatch.add(path: String) {
+        add(path, { stored.add(path) }) {
+            val current = open.incrementAndGet()
+            maxOpen.accumulateAndGet(current) { a, b -> maxOf(a, b) }
+            object : FilterInputStream(path.byteInputStream()) {
+                override fun close() {
+                    open.decrementAndGet()
+                    super.close()
+                }
+            }
+        }
+    }
+
+    @Test
+    fun singleFileIsUploadedDirectly() {
+        DropboxUploadBatch(files).apply {
+            add("/account/attachments/a_receipt.jpg")
+        }.finish()
+        assertThat(files.uploadCalls).isEqualTo(1)
+        assertThat(files.batchCalls).isEqualTo(0)
+        assertThat(files.files).containsOnlyKeys("/account/attachments/a_receipt.jpg")
+    }
+
+    @Test
+    fun severalFilesAreFinishedInOneBatch() {
+        DropboxUploadBatch(files).apply {
+            add("/account/attachments/a_receipt.jpg")
+            add("/account/attachments/b_receipt.jpg")
+            add("/account/attachments/c_receipt.jpg")
+        }.finish()
+        assertThat(files.uploadCalls).isEqualTo(0)
+        assertThat(files.batchCalls).isEqualTo(1)
+        assertThat(files.files).hasSize(3)
+        assertThat(String(files.files["/account/attachments/c_receipt.jpg"]!!))
+            .isEqualTo("/account/attachments/c_receipt.jpg")
+    }
+
+    @Test
+    fun contentsAreOpenedOnlyWhileUploaded() {
+        DropboxUploadBatch(files).apply {
+            (1..10).forEach { add("/account/attachments/${it}_receipt.jpg") }
+            assertThat(maxOpen.get()).isEqualTo(0)
+        }.finish()
+        assertThat(maxOpen.get()).isBetween(1, AttachmentTransferQueue.MAX_PARALLEL_TRANSFERS)
+        assertThat(open.get()).isEqualTo(0)
+        assertThat(stored).hasSize(10)
+        assertThat(files.files).hasSize(10)
+    }
+
+    @Test
+    fun sessionsAreStartedOneAtATimeWithoutParallelism() {
+        DropboxUploadBatch(files, AttachmentTransferQueue(1)).apply {
+            (1..10).forEach { add("/account/attachments/${it}_receipt.jpg") }
+        }.finish()
+        assertThat(maxOpen.get()).isEqualTo(1)
+        assertThat(files.files).hasSize(10)
+    }
+
+    @Test
+    fun discardReleasesEntries() {
+        DropboxUploadBatch(files).apply {
+            add("/account/attachments/a_receipt.jpg")
+            add("/account/attachments/b_receipt.jpg")
+        }.discard()
+        assertThat(maxOpen.get()).isEqualTo(0)
+        assertThat(stored).hasSize(2)
+        assertThat(files.files).isEmpty()
+    }
+
+    @Test
+    fun largeBatchesAreSplit() {
+        DropboxUploadBatch(files).apply {
+            (1..DropboxUploadBatch.MAX_BATCH_SIZE + 1).forEach { add("/account/_$it.json") }
+        }.finish()
+        assertThat(files.batchCalls).isEqualTo(2)
+        assertThat(files.files).hasSize(DropboxUploadBatch.MAX_BATCH_SIZE + 1)
+    }
+
+    @Test
+    fun failedEntryThrows() {
+        files.failingPaths.add("/account/attachments/b_receipt.jpg")
+        val batch = DropboxUploadBatch(files).apply {
+            add("/account/attachments/a_receipt.jpg")
+            add("/account/attachments/b_receipt.jpg")
+        }
+        assertThatThrownBy { batch.finish() }.isInstanceOf(IOException::class.java)
+        assertThat(stored).hasSize(2)
+    }
+}
@@ -0,0 +1,97 @@
+package org.totschnig.dropbox.sync
+
+import com.dropbox.core.v2.files.DeletedMetadata
+import com.dropbox.core.v2.files.FileMetadata
+import com.dropbox.core.v2.files.FolderMetadata
+import com.dropbox.core.v2.files.ListFolderContinueError
+import com.dropbox.core.v2.files.ListFolderContinueErrorException
+import com.dropbox.core.v2.files.ListFolderResult
+import com.dropbox.core.v2.files.Metadata
+import com.dropbox.core.v2.files.UploadSessionCursor
+import com.dropbox.core.v2.files.UploadSessionFinishArg
+import com.dropbox.core.v2.files.UploadSessionFinishBatchResultEntry
+import com.dropbox.core.v2.files.UploadSessionFinishError
+import java.io.InputStream
+import java.util.Date
+
+/**
+ * a single folder, whose changes are journaled, cursors being positions in the journal
+ */
+class FakeDropboxFiles(private val pageSize: Int = 2) : DropboxFiles {
+    private val journal = mutableListOf<Metadata>()
+    private val sessions = mutableMapOf<String, ByteArray>()
+    private var sessionCount = 0
+    val files = mutableMapOf<String, ByteArray>()
+    val failingPaths = mutableSetOf<String>()
+    var listCalls = 0
+    var continueCalls = 0
+    var uploadCalls = 0
+    var batchCalls = 0
+    var cursorExpired = false
+
+    /**
+     * called before each page is continued
+     */
+    var onContinue: (() -> Unit)? = null
+
+    fun add(name: String) {
+        journal.add(FolderMetadata(name, "id:$name"))
+    }
+
+    fun delete(name: String) {
+        journal.add(DeletedMetadata(name))
+    }
+
+    private fun page(position: Int): ListFolderResult {
+        val end = minOf(position + pageSize, journal.size)
+        return ListFolderResult(journal.subList(position, end).toList(), end.toString(), end < journal.size)
+    }
+
+    override fun listFolder(path: String): ListFolderResult {
+        listCalls++
+        return page(0)
+    }
+
+    override fun listFolderContinue(cursor: String): ListFolderResult {
+        continueCalls++
+        onContinue?.invoke()
+        if (cursorExpired) {
+            cursorExpired = false
+            throw ListFolderContinueErrorException(
+                "2/files/list_folder/continue", null, null, ListFolderContinueError.RESET
+            )
+        }
+        return page(cursor.toInt())
+    }
+
+    override fun upload(path: String, contents: InputStream) {
+        uploadCalls++
+        files[path] = contents.readBytes()
+    }
+
+    /**
+     * called from parallel transfers
+     */
+    @Synchronized
+    override fun uploadSessionStart(contents: InputStream): UploadSessionCursor {
+        val bytes = contents.readBytes()
+        val sessionId = "session${sessionCount++}"
+        sessions[sessionId] = bytes
+        return UploadSessionCursor(sessionId, bytes.size.toLong())
+    }
+
+    override fun uploadSessionFinishBatch(entries: List<UploadSessionFinishArg>) =
+        entries.map {
+            val path = it.commit.path
+            if (path in failingPaths) {
+                UploadSessionFinishBatchResultEntry.failure(
+                    UploadSessionFinishError.TOO_MANY_WRITE_OPERATIONS
+                )
+            } else {
+                files[path] = sessions.remove(it.cursor.sessionId)!!
+                UploadSessionFinishBatchResultEntry.success(
+                    FileMetadata(path.substringAfterLast('/'), "id:$path", Date(), Date(), "0123456789", it.cursor.offset)
+                )
+            }
+        }.also { batchCalls++ }
+}
@@ -6,7 +6,6 @@ import org.kapott.hbci.structures.Konto
 import org.totschnig.fints.VerwendungszweckUtil.Tag
 import org.totschnig.fints.VerwendungszweckUtil.getTag
 import org.totschnig.myexpenses.db2.Attribute
-import org.totschnig.myexpenses.db2.AutoFillInfo
 import org.totschnig.myexpenses.db2.FinTsAttribute
 import org.totschnig.myexpenses.db2.Repository
 import org.totschnig.myexpenses.db2.createParty
@@ -46,7 +45,6 @@ fun UmsLine.checkSum(): Long {
 
 class HbciConverter(val repository: Repository, private val eur: CurrencyUnit) {
     private val methodToId: MutableMap<String, Long> = HashMap()
-    private val payeeCache: MutableMap<Party, Pair<Long, AutoFillInfo>> = HashMap()
 
     fun UmsLine.toTransaction(
         accountId: Long,
@@ -69,13 +67,9 @@ class HbciConverter(val repository: Repository, private val eur: CurrencyUnit) {
         (getTag(transfer, Tag.ABWA)?.let { Party.create(name = it) }
             ?: other?.takeIf { !(it.name.isNullOrBlank() && it.name2.isNullOrBlank()) }
                 ?.toParty())?.let { party ->
-            val payeeInfo = payeeCache[party] ?: run {
-                val payeeId = repository.findParty(party)
-                payeeId?.let { it to repository.autoFill(it) }
-                    ?: (repository.createParty(party).id to null)
-            }
-            transaction.payeeId = payeeInfo.first
-            payeeInfo.second?.categoryId?.let {
+            val payeeId = repository.findParty(party)
+            transaction.payeeId = payeeId ?: repository.createParty(party).id
+            payeeId?.let { repository.autoFill(it) }?.categoryId?.let {
                 transaction.catId = it
             }
         }
@@ -0,0 +1,125 @@
+package org.totschnig.myexpenses.test.misc
+
+import android.content.ContentProviderOperation
+import androidx.documentfile.provider.DocumentFile
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.TestApp
+import org.totschnig.myexpenses.db2.Repository
+import org.totschnig.myexpenses.db2.deleteAccount
+import org.totschnig.myexpenses.export.pdf.PdfPrinter
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.filter.WhereFilter
+import timber.log.Timber
+import java.io.File
+import java.util.Date
+import java.util.concurrent.TimeUnit
+
+/**
+ * Measures duration and heap usage of printing accounts with 10k, 50k and 100k transactions.
+ * Only runs when requested with the instrumentation argument benchmark=true
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class PdfPrinterBenchmark {
+    private val targetContext
+        get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val repository: Repository
+        get() = (targetContext.applicationContext as TestApp).appComponent.repository()
+
+    private var accountId: Long = 0
+
+    @Before
+    fun setUp() {
+        Assume.assumeTrue(
+            InstrumentationRegistry.getArguments().getString("benchmark", "false") == "true"
+        )
+    }
+
+    @After
+    fun tearDown() {
+        if (accountId != 0L) {
+            repository.deleteAccount(accountId)
+        }
+    }
+
+    private fun populate(rows: Int) {
+        accountId = Account(label = "Benchmark", currency = "EUR").createIn(repository).id
+        val start = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(rows / 20L)
+        (0 until rows).chunked(BATCH_SIZE).forEach { chunk ->
+            repository.contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(chunk.map {
+                ContentProviderOperation.newInsert(TransactionProvider.TRANSACTIONS_URI)
+                    .withValues(
+                        TransactionInfo(
+                            accountId = accountId,
+                            amount = if (it % 3 == 0) 5000L else -(it % 1000L + 1),
+                            date = Date(start + it * TimeUnit.HOURS.toMillis(1)),
+                            comment = if (it % 10 == 0) "Comment $it" else ""
+                        ).contentValues
+                    )
+                    .build()
+            }))
+        }
+    }
+
+    private fun benchmark(rows: Int) {
+        populate(rows)
+        val runtime = Runtime.getRuntime()
+        runtime.gc()
+        val baseline = runtime.totalMemory() - runtime.freeMemory()
+        var peak = baseline
+        var lastProgress = 0
+        val listener = object : PdfPrinter.ProgressListener {
+            override fun onProgress(current: Int, total: Int) {
+                lastProgress = current
+                peak = maxOf(peak, runtime.totalMemory() - runtime.freeMemory())
+            }
+
+            override fun isCancelled() = false
+        }
+        val start = System.nanoTime()
+        val result = PdfPrinter(
+            accountId,
+            DocumentFile.fromFile(targetContext.cacheDir),
+            WhereFilter.empty(),
+            0
+        ).print(targetContext, listener)
+        val duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        assertThat(result.isSuccess).isTrue()
+        assertThat(lastProgress).isEqualTo(rows)
+        Timber.i(
+            "PdfPrinterBenchmark rows: %d, duration: %d ms, peak heap growth: %d KB",
+            rows, duration, (peak - baseline) / 1024
+        )
+        result.extra?.path?.let { File(it).delete() }
+    }
+
+    @Test
+    fun print10k() {
+        benchmark(10_000)
+    }
+
+    @Test
+    fun print50k() {
+        benchmark(50_000)
+    }
+
+    @Test
+    fun print100k() {
+        benchmark(100_000)
+    }
+
+    companion object {
+        private const val BATCH_SIZE = 500
+    }
+}
@@ -0,0 +1,335 @@
+package org.totschnig.myexpenses.test.misc
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Assume
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.TestApp
+import org.totschnig.myexpenses.db2.FinTsAttribute
+import org.totschnig.myexpenses.db2.Repository
+import org.totschnig.myexpenses.db2.deleteAccount
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.BaseTransactionProvider
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ATTACHMENT_ID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ATTRIBUTE_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTEXT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ATTACHMENTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTACHMENTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTRIBUTES
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import timber.log.Timber
+import java.util.Date
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+/**
+ * Compares the statements that [BaseTransactionProvider] runs through its
+ * [BaseTransactionProvider.statementCache] with their uncached equivalent: inserting 10k and 50k
+ * transactions, and linking 10k transactions to tags, attachments and attributes. Each run
+ * happens in a transaction of its own that is rolled back, and the order of the variants
+ * alternates between rounds. Only runs when requested with the instrumentation argument
+ * benchmark=true, medians are reported to the log
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class StatementCacheBenchmark {
+    private val targetContext
+        get() = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val repository: Repository
+        get() = (targetContext.applicationContext as TestApp).appComponent.repository()
+
+    private var accountId: Long = 0
+
+    private val now = System.currentTimeMillis()
+
+    @Before
+    fun setUp() {
+        Assume.assumeTrue(
+            InstrumentationRegistry.getArguments().getString("benchmark", "false") == "true"
+        )
+        accountId = Account(label = "Benchmark", currency = "EUR").createIn(repository).id
+    }
+
+    @After
+    fun tearDown() {
+        if (accountId != 0L) {
+            repository.deleteAccount(accountId)
+        }
+    }
+
+    private fun <T> withProvider(block: (BaseTransactionProvider) -> T): T {
+        val client = targetContext.contentResolver
+            .acquireContentProviderClient(TransactionProvider.AUTHORITY)!!
+        try {
+            return block(client.localContentProvider as BaseTransactionProvider)
+        } finally {
+            @Suppress("DEPRECATION")
+            client.release()
+        }
+    }
+
+    private fun count(db: SupportSQLiteDatabase, table: String, column: String) = db.query(
+        "SELECT count(*) FROM $table WHERE $column IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_ACCOUNTID = ?)",
+        arrayOf(accountId)
+    ).use {
+        it.moveToFirst()
+        it.getInt(0)
+    }
+
+    private fun countRows(db: SupportSQLiteDatabase) = count(db, TABLE_TRANSACTIONS, KEY_ROWID)
+
+    private fun transactionInfo(index: Int, rows: Int) = TransactionInfo(
+        accountId = accountId,
+        amount = -(index % 1000L + 1),
+        date = Date(now - TimeUnit.DAYS.toMillis(rows / 20L) + index * TimeUnit.HOURS.toMillis(1)),
+        comment = if (index % 10 == 0) "Comment $index" else ""
+    )
+
+    /**
+     * the rows that are linked in the link benchmarks, inserted before the measurement starts
+     */
+    private class Fixture(
+        val transactionIds: LongArray,
+        val tagIds: LongArray,
+        val attachmentIds: LongArray
+    )
+
+    private fun createFixture(db: SupportSQLiteDatabase, rows: Int) = Fixture(
+        LongArray(rows) {
+            db.insert(TABLE_TRANSACTIONS, SQLiteDatabase.CONFLICT_NONE, transactionInfo(it, rows).contentValues)
+        },
+        LongArray(LINKED_ROWS) {
+            db.insert(TABLE_TAGS, SQLiteDatabase.CONFLICT_NONE, ContentValues(1).apply {
+                put(KEY_LABEL, "Benchmark $it")
+            })
+        },
+        LongArray(LINKED_ROWS) {
+            db.insert(TABLE_ATTACHMENTS, SQLiteDatabase.CONFLICT_NONE, ContentValues(2).apply {
+                put(KEY_URI, "content://benchmark/$it")
+                put(KEY_UUID, UUID.randomUUID().toString())
+            })
+        }
+    )
+
+    /**
+     * creates the fixture and runs [insert] for each of [rows] in a transaction of its own, that
+     * is rolled back afterwards
+     * @return the time spent inserting in milliseconds
+     */
+    private fun measure(
+        db: SupportSQLiteDatabase,
+        rows: Int,
+        withFixture: Boolean,
+        verify: () -> Unit,
+        insert: (Fixture?, Int) -> Unit
+    ): Long {
+        db.beginTransaction()
+        try {
+            val fixture = if (withFixture) createFixture(db, rows) else null
+            val begin = System.nanoTime()
+            repeat(rows) { insert(fixture, it) }
+            val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)
+            verify()
+            return elapsed
+        } finally {
+            db.endTransaction()
+        }
+    }
+
+    /**
+     * runs both variants [ROUNDS] times, alternating which one goes first, so that neither profits
+     * from the other having warmed up the database, and reports the medians
+     */
+    private fun benchmark(
+        label: String,
+        rows: Int,
+        withFixture: Boolean,
+        verify: (SupportSQLiteDatabase) -> Unit,
+        uncachedInsert: (BaseTransactionProvider, Fixture?, Int) -> Unit,
+        cachedInsert: (BaseTransactionProvider, Fixture?, Int) -> Unit
+    ) {
+        withProvider { provider ->
+            val db = provider.helper.writableDatabase
+            val uncached = mutableListOf<Long>()
+            val cached = mutableListOf<Long>()
+            fun measureUncached() {
+                uncached += measure(db, rows, withFixture, { verify(db) }) { fixture, index ->
+                    uncachedInsert(provider, fixture, index)
+                }
+            }
+            fun measureCached() {
+                cached += measure(db, rows, withFixture, { verify(db) }) { fixture, index ->
+                    cachedInsert(provider, fixture, index)
+                }
+            }
+            repeat(ROUNDS) { round ->
+                if (round % 2 == 0) {
+                    measureUncached()
+                    measureCached()
+                } else {
+                    measureCached()
+                    measureUncached()
+                }
+                assertThat(countRows(db)).isEqualTo(0)
+            }
+            Timber.i(
+                "StatementCacheBenchmark %s rows: %d, uncached: %d ms %s, cached statement: %d ms %s",
+                label, rows, uncached.median(), uncached, cached.median(), cached
+            )
+        }
+    }
+
+    private fun List<Long>.median() = sorted()[size / 2]
+
+    private fun benchmarkTransactions(rows: Int) {
+        benchmark(
+            "transactions",
+            rows,
+            withFixture = false,
+            verify = { assertThat(countRows(it)).isEqualTo(rows) },
+            uncachedInsert = { provider, _, index ->
+                assertThat(
+                    provider.helper.writableDatabase.insert(
+                        TABLE_TRANSACTIONS,
+                        SQLiteDatabase.CONFLICT_NONE,
+                        transactionInfo(index, rows).contentValues
+                    )
+                ).isGreaterThan(0L)
+            },
+            cachedInsert = { provider, _, index ->
+                assertThat(
+                    provider.statementCache.insert(
+                        TABLE_TRANSACTIONS,
+                        SQLiteDatabase.CONFLICT_NONE,
+                        transactionInfo(index, rows).contentValues
+                    )
+                ).isGreaterThan(0L)
+            }
+        )
+    }
+
+    /**
+     * links each transaction of the fixture to one row of the fixture with
+     * [SupportSQLiteDatabase.insert] and [BaseTransactionProvider.statementCache], as the provider
+     * does for [TransactionProvider.TRANSACTIONS_TAGS_URI] and
+     * [TransactionProvider.TRANSACTIONS_ATTACHMENTS_URI]
+     */
+    private fun benchmarkLinks(
+        label: String,
+        table: String,
+        linkColumn: String,
+        linkedIds: (Fixture) -> LongArray
+    ) {
+        fun values(fixture: Fixture?, index: Int) = ContentValues(2).apply {
+            put(KEY_TRANSACTIONID, fixture!!.transactionIds[index])
+            put(linkColumn, linkedIds(fixture)[index % LINKED_ROWS])
+        }
+        benchmark(
+            label,
+            LINK_ROWS,
+            withFixture = true,
+            verify = { assertThat(count(it, table, KEY_TRANSACTIONID)).isEqualTo(LINK_ROWS) },
+            uncachedInsert = { provider, fixture, index ->
+                provider.helper.writableDatabase.insert(
+                    table, SQLiteDatabase.CONFLICT_IGNORE, values(fixture, index)
+                )
+            },
+            cachedInsert = { provider, fixture, index ->
+                provider.statementCache.insert(
+                    table, SQLiteDatabase.CONFLICT_IGNORE, values(fixture, index)
+                )
+            }
+        )
+    }
+
+    @Test
+    fun insert10k() {
+        benchmarkTransactions(10_000)
+    }
+
+    @Test
+    fun insert50k() {
+        benchmarkTransactions(50_000)
+    }
+
+    @Test
+    fun tagLinks10k() {
+        benchmarkLinks("tag links", TABLE_TRANSACTIONS_TAGS, KEY_TAGID) { it.tagIds }
+    }
+
+    @Test
+    fun attachmentLinks10k() {
+        benchmarkLinks("attachment links", TABLE_TRANSACTION_ATTACHMENTS, KEY_ATTACHMENT_ID) {
+            it.attachmentIds
+        }
+    }
+
+    /**
+     * [BaseTransactionProvider.insertTransactionAttribute] compared with executing the same
+     * statement with [SupportSQLiteDatabase.execSQL]
+     */
+    @Test
+    fun attributeLinks10k() {
+        val attribute = FinTsAttribute.EREF
+        fun values(fixture: Fixture?, index: Int) = ContentValues(4).apply {
+            put(KEY_TRANSACTIONID, fixture!!.transactionIds[index])
+            put(KEY_VALUE, "Reference $index")
+            put(KEY_ATTRIBUTE_NAME, attribute.name)
+            put(KEY_CONTEXT, attribute.context)
+        }
+        benchmark(
+            "attribute links",
+            LINK_ROWS,
+            withFixture = true,
+            verify = {
+                assertThat(count(it, TABLE_TRANSACTION_ATTRIBUTES, KEY_TRANSACTIONID))
+                    .isEqualTo(LINK_ROWS)
+            },
+            uncachedInsert = { provider, fixture, index ->
+                provider.helper.writableDatabase.execSQL(
+                    BaseTransactionProvider.objectAttributeInsert(TABLE_TRANSACTION_ATTRIBUTES),
+                    arrayOf(
+                        fixture!!.transactionIds[index],
+                        "Reference $index",
+                        attribute.name,
+                        attribute.context
+                    )
+                )
+            },
+            cachedInsert = { provider, fixture, index ->
+                provider.insertTransactionAttribute(values(fixture, index))
+            }
+        )
+    }
+
+    companion object {
+        private const val ROUNDS = 4
+        private const val LINK_ROWS = 10_000
+
+        /**
+         * number of tags and attachments in the fixture
+         */
+        private const val LINKED_ROWS = 50
+    }
+}
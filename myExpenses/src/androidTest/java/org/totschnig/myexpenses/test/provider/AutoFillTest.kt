@@ -1,6 +1,7 @@
 package org.totschnig.myexpenses.test.provider
 
 import android.content.ContentUris
+import android.content.ContentValues
 import org.totschnig.myexpenses.db2.findPaymentMethod
 import org.totschnig.myexpenses.model.AccountType
 import org.totschnig.myexpenses.model.PreDefinedPaymentMethod
@@ -11,6 +12,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
 import org.totschnig.myexpenses.provider.TransactionInfo
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.insert
+import org.totschnig.myexpenses.provider.update
 import org.totschnig.myexpenses.testutils.BaseDbTest
 import org.totschnig.shared_test.CursorSubject
 import org.totschnig.shared_test.CursorSubject.Companion.assertThat
@@ -18,6 +20,7 @@ import java.util.Date
 
 class AutoFillTest : BaseDbTest() {
     private val testTransactions = arrayOfNulls<TransactionInfo>(3)
+    private val testTransactionIds = LongArray(3)
     private var testAccountId: Long = 0
     private var payeeId: Long = 0
     private var payeeId1: Long = 0
@@ -61,8 +64,9 @@ class AutoFillTest : BaseDbTest() {
             methodCreditCardId
         )
 
-        for (testTransaction in testTransactions) {
-            mDb.insert(DatabaseConstants.TABLE_TRANSACTIONS, testTransaction!!.contentValues)
+        testTransactions.forEachIndexed { index, testTransaction ->
+            testTransactionIds[index] =
+                mDb.insert(DatabaseConstants.TABLE_TRANSACTIONS, testTransaction!!.contentValues)
         }
     }
 
@@ -98,6 +102,70 @@ class AutoFillTest : BaseDbTest() {
         testAutoLoadForPayee(payeeId2, null)
     }
 
+    fun testAutoLoadDataAfterDeletingLatestTransaction() {
+        mDb.delete(
+            DatabaseConstants.TABLE_TRANSACTIONS,
+            "${DatabaseConstants.KEY_ROWID} = ?",
+            arrayOf(testTransactionIds[1].toString())
+        )
+        testAutoLoadForPayee(payeeId, testTransactions[0]!!)
+    }
+
+    fun testAutoLoadDataAfterMovingLatestTransaction() {
+        mDb.update(
+            DatabaseConstants.TABLE_TRANSACTIONS,
+            ContentValues().apply { put(DatabaseConstants.KEY_PAYEEID, payeeId2) },
+            "${DatabaseConstants.KEY_ROWID} = ?",
+            arrayOf(testTransactionIds[1].toString())
+        )
+        testAutoLoadForPayee(payeeId, testTransactions[0]!!)
+        testAutoLoadForPayee(payeeId2, testTransactions[1]!!)
+    }
+
+    fun testFrequentCategory() {
+        mDb.insert(
+            DatabaseConstants.TABLE_TRANSACTIONS,
+            TransactionInfo(testAccountId, 0, Date(), "Transaction 3", payeeId, null, catId1).contentValues
+        )
+        mockContentResolver.query(
+            ContentUris.withAppendedId(TransactionProvider.AUTOFILL_URI, payeeId),
+            arrayOf(DatabaseConstants.KEY_CATID, DatabaseConstants.KEY_FREQUENT_CATID),
+            null,
+            null,
+            null
+        )!!.use {
+            with(assertThat(it)) {
+                hasCount(1)
+                movesToFirst()
+                hasLong(0, catId1)
+                hasLong(1, catId1)
+            }
+        }
+    }
+
+    fun testFrequentCategoryAfterUpdatingOlderTransaction() {
+        mDb.update(
+            DatabaseConstants.TABLE_TRANSACTIONS,
+            ContentValues().apply { put(DatabaseConstants.KEY_CATID, catId) },
+            "${DatabaseConstants.KEY_ROWID} = ?",
+            arrayOf(testTransactionIds[0].toString())
+        )
+        testAutoLoadForPayee(payeeId, testTransactions[1]!!)
+        mockContentResolver.query(
+            ContentUris.withAppendedId(TransactionProvider.AUTOFILL_URI, payeeId),
+            arrayOf(DatabaseConstants.KEY_FREQUENT_CATID),
+            null,
+            null,
+            null
+        )!!.use {
+            with(assertThat(it)) {
+                hasCount(1)
+                movesToFirst()
+                hasLong(0, catId)
+            }
+        }
+    }
+
     private fun testAutoLoadForPayee(payeeId: Long, transaction: TransactionInfo?) {
         val projection = arrayOf(
             DatabaseConstants.KEY_CURRENCY,
@@ -6,20 +6,26 @@ import org.totschnig.myexpenses.db2.budgetAllocationQueryUri
 import org.totschnig.myexpenses.db2.budgetAllocationUri
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGETID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET_ROLLOVER_PREVIOUS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR
+import org.totschnig.myexpenses.provider.TransactionInfo
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.testutils.BaseDbTest
 import org.totschnig.shared_test.CursorSubject
+import java.time.LocalDate
+import java.time.ZoneId
+import java.util.Date
 
 class BudgetTest : BaseDbTest() {
 
-    private fun insertOneTimeBudget() = ContentUris.parseId(
+    private fun insertOneTimeBudget(accountId: Long = setupTestAccount()) = ContentUris.parseId(
         mockContentResolver.insert(
             TransactionProvider.BUDGETS_URI,
             BudgetInfo(
-                setupTestAccount(),
+                accountId,
                 "budget 1",
                 "description",
                 400,
@@ -110,4 +116,31 @@ class BudgetTest : BaseDbTest() {
         )
         assertBudgetAmount(budgetId, 600, rollOver = 50, grouping = Grouping.MONTH, year = 2023, second = 12)
     }
-}
\ No newline at end of file
+
+    fun testBudgetProgress() {
+        val accountId = setupTestAccount()
+        val budgetId = insertOneTimeBudget(accountId)
+        listOf("2023-11-30" to -50L, "2023-12-05" to -100L, "2023-12-10" to -30L).forEach { (date, amount) ->
+            mockContentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(
+                    accountId,
+                    amount,
+                    Date.from(LocalDate.parse(date).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant()),
+                    "Transaction"
+                ).contentValues
+            )
+        }
+        mockContentResolver.query(
+            TransactionProvider.BUDGETS_PROGRESS_URI, null, null, null, null
+        )!!.use {
+            with(CursorSubject.assertThat(it)) {
+                hasCount(1)
+                movesToFirst()
+                hasLong(KEY_BUDGETID, budgetId)
+                hasLong(KEY_SUM_EXPENSES, -130)
+                hasLong(KEY_BUDGET, 400)
+            }
+        }
+    }
+}
@@ -56,6 +56,7 @@ import org.totschnig.myexpenses.provider.PlannerUtils
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.service.AutoBackupWorker.Companion.enqueueOrCancel
 import org.totschnig.myexpenses.service.PlanExecutor
+import org.totschnig.myexpenses.service.TimeChangedReceiver
 import org.totschnig.myexpenses.sync.SyncAdapter
 import org.totschnig.myexpenses.ui.ContextHelper
 import org.totschnig.myexpenses.util.ICurrencyFormatter
@@ -143,6 +144,9 @@ open class MyApplication : Application(), SharedPreferences.OnSharedPreferenceCh
             ProcessLifecycleOwner.get().lifecycle.addObserver(this)
             settings.registerOnSharedPreferenceChangeListener(this)
             register(this)
+            MainScope().launch(Dispatchers.IO) {
+                TimeChangedReceiver.refreshCategorySums(this@MyApplication)
+            }
         }
         licenceHandler.init()
         NotificationBuilderWrapper.createChannels(this)
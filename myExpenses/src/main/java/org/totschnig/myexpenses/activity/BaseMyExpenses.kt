@@ -151,6 +151,7 @@ import org.totschnig.myexpenses.viewmodel.ContentResolvingAndroidViewModel.Delet
 import org.totschnig.myexpenses.viewmodel.ExportViewModel
 import org.totschnig.myexpenses.viewmodel.KEY_ROW_IDS
 import org.totschnig.myexpenses.viewmodel.MyExpensesViewModel
+import org.totschnig.myexpenses.viewmodel.MyExpensesViewModel.CloneAndRemapState
 import org.totschnig.myexpenses.viewmodel.SumInfo
 import org.totschnig.myexpenses.viewmodel.SumInfoLoaded
 import org.totschnig.myexpenses.viewmodel.SumInfoUnknown
@@ -655,27 +656,31 @@ abstract class BaseMyExpenses : LaunchActivity(), OcrHost, OnDialogResultListene
 
         viewModel.cloneAndRemapProgress.observe(
             this
-        ) { (first, second): Pair<Int, Int> ->
+        ) { state ->
             val progressDialog =
                 supportFragmentManager.findFragmentByTag(PROGRESS_TAG) as? ProgressDialogFragment
-            val totalProcessed = first + second
             if (progressDialog != null) {
-                if (totalProcessed < progressDialog.max) {
-                    progressDialog.setProgress(totalProcessed)
-                } else {
-                    if (second == 0) {
-                        showSnackBar(R.string.clone_and_remap_result)
-                    } else {
-                        showSnackBar(
-                            String.format(
-                                Locale.ROOT,
-                                "%d out of %d failed",
-                                second,
-                                totalProcessed
+                when (state) {
+                    is CloneAndRemapState.Progress -> {
+                        progressDialog.max = state.total
+                        progressDialog.setProgress(state.done)
+                    }
+
+                    is CloneAndRemapState.Complete -> {
+                        if (state.failure == 0) {
+                            showSnackBar(R.string.clone_and_remap_result)
+                        } else {
+                            showSnackBar(
+                                String.format(
+                                    Locale.ROOT,
+                                    "%d out of %d failed",
+                                    state.failure,
+                                    state.success + state.failure
+                                )
                             )
-                        )
+                        }
+                        supportFragmentManager.beginTransaction().remove(progressDialog).commit()
                     }
-                    supportFragmentManager.beginTransaction().remove(progressDialog).commit()
                 }
             }
         }
@@ -922,6 +927,7 @@ abstract class BaseMyExpenses : LaunchActivity(), OcrHost, OnDialogResultListene
                             )
                         }
                     },
+                    onMenuOpen = { viewModel.prefetchTransactionDetails(it.id) },
                     futureCriterion = viewModel.futureCriterion.collectAsState(initial = FutureCriterion.EndOfDay).value,
                     expansionHandler = viewModel.expansionHandlerForTransactionGroups(account),
                     onBudgetClick = { budgetId, headerId ->
@@ -1795,10 +1801,14 @@ abstract class BaseMyExpenses : LaunchActivity(), OcrHost, OnDialogResultListene
                             )
                             .add(
                                 ProgressDialogFragment.newInstance(
+                                    null,
                                     getString(
                                         R.string.progress_dialog_printing,
                                         "PDF"
-                                    )
+                                    ),
+                                    ProgressDialog.STYLE_HORIZONTAL,
+                                    false,
+                                    true
                                 ),
                                 PROGRESS_TAG
                             )
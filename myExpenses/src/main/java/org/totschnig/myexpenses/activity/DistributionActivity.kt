@@ -468,16 +468,14 @@ class DistributionActivity : DistributionBaseActivity<DistributionViewModel>(),
                                     it.negativePrefix = " - "
                                 }
                                 append(
-                                    accountFormatter.formatCurrency(
-                                        income.amountMajor,
-                                        account.currencyUnit,
+                                    accountFormatter.formatMoney(
+                                        income,
                                         configure
                                     )
                                 )
                                 append(
-                                    accountFormatter.formatCurrency(
-                                        expense.amountMajor,
-                                        account.currencyUnit,
+                                    accountFormatter.formatMoney(
+                                        expense,
                                         configure
                                     )
                                 )
@@ -498,18 +496,16 @@ class DistributionActivity : DistributionBaseActivity<DistributionViewModel>(),
                         }
                         Text(
                             modifier = Modifier.weight(1f),
-                            text = accountFormatter.formatCurrency(
-                                income.amountMajor,
-                                account.currencyUnit,
+                            text = accountFormatter.formatMoney(
+                                income,
                                 configure
                             ),
                             textAlign = TextAlign.End
                         )
                         Text(
                             modifier = Modifier.weight(1f),
-                            text = accountFormatter.formatCurrency(
-                                expense.amountMajor,
-                                account.currencyUnit,
+                            text = accountFormatter.formatMoney(
+                                expense,
                                 configure
                             ),
                             textAlign = TextAlign.End
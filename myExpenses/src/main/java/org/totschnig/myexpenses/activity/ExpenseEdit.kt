@@ -68,6 +68,7 @@ import org.totschnig.myexpenses.databinding.DateEditBinding
 import org.totschnig.myexpenses.databinding.MethodRowBinding
 import org.totschnig.myexpenses.databinding.OneExpenseBinding
 import org.totschnig.myexpenses.db2.FLAG_TRANSFER
+import org.totschnig.myexpenses.db2.RankingContext
 import org.totschnig.myexpenses.db2.asCategoryType
 import org.totschnig.myexpenses.delegate.CategoryDelegate
 import org.totschnig.myexpenses.delegate.MainDelegate
@@ -126,6 +127,7 @@ import org.totschnig.myexpenses.util.safeMessage
 import org.totschnig.myexpenses.util.ui.setAttachmentInfo
 import org.totschnig.myexpenses.util.setEnabledAndVisible
 import org.totschnig.myexpenses.util.tracking.Tracker
+import org.totschnig.myexpenses.viewmodel.CategoryViewModel.Companion.KEY_RANKING_CONTEXT
 import org.totschnig.myexpenses.viewmodel.CategoryViewModel.Companion.KEY_TYPE_FILTER
 import org.totschnig.myexpenses.viewmodel.ContentResolvingAndroidViewModel
 import org.totschnig.myexpenses.viewmodel.ContentResolvingAndroidViewModel.DeleteState.DeleteComplete
@@ -638,9 +640,9 @@ open class ExpenseEdit : AmountActivity<TransactionEditViewModel>(), ContribIFac
     private fun collectSplitParts() {
         lifecycleScope.launch {
             repeatOnLifecycle(Lifecycle.State.STARTED) {
-                viewModel.splitParts.collect { transactions ->
+                viewModel.splitParts.collect { splitParts ->
                     (delegate as? SplitDelegate)?.also {
-                        it.showSplits(transactions)
+                        it.showSplits(splitParts)
                     }
                         ?: run { CrashHandler.report(java.lang.IllegalStateException("expected SplitDelegate, found ${delegate::class.java.name}")) }
                 }
@@ -887,6 +889,9 @@ open class ExpenseEdit : AmountActivity<TransactionEditViewModel>(), ContribIFac
         cached?.tags?.let {
             viewModel.updateTags(it, true)
         }
+        if (delegate is CategoryDelegate) {
+            prefetchLikelyCategories()
+        }
     }
 
     private val saveAndNewPrefKey: PrefKey
@@ -1190,11 +1195,25 @@ open class ExpenseEdit : AmountActivity<TransactionEditViewModel>(), ContribIFac
                 putExtra(KEY_PROTECTION_INFO, ManageCategories.ProtectionInfo(it, isTemplate))
             }
             putExtra(KEY_COLOR, color)
-            putExtra(KEY_TYPE_FILTER, if (delegate is TransferDelegate) FLAG_TRANSFER
-            else delegate.isIncome.asCategoryType)
+            putExtra(KEY_TYPE_FILTER, categoryType)
+            putExtra(KEY_RANKING_CONTEXT, rankingContext)
         }, SELECT_CATEGORY_REQUEST)
     }
 
+    private val categoryType: Byte
+        get() = if (delegate is TransferDelegate) FLAG_TRANSFER else delegate.isIncome.asCategoryType
+
+    private val rankingContext: RankingContext
+        get() = RankingContext(delegate.accountId, delegate.payeeId, categoryType)
+
+    /**
+     * ranks categories for the current account and payee in the background, so that the category
+     * picker can show them immediately
+     */
+    fun prefetchLikelyCategories() {
+        viewModel.prefetchLikelyCategories(rankingContext)
+    }
+
     override fun saveState() {
         if (::delegate.isInitialized) {
             delegate.syncStateAndValidate(true)?.let { transaction ->
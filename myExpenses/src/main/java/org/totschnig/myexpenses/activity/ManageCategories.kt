@@ -230,6 +230,15 @@ class ManageCategories : ProtectedFragmentActivity(),
                                 onCheckedChange = { viewModel.typeFilter = it }
                             )
                         }
+                        (choiceMode as? ChoiceMode.SingleChoiceMode)?.let { singleChoiceMode ->
+                            val likelyCategories =
+                                viewModel.likelyCategories.collectAsState(initial = emptyList()).value
+                            if (likelyCategories.isNotEmpty()) {
+                                LikelyCategories(likelyCategories) {
+                                    singleChoiceMode.selectionState.value = it
+                                }
+                            }
+                        }
                         Box(modifier = Modifier
                             .fillMaxWidth()
                             .weight(1f)) {
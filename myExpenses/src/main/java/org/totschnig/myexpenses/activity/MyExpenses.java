@@ -312,6 +312,7 @@ public class MyExpenses extends BaseMyExpenses implements
   protected void onResume() {
     super.onResume();
     adHandler.onResume();
+    viewModel.expireAccountTotals();
   }
 
   @Override
@@ -107,7 +107,6 @@ class RemapHandler(val activity: BaseMyExpenses) : FragmentResultListener {
                 val progressDialog = ProgressDialogFragment.newInstance(
                     getString(R.string.saving), null, ProgressDialog.STYLE_HORIZONTAL, false
                 )
-                progressDialog.max = checkedItemIds.size
                 supportFragmentManager
                     .beginTransaction()
                     .add(progressDialog, PROGRESS_TAG)
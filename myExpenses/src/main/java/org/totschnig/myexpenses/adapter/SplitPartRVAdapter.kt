@@ -1,6 +1,7 @@
 package org.totschnig.myexpenses.adapter
 
 import android.content.Context
+import android.graphics.drawable.Drawable
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -32,6 +33,18 @@ class SplitPartRVAdapter(
     val colorExpense: Int = ContextCompat.getColor(context, R.color.colorExpense)
     val colorIncome: Int = ContextCompat.getColor(context, R.color.colorIncome)
 
+    /**
+     * splits often repeat the same few categories, so icons are only rendered once, if their
+     * drawable can be cloned
+     */
+    private val iconCache = mutableMapOf<String, Drawable.ConstantState>()
+
+    private fun iconDrawable(context: Context, icon: String): Drawable? =
+        iconCache[icon]?.newDrawable(context.resources)
+            ?: IIconInfo.resolveIcon(icon)?.asDrawable(context)?.also { drawable ->
+                drawable.constantState?.let { iconCache[icon] = it }
+            }
+
     init {
         setHasStableIds(true)
     }
@@ -63,7 +76,9 @@ class SplitPartRVAdapter(
     inner class ViewHolder(private val binding: SplitPartRowBinding) :
         RecyclerView.ViewHolder(binding.root) {
         fun bind(transaction: ITransaction) {
-            transaction.icon?.let { binding.icon.setImageDrawable(IIconInfo.resolveIcon(it)?.asDrawable(binding.root.context)) }
+            binding.icon.setImageDrawable(
+                transaction.icon?.let { iconDrawable(binding.root.context, it) }
+            )
             binding.amount.apply {
                 text = currencyFormatter.formatMoney(Money(currencyUnit, transaction.amountRaw))
                 setTextColor(
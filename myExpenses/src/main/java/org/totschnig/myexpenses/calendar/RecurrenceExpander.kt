@@ -0,0 +1,250 @@
+package org.totschnig.myexpenses.calendar
+
+import java.time.DayOfWeek
+import java.time.Instant
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.YearMonth
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.time.temporal.ChronoUnit
+import java.time.temporal.TemporalAdjusters
+
+/**
+ * Expands the instances of a calendar event in process, so that plans do not depend on the
+ * Instances table of the calendar provider. Rules are evaluated with a granularity of one day,
+ * which covers all rules created by [org.totschnig.myexpenses.model.Plan]. For rules that need a
+ * finer granularity (BYHOUR, BYMINUTE, BYSECOND, FREQ below DAILY) or that use BYYEARDAY or
+ * BYWEEKNO, [expand] returns null, and callers should fall back to the calendar provider.
+ */
+object RecurrenceExpander {
+
+    private val UNTIL_DATE: DateTimeFormatter = DateTimeFormatter.ofPattern("yyyyMMdd")
+    private val UNTIL_DATE_TIME: DateTimeFormatter = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss")
+
+    /**
+     * @param dtStart begin of the first instance
+     * @param timeZone time zone of the event, all day events are evaluated in UTC, as the calendar
+     * provider does
+     * @param rRule recurrence rule, one time events have none
+     * @return begin of all instances that lie between [windowStart] and [windowEnd] (both
+     * inclusive) in ascending order, null if the rule is not supported
+     */
+    fun expand(
+        dtStart: Long,
+        timeZone: String?,
+        allDay: Boolean,
+        rRule: String?,
+        windowStart: Long,
+        windowEnd: Long
+    ): List<Long>? {
+        if (rRule.isNullOrEmpty()) {
+            return if (dtStart in windowStart..windowEnd) listOf(dtStart) else emptyList()
+        }
+        val recurrence = try {
+            EventRecurrence().apply { parse(rRule) }
+        } catch (e: EventRecurrence.InvalidFormatException) {
+            return null
+        }
+        if (!isSupported(recurrence)) return null
+        val zone = zoneFor(timeZone, allDay)
+        val start = Instant.ofEpochMilli(dtStart).atZone(zone)
+        val until = recurrence.until?.let { parseUntil(it, zone) ?: return null }
+        val startDate = start.toLocalDate()
+        val time = start.toLocalTime()
+        val interval = recurrence.interval.coerceAtLeast(1).toLong()
+        val (firstPeriod, unit) = when (recurrence.freq) {
+            EventRecurrence.DAILY -> startDate to ChronoUnit.DAYS
+            EventRecurrence.WEEKLY -> startDate.with(
+                TemporalAdjusters.previousOrSame(weekStart(recurrence))
+            ) to ChronoUnit.WEEKS
+            EventRecurrence.MONTHLY -> startDate.withDayOfMonth(1) to ChronoUnit.MONTHS
+            else -> startDate.withDayOfYear(1) to ChronoUnit.YEARS
+        }
+        var period = 0L
+        //without COUNT, instances before the window do not matter, and we can start right before it
+        if (recurrence.count == 0) {
+            val elapsed = unit.between(
+                firstPeriod,
+                Instant.ofEpochMilli(windowStart).atZone(zone).toLocalDate()
+            ) / interval
+            if (elapsed > 1) period = elapsed - 1
+        }
+        val result = mutableListOf<Long>()
+        var emitted = 0
+        while (true) {
+            val periodStart = firstPeriod.plus(period * interval, unit)
+            val periodStartMillis = periodStart.atStartOfDay(zone).toInstant().toEpochMilli()
+            if (periodStartMillis > windowEnd || (until != null && periodStartMillis > until)) {
+                return result
+            }
+            for (date in candidates(recurrence, periodStart, startDate)) {
+                if (date < startDate) continue
+                val begin = ZonedDateTime.of(date, time, zone).toInstant().toEpochMilli()
+                if (until != null && begin > until) return result
+                if (begin > windowEnd) return result
+                if (begin >= windowStart) result.add(begin)
+                emitted++
+                if (emitted == recurrence.count) return result
+            }
+            period++
+        }
+    }
+
+    private fun isSupported(recurrence: EventRecurrence) =
+        recurrence.freq in EventRecurrence.DAILY..EventRecurrence.YEARLY &&
+                recurrence.byhourCount == 0 &&
+                recurrence.byminuteCount == 0 &&
+                recurrence.bysecondCount == 0 &&
+                recurrence.byyeardayCount == 0 &&
+                recurrence.byweeknoCount == 0
+
+    private fun zoneFor(timeZone: String?, allDay: Boolean): ZoneId = if (allDay) ZoneOffset.UTC else
+        timeZone?.let {
+            try {
+                ZoneId.of(it)
+            } catch (e: Exception) {
+                null
+            }
+        } ?: ZoneId.systemDefault()
+
+    /**
+     * UNTIL is either a date, which is inclusive, or a date time in UTC or in local (floating) time
+     */
+    private fun parseUntil(until: String, zone: ZoneId): Long? = try {
+        when {
+            until.length == 8 -> LocalDate.parse(until, UNTIL_DATE).plusDays(1)
+                .atStartOfDay(zone).toInstant().toEpochMilli() - 1
+
+            until.endsWith("Z") -> LocalDateTime.parse(until.dropLast(1), UNTIL_DATE_TIME)
+                .toInstant(ZoneOffset.UTC).toEpochMilli()
+
+            else -> LocalDateTime.parse(until, UNTIL_DATE_TIME)
+                .atZone(zone).toInstant().toEpochMilli()
+        }
+    } catch (e: DateTimeParseException) {
+        null
+    }
+
+    private fun weekStart(recurrence: EventRecurrence) =
+        if (recurrence.wkst == 0) DayOfWeek.MONDAY else DayOfWeek.entries.first {
+            EventRecurrence.dayOfWeek2Day(it) == recurrence.wkst
+        }
+
+    /**
+     * days of the period starting at [periodStart] that match the rule, in ascending order
+     */
+    private fun candidates(
+        recurrence: EventRecurrence,
+        periodStart: LocalDate,
+        startDate: LocalDate
+    ): List<LocalDate> {
+        val days = when (recurrence.freq) {
+            EventRecurrence.DAILY -> listOf(periodStart).filter {
+                matchesMonth(recurrence, it) && matchesMonthDay(recurrence, it) &&
+                        matchesWeekDay(recurrence, it)
+            }
+
+            EventRecurrence.WEEKLY -> if (recurrence.bydayCount > 0)
+                (0L..6L).map { periodStart.plusDays(it) }.filter {
+                    matchesMonth(recurrence, it) && matchesWeekDay(recurrence, it)
+                }
+            else
+                listOf(periodStart.with(TemporalAdjusters.nextOrSame(startDate.dayOfWeek)))
+                    .filter { matchesMonth(recurrence, it) }
+
+            EventRecurrence.MONTHLY -> YearMonth.from(periodStart).let { month ->
+                if (matchesMonth(recurrence, month.atDay(1)))
+                    expandMonth(recurrence, month, startDate) else emptyList()
+            }
+
+            else -> when {
+                recurrence.bymonthCount > 0 -> recurrence.bymonth.take(recurrence.bymonthCount)
+                    .sorted().flatMap {
+                        expandMonth(recurrence, YearMonth.of(periodStart.year, it), startDate)
+                    }
+
+                recurrence.bymonthdayCount > 0 -> (1..12).flatMap {
+                    expandMonth(recurrence, YearMonth.of(periodStart.year, it), startDate)
+                }
+
+                recurrence.bydayCount > 0 -> (0 until periodStart.lengthOfYear())
+                    .map { periodStart.plusDays(it.toLong()) }
+                    .filter { matchesDayInScope(recurrence, it, it.dayOfYear, it.lengthOfYear()) }
+
+                else -> listOfNotNull(
+                    YearMonth.of(periodStart.year, startDate.month).takeIf {
+                        it.isValidDay(startDate.dayOfMonth)
+                    }?.atDay(startDate.dayOfMonth)
+                )
+            }
+        }
+        return applySetPos(recurrence, days)
+    }
+
+    private fun expandMonth(
+        recurrence: EventRecurrence,
+        month: YearMonth,
+        startDate: LocalDate
+    ): List<LocalDate> {
+        if (recurrence.bymonthdayCount == 0 && recurrence.bydayCount == 0) {
+            return listOfNotNull(
+                month.takeIf { it.isValidDay(startDate.dayOfMonth) }?.atDay(startDate.dayOfMonth)
+            )
+        }
+        return (1..month.lengthOfMonth()).map { month.atDay(it) }.filter {
+            matchesMonthDay(recurrence, it) &&
+                    matchesDayInScope(recurrence, it, it.dayOfMonth, month.lengthOfMonth())
+        }
+    }
+
+    private fun matchesMonth(recurrence: EventRecurrence, date: LocalDate) =
+        recurrence.bymonthCount == 0 ||
+                recurrence.bymonth.take(recurrence.bymonthCount).contains(date.monthValue)
+
+    private fun matchesMonthDay(recurrence: EventRecurrence, date: LocalDate) =
+        recurrence.bymonthdayCount == 0 ||
+                recurrence.bymonthday.take(recurrence.bymonthdayCount).any {
+                    if (it > 0) it == date.dayOfMonth else date.lengthOfMonth() + it + 1 == date.dayOfMonth
+                }
+
+    /**
+     * BYDAY without taking ordinals into account
+     */
+    private fun matchesWeekDay(recurrence: EventRecurrence, date: LocalDate) =
+        recurrence.bydayCount == 0 ||
+                recurrence.byday.take(recurrence.bydayCount)
+                    .contains(EventRecurrence.dayOfWeek2Day(date.dayOfWeek))
+
+    /**
+     * BYDAY where ordinals (e.g. 2MO, -1FR) count occurrences of the weekday within a month or a year
+     * @param dayInScope one based position of [date] within the month or year
+     */
+    private fun matchesDayInScope(
+        recurrence: EventRecurrence,
+        date: LocalDate,
+        dayInScope: Int,
+        lengthOfScope: Int
+    ): Boolean {
+        if (recurrence.bydayCount == 0) return true
+        val weekDay = EventRecurrence.dayOfWeek2Day(date.dayOfWeek)
+        return (0 until recurrence.bydayCount).any { i ->
+            recurrence.byday[i] == weekDay && recurrence.bydayNum[i].let { ordinal ->
+                when {
+                    ordinal > 0 -> (dayInScope - 1) / 7 + 1 == ordinal
+                    ordinal < 0 -> (lengthOfScope - dayInScope) / 7 + 1 == -ordinal
+                    else -> true
+                }
+            }
+        }
+    }
+
+    private fun applySetPos(recurrence: EventRecurrence, days: List<LocalDate>) =
+        if (recurrence.bysetposCount == 0 || days.isEmpty()) days else
+            recurrence.bysetpos.take(recurrence.bysetposCount).mapNotNull {
+                days.getOrNull(if (it > 0) it - 1 else days.size + it)
+            }.distinct().sorted()
+}
@@ -20,6 +20,7 @@ import org.totschnig.myexpenses.db2.FLAG_INCOME
 import org.totschnig.myexpenses.db2.FLAG_TRANSFER
 import org.totschnig.myexpenses.model.CurrencyUnit
 import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.util.formatMoney
 import kotlin.math.sign
 
 fun Modifier.amountBorder(color: Color) = this
@@ -48,7 +49,7 @@ fun AmountText(
         textAlign = textAlign,
         textDecoration = textDecoration,
         color = color,
-        text = prefix + LocalCurrencyFormatter.current.formatCurrency(money.amountMajor, money.currencyUnit) + postfix
+        text = prefix + LocalCurrencyFormatter.current.formatMoney(money) + postfix
     )
 }
 
@@ -99,7 +100,7 @@ fun ColoredAmountText(
         fontWeight = fontWeight,
         textAlign = textAlign,
         style = style,
-        text = prefix + LocalCurrencyFormatter.current.formatCurrency(money.amountMajor, money.currencyUnit) + postfix,
+        text = prefix + LocalCurrencyFormatter.current.formatMoney(money) + postfix,
         color = color
     )
 }
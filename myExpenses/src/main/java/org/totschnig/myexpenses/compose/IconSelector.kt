@@ -18,6 +18,7 @@ import androidx.compose.material3.Tab
 import androidx.compose.material3.Text
 import androidx.compose.material3.TextField
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableStateOf
@@ -33,31 +34,46 @@ import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import com.google.accompanist.themeadapter.material3.Mdc3Theme
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.viewmodel.data.FontAwesomeIcons
 import org.totschnig.myexpenses.viewmodel.data.IIconInfo
 import org.totschnig.myexpenses.viewmodel.data.IconCategory
+import org.totschnig.myexpenses.viewmodel.data.IconSearchIndex
 import org.totschnig.myexpenses.viewmodel.data.values
 
 @Composable
 fun IconSelector(
     modifier: Modifier = Modifier,
     iconsForCategory: (Context, IconCategory) -> Map<String, IIconInfo> = IIconInfo.Companion::resolveIconsForCategory,
-    iconsForSearch: (Context, String) -> Map<String, IIconInfo> = IIconInfo.Companion::searchIcons,
     onIconSelected: (String) -> Unit
 ) {
     val context = LocalContext.current
     val categories = IconCategory.values
     var selectedTabIndex by rememberSaveable { mutableStateOf(1) }
     var searchTerm by rememberSaveable { mutableStateOf("") }
+    var searchResult by remember { mutableStateOf<IconSearchIndex.Result?>(null) }
+    LaunchedEffect(Unit) {
+        //build the index while the user is looking at the first category
+        IconSearchIndex.forContext(context)
+    }
+    LaunchedEffect(searchTerm) {
+        if (searchTerm.isEmpty()) {
+            searchResult = null
+        } else {
+            val index = IconSearchIndex.forContext(context)
+            val previous = searchResult
+            searchResult = withContext(Dispatchers.Default) { index.search(searchTerm, previous) }
+        }
+    }
     val icons = remember {
         derivedStateOf {
-            (if (selectedTabIndex > 0)
+            if (selectedTabIndex > 0)
                 iconsForCategory(context, categories[selectedTabIndex - 1])
+                    .map { Triple(it.key, it.value, context.getString(it.value.label)) }
+                    .sortedBy { it.third }
             else
-                if (searchTerm.isNotEmpty()) iconsForSearch(context, searchTerm) else emptyMap()
-            )
-                .map { Triple(it.key, it.value, context.getString(it.value.label)) }
-                .sortedBy { it.third }
+                searchResult?.icons ?: emptyList()
         }
     }
     val localFocusManager = LocalFocusManager.current
@@ -128,9 +144,6 @@ fun Preview() {
                 iconsForCategory = { _, _ ->
                     FontAwesomeIcons
                 },
-                iconsForSearch = { _, _ ->
-                    emptyMap()
-                },
                 onIconSelected = {}
             )
         }
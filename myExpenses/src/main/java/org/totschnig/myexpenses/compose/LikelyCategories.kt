@@ -0,0 +1,54 @@
+package org.totschnig.myexpenses.compose
+
+import androidx.compose.foundation.background
+import androidx.compose.foundation.horizontalScroll
+import androidx.compose.foundation.layout.Arrangement
+import androidx.compose.foundation.layout.Row
+import androidx.compose.foundation.layout.fillMaxWidth
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.rememberScrollState
+import androidx.compose.material3.ExperimentalMaterial3Api
+import androidx.compose.material3.SuggestionChip
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.res.colorResource
+import androidx.compose.ui.res.dimensionResource
+import androidx.compose.ui.text.style.TextOverflow
+import androidx.compose.ui.unit.dp
+import androidx.compose.ui.unit.sp
+import org.totschnig.myexpenses.R
+import org.totschnig.myexpenses.viewmodel.data.Category
+
+/**
+ * shortcuts to the categories most likely picked, shown above the category tree
+ */
+@OptIn(ExperimentalMaterial3Api::class)
+@Composable
+fun LikelyCategories(
+    categories: List<Category>,
+    onSelected: (Category) -> Unit
+) {
+    Row(
+        modifier = Modifier
+            .fillMaxWidth()
+            .background(color = colorResource(id = R.color.cardBackground))
+            .horizontalScroll(rememberScrollState())
+            .padding(horizontal = dimensionResource(R.dimen.padding_main_screen)),
+        horizontalArrangement = Arrangement.spacedBy(8.dp)
+    ) {
+        categories.forEach { category ->
+            SuggestionChip(
+                onClick = { onSelected(category) },
+                label = {
+                    Text(
+                        text = category.path,
+                        maxLines = 1,
+                        overflow = TextOverflow.Ellipsis
+                    )
+                },
+                icon = category.icon?.let { { Icon(it, size = 18.sp) } }
+            )
+        }
+    }
+}
@@ -107,6 +107,7 @@ fun TransactionList(
     budgetData: State<BudgetData?>,
     selectionHandler: SelectionHandler?,
     menuGenerator: (Transaction2) -> Menu? = { null },
+    onMenuOpen: (Transaction2) -> Unit = {},
     futureCriterion: FutureCriterion,
     expansionHandler: ExpansionHandler?,
     onBudgetClick: (Long, Int) -> Unit,
@@ -253,7 +254,8 @@ fun TransactionList(
                                                 background(futureBackgroundColor)
                                             },
                                         selectionHandler = selectionHandler,
-                                        menuGenerator = menuGenerator
+                                        menuGenerator = menuGenerator,
+                                        onMenuOpen = onMenuOpen
                                     )
                                 }
                             }
@@ -146,9 +146,14 @@ abstract class ItemRenderer(
         transaction: Transaction2,
         modifier: Modifier = Modifier,
         selectionHandler: SelectionHandler? = null,
-        menuGenerator: (Transaction2) -> Menu? = { null }
+        menuGenerator: (Transaction2) -> Menu? = { null },
+        onMenuOpen: (Transaction2) -> Unit = {}
     ) {
         val showMenu = remember { mutableStateOf(false) }
+        val openMenu = {
+            showMenu.value = true
+            onMenuOpen(transaction)
+        }
         val activatedBackgroundColor = colorResource(id = R.color.activatedBackground)
         val voidMarkerHeight = with(LocalDensity.current) { 2.dp.toPx() }
         val voidStatus = stringResource(id = R.string.status_void)
@@ -160,7 +165,7 @@ abstract class ItemRenderer(
                         onLongClick = { it.toggle(transaction) },
                         onClick = {
                             if (it.selectionCount == 0) {
-                                showMenu.value = true
+                                openMenu()
                             } else {
                                 it.toggle(transaction)
                             }
@@ -168,7 +173,7 @@ abstract class ItemRenderer(
                     )
                 },
                 ifAbsent = {
-                    clickable { showMenu.value = true }
+                    clickable { openMenu() }
                 }
             )
             .conditional(selectionHandler?.isSelected(transaction) == true) {
@@ -0,0 +1,71 @@
+package org.totschnig.myexpenses.db2
+
+import android.content.ContentResolver
+import android.net.Uri
+import android.os.Handler
+import android.os.Looper
+import org.totschnig.myexpenses.provider.TransactionProvider.ACCOUNT_TOTALS_URI
+
+/**
+ * Cache for the totals of each account. When the provider notifies a change for
+ * [ACCOUNT_TOTALS_URI] with an account id appended, only the entry of this account is dropped,
+ * any other notification drops all entries.
+ *
+ * The current balance depends on the time, entries are also dropped once the next future
+ * transaction of their account becomes due ([AccountTotals.validUntil]). This is scheduled, but
+ * since scheduled callbacks are delayed while the device sleeps, [expire] should also be called
+ * when the totals are shown again.
+ */
+class AccountTotalsCache(contentResolver: ContentResolver) :
+    InvalidatingCache<Long, AccountTotals>(contentResolver, MAX_ACCOUNTS, ACCOUNT_TOTALS_URI) {
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val expireRunnable = Runnable { expire() }
+
+    override fun onNotified(uri: Uri?) {
+        uri?.takeIf { it.pathSegments.size == 2 }?.lastPathSegment?.toLongOrNull()
+            ?.let { invalidate(it) } ?: invalidate()
+    }
+
+    private fun nowInSeconds() = System.currentTimeMillis() / 1000
+
+    /**
+     * drops the entries that have expired, and starts a new generation if there were any
+     */
+    fun expire() {
+        val now = nowInSeconds()
+        snapshot().filterValues { it.isExpired(now) }.keys.forEach { invalidate(it) }
+        scheduleExpiry()
+    }
+
+    private fun scheduleExpiry() {
+        handler.removeCallbacks(expireRunnable)
+        snapshot().values.mapNotNull { it.validUntil }.minOrNull()?.let {
+            handler.postDelayed(expireRunnable, (it - nowInSeconds()).coerceAtLeast(0) * 1000)
+        }
+    }
+
+    /**
+     * @param loader called with the accounts that are not cached, may omit accounts without
+     * transactions
+     * @return totals for each of [accountIds]
+     */
+    suspend fun getOrLoad(
+        accountIds: Collection<Long>,
+        loader: suspend (Collection<Long>) -> Map<Long, AccountTotals>
+    ): Map<Long, AccountTotals> {
+        val now = nowInSeconds()
+        accountIds.filter { peek(it)?.isExpired(now) == true }.forEach { remove(it) }
+        return getOrLoad(accountIds, AccountTotals.EMPTY, loader).also { scheduleExpiry() }
+    }
+
+    override fun close() {
+        handler.removeCallbacks(expireRunnable)
+        super.close()
+    }
+
+    companion object {
+        private const val MAX_ACCOUNTS = 256
+    }
+}
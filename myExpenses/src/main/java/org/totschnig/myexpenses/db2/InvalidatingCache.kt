@@ -0,0 +1,137 @@
+package org.totschnig.myexpenses.db2
+
+import android.content.ContentResolver
+import android.database.ContentObserver
+import android.net.Uri
+import android.util.LruCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.mapLatest
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.Closeable
+
+/**
+ * LRU cache for data of read-mostly screens. Entries are only dropped, when the provider notifies
+ * a change for one of [uris] (or when the cache is full), so that paging back and forth between
+ * periods does not re-run identical queries. Subclasses can narrow down which entries a
+ * notification drops by overriding [onNotified].
+ */
+open class InvalidatingCache<K : Any, V : Any>(
+    private val contentResolver: ContentResolver,
+    maxSize: Int,
+    vararg uris: Uri
+) : Closeable {
+    private val cache = LruCache<K, V>(maxSize)
+
+    private val _generation = MutableStateFlow(0)
+
+    /**
+     * incremented on each invalidation, results loaded during an older generation are not stored
+     */
+    val generation: StateFlow<Int> = _generation.asStateFlow()
+
+    private val observer = object : ContentObserver(null) {
+        override fun onChange(selfChange: Boolean) {
+            invalidate()
+        }
+
+        override fun onChange(selfChange: Boolean, uri: Uri?) {
+            onNotified(uri)
+        }
+    }
+
+    init {
+        uris.forEach { contentResolver.registerContentObserver(it, true, observer) }
+    }
+
+    /**
+     * called for each notification, drops all entries
+     */
+    protected open fun onNotified(uri: Uri?) {
+        invalidate()
+    }
+
+    fun invalidate() {
+        cache.evictAll()
+        _generation.update { it + 1 }
+    }
+
+    fun invalidate(key: K) {
+        cache.remove(key)
+        _generation.update { it + 1 }
+    }
+
+    fun peek(key: K): V? = cache[key]
+
+    /**
+     * drops the entry for [key] without starting a new generation, for entries that are found to
+     * be outdated while they are read
+     */
+    protected fun remove(key: K) {
+        cache.remove(key)
+    }
+
+    protected fun snapshot(): Map<K, V> = cache.snapshot()
+
+    suspend fun getOrLoad(key: K, loader: suspend () -> V): V = cache[key] ?: run {
+        val startGeneration = _generation.value
+        withContext(Dispatchers.IO) { loader() }.also {
+            if (_generation.value == startGeneration) {
+                cache.put(key, it)
+            }
+        }
+    }
+
+    /**
+     * @param loader called with the keys that are not cached, keys missing from its result get
+     * [default]
+     * @return values for each of [keys]
+     */
+    suspend fun getOrLoad(
+        keys: Collection<K>,
+        default: V,
+        loader: suspend (Collection<K>) -> Map<K, V>
+    ): Map<K, V> {
+        val cached = keys.mapNotNull { key -> cache[key]?.let { key to it } }.toMap()
+        val missing = keys.filterNot { cached.containsKey(it) }
+        if (missing.isEmpty()) return cached
+        val startGeneration = _generation.value
+        val loaded = withContext(Dispatchers.IO) { loader(missing) }.let { result ->
+            missing.associateWith { result[it] ?: default }
+        }
+        if (_generation.value == startGeneration) {
+            loaded.forEach { (key, value) -> cache.put(key, value) }
+        }
+        return cached + loaded
+    }
+
+    /**
+     * emits the value for [key], and again after each invalidation
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun observe(key: K, loader: suspend () -> V): Flow<V> = _generation.mapLatest {
+        getOrLoad(key, loader)
+    }
+
+    /**
+     * loads the values for [keys] in the background, unless they are already cached
+     */
+    fun prefetch(scope: CoroutineScope, keys: List<K>, loader: suspend (K) -> V) {
+        keys.filter { cache[it] == null }.forEach { key ->
+            scope.launch {
+                getOrLoad(key) { loader(key) }
+            }
+        }
+    }
+
+    override fun close() {
+        contentResolver.unregisterContentObserver(observer)
+    }
+}
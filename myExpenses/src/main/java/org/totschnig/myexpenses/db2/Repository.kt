@@ -6,6 +6,7 @@ import android.content.ContentUris
 import android.content.Context
 import android.database.Cursor
 import android.net.Uri
+import android.provider.CalendarContract
 import androidx.core.database.getLongOrNull
 import androidx.datastore.core.DataStore
 import androidx.datastore.preferences.core.Preferences
@@ -16,6 +17,7 @@ import org.totschnig.myexpenses.provider.DataBaseAccount
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_FREQUENT_CATID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
 import org.totschnig.myexpenses.provider.TransactionProvider
 import org.totschnig.myexpenses.provider.TransactionProvider.AUTOFILL_URI
@@ -34,7 +36,10 @@ import org.totschnig.myexpenses.provider.getStringOrNull
 import org.totschnig.myexpenses.util.ICurrencyFormatter
 import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
 import org.totschnig.myexpenses.viewmodel.data.Budget
+import org.totschnig.myexpenses.viewmodel.data.BudgetAmounts
+import org.totschnig.myexpenses.viewmodel.data.Category
 import org.totschnig.myexpenses.viewmodel.data.Debt
+import java.time.LocalDate
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -58,10 +63,11 @@ open class Repository @Inject constructor(
     fun autoFill(payeeId: Long): AutoFillInfo? {
         return contentResolver.query(
             ContentUris.withAppendedId(AUTOFILL_URI, payeeId),
-            arrayOf(KEY_CATID), null, null, null
+            arrayOf(KEY_CATID, KEY_FREQUENT_CATID), null, null, null
         )?.use { cursor ->
             cursor.takeIf { it.moveToFirst() }?.let {
-                it.getLongOrNull(0)?.let { categoryId -> AutoFillInfo(categoryId) }
+                AutoFillInfo(it.getLongOrNull(0), it.getLongOrNull(1))
+                    .takeIf { info -> info.categoryId != null }
             }
         }
     }
@@ -127,6 +133,73 @@ open class Repository @Inject constructor(
         if (it.moveToFirst()) it.getLong(0) else null
     } ?: 0L
 
+    /**
+     * amounts of all budgets for the current period, keyed by day, so that the period rolls over,
+     * shared by the budget list and the budget widget
+     */
+    val budgetAmountsCache by lazy {
+        InvalidatingCache<LocalDate, Map<Long, BudgetAmounts>>(
+            contentResolver,
+            1,
+            TransactionProvider.BUDGETS_URI,
+            TRANSACTIONS_URI,
+            TransactionProvider.ACCOUNTS_URI
+        )
+    }
+
+    /**
+     * begin of plan instances expanded from the events of the planner calendar, keyed by window,
+     * dropped whenever the calendar provider notifies a change
+     */
+    val planInstanceCache by lazy {
+        InvalidatingCache<PlanWindow, List<PlanInstanceDate>>(
+            contentResolver,
+            8,
+            CalendarContract.CONTENT_URI
+        )
+    }
+
+    /**
+     * totals of each account, dropped per account when the provider notifies which accounts are
+     * affected by a change, see [withTotals]
+     */
+    val accountTotalsCache by lazy {
+        AccountTotalsCache(contentResolver)
+    }
+
+    /**
+     * transactions with their linked rows, keyed by transaction id, read by the detail popup, see
+     * [loadTransactionDetails]. Invalidation is asynchronous, so entries must not be used as the
+     * base of writes.
+     */
+    val transactionDetailsCache by lazy {
+        InvalidatingCache<Long, TransactionDetails>(
+            contentResolver,
+            16,
+            TRANSACTIONS_URI,
+            TransactionProvider.ACCOUNTS_URI,
+            TransactionProvider.CATEGORIES_URI,
+            TransactionProvider.PAYEES_URI,
+            TransactionProvider.METHODS_URI,
+            TransactionProvider.TAGS_URI,
+            TransactionProvider.ATTACHMENTS_URI,
+            DEBTS_URI
+        )
+    }
+
+    /**
+     * categories offered first when a category is picked, keyed by what is known about the
+     * transaction, see [loadLikelyCategories]
+     */
+    val likelyCategoriesCache by lazy {
+        InvalidatingCache<RankingContext, List<Category>>(
+            contentResolver,
+            8,
+            TRANSACTIONS_URI,
+            TransactionProvider.CATEGORIES_URI
+        )
+    }
+
     val budgetCreatorFunction: (Cursor) -> Budget = { cursor ->
         val currency = cursor.getString(DatabaseConstants.KEY_CURRENCY)
         val currencyUnit = if (currency == DataBaseAccount.AGGREGATE_HOME_CURRENCY_CODE)
@@ -150,5 +223,14 @@ open class Repository @Inject constructor(
     }
 }
 
-@JvmInline
-value class AutoFillInfo(val categoryId: Long)
\ No newline at end of file
+/**
+ * @param lastCategoryId category of the latest transaction of the payee
+ * @param frequentCategoryId category most often used with the payee
+ */
+data class AutoFillInfo(val lastCategoryId: Long?, val frequentCategoryId: Long?) {
+    /**
+     * used for imports, where the most frequent category is a better guess than the latest one
+     */
+    val categoryId: Long?
+        get() = frequentCategoryId ?: lastCategoryId
+}
\ No newline at end of file
@@ -210,32 +210,40 @@ fun Repository.deleteAccount(accountId: Long): String? {
 }
 
 fun Repository.markAsExported(accountId: Long, filter: WhereFilter?) {
+    markAsExported(listOf(accountId), filter)
+}
+
+/**
+ * marks the transactions of all [accountIds] as exported in one transaction
+ */
+fun Repository.markAsExported(accountIds: List<Long>, filter: WhereFilter?) {
+    if (accountIds.isEmpty()) return
     val ops = buildList {
         val debtUri = TransactionProvider.DEBTS_URI
         add(
             ContentProviderOperation.newUpdate(debtUri).withValue(KEY_SEALED, -1)
                 .withSelection("$KEY_SEALED = 1", null).build()
         )
-        var selection =
-            "$KEY_ACCOUNTID = ? AND $KEY_PARENTID is null AND $KEY_STATUS = ?"
-        var selectionArgs: Array<String>? =
-            arrayOf(accountId.toString(), STATUS_NONE.toString())
-        if (filter != null && !filter.isEmpty) {
-            selection += " AND " + filter.getSelectionForParents(TABLE_TRANSACTIONS, true)
-            selectionArgs = joinArrays(selectionArgs, filter.getSelectionArgs(false))
+        accountIds.forEach { accountId ->
+            var selection =
+                "$KEY_ACCOUNTID = ? AND $KEY_PARENTID is null AND $KEY_STATUS = ?"
+            var selectionArgs: Array<String>? =
+                arrayOf(accountId.toString(), STATUS_NONE.toString())
+            if (filter != null && !filter.isEmpty) {
+                selection += " AND " + filter.getSelectionForParents(TABLE_TRANSACTIONS, true)
+                selectionArgs = joinArrays(selectionArgs, filter.getSelectionArgs(false))
+            }
+            add(
+                ContentProviderOperation.newUpdate(Transaction.CONTENT_URI)
+                    .withValue(KEY_STATUS, STATUS_EXPORTED)
+                    .withSelection(selection, selectionArgs)
+                    .build()
+            )
         }
-        add(
-            ContentProviderOperation.newUpdate(Transaction.CONTENT_URI)
-                .withValue(KEY_STATUS, STATUS_EXPORTED)
-                .withSelection(selection, selectionArgs)
-                .build()
-        )
         add(
             ContentProviderOperation.newUpdate(debtUri).withValue(KEY_SEALED, 1)
                 .withSelection("$KEY_SEALED = -1", null).build()
         )
-
-
     }
     contentResolver.applyBatch(TransactionProvider.AUTHORITY, ArrayList(ops))
 }
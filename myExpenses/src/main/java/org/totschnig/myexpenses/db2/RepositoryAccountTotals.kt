@@ -0,0 +1,169 @@
+package org.totschnig.myexpenses.db2
+
+import android.database.Cursor
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CLEARED_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCHANGE_RATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_CLEARED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HAS_FUTURE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_RECONCILED_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_TRANSFERS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTAL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTALS_VALID_UNTIL
+import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_WITH_ACCOUNT
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getBoolean
+import org.totschnig.myexpenses.provider.getDouble
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.viewmodel.data.FullAccount
+
+/**
+ * aggregates over the transactions of one account, the equivalent values are in home currency
+ * and are needed for the grand total
+ * @param validUntil seconds since epoch, when the next future transaction becomes due and
+ * [current] and [hasFuture] are outdated
+ */
+data class AccountTotals(
+    val current: Long = 0L,
+    val total: Long = 0L,
+    val sumIncome: Long = 0L,
+    val sumExpense: Long = 0L,
+    val sumTransfer: Long = 0L,
+    val clearedTotal: Long = 0L,
+    val reconciledTotal: Long = 0L,
+    val hasCleared: Boolean = false,
+    val hasFuture: Boolean = false,
+    val equivalentCurrent: Double = 0.0,
+    val equivalentTotal: Double = 0.0,
+    val equivalentIncome: Double = 0.0,
+    val equivalentExpense: Double = 0.0,
+    val validUntil: Long? = null
+) {
+    fun isExpired(now: Long) = validUntil?.let { it <= now } == true
+
+    companion object {
+        val EMPTY = AccountTotals()
+
+        fun fromCursor(cursor: Cursor) = AccountTotals(
+            current = cursor.getLong(KEY_CURRENT),
+            total = cursor.getLong(KEY_TOTAL),
+            sumIncome = cursor.getLong(KEY_SUM_INCOME),
+            sumExpense = cursor.getLong(KEY_SUM_EXPENSES),
+            sumTransfer = cursor.getLong(KEY_SUM_TRANSFERS),
+            clearedTotal = cursor.getLong(KEY_CLEARED_TOTAL),
+            reconciledTotal = cursor.getLong(KEY_RECONCILED_TOTAL),
+            hasCleared = cursor.getBoolean(KEY_HAS_CLEARED),
+            hasFuture = cursor.getBoolean(KEY_HAS_FUTURE),
+            equivalentCurrent = cursor.getDouble("equivalent_current"),
+            equivalentTotal = cursor.getDouble("equivalent_total"),
+            equivalentIncome = cursor.getDouble("equivalent_income"),
+            equivalentExpense = cursor.getDouble("equivalent_expense"),
+            validUntil = cursor.getLongOrNull(KEY_TOTALS_VALID_UNTIL)
+        )
+    }
+}
+
+/**
+ * account that counts towards the currency aggregate and the grand total
+ */
+private class TotalsMember(
+    val id: Long,
+    val currency: String,
+    val equivalentOpeningBalance: Double
+)
+
+/**
+ * Loads the totals of [accountIds] with one query, accounts without transactions are omitted
+ */
+fun Repository.loadAccountTotals(accountIds: Collection<Long>): Map<Long, AccountTotals> =
+    contentResolver.query(
+        TransactionProvider.ACCOUNT_TOTALS_URI,
+        null,
+        "$VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID IN (${accountIds.joinToString()})",
+        null,
+        null
+    )?.useAndMap { it.getLong(KEY_ACCOUNTID) to AccountTotals.fromCursor(it) }?.toMap()
+        ?: emptyMap()
+
+/**
+ * all accounts (including hidden ones) that are not excluded from totals
+ */
+private fun Repository.loadTotalsMembers() = contentResolver.query(
+    TransactionProvider.ACCOUNTS_URI,
+    arrayOf(
+        KEY_ROWID,
+        KEY_CURRENCY,
+        "$KEY_OPENING_BALANCE * coalesce($KEY_EXCHANGE_RATE, 1) AS $KEY_OPENING_BALANCE"
+    ),
+    "$KEY_EXCLUDE_FROM_TOTALS = 0",
+    null,
+    null
+)?.useAndMap {
+    TotalsMember(it.getLong(KEY_ROWID), it.getString(KEY_CURRENCY), it.getDouble(KEY_OPENING_BALANCE))
+} ?: emptyList()
+
+/**
+ * Completes [accounts] loaded with [TransactionProvider.QUERY_PARAMETER_DEFER_TOTALS] with the
+ * totals from [Repository.accountTotalsCache], only totals of accounts that are not cached are
+ * queried. Currency aggregates and the grand total are summed up from the totals of their accounts.
+ */
+suspend fun Repository.withTotals(accounts: List<FullAccount>): List<FullAccount> {
+    val members = if (accounts.any { it.isAggregate })
+        withContext(Dispatchers.IO) { loadTotalsMembers() } else emptyList()
+    val totals = accountTotalsCache.getOrLoad(
+        (accounts.filter { !it.isAggregate }.map { it.id } + members.map { it.id }).distinct()
+    ) { loadAccountTotals(it) }
+    return accounts.map { account ->
+        when {
+            account.isHomeAggregate -> {
+                val memberTotals = members.map { totals.getValue(it.id) }
+                val openingBalance = members.sumOf { it.equivalentOpeningBalance }
+                account.copy(
+                    currentBalance = (openingBalance + memberTotals.sumOf { it.equivalentCurrent }).toLong(),
+                    sumIncome = memberTotals.sumOf { it.equivalentIncome }.toLong(),
+                    sumExpense = memberTotals.sumOf { it.equivalentExpense }.toLong(),
+                    total = if (memberTotals.any { it.hasFuture })
+                        (openingBalance + memberTotals.sumOf { it.equivalentTotal }).toLong() else null
+                )
+            }
+
+            account.isAggregate -> {
+                val memberTotals = members.filter { it.currency == account.currency }
+                    .map { totals.getValue(it.id) }
+                account.copy(
+                    currentBalance = account.openingBalance + memberTotals.sumOf { it.current },
+                    sumIncome = memberTotals.sumOf { it.sumIncome },
+                    sumExpense = memberTotals.sumOf { it.sumExpense },
+                    sumTransfer = memberTotals.sumOf { it.sumTransfer },
+                    total = if (memberTotals.any { it.hasFuture })
+                        account.openingBalance + memberTotals.sumOf { it.total } else null
+                )
+            }
+
+            else -> with(totals.getValue(account.id)) {
+                account.copy(
+                    currentBalance = account.openingBalance + current,
+                    sumIncome = sumIncome,
+                    sumExpense = sumExpense,
+                    sumTransfer = sumTransfer,
+                    reconciledTotal = account.openingBalance + reconciledTotal,
+                    clearedTotal = account.openingBalance + clearedTotal,
+                    hasCleared = hasCleared,
+                    total = if (hasFuture) account.openingBalance + total else null
+                )
+            }
+        }
+    }
+}
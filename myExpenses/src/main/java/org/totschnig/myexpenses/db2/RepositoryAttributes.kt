@@ -26,13 +26,14 @@ interface Attribute {
     val userVisible: Boolean
 
     companion object {
-        fun from(cursor: Cursor): Pair<Attribute, String> {
-            val attribute = cursor.getString(KEY_ATTRIBUTE_NAME)
-            return when (val context = cursor.getString(KEY_CONTEXT)) {
-                FinTsAttribute.CONTEXT -> FinTsAttribute.valueOf(attribute)
-                BankingAttribute.CONTEXT -> BankingAttribute.valueOf(attribute)
-                else -> throw IllegalStateException("Unknown context $context")
-            } to cursor.getString(KEY_VALUE)
+        fun from(cursor: Cursor): Pair<Attribute, String> =
+            from(cursor.getString(KEY_ATTRIBUTE_NAME), cursor.getString(KEY_CONTEXT)) to
+                    cursor.getString(KEY_VALUE)
+
+        fun from(name: String, context: String): Attribute = when (context) {
+            FinTsAttribute.CONTEXT -> FinTsAttribute.valueOf(name)
+            BankingAttribute.CONTEXT -> BankingAttribute.valueOf(name)
+            else -> throw IllegalStateException("Unknown context $context")
         }
 
         fun <E> initDatabase(
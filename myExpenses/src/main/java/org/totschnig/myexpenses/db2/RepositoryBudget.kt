@@ -3,31 +3,27 @@ package org.totschnig.myexpenses.db2
 import android.content.ContentUris
 import android.net.Uri
 import androidx.datastore.preferences.core.booleanPreferencesKey
-import kotlinx.coroutines.flow.first
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.provider.DatabaseConstants
-import org.totschnig.myexpenses.provider.DatabaseConstants.DAY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGETID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET_ROLLOVER_PREVIOUS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_END
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_START
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR
-import org.totschnig.myexpenses.provider.DatabaseConstants.getMonth
 import org.totschnig.myexpenses.provider.DatabaseConstants.getThisYearOfMonthStart
 import org.totschnig.myexpenses.provider.DatabaseConstants.getThisYearOfWeekStart
-import org.totschnig.myexpenses.provider.DatabaseConstants.getWeek
-import org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfMonthStart
-import org.totschnig.myexpenses.provider.DatabaseConstants.getYearOfWeekStart
 import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.provider.filter.FilterPersistence
 import org.totschnig.myexpenses.provider.getLocalDate
+import org.totschnig.myexpenses.provider.getLong
 import org.totschnig.myexpenses.util.toDayOfWeek
 import org.totschnig.myexpenses.viewmodel.BudgetViewModel
-import org.totschnig.myexpenses.viewmodel.BudgetViewModel2.Companion.aggregateNeutralPrefKey
 import org.totschnig.myexpenses.viewmodel.DistributionViewModelBase
 import org.totschnig.myexpenses.viewmodel.data.Budget
-import org.totschnig.myexpenses.viewmodel.data.BudgetAllocation
+import org.totschnig.myexpenses.viewmodel.data.BudgetAmounts
 import org.totschnig.myexpenses.viewmodel.data.BudgetProgress
 import org.totschnig.myexpenses.viewmodel.data.DateInfo
 import java.time.LocalDate
@@ -81,35 +77,25 @@ fun budgetAllocationQueryUri(
     } else this
 }
 
-fun Repository.sumLoaderForBudget(budget: Budget, aggregateNeutral: Boolean): Triple<Uri, String, Array<String>?> {
-    val sumBuilder = TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon()
-    budget.queryParameter?.let {
-        sumBuilder.appendQueryParameter(it.first, it.second)
-    }
-    sumBuilder.appendQueryParameter(TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL, aggregateNeutral.toString())
-    val filterPersistence =
-        FilterPersistence(prefHandler, BudgetViewModel.prefNameForCriteria(budget.id), null, false)
-    var filterClause = buildDateFilterClause(budget)
-    val selectionArgs: Array<String>? = if (!filterPersistence.whereFilter.isEmpty) {
-        filterClause += " AND " + filterPersistence.whereFilter.getSelectionForParts(
-            DatabaseConstants.VIEW_WITH_ACCOUNT
-        )
-        filterPersistence.whereFilter.getSelectionArgs(true)
-    } else null
-    return Triple(sumBuilder.build(), filterClause, selectionArgs)
-}
-
-private fun buildDateFilterClause(budget: Budget): String {
-    val year = "${DatabaseConstants.YEAR} = ${DatabaseConstants.THIS_YEAR}"
-    return when (budget.grouping) {
-        Grouping.YEAR -> year
-        Grouping.DAY -> "$year AND $DAY = ${budget.grouping.queryArgumentForThisSecond}"
-        Grouping.WEEK -> "${getYearOfWeekStart()} = ${getThisYearOfWeekStart()} AND ${getWeek()} = ${budget.grouping.queryArgumentForThisSecond}"
-        Grouping.MONTH -> "${getYearOfMonthStart()} = ${getThisYearOfMonthStart()} AND ${getMonth()} = ${budget.grouping.queryArgumentForThisSecond}"
-        Grouping.NONE -> budget.durationAsSqlFilter()
+/**
+ * spent and allocated amounts of all budgets for their current period, loaded with a single query
+ */
+fun Repository.loadBudgetAmounts(): Map<Long, BudgetAmounts> = contentResolver.query(
+    TransactionProvider.BUDGETS_PROGRESS_URI, null, null, null, null
+)?.use { cursor ->
+    buildMap {
+        while (cursor.moveToNext()) {
+            put(
+                cursor.getLong(KEY_BUDGETID),
+                BudgetAmounts(
+                    spent = cursor.getLong(KEY_SUM_EXPENSES),
+                    allocated = cursor.getLong(KEY_BUDGET),
+                    rollOverPrevious = cursor.getLong(KEY_BUDGET_ROLLOVER_PREVIOUS)
+                )
+            )
+        }
     }
-}
-
+} ?: emptyMap()
 
 suspend fun Repository.loadBudgetProgress(budgetId: Long): BudgetProgress? = contentResolver.query(
     TransactionProvider.BUDGETS_URI,
@@ -211,20 +197,10 @@ suspend fun Repository.loadBudgetProgress(budgetId: Long): BudgetProgress? = con
     val totalDays =
         ChronoUnit.DAYS.between(groupingInfo.duration.start, groupingInfo.duration.end) + 1
     val currentDay = ChronoUnit.DAYS.between(groupingInfo.duration.start, LocalDate.now()) + 1
-    val allocated = contentResolver.query(
-        budgetAllocationQueryUri(
-            budgetId, 0, grouping, groupingInfo.year.toString(), groupingInfo.second.toString()
-        ), null, null, null, null
-    ).use {
-        if (it?.moveToFirst() != true) 0 else BudgetAllocation.fromCursor(it).totalAllocated
-    }
-    val aggregateNeutral = dataStore.data.first()[aggregateNeutralPrefKey(budgetId)] ?: false
-    val (sumUri, sumSelection, sumSelectionArguments) = sumLoaderForBudget(budget, aggregateNeutral)
-    val spent = contentResolver.query(sumUri, arrayOf(KEY_SUM_EXPENSES), sumSelection, sumSelectionArguments, null).use {
-        if (it?.moveToFirst() != true) 0 else it.getLong(0)
-    }
+    val amounts = budgetAmountsCache.getOrLoad(LocalDate.now()) { loadBudgetAmounts() }[budgetId]
+        ?: BudgetAmounts.EMPTY
 
     BudgetProgress(
-        budget.title, budget.currencyUnit, groupingInfo.description, allocated, -spent, totalDays, currentDay
+        budget.title, budget.currencyUnit, groupingInfo.description, amounts.totalAllocated, -amounts.spent, totalDays, currentDay
     )
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package org.totschnig.myexpenses.db2
+
+import android.os.Bundle
+import android.os.ResultReceiver
+import org.totschnig.myexpenses.provider.BulkOperation
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COUNT
+import org.totschnig.myexpenses.provider.KEY_BULK_COLUMN
+import org.totschnig.myexpenses.provider.KEY_BULK_REPLACE
+import org.totschnig.myexpenses.provider.KEY_BULK_ROW_IDS
+import org.totschnig.myexpenses.provider.KEY_BULK_TAG_IDS
+import org.totschnig.myexpenses.provider.KEY_BULK_VALUE
+import org.totschnig.myexpenses.provider.KEY_PROGRESS_RECEIVER
+import org.totschnig.myexpenses.provider.TransactionProvider.DUAL_URI
+import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import org.totschnig.myexpenses.provider.TransactionProvider.METHOD_BULK_OPERATION
+
+data class BulkResult(val applied: Int, val selected: Int) {
+    val failed: Int
+        get() = selected - applied
+}
+
+/**
+ * Runs [operation] on the transactions with [transactionIds] in one database transaction
+ * @param onProgress receives the number of completed and the total number of steps
+ */
+fun Repository.bulkOperation(
+    operation: BulkOperation,
+    transactionIds: Collection<Long>,
+    onProgress: ((Int, Int) -> Unit)? = null,
+    arguments: Bundle.() -> Unit = {}
+): BulkResult {
+    val extras = Bundle().apply {
+        putLongArray(KEY_BULK_ROW_IDS, transactionIds.toLongArray())
+        arguments()
+        onProgress?.let {
+            putParcelable(KEY_PROGRESS_RECEIVER, object : ResultReceiver(null) {
+                override fun onReceiveResult(resultCode: Int, resultData: Bundle?) {
+                    it(resultCode, resultData?.getInt(KEY_COUNT) ?: 0)
+                }
+            })
+        }
+    }
+    return contentResolver.call(DUAL_URI, METHOD_BULK_OPERATION, operation.name, extras)!!.let {
+        BulkResult(it.getInt(KEY_RESULT), it.getInt(KEY_COUNT))
+    }
+}
+
+fun Repository.remapTransactions(
+    transactionIds: Collection<Long>,
+    column: String,
+    rowId: Long,
+    clone: Boolean = false,
+    onProgress: ((Int, Int) -> Unit)? = null
+) = bulkOperation(
+    if (clone) BulkOperation.CLONE_AND_REMAP else BulkOperation.REMAP,
+    transactionIds,
+    onProgress
+) {
+    putString(KEY_BULK_COLUMN, column)
+    putLong(KEY_BULK_VALUE, rowId)
+}
+
+fun Repository.tagTransactions(
+    transactionIds: Collection<Long>,
+    tagIds: List<Long>,
+    replace: Boolean
+) = bulkOperation(BulkOperation.TAG, transactionIds) {
+    putLongArray(KEY_BULK_TAG_IDS, tagIds.toLongArray())
+    putBoolean(KEY_BULK_REPLACE, replace)
+}
+
+fun Repository.deleteTransactions(
+    transactionIds: Collection<Long>,
+    markAsVoid: Boolean,
+    onProgress: ((Int, Int) -> Unit)? = null
+) = bulkOperation(
+    if (markAsVoid) BulkOperation.VOID else BulkOperation.DELETE,
+    transactionIds,
+    onProgress
+)
+
+fun Repository.undeleteTransactions(transactionIds: Collection<Long>) =
+    bulkOperation(BulkOperation.UNDELETE, transactionIds)
+
+fun Repository.toggleCrStatus(transactionIds: Collection<Long>) =
+    bulkOperation(BulkOperation.TOGGLE_CR_STATUS, transactionIds)
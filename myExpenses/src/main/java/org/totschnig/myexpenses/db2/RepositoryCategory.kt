@@ -136,6 +136,119 @@ fun Repository.ensureCategoryTree(categoryExport: CategoryExport, parentId: Long
     return count
 }
 
+private class LocalCategory(
+    val id: Long,
+    val label: String,
+    val parentId: Long?,
+    val icon: String?,
+    val color: Int?,
+    val type: Int
+)
+
+/**
+ * local categories, looked up by uuid and by parent and label
+ */
+private class LocalCategories(local: List<Pair<String?, LocalCategory>>) {
+    val byUuid = local.flatMap { (uuids, category) ->
+        uuids?.split(Repository.UUID_SEPARATOR)?.map { it to category } ?: emptyList()
+    }.toMap()
+    val byParentAndLabel = local.associateTo(mutableMapOf()) { (_, category) ->
+        (category.parentId to category.label) to category.id
+    }
+}
+
+private fun Repository.loadLocalCategories() = LocalCategories(
+    contentResolver.query(
+        TransactionProvider.CATEGORIES_URI,
+        arrayOf(KEY_ROWID, KEY_UUID, KEY_LABEL, KEY_PARENTID, KEY_ICON, KEY_COLOR, KEY_TYPE),
+        null, null, null
+    )?.use { cursor ->
+        cursor.asSequence.map {
+            it.getStringOrNull(1) to LocalCategory(
+                it.getLong(0),
+                it.getString(2),
+                it.getLongOrNull(3),
+                it.getStringOrNull(4),
+                it.getIntOrNull(5),
+                it.getInt(6)
+            )
+        }.toList()
+    } ?: emptyList()
+)
+
+/**
+ * imports [categories] with the same result as calling [ensureCategoryTree] for each of them,
+ * but compares them with the local categories first, loaded with one query. Categories that are
+ * known by their uuid and whose label is not taken by another category under the same parent are
+ * handled in memory: unchanged ones are skipped, changed ones are collected for a batch update.
+ * Subtrees with new categories or categories that need to be merged go through [ensureCategory]
+ * in tree order: collected updates are applied before such a subtree, and the local categories are
+ * loaded again before the next category is compared.
+ *
+ * @return number of categories created
+ */
+fun Repository.importCategoryTrees(categories: List<CategoryExport>): Int {
+    var local: LocalCategories? = null
+    val operations = ArrayList<ContentProviderOperation>()
+    var count = 0
+
+    fun applyOperations() {
+        if (operations.isNotEmpty()) {
+            contentResolver.applyBatch(TransactionProvider.AUTHORITY, operations)
+            operations.clear()
+        }
+    }
+
+    fun diff(category: CategoryExport, parentId: Long?) {
+        check(category.uuid.isNotEmpty())
+        val known = local ?: loadLocalCategories().also { local = it }
+        val source = category.uuid.split(Repository.UUID_SEPARATOR)
+            .firstNotNullOfOrNull { known.byUuid[it] }
+        val target = known.byParentAndLabel[parentId to category.label.trim()]
+        if (source == null || (target != null && target != source.id)) {
+            applyOperations()
+            count += ensureCategoryTree(category, parentId)
+            local = null
+            return
+        }
+        val contentValues = ContentValues().apply {
+            if (source.label != category.label) {
+                put(KEY_LABEL, category.label)
+            }
+            if (source.parentId != parentId) {
+                put(KEY_PARENTID, parentId)
+            }
+            if (source.icon != category.icon) {
+                put(KEY_ICON, category.icon)
+            }
+            if (source.color != category.color) {
+                put(KEY_COLOR, category.color)
+            }
+            if (parentId == null && category.type != null && source.type != category.type) {
+                put(KEY_TYPE, category.type)
+            }
+        }
+        if (contentValues.size() > 0) {
+            operations.add(
+                newUpdate(ContentUris.withAppendedId(TransactionProvider.CATEGORIES_URI, source.id))
+                    .withValues(contentValues).build()
+            )
+            //later categories need to see the label and parent of the pending update
+            with(known.byParentAndLabel) {
+                if (get(source.parentId to source.label) == source.id) {
+                    remove(source.parentId to source.label)
+                }
+                put(parentId to category.label, source.id)
+            }
+        }
+        category.children.forEach { diff(it, source.id) }
+    }
+
+    categories.forEach { diff(it, null) }
+    applyOperations()
+    return count
+}
+
 /**
  * 1 if the category with provided uuid exists,
  *  1.1 if target (a category with the provided label and parent) does not exist: update label, parent, icon, color and return category
@@ -0,0 +1,64 @@
+package org.totschnig.myexpenses.db2
+
+import android.os.Parcelable
+import kotlinx.parcelize.Parcelize
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ICON
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LEVEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getInt
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.provider.getStringOrNull
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.provider.withLimit
+import org.totschnig.myexpenses.viewmodel.data.Category
+
+const val LIKELY_CATEGORIES_LIMIT = 8
+
+/**
+ * what is known about the transaction a category is picked for, categories used for transactions
+ * with the same payee or in the same account are ranked higher
+ * @param type [FLAG_EXPENSE], [FLAG_INCOME] or [FLAG_TRANSFER]
+ */
+@Parcelize
+data class RankingContext(
+    val accountId: Long? = null,
+    val payeeId: Long? = null,
+    val type: Byte? = null
+) : Parcelable
+
+/**
+ * the categories most likely picked in [rankingContext], best match first
+ */
+fun Repository.loadLikelyCategories(
+    rankingContext: RankingContext,
+    limit: Int = LIKELY_CATEGORIES_LIMIT
+): List<Category> = contentResolver.query(
+    TransactionProvider.CATEGORIES_RANKED_URI.buildUpon().apply {
+        rankingContext.accountId?.let { appendQueryParameter(KEY_ACCOUNTID, it.toString()) }
+        rankingContext.payeeId?.let { appendQueryParameter(KEY_PAYEEID, it.toString()) }
+        rankingContext.type?.let { appendQueryParameter(KEY_TYPE, it.toString()) }
+    }.build().withLimit(limit),
+    null, null, null, null
+)?.useAndMap {
+    Category(
+        id = it.getLong(KEY_ROWID),
+        level = it.getInt(KEY_LEVEL),
+        label = it.getString(KEY_LABEL),
+        path = it.getString(KEY_PATH),
+        icon = it.getStringOrNull(KEY_ICON),
+        typeFlags = it.getInt(KEY_TYPE).toByte()
+    )
+} ?: emptyList()
+
+/**
+ * [loadLikelyCategories] from [Repository.likelyCategoriesCache], loaded if not cached yet
+ */
+suspend fun Repository.cachedLikelyCategories(rankingContext: RankingContext) =
+    likelyCategoriesCache.getOrLoad(rankingContext) { loadLikelyCategories(rankingContext) }
@@ -0,0 +1,224 @@
+package org.totschnig.myexpenses.db2
+
+import android.content.ContentUris
+import android.provider.CalendarContract.Events
+import android.provider.CalendarContract.Instances
+import androidx.core.database.getLongOrNull
+import androidx.core.database.getStringOrNull
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.map
+import org.totschnig.myexpenses.calendar.RecurrenceExpander
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.provider.CalendarProviderProxy
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DISPLAY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_INSTANCEID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getBoolean
+import org.totschnig.myexpenses.provider.getInt
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.viewmodel.data.PlanInstance
+
+data class PlanWindow(val calendarId: String, val start: Long, val end: Long)
+
+/**
+ * instance of the plan (calendar event) [planId] beginning at [begin]
+ */
+data class PlanInstanceDate(val planId: Long, val begin: Long) {
+    val instanceId: Long
+        get() = CalendarProviderProxy.calculateId(begin)
+}
+
+private class PlanInstanceStatus(val transactionId: Long?, val amount: Long)
+
+private class PlanTemplate(
+    val id: Long,
+    val title: String,
+    val color: Int,
+    val amount: Money,
+    val sealed: Boolean,
+    val statuses: MutableMap<Long, PlanInstanceStatus> = mutableMapOf()
+)
+
+private val EVENT_PROJECTION = arrayOf(
+    Events._ID,
+    Events.DTSTART,
+    Events.RRULE,
+    Events.EVENT_TIMEZONE,
+    Events.ALL_DAY,
+    Events.EXDATE,
+    Events.RDATE,
+    Events.ORIGINAL_ID
+)
+
+/**
+ * Expands the instances of all events in the planner calendar [calendarId] that begin between
+ * [start] and [end] with [RecurrenceExpander], reading the event definitions with one query. Only
+ * events with exceptions (EXDATE, RDATE or modified instances) or with rules not supported by
+ * the expander are looked up in the Instances table of the calendar provider. Requires
+ * [android.Manifest.permission.READ_CALENDAR].
+ */
+fun Repository.expandPlanInstances(calendarId: String, start: Long, end: Long): List<PlanInstanceDate> {
+    val expanded = mutableMapOf<Long, List<Long>>()
+    val fallback = mutableSetOf<Long>()
+    contentResolver.query(
+        Events.CONTENT_URI,
+        EVENT_PROJECTION,
+        "${Events.CALENDAR_ID} = ? AND ${Events.DELETED} = 0",
+        arrayOf(calendarId),
+        null
+    )?.use { cursor ->
+        while (cursor.moveToNext()) {
+            val eventId = cursor.getLong(0)
+            val originalId = cursor.getLongOrNull(7)
+            if (originalId != null) {
+                //instances of exceptions refer to their own event, and are not linked to a template
+                fallback.add(originalId)
+                continue
+            }
+            if (cursor.getStringOrNull(5) != null || cursor.getStringOrNull(6) != null) {
+                fallback.add(eventId)
+                continue
+            }
+            RecurrenceExpander.expand(
+                cursor.getLong(1),
+                cursor.getStringOrNull(3),
+                cursor.getInt(4) == 1,
+                cursor.getStringOrNull(2),
+                start,
+                end
+            )?.let { expanded[eventId] = it } ?: fallback.add(eventId)
+        }
+    }
+    val result = expanded.filterKeys { !fallback.contains(it) }.flatMap { (planId, begins) ->
+        begins.map { PlanInstanceDate(planId, it) }
+    }.toMutableList()
+    if (fallback.isNotEmpty()) {
+        val builder = CalendarProviderProxy.INSTANCES_URI.buildUpon()
+        ContentUris.appendId(builder, start)
+        ContentUris.appendId(builder, end)
+        contentResolver.query(
+            builder.build(), null,
+            Events.CALENDAR_ID + " = " + calendarId + " AND " + Instances.EVENT_ID +
+                    " IN (" + fallback.joinToString() + ")",
+            null, null
+        )?.use { cursor ->
+            while (cursor.moveToNext()) {
+                result.add(
+                    PlanInstanceDate(cursor.getLong(Instances.EVENT_ID), cursor.getLong(Instances.BEGIN))
+                )
+            }
+        }
+    }
+    return result.sortedBy { it.begin }
+}
+
+/**
+ * @see expandPlanInstances, results are cached until the calendar provider notifies a change
+ */
+suspend fun Repository.loadPlanInstanceDates(calendarId: String, start: Long, end: Long) =
+    planInstanceCache.getOrLoad(PlanWindow(calendarId, start, end)) {
+        expandPlanInstances(calendarId, start, end)
+    }
+
+/**
+ * templates linked to [planIds] together with the status of their instances between
+ * [start] and [end], loaded with one query
+ */
+private fun Repository.loadPlanTemplates(
+    planIds: Collection<Long>,
+    start: Long,
+    end: Long
+): Map<Long, PlanTemplate> = buildMap {
+    contentResolver.query(
+        TransactionProvider.TEMPLATES_PLAN_INSTANCES_URI(
+            CalendarProviderProxy.calculateId(start),
+            CalendarProviderProxy.calculateId(end)
+        ),
+        null,
+        "$KEY_PLANID IN (${planIds.joinToString()})",
+        null,
+        null
+    )?.use { cursor ->
+        while (cursor.moveToNext()) {
+            val template = getOrPut(cursor.getLong(KEY_PLANID)) {
+                PlanTemplate(
+                    id = cursor.getLong(KEY_ROWID),
+                    title = cursor.getString(KEY_TITLE),
+                    color = cursor.getInt(KEY_COLOR),
+                    amount = Money(
+                        currencyContext[cursor.getString(KEY_CURRENCY)],
+                        cursor.getLong(KEY_AMOUNT)
+                    ),
+                    sealed = cursor.getBoolean(KEY_SEALED)
+                )
+            }
+            cursor.getLongOrNull(KEY_INSTANCEID)?.let {
+                template.statuses[it] = PlanInstanceStatus(
+                    cursor.getLongOrNull(KEY_TRANSACTIONID),
+                    cursor.getLong(KEY_DISPLAY_AMOUNT)
+                )
+            }
+        }
+    }
+}
+
+/**
+ * instances of all plans in [calendarId] between [start] and [end] that are linked to a template,
+ * with their state. Emits again whenever the calendar provider notifies a change, changes of the
+ * instance state are observed by the planner through [TransactionProvider.PLAN_INSTANCE_STATUS_URI]
+ */
+fun Repository.observePlanInstances(
+    calendarId: String,
+    start: Long,
+    end: Long
+): Flow<List<PlanInstance>> = planInstanceCache.observe(PlanWindow(calendarId, start, end)) {
+    expandPlanInstances(calendarId, start, end)
+}.map { dates ->
+    if (dates.isEmpty()) return@map emptyList()
+    val templates = loadPlanTemplates(dates.map { it.planId }.toSet(), start, end)
+    dates.mapNotNull { date ->
+        templates[date.planId]?.let { template ->
+            val instanceId = date.instanceId
+            val status = template.statuses[instanceId]
+            PlanInstance(
+                template.id,
+                if (status == null) null else instanceId,
+                status?.transactionId,
+                template.title,
+                date.begin,
+                template.color,
+                status?.let { Money(template.amount.currencyUnit, it.amount) } ?: template.amount,
+                template.sealed
+            )
+        }
+    }
+}.flowOn(Dispatchers.IO)
+
+/**
+ * instances of plans in [calendarId] between [start] and [end] that are linked to a template and
+ * have neither been applied nor cancelled
+ */
+suspend fun Repository.loadOpenPlanInstances(
+    calendarId: String,
+    start: Long,
+    end: Long
+): List<PlanInstanceDate> {
+    val dates = loadPlanInstanceDates(calendarId, start, end)
+    if (dates.isEmpty()) return emptyList()
+    val templates = loadPlanTemplates(dates.map { it.planId }.toSet(), start, end)
+    return dates.filter { date ->
+        templates[date.planId]?.statuses?.containsKey(date.instanceId) == false
+    }
+}
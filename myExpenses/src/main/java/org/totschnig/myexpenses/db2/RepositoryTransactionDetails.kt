@@ -0,0 +1,80 @@
+package org.totschnig.myexpenses.db2
+
+import android.content.Context
+import android.net.Uri
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ATTRIBUTE_NAME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTEXT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI_LIST
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.asSequence
+import org.totschnig.myexpenses.viewmodel.data.Tag
+import org.totschnig.myexpenses.viewmodel.data.Transaction
+import org.totschnig.myexpenses.viewmodel.data.Transaction.Companion.projection
+import org.totschnig.myexpenses.viewmodel.data.Transaction.Companion.readTransaction
+
+/**
+ * a transaction together with the rows linked to it, as shown in the detail popup
+ * @param transactions the transaction itself, followed by its split parts
+ * @param attributes grouped by their context
+ */
+data class TransactionDetails(
+    val transactions: List<Transaction>,
+    val tags: List<Tag>,
+    val attachments: List<Uri>,
+    val attributes: Map<String, List<Pair<Attribute, String>>>
+)
+
+/**
+ * Loads [TransactionDetails] for [transactionId] with one provider call: the transaction and its
+ * split parts are the rows of the cursor, the linked tags, attachments and attributes are read
+ * from its extras.
+ * @param context used for localizing method labels
+ */
+suspend fun Repository.loadTransactionDetails(
+    context: Context,
+    transactionId: Long
+): TransactionDetails = withContext(Dispatchers.IO) {
+    contentResolver.query(
+        TransactionProvider.EXTENDED_URI.buildUpon()
+            .appendQueryParameter(KEY_TRANSACTIONID, transactionId.toString())
+            .appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_LINKED_ROWS, "1")
+            .build(),
+        projection(context, homeCurrencyProvider.homeCurrencyString),
+        null,
+        null,
+        "$KEY_PARENTID IS NULL DESC"
+    )!!.use { cursor ->
+        val transactions = cursor.asSequence.map {
+            it.readTransaction(context, currencyContext, homeCurrencyProvider.homeCurrencyUnit)
+        }.toList()
+        val extras = cursor.extras
+        val tagIds = extras.getLongArray(KEY_TAGID) ?: LongArray(0)
+        val tagLabels = extras.getStringArray(KEY_LABEL) ?: emptyArray()
+        val attributeNames = extras.getStringArray(KEY_ATTRIBUTE_NAME) ?: emptyArray()
+        val attributeContexts = extras.getStringArray(KEY_CONTEXT) ?: emptyArray()
+        val attributeValues = extras.getStringArray(KEY_VALUE) ?: emptyArray()
+        TransactionDetails(
+            transactions,
+            tagIds.mapIndexed { index, id -> Tag(id, tagLabels[index]) },
+            extras.getStringArray(KEY_URI_LIST)?.map(Uri::parse) ?: emptyList(),
+            attributeNames.indices.map {
+                Attribute.from(attributeNames[it], attributeContexts[it]) to attributeValues[it]
+            }.groupBy { it.first.context }
+        )
+    }
+}
+
+/**
+ * [TransactionDetails] from [Repository.transactionDetailsCache], loaded if not cached yet
+ */
+suspend fun Repository.cachedTransactionDetails(context: Context, transactionId: Long) =
+    transactionDetailsCache.getOrLoad(transactionId) {
+        loadTransactionDetails(context, transactionId)
+    }
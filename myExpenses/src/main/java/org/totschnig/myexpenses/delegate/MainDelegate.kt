@@ -33,6 +33,7 @@ import org.totschnig.myexpenses.model2.Party
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.preference.PrefKey.AUTO_FILL_HINT_SHOWN
 import org.totschnig.myexpenses.preference.shouldStartAutoFill
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.PAYEE_USAGES_SORT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
@@ -186,7 +187,7 @@ abstract class MainDelegate<T : ITransaction>(
                     arrayOf(KEY_ROWID, KEY_PAYEE_NAME),
                     "$KEY_PARENTID IS NULL $selection",
                     selectArgs,
-                    null
+                    "$PAYEE_USAGES_SORT, $KEY_PAYEE_NAME COLLATE ${prefHandler.collate}"
                 )
             } else null
         }
@@ -198,6 +199,7 @@ abstract class MainDelegate<T : ITransaction>(
                     c.getLong(0).let {
                         payeeId = it
                         handleDebts()
+                        host.prefetchLikelyCategories()
                         if (withAutoFill && shouldAutoFill) {
                             if (shouldStartAutoFill(prefHandler)) {
                                 host.startAutoFill(it, false)
@@ -215,11 +215,12 @@ class SplitDelegate(
 
     override fun missingRecurrenceFeature() = missingRecurrenceFeature
 
-    fun showSplits(transactions: List<TransactionEditViewModel.SplitPart>) {
+    fun showSplits(splitParts: TransactionEditViewModel.SplitParts) {
+        val transactions = splitParts.parts
         adapter.submitList(transactions)
         viewBinding.empty.visibility = if (transactions.isEmpty()) View.VISIBLE else View.GONE
         viewBinding.list.visibility = if (transactions.isEmpty()) View.GONE else View.VISIBLE
-        transactionSum = transactions.sumOf { it.amountRaw }
+        transactionSum = splitParts.sum
         updateBalance()
     }
 }
\ No newline at end of file
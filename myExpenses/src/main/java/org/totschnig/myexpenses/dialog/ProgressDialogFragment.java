@@ -23,12 +23,15 @@ import android.os.Bundle;
 import android.text.TextUtils;
 import android.widget.Button;
 
+import org.totschnig.myexpenses.task.TaskExecutionFragment;
 import org.totschnig.myexpenses.ui.ScrollableProgressDialog;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
 import androidx.annotation.NonNull;
+import androidx.fragment.app.Fragment;
 
 import static android.app.ProgressDialog.STYLE_SPINNER;
+import static org.totschnig.myexpenses.activity.ProtectedFragmentActivity.ASYNC_TAG;
 
 @Deprecated
 public class ProgressDialogFragment extends BaseDialogFragment {
@@ -39,6 +42,7 @@ public class ProgressDialogFragment extends BaseDialogFragment {
   private static final String KEY_TASK_COMPLETED = "taskCompleted";
   private static final String KEY_PROGRESS = "progress";
   private static final String KEY_MAX = "max";
+  private static final String KEY_CANCELS_TASK = "cancelsTask";
   private AlertDialog mDialog;
   private boolean mTaskCompleted = false;
   private int progress = 0, max = 0;
@@ -68,14 +72,24 @@ public class ProgressDialogFragment extends BaseDialogFragment {
    */
   @Deprecated
   public static ProgressDialogFragment newInstance(String title, String message, int progressStyle, boolean withButton) {
+    return newInstance(title, message, progressStyle, withButton, false);
+  }
+
+  /**
+   * @param cancelsTask if true, the dialog can be cancelled with back, which cancels the
+   *                    {@link TaskExecutionFragment} that has been started together with it
+   */
+  @Deprecated
+  public static ProgressDialogFragment newInstance(String title, String message, int progressStyle, boolean withButton, boolean cancelsTask) {
     ProgressDialogFragment f = new ProgressDialogFragment();
     Bundle bundle = new Bundle();
     bundle.putString(KEY_MESSAGE, message);
     bundle.putString(KEY_TITLE, title);
     bundle.putInt(KEY_PROGRESS_STYLE, progressStyle);
     bundle.putBoolean(KEY_WITH_BUTTON, withButton);
+    bundle.putBoolean(KEY_CANCELS_TASK, cancelsTask);
     f.setArguments(bundle);
-    f.setCancelable(false);
+    f.setCancelable(cancelsTask);
     return f;
   }
 
@@ -110,6 +124,21 @@ public class ProgressDialogFragment extends BaseDialogFragment {
     }
   }
 
+  /**
+   * forwards cancellation to the task, if the dialog has been created with cancelsTask
+   */
+  @Override
+  public void onCancel(@NonNull DialogInterface dialog) {
+    super.onCancel(dialog);
+    if (!requireArguments().getBoolean(KEY_CANCELS_TASK)) {
+      return;
+    }
+    Fragment task = getParentFragmentManager().findFragmentByTag(ASYNC_TAG);
+    if (task instanceof TaskExecutionFragment) {
+      ((TaskExecutionFragment<?>) task).cancel();
+    }
+  }
+
   //http://stackoverflow.com/a/12434038/1199911
   @Override
   public void onDestroyView() {
@@ -62,6 +62,7 @@ import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
 import java.time.format.FormatStyle
 import javax.inject.Inject
+import kotlin.math.abs
 
 class TransactionDetailFragment : DialogViewBinding<TransactionDetailBinding>(),
     DialogInterface.OnClickListener {
@@ -96,15 +97,15 @@ class TransactionDetailFragment : DialogViewBinding<TransactionDetailBinding>(),
         viewModel = ViewModelProvider(this)[TransactionDetailViewModel::class.java]
         injector.inject(viewModel)
         val rowId = requireArguments().getLong(DatabaseConstants.KEY_ROWID)
-        viewModel.transaction(rowId).observe(this) { o -> fillData(o) }
-        viewModel.tags(rowId).observe(this) { tags ->
+        viewModel.transactionDetails(rowId).observe(this) { details ->
+            fillData(details.transactions)
+            val tags = details.tags
             if (tags.isNotEmpty()) {
                 binding.TagGroup.addChipsBulk(tags)
             } else {
                 binding.TagRow.visibility = View.GONE
             }
-        }
-        viewModel.attachments(rowId).observe(this) { attachments ->
+            val attachments = details.attachments
             if (attachments.isEmpty()) {
                 binding.AttachmentsRow.visibility = View.GONE
             } else {
@@ -128,10 +129,7 @@ class TransactionDetailFragment : DialogViewBinding<TransactionDetailBinding>(),
                     }
                 }
             }
-        }
-
-        viewModel.attributes(rowId).observe(this) { groups ->
-            groups.forEach { entry ->
+            details.attributes.forEach { entry ->
                 binding.OneExpense.addView(
                     AttributeGroupHeaderBinding.inflate(layoutInflater).root.also {
                         it.text = entry.key
@@ -337,7 +335,7 @@ class TransactionDetailFragment : DialogViewBinding<TransactionDetailBinding>(),
     }
 
     private fun formatCurrencyAbs(money: Money?): String {
-        return currencyFormatter.formatCurrency(money!!.amountMajor.abs(), money.currencyUnit)
+        return currencyFormatter.formatMinor(abs(money!!.amountMinor), money.currencyUnit)
     }
 
     override fun onDestroyView() {
@@ -17,6 +17,7 @@ import org.totschnig.myexpenses.provider.TransactionProvider.TRANSACTIONS_ATTACH
 import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.fileName
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.provider.getLong
 import org.totschnig.myexpenses.provider.getLongOrNull
 import org.totschnig.myexpenses.provider.getString
 import org.totschnig.myexpenses.provider.getStringOrNull
@@ -28,6 +29,7 @@ import org.totschnig.myexpenses.util.joinArrays
 import timber.log.Timber
 import java.io.IOException
 import java.io.OutputStreamWriter
+import java.io.Writer
 import java.time.format.DateTimeFormatter
 
 abstract class AbstractExporter
@@ -59,7 +61,7 @@ abstract class AbstractExporter
 
     abstract val format: ExportFormat
 
-    abstract fun header(context: Context): String?
+    open fun header(context: Context): String? = null
 
     abstract fun TransactionDTO.marshall(categoryPaths: Map<Long, List<String>>): String
 
@@ -75,155 +77,223 @@ abstract class AbstractExporter
         append: Boolean
     ): Result<DocumentFile> {
         Timber.i("now starting export")
-        context.contentResolver.query(
-            TransactionProvider.CATEGORIES_URI,
-            arrayOf(KEY_ROWID, KEY_LABEL, KEY_PARENTID), null, null, null
-        )?.use { cursor ->
-            cursor.asSequence.forEach {
-                categoryTree[it.getLong(0)] = it.getString(1) to it.getLong(2)
+        return withTransactions(context) { transactions ->
+            val output = outputStream.value.getOrThrow()
+            openWriter(context, output, append).use { out ->
+                write(context, out, transactions)
             }
+            output
         }
-        //first we check if there are any exportable transactions
+    }
+
+    /**
+     * runs [block] with the transactions to export, which are read lazily and must be consumed
+     * inside [block]
+     * @return failure if there are no exportable transactions
+     */
+    @Throws(IOException::class)
+    protected fun <T> withTransactions(
+        context: Context,
+        block: (Sequence<TransactionDTO>) -> T
+    ): Result<T> {
+        loadCategoryTree(context)
+        val projection = projection(context)
         var selection = "$KEY_PARENTID is null"
         if (notYetExportedP) selection += " AND $KEY_STATUS = $STATUS_NONE"
-        var selectionArgs = if (filter != null && !filter.isEmpty) {
+        val selectionArgs = if (filter != null && !filter.isEmpty) {
             selection += " AND " + filter.getSelectionForParents(VIEW_EXTENDED, true)
             filter.getSelectionArgs(false)
         } else null
-        val projection = arrayOf(
-            KEY_UUID,
-            KEY_ROWID,
-            KEY_CATID,
-            KEY_DATE,
-            KEY_PAYEE_NAME,
-            KEY_AMOUNT,
-            KEY_COMMENT,
-            localizedLabelSqlColumn(
-                context,
-                KEY_METHOD_LABEL
-            ) + " AS " + KEY_METHOD_LABEL,
-            KEY_CR_STATUS,
-            KEY_REFERENCE_NUMBER,
-            TRANSFER_ACCOUNT_LABEL
+        return context.contentResolver.query(
+            account.uriForTransactionList(), projection, selection, selectionArgs, KEY_DATE
+        )?.use { cursor ->
+            //first we check if there are any exportable transactions
+            if (cursor.moveToFirst()) {
+                Result.success(block(cursor.readTransactions(context, projection)))
+            } else {
+                Result.failure(Exception(context.getString(R.string.no_exportable_expenses)))
+            }
+        } ?: Result.failure(Exception("Cursor is null"))
+    }
+
+    @Throws(IOException::class)
+    fun openWriter(context: Context, output: DocumentFile, append: Boolean): Writer =
+        OutputStreamWriter(
+            context.contentResolver.openOutputStream(output.uri, if (append) "wa" else "w")
+                ?: throw IOException("openOutputStream returned null"),
+            encoding
         )
 
-        fun Cursor.ingestCategoryPaths() {
-            asSequence.forEach { cursor ->
-                cursor.getLongOrNull(KEY_CATID)?.takeIf { it != SPLIT_CATID }?.let { categoryId ->
-                    categoryPaths.computeIfAbsent(categoryId) {
-                        var catId: Long? = categoryId
-                        buildList {
-                            while (catId != null) {
-                                val pair = categoryTree[catId]
-                                catId = if (pair == null) {
-                                    null
-                                } else {
-                                    add(pair.first)
-                                    pair.second
-                                }
-                            }
-                        }.reversed()
+    @Throws(IOException::class)
+    protected open fun write(
+        context: Context,
+        out: Writer,
+        transactions: Sequence<TransactionDTO>
+    ) {
+        header(context)?.let { out.write(it) }
+        val iterator = transactions.iterator()
+        while (iterator.hasNext()) {
+            out.write(iterator.next().marshall(categoryPaths))
+            recordDelimiter(!iterator.hasNext())?.let { out.write(it) }
+        }
+        footer()?.let { out.write(it) }
+    }
+
+    private fun loadCategoryTree(context: Context) {
+        if (categoryTree.isNotEmpty()) return
+        context.contentResolver.query(
+            TransactionProvider.CATEGORIES_URI,
+            arrayOf(KEY_ROWID, KEY_LABEL, KEY_PARENTID), null, null, null
+        )?.use { cursor ->
+            cursor.asSequence.forEach {
+                categoryTree[it.getLong(0)] = it.getString(1) to it.getLong(2)
+            }
+        }
+    }
+
+    /**
+     * labels from the main category down to [categoryId], computed once per category and kept
+     * in [categoryPaths]
+     */
+    private fun categoryPath(categoryId: Long): List<String> =
+        categoryPaths.computeIfAbsent(categoryId) {
+            var catId: Long? = categoryId
+            buildList {
+                while (catId != null) {
+                    val pair = categoryTree[catId]
+                    catId = if (pair == null) {
+                        null
+                    } else {
+                        add(pair.first)
+                        pair.second
                     }
                 }
-            }
+            }.reversed()
         }
 
-        fun Cursor.toDTO(isPart: Boolean = false): TransactionDTO {
-            val rowId = getLong(getColumnIndexOrThrow(KEY_ROWID))
-            val catId = getLongOrNull(KEY_CATID)
-            val isSplit = SPLIT_CATID == catId
-            val splitCursor = if (isSplit) context.contentResolver.query(
-                Transaction.CONTENT_URI,
-                projection,
-                "$KEY_PARENTID = ?",
-                arrayOf(rowId.toString()),
-                null
-            ) else null
-            val readCat =
-                splitCursor?.takeIf { useCategoryOfFirstPartForParent && it.moveToFirst() } ?: this
+    private fun projection(context: Context) = arrayOf(
+        KEY_UUID,
+        KEY_ROWID,
+        KEY_CATID,
+        KEY_DATE,
+        KEY_PAYEE_NAME,
+        KEY_AMOUNT,
+        KEY_COMMENT,
+        localizedLabelSqlColumn(
+            context,
+            KEY_METHOD_LABEL
+        ) + " AS " + KEY_METHOD_LABEL,
+        KEY_CR_STATUS,
+        KEY_REFERENCE_NUMBER,
+        TRANSFER_ACCOUNT_LABEL
+    )
+
+    private class Row(
+        val rowId: Long,
+        val uuid: String,
+        val date: Long,
+        val payee: String?,
+        val amount: Long,
+        val catId: Long?,
+        val transferAccount: String?,
+        val comment: String?,
+        val methodLabel: String?,
+        val crStatus: String?,
+        val referenceNumber: String?
+    )
+
+    private fun Cursor.toRow() = Row(
+        getLong(KEY_ROWID),
+        getString(KEY_UUID),
+        getLong(KEY_DATE),
+        getStringOrNull(KEY_PAYEE_NAME),
+        getLong(KEY_AMOUNT),
+        getLongOrNull(KEY_CATID),
+        getStringOrNull(KEY_TRANSFER_ACCOUNT_LABEL),
+        getStringOrNull(KEY_COMMENT),
+        getStringOrNull(KEY_METHOD_LABEL),
+        getStringOrNull(KEY_CR_STATUS),
+        getStringOrNull(KEY_REFERENCE_NUMBER)
+    )
+
+    /**
+     * Reads the transactions in chunks of [CHUNK_SIZE]. Split parts, tags and attachments are
+     * fetched with one query per chunk instead of per transaction, and only the current chunk is
+     * held in memory.
+     */
+    private fun Cursor.readTransactions(
+        context: Context,
+        projection: Array<String>
+    ): Sequence<TransactionDTO> {
+        moveToPosition(-1)
+        return asSequence.map { it.toRow() }.chunked(CHUNK_SIZE).flatMap { chunk ->
+            val parts = chunk.filter { it.catId == SPLIT_CATID }.takeIf { it.isNotEmpty() }
+                ?.let { splits ->
+                    //noinspection Recycle
+                    context.contentResolver.query(
+                        Transaction.CONTENT_URI,
+                        projection + KEY_PARENTID,
+                        "$KEY_PARENTID IN (${splits.joinToString { it.rowId.toString() }})",
+                        null,
+                        "$KEY_PARENTID, $KEY_DATE DESC, $KEY_ROWID"
+                    )?.useAndMap { it.getLong(KEY_PARENTID) to it.toRow() }
+                }?.groupBy({ it.first }, { it.second }) ?: emptyMap()
+            val transactionIds = (chunk + parts.values.flatten())
+                .joinToString { it.rowId.toString() }
 
             //noinspection Recycle
-            val tagList = context.contentResolver.query(
+            val tags = context.contentResolver.query(
                 TransactionProvider.TRANSACTIONS_TAGS_URI,
-                arrayOf(KEY_LABEL),
-                "$KEY_TRANSACTIONID = ?",
-                arrayOf(rowId.toString()),
+                arrayOf(KEY_TRANSACTIONID, KEY_LABEL),
+                "$KEY_TRANSACTIONID IN ($transactionIds)",
+                null,
                 null
-            )?.useAndMap { it.getString(0) }?.takeIf { it.isNotEmpty() }
+            )?.useAndMap { it.getLong(0) to it.getString(1) }
+                ?.groupBy({ it.first }, { it.second }) ?: emptyMap()
 
             //noinspection Recycle
-            val attachmentList = context.contentResolver.query(
+            val attachments = context.contentResolver.query(
                 TRANSACTIONS_ATTACHMENTS_URI,
-                arrayOf(KEY_URI),
-                "$KEY_TRANSACTIONID = ?", arrayOf(rowId.toString()),
+                arrayOf(KEY_TRANSACTIONID, KEY_URI),
+                "$KEY_TRANSACTIONID IN ($transactionIds)",
+                null,
                 null
-            )?.useAndMap {
-                val uri = Uri.parse(it.getString(0))
-                //We should only see file uri from unit test
-                if (uri.scheme == "file") uri.toFile().name else uri.fileName(context)
-            }?.takeIf { it.isNotEmpty() }?.filterNotNull()
-
-            val transactionDTO = TransactionDTO(
-                getString(KEY_UUID),
-                epoch2ZonedDateTime(getLong(getColumnIndexOrThrow(KEY_DATE))),
-                getStringOrNull(KEY_PAYEE_NAME),
-                Money(currencyUnit, getLong(getColumnIndexOrThrow(KEY_AMOUNT))).amountMajor,
-                readCat.getLongOrNull(KEY_CATID),
-                readCat.getStringOrNull(KEY_TRANSFER_ACCOUNT_LABEL),
-                getStringOrNull(KEY_COMMENT)?.takeIf { it.isNotEmpty() },
-                if (isPart) null else getString(getColumnIndexOrThrow(KEY_METHOD_LABEL)),
-                if (isPart) null else
-                    enumValueOrDefault(
-                        getString(getColumnIndexOrThrow(KEY_CR_STATUS)),
-                        CrStatus.UNRECONCILED
-                    ),
-                if (isPart) null else getStringOrNull(KEY_REFERENCE_NUMBER)
-                    ?.takeIf { it.isNotEmpty() },
-                attachmentList,
-                tagList,
-                splitCursor?.let { splits ->
-                    splits.moveToPosition(-1)
-                    splits.ingestCategoryPaths()
-                    splits.moveToPosition(-1)
-                    splits.asSequence.map {
-                        it.toDTO(isPart = true)
-                    }.toList()
-                }
-            )
-            splitCursor?.close()
-            return transactionDTO
-        }
-
-        return context.contentResolver.query(
-            account.uriForTransactionList(), projection, selection, selectionArgs, KEY_DATE
-        )?.use { cursor ->
-
-            if (cursor.count == 0) {
-                Result.failure(Exception(context.getString(R.string.no_exportable_expenses)))
-            } else {
-                cursor.ingestCategoryPaths()
-
-                val output = outputStream.value.getOrThrow()
-                (context.contentResolver.openOutputStream(output.uri, if (append) "wa" else "w")
-                    ?: throw IOException("openOutputStream returned null")).use { outputStream ->
-                    OutputStreamWriter(outputStream, encoding).use { out ->
-                        cursor.moveToFirst()
-                        header(context)?.let { out.write(it) }
-                        while (cursor.position < cursor.count) {
-                            out.write(cursor.toDTO().marshall(categoryPaths))
+            )?.useAndMap { it.getLong(0) to attachmentFileName(context, it.getString(1)) }
+                ?.groupBy({ it.first }, { it.second }) ?: emptyMap()
 
-                            recordDelimiter(cursor.position == cursor.count - 1)?.let { out.write(it) }
-
-                            cursor.moveToNext()
-                        }
+            fun Row.toDTO(isPart: Boolean): TransactionDTO {
+                val splitParts = parts[rowId]
+                val readCat =
+                    splitParts?.firstOrNull()?.takeIf { useCategoryOfFirstPartForParent } ?: this
+                readCat.catId?.takeIf { it != SPLIT_CATID }?.let { categoryPath(it) }
+                return TransactionDTO(
+                    uuid,
+                    epoch2ZonedDateTime(date),
+                    payee,
+                    Money(currencyUnit, amount).amountMajor,
+                    readCat.catId,
+                    readCat.transferAccount,
+                    comment?.takeIf { it.isNotEmpty() },
+                    if (isPart) null else methodLabel,
+                    if (isPart) null else
+                        enumValueOrDefault(crStatus, CrStatus.UNRECONCILED),
+                    if (isPart) null else referenceNumber?.takeIf { it.isNotEmpty() },
+                    attachments[rowId]?.filterNotNull(),
+                    tags[rowId],
+                    if (catId == SPLIT_CATID) {
+                        splitParts.orEmpty().map { it.toDTO(isPart = true) }
+                    } else null
+                )
+            }
 
-                        footer()?.let { out.write(it) }
+            chunk.map { it.toDTO(isPart = false) }
+        }
+    }
 
-                        Result.success(output)
-                    }
-                }
-            }
-        } ?: Result.failure(Exception("Cursor is null"))
+    private fun attachmentFileName(context: Context, uriString: String): String? {
+        val uri = Uri.parse(uriString)
+        //We should only see file uri from unit test
+        return if (uri.scheme == "file") uri.toFile().name else uri.fileName(context)
     }
 
     open fun recordDelimiter(isLastLine: Boolean): String? = "\n"
@@ -233,5 +303,10 @@ abstract class AbstractExporter
     companion object {
         const val ENCODING_UTF_8 = "UTF-8"
         const val ENCODING_LATIN_1 = "ISO-8859-1"
+
+        /**
+         * number of transactions read together, with their split parts, tags and attachments
+         */
+        const val CHUNK_SIZE = 100
     }
-}
\ No newline at end of file
+}
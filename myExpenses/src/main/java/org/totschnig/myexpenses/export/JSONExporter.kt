@@ -1,23 +1,21 @@
 package org.totschnig.myexpenses.export
 
 import android.content.Context
-import androidx.annotation.Keep
-import com.google.gson.Gson
-import com.google.gson.GsonBuilder
-import com.google.gson.JsonPrimitive
-import com.google.gson.JsonSerializationContext
-import com.google.gson.JsonSerializer
-import org.totschnig.myexpenses.model.CrStatus
+import androidx.documentfile.provider.DocumentFile
+import com.google.gson.stream.JsonWriter
 import org.totschnig.myexpenses.model.CurrencyContext
 import org.totschnig.myexpenses.model.ExportFormat
 import org.totschnig.myexpenses.model.TransactionDTO
 import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.provider.filter.WhereFilter
-import java.lang.reflect.Type
-import java.math.BigDecimal
-import java.time.ZonedDateTime
+import java.io.IOException
+import java.io.StringWriter
+import java.io.Writer
 
 /**
+ * Writes transactions one by one to a [JsonWriter], so that memory use does not depend on the
+ * size of the account.
+ *
  * @param account          Account to print
  * @param filter           only transactions matched by filter will be considered
  * @param notYetExportedP  if true only transactions not marked as exported will be handled
@@ -32,71 +30,113 @@ class JSONExporter(
     notYetExportedP: Boolean,
     dateFormat: String,
     decimalSeparator: Char,
-    encoding: String,
-    private val preamble: String = "",
-    private val appendix: String = ""
+    encoding: String
 ) :
     AbstractExporter(
         account, currencyContext, filter, notYetExportedP, dateFormat,
         decimalSeparator, encoding
     ) {
 
-    val gson: Gson =  GsonBuilder()
-        .registerTypeAdapter(ZonedDateTime::class.java, object: JsonSerializer<ZonedDateTime> {
-            override fun serialize(
-                zonedDateTime: ZonedDateTime,
-                typeOfSrc: Type,
-                context: JsonSerializationContext
-            ) = JsonPrimitive(dateFormatter.format(zonedDateTime))
-        })
-        .create()
-
     override val format = ExportFormat.JSON
 
     override val useCategoryOfFirstPartForParent = false
 
-    override fun header(context: Context) =
-        "$preamble{\"uuid\":${gson.toJson(account.uuid)},\"label\":${gson.toJson(account.label)},\"currency\":${gson.toJson(account.currency)},\"openingBalance\":${gson.toJson(openingBalance)},\"transactions\": ["
-
     override fun TransactionDTO.marshall(categoryPaths: Map<Long, List<String>>): String =
-        gson.toJson(convert(this))
+        StringWriter().also { JsonWriter(it).transaction(this) }.toString()
+
+    override fun write(context: Context, out: Writer, transactions: Sequence<TransactionDTO>) {
+        JsonWriter(out).apply {
+            account(transactions)
+            flush()
+        }
+    }
 
-    override fun recordDelimiter(isLastLine: Boolean) = if (isLastLine) null else ","
+    private fun JsonWriter.account(transactions: Sequence<TransactionDTO>) {
+        beginObject()
+        name("uuid").value(account.uuid)
+        name("label").value(account.label)
+        name("currency").value(account.currency)
+        name("openingBalance").value(openingBalance)
+        name("transactions").beginArray()
+        transactions.forEach { transaction(it) }
+        endArray()
+        endObject()
+    }
+
+    private fun JsonWriter.transaction(dto: TransactionDTO) {
+        beginObject()
+        name("uuid").value(dto.uuid)
+        name("date").value(dateFormatter.format(dto.date))
+        dto.payee?.let { name("payee").value(it) }
+        name("amount").value(dto.amount)
+        dto.catId?.let { categoryPaths[it] }?.let { path ->
+            name("category").beginArray()
+            path.forEach { value(it) }
+            endArray()
+        }
+        dto.transferAccount?.let { name("transferAccount").value(it) }
+        dto.comment?.let { name("comment").value(it) }
+        dto.methodLabel?.let { name("methodLabel").value(it) }
+        dto.status?.let { name("status").value(it.name) }
+        dto.referenceNumber?.let { name("referenceNumber").value(it) }
+        dto.attachmentFileNames?.let { attachments ->
+            name("attachments").beginArray()
+            attachments.forEach { value(it) }
+            endArray()
+        }
+        dto.tagList?.let { tags ->
+            name("tags").beginArray()
+            tags.forEach { value(it) }
+            endArray()
+        }
+        dto.splits?.let { splits ->
+            name("splits").beginArray()
+            splits.forEach { transaction(it) }
+            endArray()
+        }
+        endObject()
+    }
 
-    override fun footer(): String = "]}$appendix"
+    /**
+     * writes the account to [writer], which is only requested if there are transactions to export
+     */
+    @Throws(IOException::class)
+    fun writeAccount(context: Context, writer: () -> JsonWriter): Result<Unit> =
+        withTransactions(context) { writer().account(it) }
 
-    private fun convert(dto: TransactionDTO) : Transaction = with(dto) {
-        Transaction(
-            uuid = uuid,
-            date = date,
-            payee = payee,
-            amount = amount,
-            category = catId?.let { cat -> categoryPaths[cat] },
-            transferAccount = transferAccount,
-            comment = comment,
-            methodLabel = methodLabel,
-            status = status,
-            referenceNumber = referenceNumber,
-            attachments = attachmentFileNames,
-            tags = tagList,
-            splits = splits?.map(::convert)
-        )
+    companion object {
+        /**
+         * exports the accounts of [exporters] in one pass as array into a single file, accounts
+         * without exportable transactions are left out
+         * @return the result for each exporter
+         */
+        @Throws(IOException::class)
+        fun exportMerged(
+            context: Context,
+            exporters: List<JSONExporter>,
+            outputStream: Lazy<Result<DocumentFile>>
+        ): List<Result<DocumentFile>> {
+            var out: Writer? = null
+            var writer: JsonWriter? = null
+            try {
+                val results = exporters.map { exporter ->
+                    exporter.writeAccount(context) {
+                        writer ?: exporter.openWriter(
+                            context, outputStream.value.getOrThrow(), false
+                        ).let {
+                            out = it
+                            JsonWriter(it).apply { beginArray() }
+                        }.also { writer = it }
+                    }.map { outputStream.value.getOrThrow() }
+                }
+                writer?.apply {
+                    endArray()
+                    flush()
+                }
+                return results
+            } finally {
+                out?.close()
+            }
+        }
     }
 }
-
-@Keep
-data class Transaction(
-    val uuid: String,
-    val date: ZonedDateTime,
-    val payee: String?,
-    val amount: BigDecimal,
-    val category: List<String>?,
-    val transferAccount: String?,
-    val comment: String?,
-    val methodLabel: String?,
-    val status: CrStatus?,
-    val referenceNumber: String?,
-    val attachments: List<String>?,
-    val tags: List<String>?,
-    val splits: List<Transaction>?
-)
\ No newline at end of file
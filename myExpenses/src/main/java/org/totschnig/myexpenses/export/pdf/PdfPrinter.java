@@ -42,6 +42,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 
+import androidx.annotation.Nullable;
 import androidx.documentfile.provider.DocumentFile;
 
 import com.itextpdf.text.BaseColor;
@@ -90,6 +91,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import javax.inject.Inject;
 
@@ -97,6 +99,64 @@ import timber.log.Timber;
 
 public class PdfPrinter {
   private static final String VOID_MARKER = "void";
+  /**
+   * number of transaction rows after which the pending rows of the current table are written to
+   * the document and released, which keeps memory usage independent of the size of the account
+   */
+  private static final int FLUSH_INTERVAL = 50;
+
+  /**
+   * Allows the caller to follow and cancel the printing of the transaction list.
+   */
+  public interface ProgressListener {
+    void onProgress(int current, int total);
+
+    boolean isCancelled();
+  }
+
+  /**
+   * strikes through rows of void transactions, stateless hence shared by all tables
+   */
+  private static final PdfPTableEvent VOID_MARKER_EVENT = new PdfPTableEvent() {
+
+    private Object findFirstChunkGenericTag(PdfPRow row) {
+      for (PdfPCell cell : row.getCells()) {
+        if (cell != null) {
+          Phrase phrase = cell.getPhrase();
+          if (phrase != null) {
+            final List<Chunk> chunks = phrase.getChunks();
+            if (chunks.size() > 0) {
+              final HashMap<String, Object> attributes = chunks.get(0).getAttributes();
+              if (attributes != null) {
+                return attributes.get(GENERICTAG);
+              }
+            }
+          }
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void tableLayout(PdfPTable table, float[][] widths, float[] heights, int headerRows, int rowStart, PdfContentByte[] canvases) {
+      for (int row = rowStart; row < widths.length; row++) {
+        if (VOID_MARKER.equals(findFirstChunkGenericTag(table.getRow(row)))) {
+          final PdfContentByte canvas = canvases[PdfPTable.BASECANVAS];
+          canvas.saveState();
+          canvas.setColorStroke(BaseColor.RED);
+          final float left = widths[row][0];
+          final float right = widths[row][widths[row].length - 1];
+          final float bottom = heights[row];
+          final float top = heights[row + 1];
+          final float center = (bottom + top) / 2;
+          canvas.moveTo(left, center);
+          canvas.lineTo(right, center);
+          canvas.stroke();
+          canvas.restoreState();
+        }
+      }
+    }
+  };
   private final Account account;
   private final DocumentFile destDir;
   private final WhereFilter filter;
@@ -125,6 +185,14 @@ public class PdfPrinter {
   }
 
   public Result<Uri> print(Context context) throws IOException, DocumentException {
+    return print(context, null);
+  }
+
+  /**
+   * @throws CancellationException if printing has been cancelled through {@link ProgressListener#isCancelled()},
+   * the partially written file is deleted in that case
+   */
+  public Result<Uri> print(Context context, @Nullable ProgressListener progressListener) throws IOException, DocumentException {
     long start = System.currentTimeMillis();
     Timber.d("Print start %d", start);
     PdfHelper helper = new PdfHelper();
@@ -168,18 +236,28 @@ public class PdfPrinter {
           DocumentFileExtensionKt.getDisplayName(destDir)
       );
     }
-    PdfWriter.getInstance(document, context.getContentResolver().openOutputStream(outputFile.getUri()));
-    Timber.d("All setup %d", (System.currentTimeMillis() - start));
-    document.open();
-    Timber.d("Document open %d", (System.currentTimeMillis() - start));
-    addMetaData(document);
-    Timber.d("Metadata %d", (System.currentTimeMillis() - start));
-    addHeader(document, helper, context);
-    Timber.d("Header %d", (System.currentTimeMillis() - start));
-    addTransactionList(document, transactionCursor, helper, context);
-    Timber.d("List %d", (System.currentTimeMillis() - start));
-    transactionCursor.close();
-    document.close();
+    try {
+      PdfWriter.getInstance(document, context.getContentResolver().openOutputStream(outputFile.getUri()));
+      Timber.d("All setup %d", (System.currentTimeMillis() - start));
+      document.open();
+      Timber.d("Document open %d", (System.currentTimeMillis() - start));
+      addMetaData(document);
+      Timber.d("Metadata %d", (System.currentTimeMillis() - start));
+      addHeader(document, helper, context);
+      Timber.d("Header %d", (System.currentTimeMillis() - start));
+      addTransactionList(document, transactionCursor, helper, context, progressListener);
+      Timber.d("List %d", (System.currentTimeMillis() - start));
+      document.close();
+    } catch (CancellationException e) {
+      try {
+        document.close();
+      } catch (Exception ignored) {
+      }
+      outputFile.delete();
+      throw e;
+    } finally {
+      transactionCursor.close();
+    }
     return Result.ofSuccess(R.string.export_sdcard_success, outputFile.getUri(),
         DocumentFileExtensionKt.getDisplayName(outputFile)
     );
@@ -208,7 +286,8 @@ public class PdfPrinter {
     document.add(empty);
   }
 
-  private void addTransactionList(Document document, Cursor transactionCursor, PdfHelper helper, Context context)
+  private void addTransactionList(Document document, Cursor transactionCursor, PdfHelper helper,
+                                  Context context, @Nullable ProgressListener progressListener)
       throws DocumentException, IOException {
     String selection;
     String[] selectionArgs;
@@ -256,8 +335,9 @@ public class PdfPrinter {
     transactionCursor.moveToFirst();
     groupCursor.moveToFirst();
     long previousBalance = account.getOpeningBalance();
+    final int count = transactionCursor.getCount();
 
-    while (transactionCursor.getPosition() < transactionCursor.getCount()) {
+    while (transactionCursor.getPosition() < count) {
       int year = transactionCursor.getInt(account.getGrouping().equals(Grouping.WEEK) ? columnIndexYearOfWeekStart : columnIndexYear);
       int month = transactionCursor.getInt(columnIndexMonth);
       int week = transactionCursor.getInt(columnIndexWeek);
@@ -272,6 +352,7 @@ public class PdfPrinter {
       };
       if (currentHeaderId != prevHeaderId) {
         if (table != null) {
+          table.setComplete(true);
           document.add(table);
         }
         int second = switch (account.getGrouping()) {
@@ -325,46 +406,8 @@ public class PdfPrinter {
         LineSeparator sep = new LineSeparator();
         document.add(sep);
         table = helper.newTable(4);
-        table.setTableEvent(new PdfPTableEvent() {
-
-          private Object findFirstChunkGenericTag(PdfPRow row) {
-            for (PdfPCell cell : row.getCells()) {
-              if (cell != null) {
-                Phrase phrase = cell.getPhrase();
-                if (phrase != null) {
-                  final List<Chunk> chunks = phrase.getChunks();
-                  if (chunks.size() > 0) {
-                    final HashMap<String, Object> attributes = chunks.get(0).getAttributes();
-                    if (attributes != null) {
-                      return attributes.get(GENERICTAG);
-                    }
-                  }
-                }
-              }
-            }
-            return null;
-          }
-
-          @Override
-          public void tableLayout(PdfPTable table1, float[][] widths, float[] heights, int headerRows, int rowStart, PdfContentByte[] canvases) {
-            for (int row = rowStart; row < widths.length; row++) {
-              if (VOID_MARKER.equals(findFirstChunkGenericTag(table1.getRow(row)))) {
-                final PdfContentByte canvas = canvases[PdfPTable.BASECANVAS];
-                canvas.saveState();
-                canvas.setColorStroke(BaseColor.RED);
-                final float left = widths[row][0];
-                final float right = widths[row][widths[row].length - 1];
-                final float bottom = heights[row];
-                final float top = heights[row + 1];
-                final float center = (bottom + top) / 2;
-                canvas.moveTo(left, center);
-                canvas.lineTo(right, center);
-                canvas.stroke();
-                canvas.restoreState();
-              }
-            }
-          }
-        });
+        table.setTableEvent(VOID_MARKER_EVENT);
+        table.setComplete(false);
         table.setWidths(table.getRunDirection() == PdfWriter.RUN_DIRECTION_RTL ?
             new int[]{2, 3, 5, 1} : new int[]{1, 5, 3, 2});
         table.setSpacingBefore(2f);
@@ -486,10 +529,25 @@ public class PdfPrinter {
         table.addCell(helper.emptyCell());
       }
       transactionCursor.moveToNext();
+      int position = transactionCursor.getPosition();
+      if (position % FLUSH_INTERVAL == 0) {
+        //the table is not complete, so iText renders the rows added so far and drops them
+        document.add(table);
+        if (progressListener != null) {
+          if (progressListener.isCancelled()) {
+            groupCursor.close();
+            throw new CancellationException();
+          }
+          progressListener.onProgress(position, count);
+        }
+      }
     }
-    // now add all this to the document
+    table.setComplete(true);
     document.add(table);
     groupCursor.close();
+    if (progressListener != null) {
+      progressListener.onProgress(count, count);
+    }
   }
 
   private void addEmptyLine(Paragraph paragraph, int number) {
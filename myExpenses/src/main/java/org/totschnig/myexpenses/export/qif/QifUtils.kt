@@ -196,9 +196,61 @@ object QifUtils {
      */
     fun reduceTransfers(
         accounts: List<ImportAccount>
-    ) = accounts
-        .map { it.copy(transactions = transformUnknownTransfers(it, it.transactions, accounts)) }
-        .map { it.copy(transactions = reduceTransfers(it, it.transactions, accounts)) }
+    ): List<ImportAccount> {
+        val index = TransferIndex(accounts)
+        return accounts
+            .map { it.copy(transactions = transformUnknownTransfers(it, it.transactions, index)) }
+            .map { it.copy(transactions = reduceTransfers(it, it.transactions, index)) }
+    }
+
+    /**
+     * identifies a transfer by the accounts on both sides, its date and its amount as seen from
+     * [fromAccount], so that both sides of the same transfer map to the same key, see
+     * [twoSidesOfTheSameTransfer]
+     */
+    private data class TransferKey(
+        val fromAccount: String,
+        val toAccount: String?,
+        val date: Date,
+        val amount: BigDecimal
+    )
+
+    /**
+     * transfers of all accounts, keyed by how their counterpart would look like, so that the
+     * counterpart of a transfer is found with one lookup instead of scanning the other account.
+     * As with a lookup by memo, only the first account with a given memo is taken into account.
+     */
+    private class TransferIndex(accounts: List<ImportAccount>) {
+        private val transactions = HashSet<TransferKey>()
+        private val splits = HashSet<TransferKey>()
+
+        init {
+            accounts.distinctBy { it.memo }.forEach { account ->
+                account.transactions.forEach { transaction ->
+                    if (transaction.isTransfer) {
+                        transactions.add(counterPartKey(account, transaction))
+                    }
+                    transaction.splits?.forEach { split ->
+                        if (split.isTransfer) {
+                            splits.add(counterPartKey(account, split))
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun counterPartKey(account: ImportAccount, transaction: ImportTransaction) =
+            TransferKey(transaction.toAccount!!, account.memo, transaction.date, transaction.amount.negate())
+
+        private fun key(fromAccount: ImportAccount, fromTransaction: ImportTransaction) =
+            TransferKey(fromAccount.memo, fromTransaction.toAccount, fromTransaction.date, fromTransaction.amount)
+
+        fun hasCounterPartInTransaction(fromAccount: ImportAccount, fromTransaction: ImportTransaction) =
+            transactions.contains(key(fromAccount, fromTransaction))
+
+        fun hasCounterPartInSplit(fromAccount: ImportAccount, fromTransaction: ImportTransaction) =
+            splits.contains(key(fromAccount, fromTransaction))
+    }
 
     /**
      * We remove one side of the transfer (either the one that is not part of a split or the one
@@ -207,48 +259,27 @@ object QifUtils {
     private fun reduceTransfers(
         fromAccount: ImportAccount,
         transactions: List<ImportTransaction>,
-        allAccounts: List<ImportAccount>
+        index: TransferIndex
     ): List<ImportTransaction> {
-        return transactions.mapNotNull { fromTransaction ->
-            if (fromTransaction.isTransfer) {
-                var shouldReduce = false
-                if (fromTransaction.toAccount != fromAccount.memo) {
-                    allAccounts.find { it.memo == fromTransaction.toAccount }?.let { toAccount ->
-                        shouldReduce = toAccount.transactions.any { toTransaction ->
-                            (fromTransaction.amount.signum() == -1 && twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, toTransaction)) ||
-                                    toTransaction.splits?.any { split ->
-                                        twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, split)
-                                    } == true
-                        }
-                    }
-                }
-                if (shouldReduce) return@mapNotNull null
-            }
-            fromTransaction
+        return transactions.filterNot { fromTransaction ->
+            fromTransaction.isTransfer && fromTransaction.toAccount != fromAccount.memo &&
+                    ((fromTransaction.amount.signum() == -1 && index.hasCounterPartInTransaction(fromAccount, fromTransaction)) ||
+                            index.hasCounterPartInSplit(fromAccount, fromTransaction))
         }
     }
 
     private fun transformUnknownTransfers(
         fromAccount: ImportAccount,
         transactions: List<ImportTransaction>,
-        allAccounts: List<ImportAccount>
+        index: TransferIndex
     ): List<ImportTransaction> = transactions.map { fromTransaction ->
         (if (fromTransaction.isTransfer) {
-            var shouldTransform = true
-            if (fromTransaction.toAccount != fromAccount.memo) {
-                allAccounts.find { it.memo == fromTransaction.toAccount }?.let { toAccount ->
-                    val hasCounterPart = toAccount.transactions.any { toTransaction ->
-                        twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, toTransaction) ||
-                                toTransaction.splits?.any { split ->
-                                    twoSidesOfTheSameTransfer(fromAccount, fromTransaction, toAccount, split)
-                                } == true
-                    }
-                    shouldTransform = !hasCounterPart
-                }
-            }
+            val shouldTransform = fromTransaction.toAccount == fromAccount.memo ||
+                    !(index.hasCounterPartInTransaction(fromAccount, fromTransaction) ||
+                            index.hasCounterPartInSplit(fromAccount, fromTransaction))
             if (shouldTransform) convertIntoRegularTransaction(fromTransaction) else fromTransaction
         } else fromTransaction).copy(splits = fromTransaction.splits?.let {
-            transformUnknownTransfers(fromAccount, it, allAccounts)
+            transformUnknownTransfers(fromAccount, it, index)
         })
     }
 
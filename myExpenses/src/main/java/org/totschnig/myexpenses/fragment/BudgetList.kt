@@ -33,6 +33,7 @@ import org.totschnig.myexpenses.util.ui.addChipsBulk
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.viewmodel.BudgetViewModel
 import org.totschnig.myexpenses.viewmodel.data.Budget
+import org.totschnig.myexpenses.viewmodel.data.BudgetAmounts
 import org.totschnig.myexpenses.viewmodel.data.Budget.Companion.DIFF_CALLBACK
 import javax.inject.Inject
 
@@ -40,7 +41,7 @@ class BudgetList : Fragment() {
     private var _binding: BudgetsBinding? = null
     private val binding get() = _binding!!
     private val viewModel: BudgetViewModel by activityViewModels()
-    private var budgetAmounts: MutableMap<Long, Pair<Long, Long>?> = mutableMapOf()
+    private var budgetAmounts: Map<Long, BudgetAmounts> = emptyMap()
 
     @Inject
     lateinit var currencyFormatter: ICurrencyFormatter
@@ -97,15 +98,19 @@ class BudgetList : Fragment() {
         with(viewLifecycleOwner) {
             lifecycleScope.launch {
                 repeatOnLifecycle(Lifecycle.State.CREATED) {
-                    viewModel.amounts.collect { (position, id, spent, allocated) ->
-                        budgetAmounts[id] = spent to allocated
+                    viewModel.amounts.collect { amounts ->
+                        val previous = budgetAmounts
+                        budgetAmounts = amounts
+                        val changed = adapter.currentList.indices.filter { position ->
+                            adapter.currentList[position].id.let { previous[it] != amounts[it] }
+                        }
                         if (binding.recyclerView.isComputingLayout) {
                             CrashHandler.report(Exception("Budget amount received while recyclerView is computing layout"))
                             binding.recyclerView.post {
-                                adapter.notifyItemChanged(position)
+                                changed.forEach { adapter.notifyItemChanged(it) }
                             }
                         } else {
-                            adapter.notifyItemChanged(position)
+                            changed.forEach { adapter.notifyItemChanged(it) }
                         }
                     }
                 }
@@ -146,11 +151,8 @@ class BudgetList : Fragment() {
             getItem(position).let { budget ->
                 with(holder.binding) {
                     Title.text = budget.titleComplete(context)
-                    val (spent, allocated) = budgetAmounts[budget.id] ?: run {
-                        viewModel.loadBudgetAmounts(position, budget)
-                        0L to 0L
-                    }
-                    budgetSummary.bind(budget, -spent, allocated, currencyFormatter)
+                    val amounts = budgetAmounts[budget.id] ?: BudgetAmounts.EMPTY
+                    budgetSummary.bind(budget, -amounts.spent, amounts.allocated, currencyFormatter)
 
                     filter.addChipsBulk(buildList {
                         this.add(budget.label(requireContext()))
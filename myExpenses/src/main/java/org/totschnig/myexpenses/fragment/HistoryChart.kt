@@ -1,6 +1,5 @@
 package org.totschnig.myexpenses.fragment
 
-import android.database.Cursor
 import android.graphics.Color
 import android.os.Bundle
 import android.util.TypedValue
@@ -17,9 +16,6 @@ import androidx.fragment.app.activityViewModels
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.lifecycleScope
 import androidx.lifecycle.repeatOnLifecycle
-import androidx.loader.app.LoaderManager
-import androidx.loader.content.CursorLoader
-import androidx.loader.content.Loader
 import com.github.mikephil.charting.components.AxisBase
 import com.github.mikephil.charting.components.XAxis
 import com.github.mikephil.charting.components.YAxis
@@ -35,6 +31,7 @@ import com.github.mikephil.charting.formatter.IValueFormatter
 import com.github.mikephil.charting.highlight.Highlight
 import com.github.mikephil.charting.listener.OnChartValueSelectedListener
 import com.github.mikephil.charting.utils.ViewPortHandler
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
@@ -47,11 +44,7 @@ import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefKey
-import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.groupingUriBuilder
-import org.totschnig.myexpenses.provider.DataBaseAccount
 import org.totschnig.myexpenses.provider.DatabaseConstants
-import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.ui.ExactStackedBarHighlighter
 import org.totschnig.myexpenses.util.ICurrencyFormatter
@@ -69,7 +62,7 @@ import java.util.Calendar
 import java.util.Locale
 import javax.inject.Inject
 
-class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
+class HistoryChart : Fragment() {
     private var _binding: HistoryChartBinding? = null
     private val binding
         get() = _binding!!
@@ -98,6 +91,8 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
 
     private var showTotals = true
 
+    private var loadJob: Job? = null
+
     private val viewModel: HistoryViewModel by activityViewModels()
 
     override fun onCreate(savedInstanceState: Bundle?) {
@@ -155,8 +150,7 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
                     )
                     (requireActivity() as ProtectedFragmentActivity).supportActionBar?.title =
                         accountInfo.label
-                    LoaderManager.getInstance(this@HistoryChart)
-                        .initLoader(GROUPING_CURSOR, null, this@HistoryChart)
+                    load()
                 }
             }
         }
@@ -284,7 +278,30 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
 
     private fun reset() {
         binding.historyChart.clear()
-        LoaderManager.getInstance(this).restartLoader(GROUPING_CURSOR, null, this)
+        load()
+    }
+
+    /**
+     * the grouped sums are loaded and cached by [HistoryViewModel], toggling balance or totals
+     * hence does not query the database again
+     */
+    private fun load() {
+        loadJob?.cancel()
+        loadJob = viewLifecycleOwner.lifecycleScope.launch {
+            viewLifecycleOwner.repeatOnLifecycle(Lifecycle.State.STARTED) {
+                viewModel.historyGroups(
+                    HistoryViewModel.HistoryKey(
+                        accountInfo.id,
+                        accountInfo.currency.code,
+                        grouping,
+                        includeTransfers,
+                        filter
+                    )
+                ).collect {
+                    render(it)
+                }
+            }
+        }
     }
 
     private fun handleGrouping(item: MenuItem): Boolean {
@@ -298,50 +315,6 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
         return false
     }
 
-    override fun onCreateLoader(id: Int, args: Bundle?): Loader<Cursor?> {
-        if (id == GROUPING_CURSOR) {
-            var selection: String? = null
-            var selectionArgs: Array<String>? = null
-            val builder = groupingUriBuilder(grouping)
-            if (!filter.isEmpty) {
-                selection =
-                    filter.getSelectionForParts(DatabaseConstants.VIEW_EXTENDED) //GROUP query uses extended view
-                if (selection != "") {
-                    selectionArgs = filter.getSelectionArgs(true)
-                }
-            }
-            if (!DataBaseAccount.isHomeAggregate(accountInfo.id)) {
-                if (DataBaseAccount.isAggregate(accountInfo.id)) {
-                    builder.appendQueryParameter(
-                        DatabaseConstants.KEY_CURRENCY,
-                        accountInfo.currency.code
-                    )
-                } else {
-                    builder.appendQueryParameter(
-                        DatabaseConstants.KEY_ACCOUNTID,
-                        accountInfo.id.toString()
-                    )
-                }
-            }
-            if (shouldUseGroupStart()) {
-                builder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_JULIAN_START)
-            }
-            if (includeTransfers) {
-                builder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_INCLUDE_TRANSFERS)
-            }
-            return CursorLoader(
-                requireActivity(),
-                builder.build(),
-                null, selection, selectionArgs, null
-            )
-        }
-        throw IllegalArgumentException()
-    }
-
-    private fun shouldUseGroupStart(): Boolean {
-        return grouping == Grouping.WEEK || grouping == Grouping.DAY
-    }
-
     private fun calculateX(year: Int, second: Int, groupStart: Int): Int = when (grouping) {
         Grouping.DAY -> groupStart
         Grouping.WEEK -> groupStart / 7
@@ -350,48 +323,34 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
         else -> 0
     }
 
-    override fun onLoadFinished(loader: Loader<Cursor?>, cursor: Cursor?) {
+    private fun render(groups: List<HistoryViewModel.HistoryGroup>) {
         val context = activity as ProtectedFragmentActivity? ?: return
-        if (cursor != null && cursor.moveToFirst()) {
-            val columnIndexGroupSumIncome = cursor.getColumnIndex(DatabaseConstants.KEY_SUM_INCOME)
-            val columnIndexGroupSumExpense =
-                cursor.getColumnIndex(DatabaseConstants.KEY_SUM_EXPENSES)
-            val columnIndexGroupSumTransfer =
-                cursor.getColumnIndex(DatabaseConstants.KEY_SUM_TRANSFERS)
-            val columnIndexGroupYear = cursor.getColumnIndex(DatabaseConstants.KEY_YEAR)
-            val columnIndexGroupSecond = cursor.getColumnIndex(DatabaseConstants.KEY_SECOND_GROUP)
-            val columnIndexGroupStart = cursor.getColumnIndex(DatabaseConstants.KEY_GROUP_START)
+        if (groups.isNotEmpty()) {
             val barEntries = ArrayList<BarEntry>()
             val lineEntries = ArrayList<Entry>()
             val xAxis = binding.historyChart.xAxis
             var previousBalance = accountInfo.openingBalance.amountMinor
             var interimBalance = 0L
-            do {
-                val sumIncome = cursor.getLong(columnIndexGroupSumIncome)
-                val sumExpense = cursor.getLong(columnIndexGroupSumExpense)
-                val sumTransfer =
-                    if (columnIndexGroupSumTransfer > -1) cursor.getLong(columnIndexGroupSumTransfer) else 0
-                val delta = sumIncome + sumExpense + sumTransfer
-                if (showBalance) interimBalance = previousBalance + delta
-                val year = cursor.getInt(columnIndexGroupYear)
-                val second = cursor.getInt(columnIndexGroupSecond)
-                val groupStart =
-                    if (columnIndexGroupStart > -1) cursor.getInt(columnIndexGroupStart) else 0
-                val x = calculateX(year, second, groupStart).toFloat()
-                if (cursor.isFirst) {
-                    val start = x - 1
-                    xAxis.axisMinimum = start
-                    if (showBalance) lineEntries.add(Entry(start, previousBalance.toFloat()))
-                }
-                barEntries.add(BarEntry(x, floatArrayOf(sumExpense.toFloat(), sumIncome.toFloat())))
-                if (showBalance) {
-                    lineEntries.add(Entry(x, interimBalance.toFloat()))
-                    previousBalance = interimBalance
-                }
-                if (cursor.isLast) {
-                    xAxis.axisMaximum = (x + 1)
+            groups.forEachIndexed { index, group ->
+                with(group) {
+                    val delta = sumIncome + sumExpense + sumTransfer
+                    if (showBalance) interimBalance = previousBalance + delta
+                    val x = calculateX(year, second, groupStart).toFloat()
+                    if (index == 0) {
+                        val start = x - 1
+                        xAxis.axisMinimum = start
+                        if (showBalance) lineEntries.add(Entry(start, previousBalance.toFloat()))
+                    }
+                    barEntries.add(BarEntry(x, floatArrayOf(sumExpense.toFloat(), sumIncome.toFloat())))
+                    if (showBalance) {
+                        lineEntries.add(Entry(x, interimBalance.toFloat()))
+                        previousBalance = interimBalance
+                    }
+                    if (index == groups.lastIndex) {
+                        xAxis.axisMaximum = (x + 1)
+                    }
                 }
-            } while (cursor.moveToNext())
+            }
             val combinedData = CombinedData()
             val valueFormatter =
                 IValueFormatter { value: Float, _: Entry?, _: Int, _: ViewPortHandler? ->
@@ -452,12 +411,7 @@ class HistoryChart : Fragment(), LoaderManager.LoaderCallbacks<Cursor?> {
         return currencyFormatter.convAmount(value.toLong(), accountInfo.currency)
     }
 
-    override fun onLoaderReset(loader: Loader<Cursor?>) {
-        binding.historyChart.clear()
-    }
-
     companion object {
-        private const val GROUPING_CURSOR = 1
         private const val MONTH_GROUPING_YEAR_X = 12
 
         //julian day 0 is monday -> Only if week starts with monday it divides without remainder by 7
@@ -127,6 +127,17 @@ class PreferencesAdvancedFragment : BasePreferenceFragment(),
             true
         }
 
+        matches(preference, PrefKey.DEBUG_QUERY_METRICS) -> {
+            viewModel.queryMetricsReport().observe(this) {
+                startActivity(Intent.createChooser(Intent(Intent.ACTION_SEND).apply {
+                    putExtra(Intent.EXTRA_SUBJECT, "[${getString(R.string.app_name)}]: Query metrics")
+                    putExtra(Intent.EXTRA_TEXT, it)
+                    type = "text/plain"
+                }, null))
+            }
+            true
+        }
+
         matches(preference, PrefKey.DEFAULT_TRANSFER_CATEGORY) -> {
             SelectDefaultTransferCategoryDialogFragment()
                 .show(childFragmentManager, "SELECT_DEFAULT")
@@ -17,6 +17,15 @@ class PreferencesAttachPictureFragment : BasePreferenceFragment() {
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
         super.onCreatePreferences(savedInstanceState, rootKey)
         configureQualityPreference()
+        //also used when pictures are optimized for sync
+        arrayOf(
+            PrefKey.OPTIMIZE_PICTURE_MAX_SIZE,
+            PrefKey.OPTIMIZE_PICTURE_FORMAT,
+            PrefKey.OPTIMIZE_PICTURE_QUALITY
+        ).forEach {
+            requirePreference<Preference>(it).onPreferenceChangeListener =
+                storeInDatabaseChangeListener
+        }
     }
 
     private fun configureQualityPreference() {
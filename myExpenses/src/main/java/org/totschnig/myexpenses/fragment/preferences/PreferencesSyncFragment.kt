@@ -24,5 +24,12 @@ class PreferencesSyncFragment : BasePreferenceFragment() {
             storeInDatabaseChangeListener
         requirePreference<Preference>(PrefKey.SYNC_WIFI_ONLY).onPreferenceChangeListener =
             storeInDatabaseChangeListener
+        requirePreference<Preference>(PrefKey.SYNC_OPTIMIZE_PICTURES).onPreferenceChangeListener =
+            Preference.OnPreferenceChangeListener { preference, newValue ->
+                if (newValue == true) {
+                    viewModel.storePictureOptimizationSettings()
+                }
+                storeInDatabaseChangeListener.onPreferenceChange(preference, newValue)
+            }
     }
 }
\ No newline at end of file
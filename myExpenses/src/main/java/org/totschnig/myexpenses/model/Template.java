@@ -81,7 +81,6 @@ import org.totschnig.myexpenses.service.PlanExecutor;
 import org.totschnig.myexpenses.util.TextUtils;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 import org.totschnig.myexpenses.util.licence.LicenceHandler;
-import org.totschnig.myexpenses.viewmodel.data.PlanInstance;
 import org.totschnig.myexpenses.viewmodel.data.Tag;
 
 import java.util.ArrayList;
@@ -421,27 +420,6 @@ public class Template extends Transaction implements ITransfer, ISplit {
     return t;
   }
 
-  @Nullable
-  public static PlanInstance getPlanInstance(ContentResolver contentResolver, CurrencyContext currencyContext, long planId, long date) {
-    PlanInstance planInstance = null;
-    try (Cursor c = contentResolver.query(
-        CONTENT_URI.buildUpon().appendQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_INSTANCE, String.valueOf(CalendarProviderProxy.calculateId(date))).build(),
-        null, KEY_PLANID + "= ?",
-        new String[]{String.valueOf(planId)},
-        null)) {
-      if (c != null && c.moveToFirst()) {
-        final Long instanceId = getLongOrNull(c, KEY_INSTANCEID);
-        final Long transactionId = getLongOrNull(c, KEY_TRANSACTIONID);
-        final long templateId = c.getLong(c.getColumnIndexOrThrow(KEY_ROWID));
-        CurrencyUnit currency = currencyContext.get(c.getString(c.getColumnIndexOrThrow(KEY_CURRENCY)));
-        Money amount = new Money(currency, c.getLong(c.getColumnIndexOrThrow(KEY_AMOUNT)));
-        planInstance = new PlanInstance(templateId, instanceId, transactionId, c.getString(c.getColumnIndexOrThrow(KEY_TITLE)), date, c.getInt(c.getColumnIndexOrThrow(KEY_COLOR)), amount,
-            c.getInt(c.getColumnIndexOrThrow(KEY_SEALED)) == 1);
-      }
-    }
-    return planInstance;
-  }
-
   @Nullable
   public static kotlin.Pair<Transaction, List<Tag>> getInstanceFromDbWithTags(ContentResolver contentResolver, long id) {
     Template t = getInstanceFromDb(contentResolver, id);
@@ -744,6 +722,32 @@ public class Template extends Transaction implements ITransfer, ISplit {
     return PART_SELECT;
   }
 
+  @Override
+  protected void copySplitPartsForEdit(ContentResolver contentResolver, long oldId) {
+    String idStr = String.valueOf(oldId);
+    //we only create uncommited clones if none exist yet
+    Cursor c = contentResolver.query(
+            uriForParts(getContentUri(), oldId),
+            new String[]{KEY_ROWID},
+            "NOT EXISTS (SELECT 1 from " + getUncommittedView()
+            + " WHERE " + KEY_PARENTID + " = ?)", new String[]{idStr}, null);
+    if (c != null) {
+      c.moveToFirst();
+      while (!c.isAfterLast()) {
+        Pair<Transaction, List<Tag>> part = getSplitPart(contentResolver, c.getLong(0));
+        if (part != null) {
+          Transaction t = part.getFirst();
+          t.setStatus(STATUS_UNCOMMITTED);
+          t.setParentId(getId());
+          t.saveAsNew(contentResolver);
+          t.saveTags(contentResolver, part.getSecond());
+        }
+        c.moveToNext();
+      }
+      c.close();
+    }
+  }
+
   @Override
   protected Pair<Transaction, List<Tag>> getSplitPart(ContentResolver contentResolver, long partId) {
     return Template.getInstanceFromDbWithTags(contentResolver, partId);
@@ -74,6 +74,7 @@ import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.text.TextUtils;
 
@@ -747,34 +748,24 @@ public class Transaction extends Model implements ITransaction {
         status = STATUS_UNCOMMITTED;
         saveAsNew(contentResolver);
       }
-      String idStr = String.valueOf(oldId);
-      //we only create uncommited clones if none exist yet
-      Cursor c = contentResolver.query(
-              uriForParts(getContentUri(), oldId),
-              new String[]{KEY_ROWID},
-              "NOT EXISTS (SELECT 1 from " + getUncommittedView()
-              + " WHERE " + KEY_PARENTID + " = ?)", new String[]{idStr}, null);
-      if (c != null) {
-        c.moveToFirst();
-        while (!c.isAfterLast()) {
-          Pair<Transaction, List<Tag>> part = getSplitPart(contentResolver, c.getLong(0));
-          if (part != null) {
-            Transaction t = part.getFirst();
-            t.status = STATUS_UNCOMMITTED;
-            t.setParentId(getId());
-            t.saveAsNew(contentResolver);
-            t.saveTags(contentResolver, part.getSecond());
-          }
-          c.moveToNext();
-        }
-        c.close();
-      }
+      copySplitPartsForEdit(contentResolver, oldId);
     } else if (clone) {
       setId(0);
       setUuid(null);
     }
   }
 
+  /**
+   * creates uncommitted copies of the split parts of oldId (with their transfer peers and tags)
+   * belonging to this instance, in one provider call, unless they exist already
+   */
+  protected void copySplitPartsForEdit(ContentResolver contentResolver, long oldId) {
+    Bundle extras = new Bundle(2);
+    extras.putLong(KEY_PARENTID, oldId);
+    extras.putLong(KEY_ROWID, getId());
+    contentResolver.call(TransactionProvider.DUAL_URI, TransactionProvider.METHOD_COPY_SPLIT_PARTS, null, extras);
+  }
+
   protected Pair<Transaction, List<Tag>> getSplitPart(ContentResolver contentResolver, long partId) {
     return Transaction.getInstanceFromDbWithTags(contentResolver, partId, null);
   }
@@ -120,6 +120,7 @@ enum class PrefKey(internal val resId: Int, internal val _key: String?) {
     CATEGORY_TRANSLATION(R.string.pref_category_translation_key),
     TRANSLATION(R.string.pref_translation_key),
     SYNC_CHANGES_IMMEDIATELY(R.string.pref_sync_changes_immediately_key),
+    SYNC_OPTIMIZE_PICTURES(R.string.pref_sync_optimize_pictures_key),
     EXCHANGE_RATE_PROVIDER(R.string.pref_exchange_rate_provider_key),
     OPEN_EXCHANGE_RATES_APP_ID(R.string.pref_openexchangerates_app_id_key),
     PLANNER_EXECUTION_TIME(R.string.pref_plan_executor_time_key),
@@ -153,6 +154,7 @@ enum class PrefKey(internal val resId: Int, internal val _key: String?) {
     DEBUG_LOG_SHARE(R.string.pref_debug_logging_share_key),
     EXCHANGE_RATES_CLEAR_CACHE(R.string.pref_exchange_rates_clear_cache_key),
     DEBUG_REPAIR_987(R.string.pref_debug_repair_987_key),
+    DEBUG_QUERY_METRICS(R.string.pref_debug_query_metrics_key),
     WEBUI_PASSWORD(R.string.pref_web_ui_password_key),
     CSV_EXPORT(R.string.pref_csv_export_key),
     CSV_EXPORT_SPLIT_CATEGORIES(R.string.pref_csv_export_split_categories_key),
@@ -11,6 +11,7 @@ import org.totschnig.myexpenses.db2.Attribute
 import org.totschnig.myexpenses.db2.BankingAttribute
 import org.totschnig.myexpenses.db2.FLAG_TRANSFER
 import org.totschnig.myexpenses.db2.FinTsAttribute
+import org.totschnig.myexpenses.model.CrStatus
 import org.totschnig.myexpenses.model.CurrencyEnum
 import org.totschnig.myexpenses.model.Model
 import org.totschnig.myexpenses.preference.PrefHandler
@@ -30,21 +31,26 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CONTEXT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CRITERION
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DEBT_ID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_FREQUENT_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_FREQUENT_METHODID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EQUIVALENT_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCLUDE_FROM_TOTALS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IBAN
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ICON
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_KEY
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LAST_USED
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHODID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_ICON
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_METHOD_LABEL
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_MONTH
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_OPENING_BALANCE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ORIGINAL_CURRENCY
@@ -53,6 +59,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PATH
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME_NORMALIZED
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_POSITIVE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED
@@ -65,12 +72,17 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_PEER
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UNCONVERTED_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES_DEBTS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES_TEMPLATES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USAGES_TRANSACTIONS
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_USER_ID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_VALUE_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR
 import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNT_ATTRIBUTES
@@ -78,11 +90,16 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ATTACHMENTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ATTRIBUTES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_BANKS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORIES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CATEGORY_SUMS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_DEBTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEE_AUTOFILL
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEE_USAGES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SETTINGS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TAGS
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS_TAGS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTION_ATTACHMENTS
@@ -93,10 +110,12 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_COMMITTED
 import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_EXTENDED
 import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED
 import org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_WITH_ACCOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
+import java.util.TimeZone
 
-const val DATABASE_VERSION = 158
+const val DATABASE_VERSION = 161
 
 private const val RAISE_UPDATE_SEALED_DEBT = "SELECT RAISE (FAIL, 'attempt to update sealed debt');"
 private const val RAISE_INCONSISTENT_CATEGORY_HIERARCHY =
@@ -227,6 +246,390 @@ CREATE TABLE $TABLE_PAYEES (
     unique($KEY_PAYEE_NAME, $KEY_IBAN));
 """
 
+const val PAYEE_USAGES_CREATE = """
+CREATE TABLE $TABLE_PAYEE_USAGES (
+    $KEY_PAYEEID integer primary key references $TABLE_PAYEES($KEY_ROWID) ON DELETE CASCADE,
+    $KEY_USAGES_TRANSACTIONS integer not null default 0,
+    $KEY_USAGES_TEMPLATES integer not null default 0,
+    $KEY_USAGES_DEBTS integer not null default 0,
+    $KEY_LAST_USED datetime);
+"""
+
+/**
+ * maps the tables referencing payees to the counter column in [TABLE_PAYEE_USAGES]
+ */
+private val PAYEE_USAGE_COLUMNS = mapOf(
+    TABLE_TRANSACTIONS to KEY_USAGES_TRANSACTIONS,
+    TABLE_TEMPLATES to KEY_USAGES_TEMPLATES,
+    TABLE_DEBTS to KEY_USAGES_DEBTS
+)
+
+private fun increasePayeeUsage(column: String) = """
+INSERT OR IGNORE INTO $TABLE_PAYEE_USAGES ($KEY_PAYEEID) VALUES (new.$KEY_PAYEEID);
+UPDATE $TABLE_PAYEE_USAGES SET $column = $column + 1, $KEY_LAST_USED = strftime('%s', 'now') WHERE $KEY_PAYEEID = new.$KEY_PAYEEID;
+"""
+
+private fun decreasePayeeUsage(column: String) =
+    "UPDATE $TABLE_PAYEE_USAGES SET $column = $column - 1 WHERE $KEY_PAYEEID = old.$KEY_PAYEEID;"
+
+private fun payeeUsageTriggers(table: String, column: String) = listOf(
+    """
+CREATE TRIGGER ${table}_payee_usage_insert
+AFTER INSERT ON $table WHEN new.$KEY_PAYEEID IS NOT NULL
+BEGIN ${increasePayeeUsage(column)} END
+""",
+    """
+CREATE TRIGGER ${table}_payee_usage_delete
+AFTER DELETE ON $table WHEN old.$KEY_PAYEEID IS NOT NULL
+BEGIN ${decreasePayeeUsage(column)} END
+""",
+    """
+CREATE TRIGGER ${table}_payee_usage_update_old
+AFTER UPDATE OF $KEY_PAYEEID ON $table WHEN old.$KEY_PAYEEID IS NOT NULL AND new.$KEY_PAYEEID IS NOT old.$KEY_PAYEEID
+BEGIN ${decreasePayeeUsage(column)} END
+""",
+    """
+CREATE TRIGGER ${table}_payee_usage_update_new
+AFTER UPDATE OF $KEY_PAYEEID ON $table WHEN new.$KEY_PAYEEID IS NOT NULL AND new.$KEY_PAYEEID IS NOT old.$KEY_PAYEEID
+BEGIN ${increasePayeeUsage(column)} END
+"""
+)
+
+/**
+ * recalculates all counters in [TABLE_PAYEE_USAGES] from the mapped tables
+ */
+fun rebuildPayeeUsages(db: SupportSQLiteDatabase) {
+    db.execSQL("DELETE FROM $TABLE_PAYEE_USAGES")
+    db.execSQL(
+        "INSERT INTO $TABLE_PAYEE_USAGES ($KEY_PAYEEID, ${PAYEE_USAGE_COLUMNS.values.joinToString()}, $KEY_LAST_USED) SELECT $KEY_ROWID, " +
+                PAYEE_USAGE_COLUMNS.keys.joinToString { table ->
+                    "(SELECT count(*) FROM $table WHERE $KEY_PAYEEID = $TABLE_PAYEES.$KEY_ROWID)"
+                } +
+                ", (SELECT max($KEY_DATE) FROM $TABLE_TRANSACTIONS WHERE $KEY_PAYEEID = $TABLE_PAYEES.$KEY_ROWID) FROM $TABLE_PAYEES"
+    )
+}
+
+/**
+ * besides [KEY_PAYEEID], the columns are not declared as foreign keys, since the triggers on
+ * [TABLE_TRANSACTIONS] refresh the row whenever a referenced object is removed. The most frequent
+ * category and method are not stored, keeping them current would mean grouping all transactions of
+ * the payee on every write, they are calculated when autofill data is read, see [frequentValue].
+ */
+const val PAYEE_AUTOFILL_CREATE = """
+CREATE TABLE $TABLE_PAYEE_AUTOFILL (
+    $KEY_PAYEEID integer primary key references $TABLE_PAYEES($KEY_ROWID) ON DELETE CASCADE,
+    $KEY_TRANSACTIONID integer,
+    $KEY_ACCOUNTID integer,
+    $KEY_AMOUNT integer,
+    $KEY_CATID integer,
+    $KEY_METHODID integer,
+    $KEY_COMMENT text,
+    $KEY_DEBT_ID integer);
+"""
+
+/**
+ * transactions that are taken into account for autofill, split transactions are excluded
+ */
+private val PAYEE_AUTOFILL_CRITERION: String = WHERE_NOT_SPLIT
+
+private val PAYEE_AUTOFILL_COLUMNS = arrayOf(
+    KEY_ACCOUNTID, KEY_AMOUNT, KEY_CATID, KEY_METHODID, KEY_COMMENT, KEY_DEBT_ID
+)
+
+/**
+ * @param column [KEY_FREQUENT_CATID] or [KEY_FREQUENT_METHODID]
+ * @return subquery for the value of the category or method used most often with [payeeId], ties
+ * are resolved in favour of the latest transaction
+ */
+fun frequentValue(column: String, payeeId: String): String {
+    val (source, condition) = when (column) {
+        KEY_FREQUENT_CATID -> KEY_CATID to "$KEY_CATID > ${DatabaseConstants.SPLIT_CATID}"
+        KEY_FREQUENT_METHODID -> KEY_METHODID to "$KEY_METHODID IS NOT NULL"
+        else -> throw IllegalArgumentException("Unknown column $column")
+    }
+    return """
+(SELECT $source FROM $TABLE_TRANSACTIONS WHERE $KEY_PAYEEID = $payeeId AND $condition
+GROUP BY $source ORDER BY count(*) DESC, max($KEY_ROWID) DESC LIMIT 1)"""
+}
+
+private val PAYEE_AUTOFILL_INSERT_COLUMNS =
+    "$KEY_PAYEEID, $KEY_TRANSACTIONID, ${PAYEE_AUTOFILL_COLUMNS.joinToString()}"
+
+/**
+ * recalculates the row for [payeeId] from the latest transaction mapped to it, which is found
+ * through the payee index
+ */
+private fun refreshPayeeAutofill(payeeId: String) = """
+DELETE FROM $TABLE_PAYEE_AUTOFILL WHERE $KEY_PAYEEID = $payeeId;
+INSERT INTO $TABLE_PAYEE_AUTOFILL ($PAYEE_AUTOFILL_INSERT_COLUMNS)
+SELECT $KEY_PAYEEID, $KEY_ROWID, ${PAYEE_AUTOFILL_COLUMNS.joinToString()}
+FROM $TABLE_TRANSACTIONS WHERE $KEY_PAYEEID = $payeeId AND $PAYEE_AUTOFILL_CRITERION ORDER BY $KEY_ROWID DESC LIMIT 1;
+"""
+
+/**
+ * the transaction the row for [payeeId] has been taken from
+ */
+private fun autofillSource(payeeId: String) =
+    "(SELECT $KEY_TRANSACTIONID FROM $TABLE_PAYEE_AUTOFILL WHERE $KEY_PAYEEID = $payeeId)"
+
+/**
+ * a new transaction is always the latest one for its payee, so we take its values without
+ * looking at the other transactions
+ */
+private val PAYEE_AUTOFILL_INSERT_TRIGGER = """
+CREATE TRIGGER payee_autofill_insert
+AFTER INSERT ON $TABLE_TRANSACTIONS WHEN new.$KEY_PAYEEID IS NOT NULL AND new.$PAYEE_AUTOFILL_CRITERION
+BEGIN
+INSERT OR REPLACE INTO $TABLE_PAYEE_AUTOFILL ($PAYEE_AUTOFILL_INSERT_COLUMNS)
+VALUES (new.$KEY_PAYEEID, new.$KEY_ROWID, ${PAYEE_AUTOFILL_COLUMNS.joinToString { "new.$it" }});
+END
+"""
+
+/**
+ * only removing the transaction the row has been taken from has an effect
+ */
+private val PAYEE_AUTOFILL_DELETE_TRIGGER = """
+CREATE TRIGGER payee_autofill_delete
+AFTER DELETE ON $TABLE_TRANSACTIONS
+WHEN old.$KEY_PAYEEID IS NOT NULL AND old.$KEY_ROWID = ${autofillSource("old.$KEY_PAYEEID")}
+BEGIN ${refreshPayeeAutofill("old.$KEY_PAYEEID")} END
+"""
+
+private val PAYEE_AUTOFILL_UPDATE_OLD_TRIGGER = """
+CREATE TRIGGER payee_autofill_update_old
+AFTER UPDATE OF $KEY_PAYEEID ON $TABLE_TRANSACTIONS
+WHEN old.$KEY_PAYEEID IS NOT NULL AND new.$KEY_PAYEEID IS NOT old.$KEY_PAYEEID
+AND old.$KEY_ROWID = ${autofillSource("old.$KEY_PAYEEID")}
+BEGIN ${refreshPayeeAutofill("old.$KEY_PAYEEID")} END
+"""
+
+/**
+ * updating a transaction older than the one the row has been taken from has no effect
+ */
+private val PAYEE_AUTOFILL_UPDATE_NEW_TRIGGER = """
+CREATE TRIGGER payee_autofill_update_new
+AFTER UPDATE OF $KEY_PAYEEID, ${PAYEE_AUTOFILL_COLUMNS.joinToString()} ON $TABLE_TRANSACTIONS
+WHEN new.$KEY_PAYEEID IS NOT NULL
+AND new.$KEY_ROWID >= coalesce(${autofillSource("new.$KEY_PAYEEID")}, 0)
+BEGIN ${refreshPayeeAutofill("new.$KEY_PAYEEID")} END
+"""
+
+/**
+ * recalculates [TABLE_PAYEE_AUTOFILL] from the transactions table
+ */
+fun rebuildPayeeAutofill(db: SupportSQLiteDatabase) {
+    db.execSQL("DELETE FROM $TABLE_PAYEE_AUTOFILL")
+    db.execSQL(
+        """INSERT INTO $TABLE_PAYEE_AUTOFILL ($PAYEE_AUTOFILL_INSERT_COLUMNS)
+SELECT $KEY_PAYEEID, $KEY_ROWID, ${PAYEE_AUTOFILL_COLUMNS.joinToString()}
+FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN (SELECT max($KEY_ROWID) FROM $TABLE_TRANSACTIONS
+WHERE $KEY_PAYEEID IS NOT NULL AND $PAYEE_AUTOFILL_CRITERION GROUP BY $KEY_PAYEEID)"""
+    )
+}
+
+/**
+ * sums of transactions grouped by account, category, calendar month (in local time) and sign,
+ * from which the category tree with sums is calculated for periods that are whole years or months.
+ * Amounts are in account currency, [KEY_EQUIVALENT_AMOUNT] sums up the equivalent amounts stored with
+ * the transactions, [KEY_UNCONVERTED_AMOUNT] the amounts of transactions without equivalent
+ * amount, which are converted with the current exchange rate of the account when queried.
+ */
+const val CATEGORY_SUMS_CREATE = """
+CREATE TABLE $TABLE_CATEGORY_SUMS (
+    $KEY_ACCOUNTID integer not null,
+    $KEY_CATID integer not null,
+    $KEY_YEAR integer not null,
+    $KEY_MONTH integer not null,
+    $KEY_POSITIVE integer not null,
+    $KEY_AMOUNT integer not null default 0,
+    $KEY_EQUIVALENT_AMOUNT integer not null default 0,
+    $KEY_UNCONVERTED_AMOUNT integer not null default 0,
+    $KEY_COUNT integer not null default 0,
+    primary key ($KEY_CATID, $KEY_YEAR, $KEY_MONTH, $KEY_ACCOUNTID, $KEY_POSITIVE));
+"""
+
+/**
+ * key in [TABLE_SETTINGS] for the time zone [TABLE_CATEGORY_SUMS] has been calculated for
+ */
+private const val CATEGORY_SUMS_TIME_ZONE = "category_sums_time_zone"
+
+private val CATEGORY_SUMS_KEY_COLUMNS =
+    arrayOf(KEY_ACCOUNTID, KEY_CATID, KEY_YEAR, KEY_MONTH, KEY_POSITIVE)
+
+/**
+ * same criteria as the amounts calculated from [VIEW_WITH_ACCOUNT], split transactions are
+ * represented by their parts
+ */
+private fun categorySumsCriterion(row: String) =
+    "$row.$KEY_CATID IS NOT NULL AND $row.$KEY_CATID != ${DatabaseConstants.SPLIT_CATID} AND " +
+            "$row.$KEY_CR_STATUS != '${CrStatus.VOID.name}' AND $row.$KEY_STATUS != $STATUS_UNCOMMITTED"
+
+private fun categorySumsKeys(row: String) = arrayOf(
+    "$row.$KEY_ACCOUNTID",
+    "$row.$KEY_CATID",
+    "CAST(strftime('%Y',$row.$KEY_DATE,'unixepoch','localtime') AS integer)",
+    "CAST(strftime('%m',$row.$KEY_DATE,'unixepoch','localtime') AS integer) - 1",
+    "$row.$KEY_AMOUNT > 0"
+)
+
+private fun categorySumsKeyMatch(row: String) =
+    CATEGORY_SUMS_KEY_COLUMNS.zip(categorySumsKeys(row))
+        .joinToString(" AND ") { (column, value) -> "$TABLE_CATEGORY_SUMS.$column = $value" }
+
+/**
+ * like [DatabaseConstants.getAmountHomeEquivalent], split parts get the equivalent amount in
+ * proportion to their parent, which is calculated with [parentRatio]
+ */
+private fun equivalentAmount(
+    row: String,
+    parentRatio: String = "(SELECT 1.0 * $KEY_EQUIVALENT_AMOUNT / $KEY_AMOUNT FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID = $row.$KEY_PARENTID)"
+) = "CASE WHEN $row.$KEY_PARENTID THEN $parentRatio * $row.$KEY_AMOUNT ELSE $row.$KEY_EQUIVALENT_AMOUNT END"
+
+private fun convertedAmount(equivalent: String) = "coalesce(CAST($equivalent AS integer), 0)"
+
+private fun unconvertedAmount(row: String, equivalent: String) =
+    "CASE WHEN $equivalent IS NULL THEN $row.$KEY_AMOUNT ELSE 0 END"
+
+private fun addToCategorySums(row: String) = with(equivalentAmount(row)) {
+    """
+INSERT OR IGNORE INTO $TABLE_CATEGORY_SUMS (${CATEGORY_SUMS_KEY_COLUMNS.joinToString()}) VALUES (${categorySumsKeys(row).joinToString()});
+UPDATE $TABLE_CATEGORY_SUMS SET $KEY_AMOUNT = $KEY_AMOUNT + $row.$KEY_AMOUNT,
+$KEY_EQUIVALENT_AMOUNT = $KEY_EQUIVALENT_AMOUNT + ${convertedAmount(this)},
+$KEY_UNCONVERTED_AMOUNT = $KEY_UNCONVERTED_AMOUNT + ${unconvertedAmount(row, this)},
+$KEY_COUNT = $KEY_COUNT + 1 WHERE ${categorySumsKeyMatch(row)};
+"""
+}
+
+private fun subtractFromCategorySums(row: String) = with(equivalentAmount(row)) {
+    """
+UPDATE $TABLE_CATEGORY_SUMS SET $KEY_AMOUNT = $KEY_AMOUNT - $row.$KEY_AMOUNT,
+$KEY_EQUIVALENT_AMOUNT = $KEY_EQUIVALENT_AMOUNT - ${convertedAmount(this)},
+$KEY_UNCONVERTED_AMOUNT = $KEY_UNCONVERTED_AMOUNT - ${unconvertedAmount(row, this)},
+$KEY_COUNT = $KEY_COUNT - 1 WHERE ${categorySumsKeyMatch(row)};
+DELETE FROM $TABLE_CATEGORY_SUMS WHERE $KEY_COUNT = 0 AND ${categorySumsKeyMatch(row)};
+"""
+}
+
+/**
+ * subquery over the parts of split transaction [parent] that belong to the row of
+ * [TABLE_CATEGORY_SUMS] being updated
+ */
+private fun splitPartsSelect(parent: String, expression: String) =
+    "(SELECT $expression FROM $TABLE_TRANSACTIONS parts WHERE parts.$KEY_PARENTID = $parent.$KEY_ROWID AND ${
+        categorySumsCriterion("parts")
+    } AND ${categorySumsKeyMatch("parts")})"
+
+private val CATEGORY_SUMS_CHANGED = (arrayOf(
+    KEY_ACCOUNTID, KEY_CATID, KEY_DATE, KEY_AMOUNT, KEY_EQUIVALENT_AMOUNT, KEY_PARENTID
+).map { "old.$it IS NOT new.$it" } + "(${categorySumsCriterion("old")}) IS NOT (${categorySumsCriterion("new")})")
+    .joinToString(" OR ")
+
+private val CATEGORY_SUMS_INSERT_TRIGGER = """
+CREATE TRIGGER category_sums_insert
+AFTER INSERT ON $TABLE_TRANSACTIONS WHEN ${categorySumsCriterion("new")}
+BEGIN ${addToCategorySums("new")} END
+"""
+
+/**
+ * when a split transaction is deleted, its parts are deleted by the foreign key after the parent,
+ * and have already been subtracted by [CATEGORY_SUMS_SPLIT_DELETE_TRIGGER]
+ */
+private val CATEGORY_SUMS_DELETE_TRIGGER = """
+CREATE TRIGGER category_sums_delete
+AFTER DELETE ON $TABLE_TRANSACTIONS WHEN ${categorySumsCriterion("old")} AND
+(old.$KEY_PARENTID IS NULL OR EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID = old.$KEY_PARENTID))
+BEGIN ${subtractFromCategorySums("old")} END
+"""
+
+private val CATEGORY_SUMS_SPLIT_DELETE_TRIGGER = """
+CREATE TRIGGER category_sums_split_delete
+BEFORE DELETE ON $TABLE_TRANSACTIONS WHEN old.$KEY_CATID = ${DatabaseConstants.SPLIT_CATID}
+BEGIN
+UPDATE $TABLE_CATEGORY_SUMS SET
+$KEY_AMOUNT = $KEY_AMOUNT - ${splitPartsSelect("old", "sum(parts.$KEY_AMOUNT)")},
+$KEY_EQUIVALENT_AMOUNT = $KEY_EQUIVALENT_AMOUNT - ${splitPartsSelect("old", "sum(${convertedAmount(equivalentAmount("parts"))})")},
+$KEY_UNCONVERTED_AMOUNT = $KEY_UNCONVERTED_AMOUNT - ${splitPartsSelect("old", "sum(${unconvertedAmount("parts", equivalentAmount("parts"))})")},
+$KEY_COUNT = $KEY_COUNT - ${splitPartsSelect("old", "count(*)")}
+WHERE EXISTS ${splitPartsSelect("old", "1")};
+DELETE FROM $TABLE_CATEGORY_SUMS WHERE $KEY_COUNT = 0;
+END
+"""
+
+private val CATEGORY_SUMS_UPDATE_OLD_TRIGGER = """
+CREATE TRIGGER category_sums_update_old
+AFTER UPDATE ON $TABLE_TRANSACTIONS WHEN (${categorySumsCriterion("old")}) AND ($CATEGORY_SUMS_CHANGED)
+BEGIN ${subtractFromCategorySums("old")} END
+"""
+
+private val CATEGORY_SUMS_UPDATE_NEW_TRIGGER = """
+CREATE TRIGGER category_sums_update_new
+AFTER UPDATE ON $TABLE_TRANSACTIONS WHEN (${categorySumsCriterion("new")}) AND ($CATEGORY_SUMS_CHANGED)
+BEGIN ${addToCategorySums("new")} END
+"""
+
+/**
+ * the equivalent amount of split parts depends on their parent, if it changes, the parts are
+ * moved from the old to the new proportion
+ */
+private val CATEGORY_SUMS_SPLIT_UPDATE_TRIGGER = run {
+    fun ratio(row: String) = "(1.0 * $row.$KEY_EQUIVALENT_AMOUNT / $row.$KEY_AMOUNT)"
+    val oldEquivalent = equivalentAmount("parts", ratio("old"))
+    val newEquivalent = equivalentAmount("parts", ratio("new"))
+    """
+CREATE TRIGGER category_sums_split_update
+AFTER UPDATE OF $KEY_AMOUNT, $KEY_EQUIVALENT_AMOUNT ON $TABLE_TRANSACTIONS
+WHEN new.$KEY_CATID = ${DatabaseConstants.SPLIT_CATID} AND (old.$KEY_AMOUNT IS NOT new.$KEY_AMOUNT OR old.$KEY_EQUIVALENT_AMOUNT IS NOT new.$KEY_EQUIVALENT_AMOUNT)
+BEGIN
+UPDATE $TABLE_CATEGORY_SUMS SET
+$KEY_EQUIVALENT_AMOUNT = $KEY_EQUIVALENT_AMOUNT + ${splitPartsSelect("new", "sum(${convertedAmount(newEquivalent)} - ${convertedAmount(oldEquivalent)})")},
+$KEY_UNCONVERTED_AMOUNT = $KEY_UNCONVERTED_AMOUNT + ${splitPartsSelect("new", "sum(${unconvertedAmount("parts", newEquivalent)} - ${unconvertedAmount("parts", oldEquivalent)})")}
+WHERE EXISTS ${splitPartsSelect("new", "1")};
+END
+"""
+}
+
+/**
+ * recalculates [TABLE_CATEGORY_SUMS] from the transactions table, for the current time zone
+ */
+fun rebuildCategorySums(db: SupportSQLiteDatabase) {
+    //the subquery for the equivalent amount of split parts also reads from the transactions table
+    val row = "summed"
+    val equivalent = equivalentAmount(row)
+    db.execSQL("DELETE FROM $TABLE_CATEGORY_SUMS")
+    db.execSQL(
+        """INSERT INTO $TABLE_CATEGORY_SUMS (${CATEGORY_SUMS_KEY_COLUMNS.joinToString()}, $KEY_AMOUNT, $KEY_EQUIVALENT_AMOUNT, $KEY_UNCONVERTED_AMOUNT, $KEY_COUNT)
+SELECT ${categorySumsKeys(row).joinToString()}, sum($row.$KEY_AMOUNT), sum(${convertedAmount(equivalent)}), sum(${unconvertedAmount(row, equivalent)}), count(*)
+FROM $TABLE_TRANSACTIONS $row WHERE ${categorySumsCriterion(row)} GROUP BY 1, 2, 3, 4, 5"""
+    )
+    db.execSQL(
+        "INSERT OR REPLACE INTO $TABLE_SETTINGS ($KEY_KEY, $KEY_VALUE) VALUES (?, ?)",
+        arrayOf(CATEGORY_SUMS_TIME_ZONE, TimeZone.getDefault().id)
+    )
+}
+
+/**
+ * months in [TABLE_CATEGORY_SUMS] are calculated in local time, if the time zone has changed
+ * since they have been calculated, they are rebuilt. Called through
+ * [TransactionProvider.METHOD_REFRESH_CATEGORY_SUMS] when the app is started and when the time zone
+ * changes, not while querying.
+ * @return true if the sums have been rebuilt
+ */
+fun refreshCategorySumsIfTimeZoneChanged(db: SupportSQLiteDatabase): Boolean {
+    val calculatedFor = db.query(
+        "SELECT $KEY_VALUE FROM $TABLE_SETTINGS WHERE $KEY_KEY = ?",
+        arrayOf(CATEGORY_SUMS_TIME_ZONE)
+    ).use { if (it.moveToFirst()) it.getString(0) else null }
+    if (calculatedFor == TimeZone.getDefault().id) return false
+    db.beginTransaction()
+    try {
+        rebuildCategorySums(db)
+        db.setTransactionSuccessful()
+    } finally {
+        db.endTransaction()
+    }
+    return true
+}
+
 //the unique index on ($KEY_PAYEE_NAME, $KEY_IBAN) does not prevent duplicate names when iban is null
 const val PAYEE_UNIQUE_INDEX = """
 CREATE UNIQUE INDEX payee_name ON $TABLE_PAYEES($KEY_PAYEE_NAME) WHERE $KEY_IBAN IS NULL;
@@ -357,6 +760,40 @@ abstract class BaseTransactionDatabase(
 ) :
     SupportSQLiteOpenHelper.Callback(DATABASE_VERSION) {
 
+    fun createOrRefreshPayeeUsageTriggers(db: SupportSQLiteDatabase) {
+        PAYEE_USAGE_COLUMNS.forEach { (table, column) ->
+            listOf("insert", "delete", "update_old", "update_new").forEach {
+                db.execSQL("DROP TRIGGER IF EXISTS ${table}_payee_usage_$it")
+            }
+            payeeUsageTriggers(table, column).forEach { db.execSQL(it) }
+        }
+    }
+
+    fun createOrRefreshPayeeAutofillTriggers(db: SupportSQLiteDatabase) {
+        db.execSQL("DROP TRIGGER IF EXISTS payee_autofill_insert")
+        db.execSQL("DROP TRIGGER IF EXISTS payee_autofill_delete")
+        db.execSQL("DROP TRIGGER IF EXISTS payee_autofill_update_old")
+        db.execSQL("DROP TRIGGER IF EXISTS payee_autofill_update_new")
+        db.execSQL(PAYEE_AUTOFILL_INSERT_TRIGGER)
+        db.execSQL(PAYEE_AUTOFILL_DELETE_TRIGGER)
+        db.execSQL(PAYEE_AUTOFILL_UPDATE_OLD_TRIGGER)
+        db.execSQL(PAYEE_AUTOFILL_UPDATE_NEW_TRIGGER)
+    }
+
+    fun createOrRefreshCategorySumsTriggers(db: SupportSQLiteDatabase) {
+        listOf(
+            "insert", "delete", "split_delete", "update_old", "update_new", "split_update"
+        ).forEach {
+            db.execSQL("DROP TRIGGER IF EXISTS category_sums_$it")
+        }
+        db.execSQL(CATEGORY_SUMS_INSERT_TRIGGER)
+        db.execSQL(CATEGORY_SUMS_DELETE_TRIGGER)
+        db.execSQL(CATEGORY_SUMS_SPLIT_DELETE_TRIGGER)
+        db.execSQL(CATEGORY_SUMS_UPDATE_OLD_TRIGGER)
+        db.execSQL(CATEGORY_SUMS_UPDATE_NEW_TRIGGER)
+        db.execSQL(CATEGORY_SUMS_SPLIT_UPDATE_TRIGGER)
+    }
+
     fun createOrRefreshTransactionUsageTriggers(db: SupportSQLiteDatabase) {
         db.execSQL(INCREASE_CATEGORY_USAGE_INSERT_TRIGGER)
         db.execSQL(INCREASE_CATEGORY_USAGE_UPDATE_TRIGGER)
@@ -776,6 +1213,24 @@ abstract class BaseTransactionDatabase(
         }
     }
 
+    fun SupportSQLiteDatabase.upgradeTo159() {
+        execSQL(PAYEE_USAGES_CREATE)
+        createOrRefreshPayeeUsageTriggers(this)
+        rebuildPayeeUsages(this)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo160() {
+        execSQL(PAYEE_AUTOFILL_CREATE)
+        createOrRefreshPayeeAutofillTriggers(this)
+        rebuildPayeeAutofill(this)
+    }
+
+    fun SupportSQLiteDatabase.upgradeTo161() {
+        execSQL(CATEGORY_SUMS_CREATE)
+        createOrRefreshCategorySumsTriggers(this)
+        rebuildCategorySums(this)
+    }
+
     override fun onCreate(db: SupportSQLiteDatabase) {
         prefHandler.putInt(PrefKey.FIRST_INSTALL_DB_SCHEMA_VERSION, DATABASE_VERSION)
     }
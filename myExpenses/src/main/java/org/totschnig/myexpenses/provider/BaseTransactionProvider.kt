@@ -1,15 +1,21 @@
 package org.totschnig.myexpenses.provider
 
 import android.content.ContentProvider
+import android.content.ContentUris
 import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
 import android.database.Cursor
 import android.database.CursorWrapper
+import android.database.MatrixCursor
 import android.database.sqlite.SQLiteConstraintException
 import android.net.Uri
 import android.os.Build
 import android.os.Bundle
+import android.os.ResultReceiver
+import androidx.core.database.getLongOrNull
+import androidx.core.database.getStringOrNull
+import androidx.core.os.BundleCompat
 import androidx.datastore.core.DataStore
 import androidx.datastore.preferences.core.Preferences
 import androidx.datastore.preferences.core.stringPreferencesKey
@@ -40,7 +46,9 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.DbUtils.aggregateFunction
 import org.totschnig.myexpenses.provider.DbUtils.typeWithFallBack
 import org.totschnig.myexpenses.provider.TransactionProvider.KEY_RESULT
+import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_CALLER_IS_IN_BULK
+import org.totschnig.myexpenses.provider.filter.FilterPersistence
 import org.totschnig.myexpenses.util.AppDirHelper
 import org.totschnig.myexpenses.util.ResultUnit
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
@@ -50,7 +58,7 @@ import org.totschnig.myexpenses.util.locale.HomeCurrencyProvider
 import timber.log.Timber
 import java.io.File
 import java.time.Duration
-import java.time.Instant
+import java.time.LocalDate
 import javax.inject.Inject
 import javax.inject.Named
 import javax.inject.Provider
@@ -87,6 +95,28 @@ abstract class BaseTransactionProvider : ContentProvider() {
                 return _helper!!
             }
 
+    @Volatile
+    private var _statementCache: StatementCache? = null
+
+    /**
+     * compiled statements for the hottest writes, valid as long as [helper] is not replaced
+     */
+    val statementCache: StatementCache
+        get() = _statementCache
+            ?: synchronized(this) {
+                if (_statementCache == null) {
+                    _statementCache = StatementCache(helper.writableDatabase)
+                }
+                return _statementCache!!
+            }
+
+    private fun closeHelper() {
+        _statementCache?.close()
+        _statementCache = null
+        _helper?.close()
+        _helper = null
+    }
+
     @Inject
     @Named(AppComponent.DATABASE_NAME)
     @JvmSuppressWildcards
@@ -117,6 +147,14 @@ abstract class BaseTransactionProvider : ContentProvider() {
 
     private var shouldLog = false
 
+    /**
+     * Collects durations, row counts, slow query plans and batch sizes while
+     * [PrefKey.DEBUG_LOGGING] is enabled.
+     */
+    val queryMetrics = QueryMetrics()
+
+    abstract fun matchUri(uri: Uri): Int
+
     var bulkInProgress = false
 
     private val bulkNotificationUris = mutableSetOf<Pair<Uri, Boolean>>()
@@ -127,6 +165,28 @@ abstract class BaseTransactionProvider : ContentProvider() {
     }
 
     fun notifyChange(uri: Uri, syncToNetwork: Boolean) {
+        //when the accounts are notified without telling which ones changed, all totals are stale
+        if (uri == TransactionProvider.ACCOUNTS_URI) {
+            notifyOrDefer(TransactionProvider.ACCOUNT_TOTALS_URI, false)
+        }
+        notifyOrDefer(uri, syncToNetwork)
+    }
+
+    /**
+     * Notifies the account list, and the totals of [accountIds] only, or of all accounts, if null
+     */
+    fun notifyAccountTotals(accountIds: Collection<Long>?) {
+        if (accountIds == null) {
+            notifyChange(TransactionProvider.ACCOUNTS_URI, false)
+        } else {
+            notifyOrDefer(TransactionProvider.ACCOUNTS_URI, false)
+            accountIds.forEach {
+                notifyOrDefer(ContentUris.withAppendedId(TransactionProvider.ACCOUNT_TOTALS_URI, it), false)
+            }
+        }
+    }
+
+    private fun notifyOrDefer(uri: Uri, syncToNetwork: Boolean) {
         if (!bulkInProgress && callerIsNotInBulkOperation(uri)) {
             notifyChangeDo(uri, syncToNetwork)
         } else {
@@ -202,6 +262,13 @@ abstract class BaseTransactionProvider : ContentProvider() {
         } ELSE $KEY_AMOUNT END"
 
     companion object {
+        /**
+         * links an object to the attribute given by name and context, binds the id of the object,
+         * the value, the name and the context of the attribute
+         */
+        fun objectAttributeInsert(table: String) =
+            "INSERT or REPLACE INTO $table SELECT DISTINCT ?, _id, ? FROM $TABLE_ATTRIBUTES WHERE $KEY_ATTRIBUTE_NAME = ? AND $KEY_CONTEXT = ?;"
+
         val CATEGORY_TREE_URI: Uri
             get() = TransactionProvider.CATEGORIES_URI.buildUpon()
                 .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_HIERARCHICAL)
@@ -216,6 +283,10 @@ abstract class BaseTransactionProvider : ContentProvider() {
         const val CURRENCIES_USAGES_TABLE_EXPRESSION =
             "$TABLE_CURRENCIES LEFT JOIN (SELECT coalesce($KEY_ORIGINAL_CURRENCY, $KEY_CURRENCY) AS currency_coalesced, count(*) AS $KEY_USAGES FROM $VIEW_EXTENDED GROUP BY currency_coalesced) on currency_coalesced = $KEY_CODE"
 
+        /**
+         * the mapped flags are read from [TABLE_PAYEE_USAGES], the projection hence needs to be
+         * used together with [payeeUsagesJoin]
+         */
         fun payeeProjection(tableName: String) = arrayOf(
             "$tableName.$KEY_ROWID",
             "$tableName.$KEY_PAYEE_NAME",
@@ -223,11 +294,23 @@ abstract class BaseTransactionProvider : ContentProvider() {
             "$tableName.$KEY_BIC",
             "$tableName.$KEY_IBAN",
             "$tableName.$KEY_PARENTID",
-            "exists (SELECT 1 FROM $TABLE_TRANSACTIONS WHERE $KEY_PAYEEID=$tableName.$KEY_ROWID) AS $KEY_MAPPED_TRANSACTIONS",
-            "exists (SELECT 1 FROM $TABLE_TEMPLATES WHERE $KEY_PAYEEID=$tableName.$KEY_ROWID) AS $KEY_MAPPED_TEMPLATES",
-            "exists (SELECT 1 FROM $TABLE_DEBTS WHERE $KEY_PAYEEID=$tableName.$KEY_ROWID) AS $KEY_MAPPED_DEBTS"
+            "coalesce($KEY_USAGES_TRANSACTIONS, 0) > 0 AS $KEY_MAPPED_TRANSACTIONS",
+            "coalesce($KEY_USAGES_TEMPLATES, 0) > 0 AS $KEY_MAPPED_TEMPLATES",
+            "coalesce($KEY_USAGES_DEBTS, 0) > 0 AS $KEY_MAPPED_DEBTS",
+            "$PAYEE_USAGES_EXPRESSION AS $KEY_USAGES"
         )
 
+        fun payeeUsagesJoin(tableName: String, alias: String = tableName) =
+            "$tableName${if (alias != tableName) " $alias" else ""} LEFT JOIN $TABLE_PAYEE_USAGES ON $TABLE_PAYEE_USAGES.$KEY_PAYEEID = $alias.$KEY_ROWID"
+
+        private const val PAYEE_USAGES_EXPRESSION =
+            "coalesce($KEY_USAGES_TRANSACTIONS, 0) + coalesce($KEY_USAGES_TEMPLATES, 0)"
+
+        /**
+         * sorts most used payees first, can be used in queries on [TransactionProvider.PAYEES_URI]
+         */
+        const val PAYEE_USAGES_SORT = "$PAYEE_USAGES_EXPRESSION DESC, $TABLE_PAYEE_USAGES.$KEY_LAST_USED DESC"
+
         val BANK_PROJECTION = arrayOf(
             KEY_ROWID, KEY_BLZ, KEY_BIC, KEY_BANK_NAME, KEY_USER_ID,
             "(SELECT count(*) FROM $TABLE_ACCOUNTS WHERE $KEY_BANK_ID = $TABLE_BANKS.$KEY_ROWID) AS $KEY_COUNT"
@@ -249,6 +332,24 @@ abstract class BaseTransactionProvider : ContentProvider() {
                 it
         }.toTypedArray()
 
+        /**
+         * [TABLE_PAYEE_AUTOFILL] does not store the currency, we look it up from the account, the
+         * most frequent category and method are calculated for the payee of the row
+         */
+        fun autoFillProjection(projectionIn: Array<String>?): Array<String> =
+            (projectionIn ?: arrayOf(
+                KEY_PAYEEID, KEY_TRANSACTIONID, KEY_ACCOUNTID, KEY_CURRENCY, KEY_AMOUNT, KEY_CATID,
+                KEY_METHODID, KEY_COMMENT, KEY_DEBT_ID, KEY_FREQUENT_CATID, KEY_FREQUENT_METHODID
+            )).map {
+                when (it) {
+                    KEY_CURRENCY ->
+                        "(SELECT $KEY_CURRENCY FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = $KEY_ACCOUNTID) AS $KEY_CURRENCY"
+                    KEY_FREQUENT_CATID, KEY_FREQUENT_METHODID ->
+                        "${frequentValue(it, "$TABLE_PAYEE_AUTOFILL.$KEY_PAYEEID")} AS $it"
+                    else -> it
+                }
+            }.toTypedArray()
+
         const val KEY_DEBT_LABEL = "debt"
 
         const val DEBT_LABEL_EXPRESSION =
@@ -346,6 +447,10 @@ abstract class BaseTransactionProvider : ContentProvider() {
         protected const val TRANSACTION_ATTACHMENTS = 72
         protected const val ATTACHMENTS = 73
         protected const val TRANSACTION_ID_ATTACHMENT_ID = 74
+        protected const val BUDGETS_PROGRESS = 75
+        protected const val TEMPLATES_PLAN_INSTANCES = 76
+        protected const val ACCOUNT_TOTALS = 77
+        protected const val CATEGORIES_RANKED = 78
     }
 
     val homeCurrency: String
@@ -396,16 +501,8 @@ abstract class BaseTransactionProvider : ContentProvider() {
     val typeWithFallBack: String
         get() = typeWithFallBack(prefHandler)
 
-    fun buildAccountQuery(
-        minimal: Boolean,
-        mergeAggregate: String?,
-        selection: String?,
-        sortOrder: String?
-    ): String {
-
-        val aggregateFunction = this.aggregateFunction
-
-        val futureStartsNow = runBlocking {
+    private val futureStartsNow: Boolean
+        get() = runBlocking {
             enumValueOrDefault(
                 dataStore.data.first()[stringPreferencesKey(
                     prefHandler.getKey(
@@ -415,8 +512,32 @@ abstract class BaseTransactionProvider : ContentProvider() {
             )
         } == FutureCriterion.Current
 
-        val cte =
-            accountQueryCTE(homeCurrency, futureStartsNow, aggregateFunction, typeWithFallBack)
+    /**
+     * @param deferTotals if true, aggregates over transactions are not calculated, balances only
+     * reflect the opening balance, and the totals are expected to be loaded separately from
+     * [TransactionProvider.ACCOUNT_TOTALS_URI]
+     * @param totalsForAccount if not null, aggregates are only calculated for the transactions of
+     * this account, see [TransactionProvider.QUERY_PARAMETER_TOTALS_FOR_ACCOUNT]
+     */
+    fun buildAccountQuery(
+        minimal: Boolean,
+        mergeAggregate: String?,
+        selection: String?,
+        sortOrder: String?,
+        deferTotals: Boolean = false,
+        totalsForAccount: Long? = null
+    ): String {
+
+        val aggregateFunction = this.aggregateFunction
+
+        val cte = accountQueryCTE(
+            homeCurrency, futureStartsNow, aggregateFunction, typeWithFallBack,
+            when {
+                deferTotals -> "0"
+                totalsForAccount != null -> "$VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID = $totalsForAccount"
+                else -> null
+            }
+        )
 
         val joinWithAggregates =
             "$TABLE_ACCOUNTS LEFT JOIN aggregates ON $TABLE_ACCOUNTS.$KEY_ROWID = aggregates.$KEY_ACCOUNTID"
@@ -588,12 +709,47 @@ abstract class BaseTransactionProvider : ContentProvider() {
         return "$cte\n$query"
     }
 
+    /**
+     * aggregates over the transactions of each account matching [selection], which is applied to
+     * [VIEW_WITH_ACCOUNT]. Accounts without transactions are not included.
+     */
+    fun buildAccountTotalsQuery(selection: String?) =
+        accountQueryCTE(homeCurrency, futureStartsNow, aggregateFunction, typeWithFallBack, selection) +
+                "SELECT * FROM aggregates"
+
+    /**
+     * accounts a transaction with [values] is booked on, null if [values] do not tell
+     */
+    fun accountsReferencedBy(values: ContentValues): Set<Long>? =
+        values.getAsLong(KEY_ACCOUNTID)?.let {
+            setOfNotNull(it, values.getAsLong(KEY_TRANSFER_ACCOUNT))
+        }
+
+    /**
+     * accounts whose totals change when transaction [transactionId] is modified or deleted: its own
+     * account, and the accounts its transfer peer, or the peers of its split parts belong to, and
+     * the accounts it is moved to with [values]
+     */
+    @JvmOverloads
+    fun accountsAffectedBy(
+        db: SupportSQLiteDatabase,
+        transactionId: String,
+        values: ContentValues? = null
+    ): Set<Long> = db.query(
+        """SELECT $KEY_ACCOUNTID FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID = ?1
+            UNION SELECT $KEY_TRANSFER_ACCOUNT FROM $TABLE_TRANSACTIONS
+            WHERE ($KEY_ROWID = ?1 OR $KEY_PARENTID = ?1) AND $KEY_TRANSFER_ACCOUNT IS NOT NULL""",
+        arrayOf(transactionId)
+    ).useAndMap { it.getLong(0) }.toSet() + listOfNotNull(
+        values?.getAsLong(KEY_ACCOUNTID),
+        values?.getAsLong(KEY_TRANSFER_ACCOUNT)
+    )
+
     @Synchronized
     fun backup(context: Context, backupDir: File): Result<Unit> {
         val currentDb = File(helper.readableDatabase.path!!)
         return (if (prefHandler.encryptDatabase) {
-            _helper?.close()
-            _helper = null
+            closeHelper()
             decrypt(currentDb, backupDir)
         } else {
             helper.readableDatabase.beginTransaction()
@@ -639,8 +795,7 @@ abstract class BaseTransactionProvider : ContentProvider() {
         val dataDir = File(getInternalAppDir(), "databases")
         dataDir.mkdir()
         val currentDb = File(dataDir, provideDatabaseName(encrypt))
-        _helper?.close()
-        _helper = null
+        closeHelper()
         val result: Boolean = try {
             if (encrypt) {
                 DataModule.cryptProvider.encrypt(context!!, backupFile, currentDb)
@@ -714,14 +869,9 @@ abstract class BaseTransactionProvider : ContentProvider() {
                 argsList.addAll(baseArgs)
             }
             val statement = statementBuilder.toString()
-            val result = db.compileStatement(statement).use {
+            val result = statementCache.withStatement(statement) {
                 argsList.forEachIndexed { index, arg ->
-                    val bindIndex = index + 1
-                    if (arg != null) {
-                        it.bindString(bindIndex, arg)
-                    } else {
-                        it.bindNull(bindIndex)
-                    }
+                    it.bindValue(index + 1, arg)
                 }
                 log("$statement - ${argsList.joinToString()}")
                 if (it.executeInsert() == -1L) 0 else 1
@@ -753,6 +903,163 @@ abstract class BaseTransactionProvider : ContentProvider() {
             .use { it.takeIf { it.moveToFirst() }?.getLong(0) }
     }
 
+    /**
+     * Computes spent and allocated amounts for the current period of all budgets in one statement,
+     * each budget contributing one row built with the same logic as the sum and allocation queries
+     * used for a single budget (account selection, aggregate neutral flag, persisted filter).
+     */
+    fun budgetProgressQuery(db: SupportSQLiteDatabase, uri: Uri): Cursor {
+        val preferences = runBlocking { dataStore.data.first() }
+        val selectionArgs = mutableListOf<String>()
+        val selects = db.query(
+            "SELECT $KEY_ROWID, $KEY_ACCOUNTID, $KEY_CURRENCY, $KEY_GROUPING, $KEY_START, $KEY_END FROM $TABLE_BUDGETS"
+        ).use { cursor ->
+            cursor.asSequence.map {
+                val budgetId = it.getLong(0)
+                val grouping = enumValueOrDefault(it.getString(3), Grouping.NONE)
+                val sumUri = TransactionProvider.TRANSACTIONS_SUM_URI.buildUpon().apply {
+                    val accountId = it.getLongOrNull(1)
+                    val currency = it.getStringOrNull(2)
+                    if (accountId != null) {
+                        appendQueryParameter(KEY_ACCOUNTID, accountId.toString())
+                    } else if (currency != null && currency != AGGREGATE_HOME_CURRENCY_CODE) {
+                        appendQueryParameter(KEY_CURRENCY, currency)
+                    }
+                    appendQueryParameter(
+                        QUERY_PARAMETER_AGGREGATE_NEUTRAL,
+                        (preferences[budgetAggregateNeutralPrefKey(budgetId)] == true).toString()
+                    )
+                }.build()
+                var selection = budgetDateFilterClause(
+                    grouping,
+                    it.getStringOrNull(4)?.let(LocalDate::parse),
+                    it.getStringOrNull(5)?.let(LocalDate::parse)
+                )
+                val whereFilter = FilterPersistence(
+                    prefHandler, budgetFilterPrefNameForCriteria(budgetId), null, false
+                ).whereFilter
+                if (!whereFilter.isEmpty) {
+                    selection += " AND " + whereFilter.getSelectionForParts(VIEW_WITH_ACCOUNT)
+                    selectionArgs.addAll(whereFilter.getSelectionArgs(true))
+                }
+                budgetProgressSelect(
+                    budgetId,
+                    transactionSumQuery(
+                        sumUri,
+                        arrayOf(KEY_SUM_EXPENSES),
+                        selection,
+                        typeWithFallBack,
+                        aggregateFunction,
+                        homeCurrency
+                    ),
+                    grouping
+                )
+            }.toList()
+        }
+        if (selects.isEmpty()) {
+            return MatrixCursor(
+                arrayOf(KEY_BUDGETID, KEY_SUM_EXPENSES, KEY_BUDGET, KEY_BUDGET_ROLLOVER_PREVIOUS), 0
+            )
+        }
+        val sql = selects.joinToString(" UNION ALL ")
+        return db.measureAndLogQuery(uri, sql, null, selectionArgs.toTypedArray())
+    }
+
+    /**
+     * Applies [operation] to the transactions selected in [extras] in one db transaction, and
+     * notifies observers once after the transaction has been committed
+     * @return [KEY_RESULT] number of transactions the operation was applied to, [KEY_COUNT] number
+     * of selected transactions
+     */
+    fun bulkOperation(operation: BulkOperation, extras: Bundle): Bundle {
+        val db = helper.writableDatabase
+        val receiver = BundleCompat.getParcelable(extras, KEY_PROGRESS_RECEIVER, ResultReceiver::class.java)
+        val steps = BulkSteps { done, total ->
+            receiver?.send(done, Bundle(1).apply { putInt(KEY_COUNT, total) })
+        }
+        val unlinkedAttachments = mutableListOf<Long>()
+        val affectedAccounts = mutableSetOf<Long>()
+        val selected: Int
+        val result: Int
+        db.beginTransaction()
+        try {
+            selected = db.createBulkSelection(extras.getLongArray(KEY_BULK_ROW_IDS) ?: LongArray(0))
+            val column by lazy { extras.getString(KEY_BULK_COLUMN)!! }
+            if (operation != BulkOperation.TAG) {
+                val targetAccount = extras.getLong(KEY_BULK_VALUE).takeIf {
+                    (operation == BulkOperation.REMAP || operation == BulkOperation.CLONE_AND_REMAP) &&
+                            column == KEY_ACCOUNTID
+                }
+                db.excludeSealed(targetAccount)
+                //collected before the operation, since remapping moves transactions to another account
+                affectedAccounts.addAll(db.accountsOfSelection())
+                targetAccount?.let { affectedAccounts.add(it) }
+            }
+            val resultProvider = when (operation) {
+                BulkOperation.REMAP -> db.bulkRemap(steps, column, extras.getLong(KEY_BULK_VALUE))
+                BulkOperation.CLONE_AND_REMAP -> db.bulkCloneAndRemap(steps, column, extras.getLong(KEY_BULK_VALUE))
+                BulkOperation.TAG -> db.bulkTag(
+                    steps,
+                    extras.getLongArray(KEY_BULK_TAG_IDS) ?: LongArray(0),
+                    extras.getBoolean(KEY_BULK_REPLACE)
+                )
+                BulkOperation.DELETE, BulkOperation.VOID -> db.bulkDelete(
+                    steps,
+                    operation == BulkOperation.VOID
+                ) { unlinkedAttachments.addAll(it) }
+                BulkOperation.UNDELETE -> db.bulkUndelete(steps)
+                BulkOperation.TOGGLE_CR_STATUS -> db.bulkToggleCrStatus(steps)
+            }
+            steps.run()
+            result = resultProvider()
+            db.dropBulkTables()
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        unlinkedAttachments.forEach { deleteAttachment(db, it, null) }
+        dirty = true
+        notifyChange(TransactionProvider.TRANSACTIONS_URI, true)
+        if (operation != BulkOperation.TAG) {
+            notifyAccountTotals(affectedAccounts)
+        }
+        notifyChange(TransactionProvider.DEBTS_URI, false)
+        notifyChange(TransactionProvider.UNCOMMITTED_URI, false)
+        if (operation == BulkOperation.TAG) {
+            notifyChange(TransactionProvider.TAGS_URI, false)
+        } else {
+            notifyChange(TransactionProvider.CATEGORIES_URI, false)
+        }
+        return Bundle(2).apply {
+            putInt(KEY_RESULT, result)
+            putInt(KEY_COUNT, selected)
+        }
+    }
+
+    /**
+     * copies the split parts of [KEY_PARENTID] as uncommitted parts of [KEY_ROWID] in one db
+     * transaction, see [copySplitPartsForEdit]
+     * @return [KEY_RESULT] number of copied parts
+     */
+    fun copySplitParts(extras: Bundle): Bundle {
+        val db = helper.writableDatabase
+        val count: Int
+        db.beginTransaction()
+        try {
+            count = db.copySplitPartsForEdit(extras.getLong(KEY_PARENTID), extras.getLong(KEY_ROWID))
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        if (count > 0) {
+            notifyChange(TransactionProvider.TRANSACTIONS_URI, false)
+            notifyChange(TransactionProvider.UNCOMMITTED_URI, false)
+        }
+        return Bundle(1).apply {
+            putInt(KEY_RESULT, count)
+        }
+    }
+
     fun hiddenAccountCount(db: SupportSQLiteDatabase): Bundle = Bundle(1).apply {
         putInt(
             KEY_COUNT,
@@ -762,6 +1069,37 @@ abstract class BaseTransactionProvider : ContentProvider() {
         )
     }
 
+    /**
+     * tags ([KEY_TAGID], [KEY_LABEL]), attachments ([KEY_URI_LIST]) and attributes
+     * ([KEY_ATTRIBUTE_NAME], [KEY_CONTEXT], [KEY_VALUE]) of [transactionId] as parallel arrays,
+     * see [TransactionProvider.QUERY_PARAMETER_WITH_LINKED_ROWS]
+     */
+    fun linkedRows(db: SupportSQLiteDatabase, transactionId: Long): Bundle = Bundle(6).apply {
+        val args = arrayOf(transactionId)
+        db.query(
+            "SELECT $KEY_ROWID, $KEY_LABEL FROM $TABLE_TAGS WHERE $KEY_ROWID IN (SELECT $KEY_TAGID FROM $TABLE_TRANSACTIONS_TAGS WHERE $KEY_TRANSACTIONID = ?)",
+            args
+        ).useAndMap { it.getLong(0) to it.getString(1) }.let { tags ->
+            putLongArray(KEY_TAGID, tags.map { it.first }.toLongArray())
+            putStringArray(KEY_LABEL, tags.map { it.second }.toTypedArray())
+        }
+        putStringArray(
+            KEY_URI_LIST,
+            db.query(
+                "SELECT $KEY_URI FROM $TABLE_TRANSACTION_ATTACHMENTS LEFT JOIN $TABLE_ATTACHMENTS ON ($KEY_ATTACHMENT_ID = $KEY_ROWID) WHERE $KEY_TRANSACTIONID = ?",
+                args
+            ).useAndMap { it.getString(0) }.toTypedArray()
+        )
+        db.query(
+            "SELECT $KEY_ATTRIBUTE_NAME, $KEY_CONTEXT, $KEY_VALUE FROM $TRANSACTION_ATTRIBUTES_JOIN WHERE $KEY_TRANSACTIONID = ?",
+            args
+        ).useAndMap { Triple(it.requireString(0), it.requireString(1), it.requireString(2)) }.let { attributes ->
+            putStringArray(KEY_ATTRIBUTE_NAME, attributes.map { it.first }.toTypedArray())
+            putStringArray(KEY_CONTEXT, attributes.map { it.second }.toTypedArray())
+            putStringArray(KEY_VALUE, attributes.map { it.third }.toTypedArray())
+        }
+    }
+
     fun hasCategories(db: SupportSQLiteDatabase): Bundle = Bundle(1).apply {
         val defaultCatIds = listOfNotNull(SPLIT_CATID, prefHandler.defaultTransferCategory).joinToString()
         putBoolean(
@@ -887,7 +1225,7 @@ abstract class BaseTransactionProvider : ContentProvider() {
                         limit(limit)
                     }
                 }.create()
-        return measure(block = {
+        return measure(uri, db, query.sql, selectionArgs, block = {
             db.query(query)
         }) {
             "$uri - ${query.sql} - (${selectionArgs?.joinToString()})"
@@ -970,19 +1308,91 @@ abstract class BaseTransactionProvider : ContentProvider() {
         sql: String,
         selection: String?,
         selectionArgs: Array<String>?
-    ): Cursor = measure(block = { query(sql, selectionArgs ?: emptyArray()) }) {
+    ): Cursor = measure(uri, this, sql, selectionArgs, block = { query(sql, selectionArgs ?: emptyArray()) }) {
         "$uri - $selection - $sql - (${selectionArgs?.joinToString()})"
     }
 
-    private fun measure(block: () -> Cursor, lazyMessage: () -> String): Cursor = if (shouldLog) {
-        val startTime = Instant.now()
+    /**
+     * The duration includes the call to [Cursor.getCount], which is where SQLite actually
+     * executes the query.
+     */
+    private fun measure(
+        uri: Uri,
+        db: SupportSQLiteDatabase,
+        sql: String,
+        selectionArgs: Array<String>?,
+        block: () -> Cursor,
+        lazyMessage: () -> String
+    ): Cursor = if (shouldLog) {
+        val startTime = System.nanoTime()
+        val result = block()
+        val rowCount = result.count
+        val nanos = System.nanoTime() - startTime
+        val uriMatch = matchUri(uri)
+        queryMetrics.record(uriMatch, QueryMetrics.Operation.QUERY, nanos, rowCount, uri.path)
+        if (queryMetrics.isSlow(nanos)) {
+            queryMetrics.recordSlowQuery(
+                QueryMetrics.SlowQuery(
+                    uriMatch,
+                    uri.toString(),
+                    sql,
+                    Duration.ofNanos(nanos).toMillis(),
+                    explainQueryPlan(db, sql, selectionArgs)
+                )
+            )
+        }
+        log("${lazyMessage()}\n${Duration.ofNanos(nanos)} - $rowCount")
+        result
+    } else block()
+
+    private fun explainQueryPlan(
+        db: SupportSQLiteDatabase,
+        sql: String,
+        selectionArgs: Array<String>?
+    ) = try {
+        db.query("EXPLAIN QUERY PLAN $sql", selectionArgs ?: emptyArray()).useAndMap {
+            //columns are id, parent, notused, detail
+            "${it.getInt(0)}|${it.getInt(1)}|${it.getString(3)}"
+        }.joinToString("\n")
+    } catch (e: Exception) {
+        "Unable to explain query plan: ${e.message}"
+    }
+
+    /**
+     * Records duration and number of affected rows of a write operation, if query metrics are
+     * enabled
+     */
+    fun <T> measureWrite(
+        uri: Uri,
+        operation: QueryMetrics.Operation,
+        block: () -> T,
+        rowCount: (T) -> Int
+    ): T = if (shouldLog) {
+        val startTime = System.nanoTime()
         val result = block()
-        val endTime = Instant.now()
-        val duration = Duration.between(startTime, endTime)
-        log("${lazyMessage()}\n$duration - ${result.count}")
+        queryMetrics.record(
+            matchUri(uri),
+            operation,
+            System.nanoTime() - startTime,
+            rowCount(result),
+            uri.path
+        )
         result
     } else block()
 
+    fun recordBatch(size: Int, startTime: Long) {
+        if (shouldLog) {
+            queryMetrics.recordBatch(size, System.nanoTime() - startTime)
+        }
+    }
+
+    fun queryMetricsReport(reset: Boolean) = Bundle(1).apply {
+        putString(KEY_RESULT, queryMetrics.report())
+        if (reset) {
+            queryMetrics.reset()
+        }
+    }
+
     fun report(e: String) {
         CrashHandler.report(Exception(e), TAG)
     }
@@ -1126,38 +1536,38 @@ abstract class BaseTransactionProvider : ContentProvider() {
         return db.measureAndLogQuery(uri, sql, selection, finalArgs)
     }
 
-    fun insertAttribute(db: SupportSQLiteDatabase, values: ContentValues) {
+    fun insertAttribute(values: ContentValues) {
         val name = values.getAsString(KEY_ATTRIBUTE_NAME)
         val context = values.getAsString(KEY_CONTEXT)
-        db.execSQL(
-            "INSERT INTO $TABLE_ATTRIBUTES ($KEY_ATTRIBUTE_NAME, $KEY_CONTEXT)  SELECT ?,? WHERE NOT EXISTS (SELECT 1 FROM $TABLE_ATTRIBUTES WHERE $KEY_ATTRIBUTE_NAME=? AND $KEY_CONTEXT = ? )",
-            arrayOf(name, context, name, context)
-        )
+        statementCache.withStatement(
+            "INSERT INTO $TABLE_ATTRIBUTES ($KEY_ATTRIBUTE_NAME, $KEY_CONTEXT)  SELECT ?1,?2 WHERE NOT EXISTS (SELECT 1 FROM $TABLE_ATTRIBUTES WHERE $KEY_ATTRIBUTE_NAME=?1 AND $KEY_CONTEXT = ?2 )"
+        ) {
+            it.bindValue(1, name)
+            it.bindValue(2, context)
+            it.executeInsert()
+        }
     }
 
-    fun insertTransactionAttribute(db: SupportSQLiteDatabase, values: ContentValues) {
-        insertObjectAttribute(db, values, TABLE_TRANSACTION_ATTRIBUTES, KEY_TRANSACTIONID)
+    fun insertTransactionAttribute(values: ContentValues) {
+        insertObjectAttribute(values, TABLE_TRANSACTION_ATTRIBUTES, KEY_TRANSACTIONID)
     }
 
-    fun insertAccountAttribute(db: SupportSQLiteDatabase, values: ContentValues) {
-        insertObjectAttribute(db, values, TABLE_ACCOUNT_ATTRIBUTES, KEY_ACCOUNTID)
+    fun insertAccountAttribute(values: ContentValues) {
+        insertObjectAttribute(values, TABLE_ACCOUNT_ATTRIBUTES, KEY_ACCOUNTID)
     }
 
     private fun insertObjectAttribute(
-        db: SupportSQLiteDatabase,
         values: ContentValues,
         table: String,
         linkColumn: String
     ) {
-        db.execSQL(
-            "INSERT or REPLACE INTO $table SELECT DISTINCT ?, _id, ? FROM $TABLE_ATTRIBUTES WHERE $KEY_ATTRIBUTE_NAME = ? AND $KEY_CONTEXT = ?;",
-            arrayOf(
-                values.getAsLong(linkColumn),
-                values.getAsString(KEY_VALUE),
-                values.getAsString(KEY_ATTRIBUTE_NAME),
-                values.getAsString(KEY_CONTEXT)
-            )
-        )
+        statementCache.withStatement(objectAttributeInsert(table)) {
+            it.bindValue(1, values.getAsLong(linkColumn))
+            it.bindValue(2, values.getAsString(KEY_VALUE))
+            it.bindValue(3, values.getAsString(KEY_ATTRIBUTE_NAME))
+            it.bindValue(4, values.getAsString(KEY_CONTEXT))
+            it.executeInsert()
+        }
     }
 
     fun requireAttachment(db: SupportSQLiteDatabase, uri: String, uuid: String?) =
@@ -0,0 +1,410 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import androidx.sqlite.db.SupportSQLiteDatabase
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+
+/**
+ * Operations on a selection of transactions, that are executed as a few set based statements
+ * inside one database transaction, see [TransactionProvider.METHOD_BULK_OPERATION]
+ */
+enum class BulkOperation {
+    REMAP, CLONE_AND_REMAP, TAG, DELETE, VOID, UNDELETE, TOGGLE_CR_STATUS
+}
+
+/**
+ * long array of the ids of the transactions the operation is applied to
+ */
+const val KEY_BULK_ROW_IDS = "bulkRowIds"
+
+/**
+ * [android.os.ResultReceiver] that is sent the number of completed steps as result code and
+ * the total number of steps in [DatabaseConstants.KEY_COUNT]
+ */
+const val KEY_PROGRESS_RECEIVER = "progressReceiver"
+
+/**
+ * column for [BulkOperation.REMAP] and [BulkOperation.CLONE_AND_REMAP], one of [REMAPPABLE_COLUMNS]
+ */
+const val KEY_BULK_COLUMN = "bulkColumn"
+
+/**
+ * row id for [BulkOperation.REMAP] and [BulkOperation.CLONE_AND_REMAP]
+ */
+const val KEY_BULK_VALUE = "bulkValue"
+
+/**
+ * long array of tag ids for [BulkOperation.TAG]
+ */
+const val KEY_BULK_TAG_IDS = "bulkTagIds"
+
+/**
+ * boolean for [BulkOperation.TAG], if true existing tags are removed
+ */
+const val KEY_BULK_REPLACE = "bulkReplace"
+
+val REMAPPABLE_COLUMNS = arrayOf(KEY_CATID, KEY_PAYEEID, KEY_METHODID, KEY_ACCOUNTID)
+
+private const val TABLE_BULK_SELECTION = "bulk_selection"
+private const val TABLE_BULK_CLONE = "bulk_clone"
+private const val KEY_OLD_ID = "old_id"
+private const val KEY_NEW_ID = "new_id"
+
+private const val SELECTED = "(SELECT $KEY_ROWID FROM temp.$TABLE_BULK_SELECTION)"
+private const val CLONES_OF_SELECTED =
+    "(SELECT $KEY_NEW_ID FROM temp.$TABLE_BULK_CLONE WHERE $KEY_OLD_ID IN $SELECTED)"
+
+/**
+ * random version 4 uuid, evaluated for each row
+ */
+private const val UUID_EXPRESSION =
+    "lower(hex(randomblob(4)) || '-' || hex(randomblob(2)) || '-4' || substr(hex(randomblob(2)), 2) || '-' || substr('89ab', 1 + (abs(random()) % 4), 1) || substr(hex(randomblob(2)), 2) || '-' || hex(randomblob(6)))"
+
+private val CLONED_COLUMNS = arrayOf(
+    KEY_COMMENT, KEY_DATE, KEY_VALUE_DATE, KEY_AMOUNT, KEY_CATID, KEY_ACCOUNTID, KEY_PAYEEID,
+    KEY_TRANSFER_ACCOUNT, KEY_METHODID, KEY_CR_STATUS, KEY_REFERENCE_NUMBER, KEY_ORIGINAL_AMOUNT,
+    KEY_ORIGINAL_CURRENCY, KEY_EQUIVALENT_AMOUNT, KEY_DEBT_ID
+)
+
+/**
+ * @param ids subquery returning ids of transactions
+ * @return the selection matching [ids] and their parts (transfers to a different account) or
+ * their transfer peers (remapping category)
+ */
+private fun remapSelection(column: String, ids: String) = buildString {
+    append("$KEY_ROWID IN $ids")
+    if (column == KEY_ACCOUNTID) {
+        append(" OR $KEY_PARENTID IN $ids")
+    }
+    if (column == KEY_CATID) {
+        append(" OR $KEY_TRANSFER_PEER IN $ids")
+    }
+}
+
+/**
+ * set based equivalent of [WHERE_SELF_OR_RELATED]
+ */
+private const val SELECTED_OR_RELATED =
+    "$KEY_TRANSFER_PEER IN $SELECTED OR $KEY_ROWID IN $SELECTED OR $KEY_PARENTID IN $SELECTED OR $KEY_ROWID IN (SELECT $KEY_TRANSFER_PEER FROM $TABLE_TRANSACTIONS WHERE $KEY_PARENTID IN $SELECTED)"
+
+/**
+ * Runs each step and reports progress after it has been executed
+ */
+class BulkSteps(private val progress: ((Int, Int) -> Unit)?) {
+    private val steps = mutableListOf<() -> Unit>()
+
+    fun step(block: () -> Unit) {
+        steps.add(block)
+    }
+
+    fun run() {
+        steps.forEachIndexed { index, step ->
+            step()
+            progress?.invoke(index + 1, steps.size)
+        }
+    }
+}
+
+/**
+ * Fills the temporary selection table from [rowIds]
+ * @return number of selected transactions
+ */
+fun SupportSQLiteDatabase.createBulkSelection(rowIds: LongArray): Int {
+    execSQL("CREATE TEMP TABLE IF NOT EXISTS $TABLE_BULK_SELECTION ($KEY_ROWID integer primary key)")
+    execSQL("DELETE FROM temp.$TABLE_BULK_SELECTION")
+    compileStatement("INSERT OR IGNORE INTO temp.$TABLE_BULK_SELECTION ($KEY_ROWID) VALUES (?)").use {
+        rowIds.forEach { id ->
+            it.bindLong(1, id)
+            it.executeInsert()
+        }
+    }
+    return countSelected("1")
+}
+
+/**
+ * accounts whose totals change with the selection: the accounts of the selected transactions,
+ * of their split parts and of their transfer peers
+ */
+fun SupportSQLiteDatabase.accountsOfSelection(): Set<Long> = query(
+    "SELECT $KEY_ACCOUNTID FROM $TABLE_TRANSACTIONS WHERE $SELECTED_OR_RELATED UNION " +
+            "SELECT $KEY_TRANSFER_ACCOUNT FROM $TABLE_TRANSACTIONS WHERE ($SELECTED_OR_RELATED) AND $KEY_TRANSFER_ACCOUNT IS NOT NULL"
+).useAndMap { it.getLong(0) }.toSet()
+
+/**
+ * Removes transactions linked to a sealed account or debt from the selection. The triggers that
+ * guard them would otherwise abort the operation for the whole selection, now they are only
+ * reported as failed.
+ * @param targetAccount account the selection is moved to, if it is sealed, no transaction is left
+ * @return number of transactions left in the selection
+ */
+fun SupportSQLiteDatabase.excludeSealed(targetAccount: Long?): Int {
+    val targetSealed = targetAccount != null && query(
+        "SELECT $KEY_SEALED FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = ?",
+        arrayOf(targetAccount)
+    ).use { it.moveToFirst() && it.getInt(0) == 1 }
+    if (targetSealed) {
+        execSQL("DELETE FROM temp.$TABLE_BULK_SELECTION")
+    } else {
+        execSQL(
+            "DELETE FROM temp.$TABLE_BULK_SELECTION WHERE $KEY_ROWID IN (SELECT $KEY_ROWID FROM $VIEW_COMMITTED WHERE $KEY_ROWID IN $SELECTED AND max(${
+                checkForSealedAccount(VIEW_COMMITTED, TABLE_TRANSACTIONS)
+            }, ${checkForSealedDebt(VIEW_COMMITTED)}) = 1)"
+        )
+    }
+    return countSelected("1")
+}
+
+fun SupportSQLiteDatabase.dropBulkTables() {
+    execSQL("DROP TABLE IF EXISTS temp.$TABLE_BULK_SELECTION")
+    execSQL("DROP TABLE IF EXISTS temp.$TABLE_BULK_CLONE")
+}
+
+private fun SupportSQLiteDatabase.countSelected(where: String) = query(
+    "SELECT count(*) FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN $SELECTED AND $where"
+).use {
+    it.moveToFirst()
+    it.getInt(0)
+}
+
+private fun checkRemappableColumn(column: String) {
+    require(REMAPPABLE_COLUMNS.contains(column)) { "Column $column can not be remapped" }
+}
+
+fun SupportSQLiteDatabase.bulkRemap(steps: BulkSteps, column: String, rowId: Long): () -> Int {
+    checkRemappableColumn(column)
+    var count = 0
+    steps.step {
+        count = update(
+            TABLE_TRANSACTIONS,
+            ContentValues(1).apply { put(column, rowId) },
+            remapSelection(column, SELECTED),
+            null
+        )
+    }
+    return { count }
+}
+
+private fun SupportSQLiteDatabase.createCloneTable() {
+    execSQL("CREATE TEMP TABLE IF NOT EXISTS $TABLE_BULK_CLONE ($KEY_OLD_ID integer primary key, $KEY_NEW_ID integer, $KEY_UUID text)")
+    execSQL("DELETE FROM temp.$TABLE_BULK_CLONE")
+}
+
+/**
+ * transfer peers of the rows in the clone table are cloned with the same uuid
+ */
+private fun SupportSQLiteDatabase.addTransferPeersToClones() {
+    execSQL("INSERT OR IGNORE INTO temp.$TABLE_BULK_CLONE ($KEY_OLD_ID, $KEY_UUID) SELECT t.$KEY_TRANSFER_PEER, c.$KEY_UUID FROM temp.$TABLE_BULK_CLONE c JOIN $TABLE_TRANSACTIONS t ON t.$KEY_ROWID = c.$KEY_OLD_ID WHERE t.$KEY_TRANSFER_PEER IS NOT NULL")
+}
+
+/**
+ * inserts the clones of the rows in the clone table matching [where] (on alias t) and records
+ * their ids
+ */
+private fun SupportSQLiteDatabase.insertClones(status: Int, parentExpression: String, where: String) {
+    val columnList = CLONED_COLUMNS.joinToString()
+    val sourceColumnList = CLONED_COLUMNS.joinToString { "t.$it" }
+    execSQL(
+        "INSERT INTO $TABLE_TRANSACTIONS ($columnList, $KEY_PARENTID, $KEY_STATUS, $KEY_UUID) SELECT $sourceColumnList, $parentExpression, $status, c.$KEY_UUID FROM $TABLE_TRANSACTIONS t JOIN temp.$TABLE_BULK_CLONE c ON c.$KEY_OLD_ID = t.$KEY_ROWID WHERE $where ORDER BY t.$KEY_ROWID"
+    )
+    //uuid is only shared between transfer peers, that live in different accounts
+    execSQL(
+        "UPDATE temp.$TABLE_BULK_CLONE SET $KEY_NEW_ID = (SELECT n.$KEY_ROWID FROM $TABLE_TRANSACTIONS n JOIN $TABLE_TRANSACTIONS o ON n.$KEY_ACCOUNTID = o.$KEY_ACCOUNTID WHERE o.$KEY_ROWID = $TABLE_BULK_CLONE.$KEY_OLD_ID AND n.$KEY_UUID = $TABLE_BULK_CLONE.$KEY_UUID) WHERE $KEY_NEW_ID IS NULL"
+    )
+}
+
+/**
+ * links the cloned transfer peers with each other and copies the tags to the clones
+ */
+private fun SupportSQLiteDatabase.linkClonedPeersAndTags() {
+    execSQL(
+        "UPDATE $TABLE_TRANSACTIONS SET $KEY_TRANSFER_PEER = (SELECT peer.$KEY_NEW_ID FROM temp.$TABLE_BULK_CLONE c JOIN $TABLE_TRANSACTIONS o ON o.$KEY_ROWID = c.$KEY_OLD_ID JOIN temp.$TABLE_BULK_CLONE peer ON peer.$KEY_OLD_ID = o.$KEY_TRANSFER_PEER WHERE c.$KEY_NEW_ID = $TABLE_TRANSACTIONS.$KEY_ROWID) WHERE $KEY_ROWID IN (SELECT c.$KEY_NEW_ID FROM temp.$TABLE_BULK_CLONE c JOIN $TABLE_TRANSACTIONS o ON o.$KEY_ROWID = c.$KEY_OLD_ID WHERE o.$KEY_TRANSFER_PEER IS NOT NULL)"
+    )
+    execSQL(
+        "INSERT OR IGNORE INTO $TABLE_TRANSACTIONS_TAGS ($KEY_TAGID, $KEY_TRANSACTIONID) SELECT tt.$KEY_TAGID, c.$KEY_NEW_ID FROM $TABLE_TRANSACTIONS_TAGS tt JOIN temp.$TABLE_BULK_CLONE c ON c.$KEY_OLD_ID = tt.$KEY_TRANSACTIONID"
+    )
+}
+
+/**
+ * Clones the selected transactions together with their split parts, transfer peers and tags,
+ * and maps the clones to [rowId]
+ */
+fun SupportSQLiteDatabase.bulkCloneAndRemap(
+    steps: BulkSteps,
+    column: String,
+    rowId: Long
+): () -> Int {
+    checkRemappableColumn(column)
+    var count = 0
+    steps.step {
+        createCloneTable()
+        execSQL("INSERT INTO temp.$TABLE_BULK_CLONE ($KEY_OLD_ID, $KEY_UUID) SELECT $KEY_ROWID, $UUID_EXPRESSION FROM $TABLE_TRANSACTIONS WHERE $KEY_ROWID IN $SELECTED OR $KEY_PARENTID IN $SELECTED")
+        //if both sides of a transfer are cloned, they share the uuid of the side with the lower id
+        execSQL(
+            "UPDATE temp.$TABLE_BULK_CLONE SET $KEY_UUID = (SELECT peer.$KEY_UUID FROM $TABLE_TRANSACTIONS t JOIN temp.$TABLE_BULK_CLONE peer ON peer.$KEY_OLD_ID = t.$KEY_TRANSFER_PEER WHERE t.$KEY_ROWID = $TABLE_BULK_CLONE.$KEY_OLD_ID) WHERE $KEY_OLD_ID IN (SELECT $KEY_ROWID FROM $TABLE_TRANSACTIONS WHERE $KEY_TRANSFER_PEER < $KEY_ROWID AND $KEY_TRANSFER_PEER IN (SELECT $KEY_OLD_ID FROM temp.$TABLE_BULK_CLONE))"
+        )
+        addTransferPeersToClones()
+    }
+    steps.step {
+        //parents are inserted first, so that the changes trigger finds their uuid when parts are inserted
+        //a transfer peer that is part of a split that is not cloned becomes a normal transaction
+        insertClones(
+            STATUS_NONE,
+            "null",
+            "t.$KEY_PARENTID IS NULL OR t.$KEY_PARENTID NOT IN (SELECT $KEY_OLD_ID FROM temp.$TABLE_BULK_CLONE)"
+        )
+        insertClones(
+            STATUS_NONE,
+            "(SELECT p.$KEY_NEW_ID FROM temp.$TABLE_BULK_CLONE p WHERE p.$KEY_OLD_ID = t.$KEY_PARENTID)",
+            "t.$KEY_PARENTID IN (SELECT $KEY_OLD_ID FROM temp.$TABLE_BULK_CLONE)"
+        )
+    }
+    steps.step {
+        linkClonedPeersAndTags()
+    }
+    steps.step {
+        update(
+            TABLE_TRANSACTIONS,
+            ContentValues(1).apply { put(column, rowId) },
+            remapSelection(column, CLONES_OF_SELECTED),
+            null
+        )
+        count = query("SELECT count(*) FROM temp.$TABLE_BULK_CLONE WHERE $KEY_OLD_ID IN $SELECTED AND $KEY_NEW_ID IS NOT NULL").use {
+            it.moveToFirst()
+            it.getInt(0)
+        }
+    }
+    return { count }
+}
+
+fun SupportSQLiteDatabase.bulkTag(steps: BulkSteps, tagIds: LongArray, replace: Boolean): () -> Int {
+    if (replace) {
+        steps.step {
+            delete(TABLE_TRANSACTIONS_TAGS, "$KEY_TRANSACTIONID IN $SELECTED", null)
+        }
+    }
+    steps.step {
+        //transfer peers receive the tags from insert_transfer_tags trigger
+        compileStatement("INSERT OR IGNORE INTO $TABLE_TRANSACTIONS_TAGS ($KEY_TAGID, $KEY_TRANSACTIONID) SELECT ?, $KEY_ROWID FROM temp.$TABLE_BULK_SELECTION").use {
+            tagIds.forEach { tagId ->
+                it.bindLong(1, tagId)
+                it.executeUpdateDelete()
+            }
+        }
+    }
+    return { countSelected("1") }
+}
+
+/**
+ * @param onAttachmentsUnlinked receives the ids of attachments that are no longer linked to the
+ * deleted transactions, they should be cleaned up once the transaction has been committed
+ */
+fun SupportSQLiteDatabase.bulkDelete(
+    steps: BulkSteps,
+    markAsVoid: Boolean,
+    onAttachmentsUnlinked: (List<Long>) -> Unit
+): () -> Int {
+    var count = 0
+    steps.step {
+        count = countSelected("1")
+        val attachmentIds = query("SELECT DISTINCT $KEY_ATTACHMENT_ID FROM $TABLE_TRANSACTION_ATTACHMENTS WHERE $KEY_TRANSACTIONID IN $SELECTED").use {
+            buildList {
+                while (it.moveToNext()) add(it.getLong(0))
+            }
+        }
+        if (attachmentIds.isNotEmpty()) {
+            delete(TABLE_TRANSACTION_ATTACHMENTS, "$KEY_TRANSACTIONID IN $SELECTED", null)
+            onAttachmentsUnlinked(attachmentIds)
+        }
+        //when we are deleting a transfer whose peer is part of a split, we cannot delete the peer,
+        //because the split would be left in an invalid state, hence we transform the peer to a normal split part
+        update(
+            TABLE_TRANSACTIONS,
+            ContentValues(2).apply {
+                putNull(KEY_TRANSFER_ACCOUNT)
+                putNull(KEY_TRANSFER_PEER)
+            },
+            "$KEY_TRANSFER_PEER IN $SELECTED AND $KEY_PARENTID IS NOT null",
+            null
+        )
+    }
+    steps.step {
+        if (markAsVoid) {
+            update(
+                TABLE_TRANSACTIONS,
+                ContentValues(1).apply { put(KEY_CR_STATUS, CrStatus.VOID.name) },
+                SELECTED_OR_RELATED,
+                null
+            )
+        } else {
+            //we delete the parents separately, so that the changes trigger can correctly record the parent uuid
+            delete(
+                TABLE_TRANSACTIONS,
+                "$KEY_PARENTID IN $SELECTED OR $KEY_ROWID IN (SELECT $KEY_TRANSFER_PEER FROM $TABLE_TRANSACTIONS WHERE $KEY_PARENTID IN $SELECTED)",
+                null
+            )
+            delete(TABLE_TRANSACTIONS, "$KEY_TRANSFER_PEER IN $SELECTED OR $KEY_ROWID IN $SELECTED", null)
+        }
+    }
+    return { count }
+}
+
+fun SupportSQLiteDatabase.bulkUndelete(steps: BulkSteps): () -> Int {
+    var count = 0
+    steps.step {
+        count = countSelected("$KEY_CR_STATUS = '${CrStatus.VOID.name}'")
+        update(
+            TABLE_TRANSACTIONS,
+            ContentValues(1).apply { put(KEY_CR_STATUS, CrStatus.UNRECONCILED.name) },
+            "($SELECTED_OR_RELATED) AND $KEY_CR_STATUS = '${CrStatus.VOID.name}'",
+            null
+        )
+    }
+    return { count }
+}
+
+fun SupportSQLiteDatabase.bulkToggleCrStatus(steps: BulkSteps): () -> Int {
+    var count = 0
+    steps.step {
+        count = compileStatement(
+            "UPDATE $TABLE_TRANSACTIONS SET $KEY_CR_STATUS = CASE $KEY_CR_STATUS" +
+                    " WHEN '${CrStatus.CLEARED.name}' THEN '${CrStatus.UNRECONCILED.name}'" +
+                    " WHEN '${CrStatus.UNRECONCILED.name}' THEN '${CrStatus.CLEARED.name}'" +
+                    " END WHERE $KEY_ROWID IN $SELECTED AND $KEY_CR_STATUS IN ('${CrStatus.CLEARED.name}', '${CrStatus.UNRECONCILED.name}')"
+        ).use { it.executeUpdateDelete() }
+    }
+    return { count }
+}
+
+/**
+ * Copies the split parts of [parentId] together with their transfer peers and tags as uncommitted
+ * rows belonging to [targetParentId], which the split editor works on. Set based equivalent of
+ * saving a copy of each part. Nothing is copied, if uncommitted parts of [parentId] exist already.
+ * @return number of copied parts
+ */
+fun SupportSQLiteDatabase.copySplitPartsForEdit(parentId: Long, targetParentId: Long): Int {
+    val hasUncommittedParts = query(
+        "SELECT EXISTS (SELECT 1 FROM $TABLE_TRANSACTIONS WHERE $KEY_PARENTID = ? AND $KEY_STATUS = $STATUS_UNCOMMITTED)",
+        arrayOf(parentId)
+    ).use {
+        it.moveToFirst()
+        it.getInt(0) == 1
+    }
+    if (hasUncommittedParts) return 0
+    createCloneTable()
+    execSQL(
+        "INSERT INTO temp.$TABLE_BULK_CLONE ($KEY_OLD_ID, $KEY_UUID) SELECT $KEY_ROWID, $UUID_EXPRESSION FROM $TABLE_TRANSACTIONS WHERE $KEY_PARENTID = ?",
+        arrayOf(parentId)
+    )
+    addTransferPeersToClones()
+    insertClones(STATUS_UNCOMMITTED, "$targetParentId", "t.$KEY_PARENTID = $parentId")
+    //the peer of a transfer part has no parent
+    insertClones(STATUS_UNCOMMITTED, "null", "t.$KEY_PARENTID IS NOT $parentId")
+    linkClonedPeersAndTags()
+    val count = query("SELECT count(*) FROM $TABLE_TRANSACTIONS WHERE $KEY_PARENTID = ? AND $KEY_STATUS = $STATUS_UNCOMMITTED", arrayOf(targetParentId)).use {
+        it.moveToFirst()
+        it.getInt(0)
+    }
+    execSQL("DROP TABLE IF EXISTS temp.$TABLE_BULK_CLONE")
+    return count
+}
@@ -198,6 +198,22 @@ public class DatabaseConstants {
   public static final String KEY_DESCRIPTION = "description";
   public static final String KEY_OPENING_BALANCE = "opening_balance";
   public static final String KEY_USAGES = "usages";
+  /**
+   * columns of {@link #TABLE_PAYEE_USAGES}
+   */
+  public static final String KEY_USAGES_TRANSACTIONS = "usages_transactions";
+  public static final String KEY_USAGES_TEMPLATES = "usages_templates";
+  public static final String KEY_USAGES_DEBTS = "usages_debts";
+  /**
+   * calculated columns of {@link TransactionProvider#AUTOFILL_URI}
+   */
+  public static final String KEY_FREQUENT_CATID = "frequent_cat_id";
+  public static final String KEY_FREQUENT_METHODID = "frequent_method_id";
+  /**
+   * columns of {@link #TABLE_CATEGORY_SUMS}
+   */
+  public static final String KEY_POSITIVE = "positive";
+  public static final String KEY_UNCONVERTED_AMOUNT = "unconverted_amount";
   public static final String KEY_PARENTID = "parent_id";
   public static final String KEY_TRANSFER_ACCOUNT = "transfer_account";
   public static final String KEY_TRANSFER_ACCOUNT_LABEL = "transfer_account_label";
@@ -252,6 +268,11 @@ public class DatabaseConstants {
   public static final String KEY_HAS_CLEARED = "has_cleared";
   public static final String KEY_IS_AGGREGATE = "is_aggregate";
   public static final String KEY_HAS_FUTURE = "has_future"; //has the accounts transactions stored for future dates
+  /**
+   * time (in seconds since epoch) from which the current balance of an account no longer matches
+   * its totals, because its next future transaction has become due, null if it has none
+   */
+  public static final String KEY_TOTALS_VALID_UNTIL = "totals_valid_until";
   public static final String KEY_SUM = "sum";
   public static final String KEY_SORT_KEY = "sort_key";
   public static final String KEY_SORT_KEY_TYPE = "sort_key_type";
@@ -266,6 +287,10 @@ public class DatabaseConstants {
   public static final String KEY_TRANSFER_AMOUNT = "transfer_amount";
   public static final String KEY_LABEL_NORMALIZED = "label_normalized";
   public static final String KEY_LAST_USED = "last_used";
+  /**
+   * likelihood of a category being picked, computed by {@link DbConstantsKt#categoryRankingQuery}
+   */
+  public static final String KEY_SCORE = "score";
   public static final String KEY_HAS_TRANSFERS = "has_transfers";
   public static final String KEY_MAPPED_TAGS = "mapped_tags";
   public static final String KEY_PLAN_INFO = "plan_info";
@@ -400,6 +425,18 @@ public class DatabaseConstants {
   static final String TABLE_ACCOUNTTYES_METHODS = "accounttype_paymentmethod";
   public static final String TABLE_TEMPLATES = "templates";
   public static final String TABLE_PAYEES = "payee";
+  /**
+   * trigger maintained counters of objects mapped to a payee
+   */
+  public static final String TABLE_PAYEE_USAGES = "payee_usages";
+  /**
+   * trigger maintained values of the last and the most frequent transaction data per payee
+   */
+  public static final String TABLE_PAYEE_AUTOFILL = "payee_autofill";
+  /**
+   * trigger maintained sums of transactions per account, category, month and sign
+   */
+  public static final String TABLE_CATEGORY_SUMS = "category_sums";
   public static final String TABLE_CURRENCIES = "currency";
   public static final String VIEW_COMMITTED = "transactions_committed";
   public static final String VIEW_WITH_ACCOUNT = "transactions_with_account";
@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.provider
 import android.net.Uri
 import android.text.TextUtils
 import androidx.core.text.isDigitsOnly
+import androidx.datastore.preferences.core.booleanPreferencesKey
 import org.totschnig.myexpenses.db2.DEFAULT_CATEGORY_PATH_SEPARATOR
 import org.totschnig.myexpenses.db2.FLAG_EXPENSE
 import org.totschnig.myexpenses.db2.FLAG_INCOME
@@ -10,11 +11,17 @@ import org.totschnig.myexpenses.db2.FLAG_NEUTRAL
 import org.totschnig.myexpenses.db2.FLAG_TRANSFER
 import org.totschnig.myexpenses.db2.asCategoryType
 import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.provider.DatabaseConstants.*
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_ALLOCATED_ONLY
+import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_CATEGORY_SUMS
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_TRANSACTION_ID_LIST
 import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.util.toEndOfDayEpoch
+import org.totschnig.myexpenses.util.toStartOfDayEpoch
+import java.time.LocalDate
+import java.util.Locale
 
 private fun requireIdParameter(parameter: String) {
     require(parameter.isDigitsOnly())
@@ -197,15 +204,22 @@ fun categoryTreeWithSum(
                 type = type
             )
         )
-        val amountCalculation = uri.amountCalculation(VIEW_WITH_ACCOUNT, homeCurrency, true)
-        append(", amounts as (select $amountCalculation from $VIEW_WITH_ACCOUNT WHERE ")
-        append(WHERE_NOT_VOID)
-        append(" AND +$accountSelector")
-        selection?.takeIf { it.isNotEmpty() }?.let {
-            append(" AND $it")
+        if (selection.isNullOrEmpty() &&
+            uri.getBooleanQueryParameter(QUERY_PARAMETER_CATEGORY_SUMS, false)
+        ) {
+            append(", ")
+            append(categorySumsAmountsCTE(uri, homeCurrency, year, second))
+        } else {
+            val amountCalculation = uri.amountCalculation(VIEW_WITH_ACCOUNT, homeCurrency, true)
+            append(", amounts as (select $amountCalculation from $VIEW_WITH_ACCOUNT WHERE ")
+            append(WHERE_NOT_VOID)
+            append(" AND +$accountSelector")
+            selection?.takeIf { it.isNotEmpty() }?.let {
+                append(" AND $it")
+            }
+            append(" AND $KEY_CATID = $TREE_CATEGORIES.${KEY_ROWID}")
+            append(")")
         }
-        append(" AND $KEY_CATID = $TREE_CATEGORIES.${KEY_ROWID}")
-        append(")")
         if (projection.contains(KEY_BUDGET)) {
             val budgetId = uri.getQueryParameter(KEY_BUDGETID)!!
             require(budgetId.isDigitsOnly())
@@ -219,6 +233,46 @@ fun categoryTreeWithSum(
     }
 }
 
+/**
+ * amounts CTE for [categoryTreeWithSum] read from [TABLE_CATEGORY_SUMS], which holds one row per
+ * account, month and sign, so that the CASE on the category type in the sum expression yields the
+ * same result as for the individual transactions.
+ *
+ * For home aggregates, amounts without equivalent amount are converted with the current exchange
+ * rate, which is only known at query time, so they can not be stored converted. The converted sum is
+ * truncated once per row of [TABLE_CATEGORY_SUMS] instead of once per transaction as in
+ * [DatabaseConstants.getAmountHomeEquivalent], which can differ by less than one minor unit per
+ * such transaction in the row.
+ * @param year if null, all time
+ * @param month calendar month (0 based), if null, the whole [year]
+ */
+private fun categorySumsAmountsCTE(
+    uri: Uri,
+    homeCurrency: String,
+    year: String?,
+    month: String?
+) = buildString {
+    val forHome = uri.getQueryParameter(KEY_ACCOUNTID) == null && uri.getQueryParameter(KEY_CURRENCY) == null
+    val amount = if (forHome)
+        "CAST($KEY_EQUIVALENT_AMOUNT + ${getExchangeRate(TABLE_ACCOUNTS, KEY_ROWID, homeCurrency)} * $KEY_UNCONVERTED_AMOUNT AS integer)"
+    else KEY_AMOUNT
+    append("amounts as (select $amount AS $KEY_AMOUNT, $TREE_CATEGORIES.$KEY_TYPE AS $KEY_TYPE FROM $TABLE_CATEGORY_SUMS")
+    if (forHome) {
+        append(" JOIN $TABLE_ACCOUNTS ON $TABLE_CATEGORY_SUMS.$KEY_ACCOUNTID = $TABLE_ACCOUNTS.$KEY_ROWID")
+    }
+    append(" WHERE $KEY_CATID = $TREE_CATEGORIES.$KEY_ROWID")
+    year?.let {
+        require(it.isDigitsOnly())
+        append(" AND $KEY_YEAR = $it")
+    }
+    month?.let {
+        require(it.isDigitsOnly())
+        append(" AND $KEY_MONTH = $it")
+    }
+    append(" AND $TABLE_CATEGORY_SUMS.${uri.accountSelector}")
+    append(")")
+}
+
 private fun budgetAllocationsCTE(budgetSelect: String) =
     "Allocations AS (SELECT $KEY_BUDGET, $KEY_YEAR, $KEY_SECOND_GROUP, $KEY_ONE_TIME, $KEY_BUDGET_ROLLOVER_PREVIOUS, $KEY_BUDGET_ROLLOVER_NEXT FROM $TABLE_BUDGET_ALLOCATIONS WHERE $budgetSelect)"
 
@@ -231,6 +285,60 @@ fun budgetSelect(uri: Uri) = with(parseBudgetCategoryUri(uri)) {
 fun budgetSelectForGroup(year: String?, second: String?) =
     if (year == null) "" else "WHERE $KEY_YEAR = $year ${second?.let { "AND $KEY_SECOND_GROUP = $it" } ?: ""}"
 
+fun budgetDurationFilter(start: LocalDate, end: LocalDate) =
+    "$KEY_DATE BETWEEN ${start.toStartOfDayEpoch()}  AND ${end.toEndOfDayEpoch()}"
+
+/**
+ * restricts transactions to the current period of a budget with the given [grouping]
+ */
+fun budgetDateFilterClause(grouping: Grouping, start: LocalDate?, end: LocalDate?): String {
+    val year = "$YEAR = $THIS_YEAR"
+    return when (grouping) {
+        Grouping.YEAR -> year
+        Grouping.DAY -> "$year AND $DAY = ${grouping.queryArgumentForThisSecond}"
+        Grouping.WEEK -> "${getYearOfWeekStart()} = ${getThisYearOfWeekStart()} AND ${getWeek()} = ${grouping.queryArgumentForThisSecond}"
+        Grouping.MONTH -> "${getYearOfMonthStart()} = ${getThisYearOfMonthStart()} AND ${getMonth()} = ${grouping.queryArgumentForThisSecond}"
+        Grouping.NONE -> budgetDurationFilter(start!!, end!!)
+    }
+}
+
+/**
+ * SQL expressions for year and second group of the current period of a budget with the given [grouping]
+ */
+fun budgetCurrentPeriod(grouping: Grouping): Pair<String?, String?> = when (grouping) {
+    Grouping.NONE -> null to null
+    Grouping.YEAR -> THIS_YEAR to null
+    Grouping.WEEK -> getThisYearOfWeekStart() to grouping.queryArgumentForThisSecond
+    Grouping.MONTH -> getThisYearOfMonthStart() to grouping.queryArgumentForThisSecond
+    Grouping.DAY -> THIS_YEAR to grouping.queryArgumentForThisSecond
+}
+
+/**
+ * key template for [org.totschnig.myexpenses.provider.filter.FilterPersistence] of the filter of
+ * budget [budgetId]
+ */
+fun budgetFilterPrefNameForCriteria(budgetId: Long): String =
+    "budgetFilter_%%s_%d".format(Locale.ROOT, budgetId)
+
+/**
+ * key in the preferences data store of the flag that tells if neutral transactions are counted
+ * in budget [budgetId]
+ */
+fun budgetAggregateNeutralPrefKey(budgetId: Long) =
+    booleanPreferencesKey("budgetAggregateNeutral_$budgetId")
+
+/**
+ * one row of the budget progress query: spent amount and allocation of the current period of
+ * budget [budgetId], [sumQuery] is expected to return [KEY_SUM_EXPENSES]
+ */
+fun budgetProgressSelect(budgetId: Long, sumQuery: String, grouping: Grouping): String {
+    val (year, second) = budgetCurrentPeriod(grouping)
+    return "SELECT $budgetId AS $KEY_BUDGETID, ($sumQuery) AS $KEY_SUM_EXPENSES, $KEY_BUDGET, $KEY_BUDGET_ROLLOVER_PREVIOUS FROM (WITH " +
+            budgetAllocationsCTE("$KEY_CATID = 0 AND $KEY_BUDGETID = $budgetId") + " SELECT " +
+            budgetColumn(year, second) + "," +
+            subSelectFromAllocations(KEY_BUDGET_ROLLOVER_PREVIOUS, year, second) + ")"
+}
+
 fun budgetAllocation(uri: Uri): String {
     val year = uri.getQueryParameter(KEY_YEAR)
     val second = uri.getQueryParameter(KEY_SECOND_GROUP)
@@ -319,12 +427,12 @@ JOIN Tree ON Tree.$KEY_ROWID = subtree.$KEY_PARENTID
 fun getPayeeWithDuplicatesCTE(selection: String?, collate: String) = """
     WITH cte AS (SELECT ${
     BaseTransactionProvider.payeeProjection(TABLE_PAYEES).joinToString(",")
-}, 1 AS $KEY_LEVEL FROM $TABLE_PAYEES 
+}, 1 AS $KEY_LEVEL FROM ${BaseTransactionProvider.payeeUsagesJoin(TABLE_PAYEES)}
     WHERE $KEY_PARENTID IS NULL ${selection?.let { " AND $it" } ?: ""}
     UNION ALL
     SELECT ${
     BaseTransactionProvider.payeeProjection("dups").joinToString(",")
-}, $KEY_LEVEL+1 from $TABLE_PAYEES dups
+}, $KEY_LEVEL+1 from ${BaseTransactionProvider.payeeUsagesJoin(TABLE_PAYEES, "dups")}
     JOIN cte ON cte.$KEY_ROWID = dups.$KEY_PARENTID ORDER BY $KEY_LEVEL DESC, $KEY_PAYEE_NAME COLLATE $collate) SELECT * FROM cte
 """.trimIndent()
 
@@ -407,14 +515,73 @@ fun categoryPathFromLeave(rowId: String): String {
 """.trimIndent()
 }
 
+/**
+ * the usage count of a category is divided by the number of these periods passed since its last use
+ */
+private const val RANKING_RECENCY_PERIOD = 30 * 24 * 60 * 60
+
+/**
+ * transactions in the same account only add to the score if they are not older than this
+ */
+private const val RANKING_ACCOUNT_WINDOW = 90 * 24 * 60 * 60
+
+private const val RANKING_PAYEE_WEIGHT = 3
+
+/**
+ * - with parameter [KEY_PAYEEID] categories of transactions with this payee are ranked higher
+ * - with parameter [KEY_ACCOUNTID] categories of recent transactions in this account are ranked higher
+ * - with parameter [KEY_TYPE] only categories with this type at the root of their tree are returned
+ *
+ * Categories that have never been used are not returned. [KEY_PATH] and [KEY_LEVEL] are built
+ * like in [categoryTreeCTE], [KEY_TYPE] is the type of the root.
+ */
+fun categoryRankingQuery(uri: Uri, now: Long, limit: String?): String {
+    val payeeId = uri.getQueryParameter(KEY_PAYEEID)?.also { requireIdParameter(it) }
+    val accountId = uri.getQueryParameter(KEY_ACCOUNTID)?.also { requireIdParameter(it) }
+    val type = uri.getQueryParameter(KEY_TYPE)?.toByte()
+    val payeeScore = payeeId?.let {
+        "$RANKING_PAYEE_WEIGHT * (SELECT count(*) FROM $TABLE_TRANSACTIONS WHERE $KEY_CATID = $TABLE_CATEGORIES.$KEY_ROWID AND $KEY_PAYEEID = $it)"
+    } ?: "0"
+    val accountScore = accountId?.let {
+        "(SELECT count(*) FROM $TABLE_TRANSACTIONS WHERE $KEY_CATID = $TABLE_CATEGORIES.$KEY_ROWID AND $KEY_ACCOUNTID = $it AND $KEY_DATE > ${now - RANKING_ACCOUNT_WINDOW})"
+    } ?: "0"
+    return """
+WITH Ranked AS (
+SELECT
+    $KEY_ROWID,
+    $KEY_PARENTID,
+    $KEY_LABEL,
+    $KEY_ICON,
+    $KEY_TYPE,
+    $KEY_USAGES / (1.0 + ($now - coalesce($KEY_LAST_USED, 0)) / $RANKING_RECENCY_PERIOD.0) + $payeeScore + $accountScore AS $KEY_SCORE
+FROM $TABLE_CATEGORIES
+WHERE $KEY_ROWID != $SPLIT_CATID AND $KEY_USAGES > 0
+), Path AS (
+SELECT $KEY_ROWID AS ranked_id, $KEY_PARENTID, $KEY_LABEL AS $KEY_PATH, $KEY_TYPE, 1 AS $KEY_LEVEL FROM Ranked
+UNION ALL
+SELECT ranked_id, parent.$KEY_PARENTID, parent.$KEY_LABEL || '$DEFAULT_CATEGORY_PATH_SEPARATOR' || Path.$KEY_PATH, parent.$KEY_TYPE, Path.$KEY_LEVEL + 1
+FROM $TABLE_CATEGORIES parent JOIN Path ON parent.$KEY_ROWID = Path.$KEY_PARENTID
+)
+SELECT Ranked.$KEY_ROWID, Ranked.$KEY_LABEL, Ranked.$KEY_ICON, Path.$KEY_PATH, Path.$KEY_TYPE, Path.$KEY_LEVEL, $KEY_SCORE
+FROM Ranked JOIN Path ON ranked_id = Ranked.$KEY_ROWID AND Path.$KEY_PARENTID IS NULL
+${type?.let { "WHERE Path.$KEY_TYPE ${if (it == 0.toByte()) "= 0" else "& $it > 0"}" } ?: ""}
+ORDER BY $KEY_SCORE DESC, Ranked.$KEY_LABEL${limit?.let { " LIMIT $it" } ?: ""}
+""".trimIndent()
+}
+
 const val TRANSFER_ACCOUNT_LABEL =
     "CASE WHEN $KEY_TRANSFER_ACCOUNT THEN (SELECT $KEY_LABEL FROM $TABLE_ACCOUNTS WHERE $KEY_ROWID = $KEY_TRANSFER_ACCOUNT) END AS $KEY_TRANSFER_ACCOUNT_LABEL"
 
+/**
+ * @param accountSelection if not null, the aggregates are only calculated for the transactions
+ * matching it, it is applied to [VIEW_WITH_ACCOUNT]
+ */
 fun accountQueryCTE(
     homeCurrency: String,
     futureStartsNow: Boolean,
     aggregateFunction: String,
-    typeWithFallBack: String
+    typeWithFallBack: String,
+    accountSelection: String? = null
 ): String {
     val futureCriterion =
         if (futureStartsNow) "'now'" else "'now', 'localtime', 'start of day', '+1 day', 'utc'"
@@ -423,6 +590,10 @@ fun accountQueryCTE(
     val isIncome =
         "$KEY_TYPE = $FLAG_INCOME OR ($KEY_TYPE = $FLAG_NEUTRAL AND $KEY_AMOUNT > 0)"
     val isTransfer = "$KEY_TYPE = $FLAG_TRANSFER"
+    val nextFuture = "min(CASE WHEN $KEY_DATE >= (select now from now) THEN $KEY_DATE END)"
+    //with the end of day criterion, the next future transaction becomes due at the start of its day
+    val validUntil = if (futureStartsNow) nextFuture else
+        "cast(strftime('%s', $nextFuture, 'unixepoch', 'localtime', 'start of day', 'utc') as integer)"
     return """
 WITH now as (
     SELECT
@@ -446,7 +617,7 @@ WITH now as (
         ) AS $KEY_EQUIVALENT_AMOUNT,
         $VIEW_WITH_ACCOUNT.$KEY_ACCOUNTID 
     FROM ${exchangeRateJoin(VIEW_WITH_ACCOUNT, KEY_ACCOUNTID, homeCurrency)}
-    WHERE $WHERE_NOT_SPLIT AND $KEY_CR_STATUS != '${CrStatus.VOID.name}'
+    WHERE $WHERE_NOT_SPLIT AND $KEY_CR_STATUS != '${CrStatus.VOID.name}'${accountSelection?.let { " AND ($it)" } ?: ""}
 ), aggregates AS (
     SELECT
         $KEY_ACCOUNTID,
@@ -462,7 +633,8 @@ WITH now as (
         $aggregateFunction(CASE WHEN $KEY_CR_STATUS IN ( 'RECONCILED', 'CLEARED' ) THEN $KEY_AMOUNT ELSE 0 END) as $KEY_CLEARED_TOTAL,
         $aggregateFunction(CASE WHEN $KEY_CR_STATUS = 'RECONCILED' THEN $KEY_AMOUNT ELSE 0 END) as $KEY_RECONCILED_TOTAL,
         max(CASE WHEN $KEY_CR_STATUS = 'CLEARED' THEN 1 ELSE 0 END) as $KEY_HAS_CLEARED,
-        max($KEY_DATE) >= (select now from now) as $KEY_HAS_FUTURE
+        max($KEY_DATE) >= (select now from now) as $KEY_HAS_FUTURE,
+        $validUntil as $KEY_TOTALS_VALID_UNTIL
    from amounts group by $KEY_ACCOUNTID
 )
 """
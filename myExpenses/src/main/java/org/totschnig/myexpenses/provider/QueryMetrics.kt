@@ -0,0 +1,193 @@
+package org.totschnig.myexpenses.provider
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Aggregates timing information about the operations run by [BaseTransactionProvider],
+ * keyed by the uri matcher code of the uri the operation was requested for.
+ */
+class QueryMetrics(
+    val slowQueryThresholdMillis: Long = DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS,
+    private val maxSlowQueries: Int = DEFAULT_MAX_SLOW_QUERIES
+) {
+    enum class Operation { QUERY, INSERT, UPDATE, DELETE }
+
+    class Stats {
+        var count: Long = 0
+            private set
+        var totalNanos: Long = 0
+            private set
+        var maxNanos: Long = 0
+            private set
+        var rows: Long = 0
+            private set
+
+        /**
+         * number of operations per latency bucket, the last bucket collects all operations slower
+         * than the highest bound in [HISTOGRAM_BOUNDS_MILLIS]
+         */
+        val histogram = LongArray(HISTOGRAM_BOUNDS_MILLIS.size + 1)
+
+        val averageMillis: Double
+            get() = if (count == 0L) 0.0 else totalNanos.toDouble() / count / NANOS_PER_MILLI
+
+        internal fun add(nanos: Long, rowCount: Int) {
+            count++
+            totalNanos += nanos
+            if (nanos > maxNanos) maxNanos = nanos
+            if (rowCount > 0) rows += rowCount
+            histogram[bucketFor(nanos)]++
+        }
+
+        internal fun copy() = Stats().also {
+            it.count = count
+            it.totalNanos = totalNanos
+            it.maxNanos = maxNanos
+            it.rows = rows
+            histogram.copyInto(it.histogram)
+        }
+    }
+
+    data class SlowQuery(
+        val uriMatch: Int,
+        val uri: String,
+        val sql: String,
+        val durationMillis: Long,
+        val plan: String
+    )
+
+    class BatchStats {
+        var count: Long = 0
+            private set
+        var totalOperations: Long = 0
+            private set
+        var maxOperations: Int = 0
+            private set
+        var totalNanos: Long = 0
+            private set
+
+        internal fun add(size: Int, nanos: Long) {
+            count++
+            totalOperations += size
+            if (size > maxOperations) maxOperations = size
+            totalNanos += nanos
+        }
+
+        internal fun copy() = BatchStats().also {
+            it.count = count
+            it.totalOperations = totalOperations
+            it.maxOperations = maxOperations
+            it.totalNanos = totalNanos
+        }
+    }
+
+    private val stats = mutableMapOf<Pair<Int, Operation>, Stats>()
+    private val labels = mutableMapOf<Int, String>()
+    private val slowQueries = ArrayDeque<SlowQuery>()
+    private var batchStats = BatchStats()
+
+    fun isSlow(nanos: Long) = nanos >= TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis)
+
+    /**
+     * @param label describes the uri matcher code in the report, only the first label passed in
+     * for a given code is kept
+     */
+    @Synchronized
+    fun record(uriMatch: Int, operation: Operation, nanos: Long, rowCount: Int, label: String? = null) {
+        stats.getOrPut(uriMatch to operation) { Stats() }.add(nanos, rowCount)
+        if (label != null) {
+            labels.getOrPut(uriMatch) { label }
+        }
+    }
+
+    @Synchronized
+    fun recordSlowQuery(slowQuery: SlowQuery) {
+        if (slowQueries.size == maxSlowQueries) {
+            slowQueries.removeFirst()
+        }
+        slowQueries.addLast(slowQuery)
+    }
+
+    @Synchronized
+    fun recordBatch(size: Int, nanos: Long) {
+        batchStats.add(size, nanos)
+    }
+
+    @Synchronized
+    fun stats(uriMatch: Int, operation: Operation): Stats? = stats[uriMatch to operation]?.copy()
+
+    @Synchronized
+    fun snapshot(): Map<Pair<Int, Operation>, Stats> = stats.mapValues { it.value.copy() }
+
+    @Synchronized
+    fun slowQueries(): List<SlowQuery> = slowQueries.toList()
+
+    @Synchronized
+    fun batchStats(): BatchStats = batchStats.copy()
+
+    @Synchronized
+    fun labelFor(uriMatch: Int) = labels[uriMatch]?.let { "$uriMatch ($it)" } ?: uriMatch.toString()
+
+    @Synchronized
+    fun reset() {
+        stats.clear()
+        labels.clear()
+        slowQueries.clear()
+        batchStats = BatchStats()
+    }
+
+    fun report(): String {
+        val snapshot = snapshot()
+        val slowQueries = slowQueries()
+        val batchStats = batchStats()
+        return buildString {
+            appendLine("Operations (sorted by total time)")
+            appendLine(
+                "uri;operation;count;total ms;avg ms;max ms;rows;" +
+                        HISTOGRAM_BOUNDS_MILLIS.joinToString(";") { "<$it ms" } +
+                        ";>=${HISTOGRAM_BOUNDS_MILLIS.last()} ms"
+            )
+            snapshot.entries.sortedByDescending { it.value.totalNanos }.forEach { (key, value) ->
+                appendLine(
+                    listOf(
+                        labelFor(key.first),
+                        key.second.name,
+                        value.count,
+                        value.totalNanos / NANOS_PER_MILLI,
+                        "%.2f".format(value.averageMillis),
+                        value.maxNanos / NANOS_PER_MILLI,
+                        value.rows,
+                        *value.histogram.toTypedArray()
+                    ).joinToString(";")
+                )
+            }
+            appendLine()
+            appendLine("Batches")
+            appendLine(
+                "count: ${batchStats.count}, operations: ${batchStats.totalOperations}, " +
+                        "max size: ${batchStats.maxOperations}, total ms: ${batchStats.totalNanos / NANOS_PER_MILLI}"
+            )
+            appendLine()
+            appendLine("Slow queries (>= $slowQueryThresholdMillis ms)")
+            slowQueries.forEach {
+                appendLine("${labelFor(it.uriMatch)} - ${it.durationMillis} ms - ${it.uri}")
+                appendLine(it.sql)
+                appendLine(it.plan)
+                appendLine()
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 100L
+        const val DEFAULT_MAX_SLOW_QUERIES = 20
+        private const val NANOS_PER_MILLI = 1_000_000L
+        val HISTOGRAM_BOUNDS_MILLIS = longArrayOf(1, 5, 10, 50, 100, 500, 1000)
+
+        fun bucketFor(nanos: Long): Int {
+            val millis = nanos / NANOS_PER_MILLI
+            val index = HISTOGRAM_BOUNDS_MILLIS.indexOfFirst { millis < it }
+            return if (index == -1) HISTOGRAM_BOUNDS_MILLIS.size else index
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteProgram
+import androidx.sqlite.db.SupportSQLiteStatement
+import java.io.Closeable
+
+/**
+ * Keeps compiled statements for the writes that run thousands of times during imports and sync,
+ * so that they are neither rebuilt nor compiled again on each call. Statements are keyed by their
+ * SQL and belong to [db], the cache must be closed together with the database.
+ *
+ * A statement holds its bindings until it is executed, so it is taken out of the cache while in
+ * use. No lock is held while a statement is executed, since that would block threads that already
+ * hold the database connection inside a transaction.
+ */
+class StatementCache(private val db: SupportSQLiteDatabase) : Closeable {
+    private val statements = HashMap<String, SupportSQLiteStatement>()
+    private var closed = false
+
+    fun <T> withStatement(sql: String, block: (SupportSQLiteStatement) -> T): T {
+        val statement = synchronized(this) {
+            check(!closed) { "StatementCache has been closed" }
+            statements.remove(sql)
+        } ?: db.compileStatement(sql)
+        statement.clearBindings()
+        try {
+            return block(statement)
+        } finally {
+            val keep = synchronized(this) {
+                (!closed && !statements.containsKey(sql)).also {
+                    if (it) statements[sql] = statement
+                }
+            }
+            if (!keep) statement.close()
+        }
+    }
+
+    /**
+     * same as [SupportSQLiteDatabase.insert], with one statement per table and set of columns
+     * @return the row id of the new row, or -1 if it was not inserted because of [conflictAlgorithm]
+     */
+    fun insert(table: String, conflictAlgorithm: Int, values: ContentValues): Long {
+        require(!values.isEmpty) { "Empty values" }
+        val columns = values.keySet().sorted()
+        val sql = buildString {
+            append("INSERT")
+            append(CONFLICT_VALUES[conflictAlgorithm])
+            append("INTO ")
+            append(table)
+            columns.joinTo(this, prefix = " (", postfix = ")")
+            columns.joinTo(this, prefix = " VALUES (", postfix = ")") { "?" }
+        }
+        return withStatement(sql) { statement ->
+            columns.forEachIndexed { index, column ->
+                statement.bindValue(index + 1, values.get(column))
+            }
+            statement.executeInsert()
+        }
+    }
+
+    override fun close() {
+        val open = synchronized(this) {
+            closed = true
+            statements.values.toList().also { statements.clear() }
+        }
+        open.forEach { it.close() }
+    }
+
+    companion object {
+        /**
+         * indexed by the conflict constants of [SQLiteDatabase]
+         */
+        private val CONFLICT_VALUES = arrayOf(
+            " ", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "
+        )
+    }
+}
+
+fun SupportSQLiteProgram.bindValue(index: Int, value: Any?) {
+    when (value) {
+        null -> bindNull(index)
+        is String -> bindString(index, value)
+        is Long -> bindLong(index, value)
+        is Int -> bindLong(index, value.toLong())
+        is Short -> bindLong(index, value.toLong())
+        is Byte -> bindLong(index, value.toLong())
+        is Boolean -> bindLong(index, if (value) 1 else 0)
+        is Double -> bindDouble(index, value)
+        is Float -> bindDouble(index, value.toDouble())
+        is ByteArray -> bindBlob(index, value)
+        else -> bindString(index, value.toString())
+    }
+}
@@ -26,10 +26,13 @@ import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ACCOUN
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ATTACHMENTS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.ATTRIBUTES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.BANK_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.CATEGORY_SUMS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.CATEGORY_TYPE_UPDATE_TRIGGER_MAIN;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PARTY_HIERARCHY_TRIGGER;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_UNIQUE_INDEX;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_AUTOFILL_CREATE;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.PAYEE_USAGES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.SPLIT_PART_CR_STATUS_TRIGGER_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_ATTACHMENTS_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTIONS_CAT_ID_INDEX;
@@ -41,6 +44,7 @@ import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSA
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSACTION_ATTRIBUTES_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.TRANSFER_SEALED_UPDATE_TRIGGER_CREATE;
 import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.VIEW_WITH_ACCOUNT_DEFINITION;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.rebuildCategorySums;
 import static org.totschnig.myexpenses.provider.DataBaseAccount.HOME_AGGREGATE_ID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.*;
 import static org.totschnig.myexpenses.provider.DbConstantsKt.buildViewDefinition;
@@ -673,6 +677,16 @@ public class TransactionDatabase extends BaseTransactionDatabase {
 
     db.execSQL(PARTY_HIERARCHY_TRIGGER);
 
+    db.execSQL(PAYEE_USAGES_CREATE);
+    createOrRefreshPayeeUsageTriggers(db);
+
+    db.execSQL(PAYEE_AUTOFILL_CREATE);
+    createOrRefreshPayeeAutofillTriggers(db);
+
+    db.execSQL(CATEGORY_SUMS_CREATE);
+    createOrRefreshCategorySumsTriggers(db);
+    rebuildCategorySums(db);
+
     createOrRefreshViews(db);
     //insertTestData(db, 50, 50);
     super.onCreate(db);
@@ -2200,6 +2214,18 @@ public class TransactionDatabase extends BaseTransactionDatabase {
         upgradeTo158(db);
       }
 
+      if (oldVersion < 159) {
+        upgradeTo159(db);
+      }
+
+      if (oldVersion < 160) {
+        upgradeTo160(db);
+      }
+
+      if (oldVersion < 161) {
+        upgradeTo161(db);
+      }
+
       TransactionProvider.resumeChangeTrigger(db);
     } catch (SQLException e) {
       throw new SQLiteUpgradeFailedException(oldVersion, newVersion, e);
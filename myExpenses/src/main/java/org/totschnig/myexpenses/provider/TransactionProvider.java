@@ -16,6 +16,7 @@
 package org.totschnig.myexpenses.provider;
 
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_IGNORE;
+import static android.database.sqlite.SQLiteDatabase.CONFLICT_NONE;
 import static android.database.sqlite.SQLiteDatabase.CONFLICT_REPLACE;
 import static org.totschnig.myexpenses.provider.DataBaseAccount.HOME_AGGREGATE_ID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.IS_SAME_CURRENCY;
@@ -35,6 +36,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY_O
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY_SELF;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DEBT_ID;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DISPLAY_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EQUIVALENT_AMOUNT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EXCHANGE_RATE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING;
@@ -49,6 +51,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENT_UUID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEEID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PAYEE_NAME;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_REFERENCE_NUMBER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED;
@@ -88,6 +91,7 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_DEBTS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_EVENT_CACHE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_METHODS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEES;
+import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PAYEE_AUTOFILL;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_PLAN_INSTANCE_STATUS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SETTINGS;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_SYNC_STATE;
@@ -106,9 +110,9 @@ import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_TEMPLATES_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.VIEW_UNCOMMITTED;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_DEPENDENT;
-import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_NOT_SPLIT;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_PEER;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.WHERE_SELF_OR_RELATED;
+import static org.totschnig.myexpenses.provider.BaseTransactionDatabaseKt.refreshCategorySumsIfTimeZoneChanged;
 import static org.totschnig.myexpenses.provider.DbConstantsKt.budgetAllocation;
 import static org.totschnig.myexpenses.provider.DbConstantsKt.budgetSelect;
 import static org.totschnig.myexpenses.provider.DbConstantsKt.categoryTreeSelect;
@@ -168,10 +172,12 @@ import org.totschnig.myexpenses.util.cursor.PlanInfoCursorWrapper;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class TransactionProvider extends BaseTransactionProvider {
 
@@ -188,6 +194,10 @@ public class TransactionProvider extends BaseTransactionProvider {
   //returns accounts with aggregate accounts, limited to id and label
   public static final Uri ACCOUNTS_MINIMAL_URI =
       Uri.parse("content://" + AUTHORITY + "/accountsMinimal");
+  //aggregates over the transactions of each account, loaded separately from the account list,
+  //observers are notified with the id of the account appended, if only one account is affected
+  public static final Uri ACCOUNT_TOTALS_URI =
+      Uri.parse("content://" + AUTHORITY + "/accountTotals");
 
   public static final Uri TRANSACTIONS_URI =
       Uri.parse("content://" + AUTHORITY + "/transactions");
@@ -202,6 +212,9 @@ public class TransactionProvider extends BaseTransactionProvider {
       Uri.parse("content://" + AUTHORITY + "/templatesUncommitted");
   public static final Uri CATEGORIES_URI =
       Uri.parse("content://" + AUTHORITY + "/categories");
+  //categories ranked by how likely they are picked, see DbConstantsKt#categoryRankingQuery
+  public static final Uri CATEGORIES_RANKED_URI =
+      Uri.parse("content://" + AUTHORITY + "/categories/ranked");
   public static final Uri PAYEES_URI =
       Uri.parse("content://" + AUTHORITY + "/payees");
   public static final Uri METHODS_URI =
@@ -221,6 +234,17 @@ public class TransactionProvider extends BaseTransactionProvider {
         .build();
   }
 
+  /**
+   * templates joined with the status of their plan instances with ids between
+   * {@code fromInstanceId} and {@code toInstanceId}, one row per template and status, or one row
+   * with null status for templates without status in the range
+   */
+  public static Uri TEMPLATES_PLAN_INSTANCES_URI(long fromInstanceId, long toInstanceId) {
+    return ContentUris.appendId(ContentUris.appendId(
+        TEMPLATES_URI.buildUpon().appendPath(URI_SEGMENT_PLAN_INSTANCES), fromInstanceId), toInstanceId)
+        .build();
+  }
+
   public static Uri TRANSACTION_ATTACHMENT_SINGLE_URI(long transactionId, long attachmentId) {
     return ContentUris.appendId(ContentUris.appendId(
                     TRANSACTIONS_ATTACHMENTS_URI.buildUpon(), transactionId), attachmentId)
@@ -266,6 +290,11 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   public static final Uri BUDGET_ALLOCATIONS_URI = Uri.parse("content://" + AUTHORITY + "/budgets/allocations");
 
+  /**
+   * spent and allocated amounts of all budgets for their current period
+   */
+  public static final Uri BUDGETS_PROGRESS_URI = Uri.parse("content://" + AUTHORITY + "/budgets/progress");
+
   public static final Uri TAGS_URI = Uri.parse("content://" + AUTHORITY + "/tags");
 
   public static final Uri TRANSACTIONS_TAGS_URI = Uri.parse("content://" + AUTHORITY + "/transactions/tags");
@@ -299,6 +328,7 @@ public class TransactionProvider extends BaseTransactionProvider {
   public static final String URI_SEGMENT_DEFAULT_BUDGET_ALLOCATIONS = "defaultBudgetAllocations";
   public static final String URI_SEGMENT_UNSPLIT = "unsplit";
   public static final String URI_SEGMENT_LINK_TRANSFER = "link_transfer";
+  public static final String URI_SEGMENT_PLAN_INSTANCES = "planInstances";
 
   //"1" merge all currency aggregates, < 0 only return one specific aggregate
   public static final String QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES = "mergeCurrencyAggregates";
@@ -343,6 +373,13 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   public static final String QUERY_PARAMETER_ALLOCATED_ONLY = "allocatedOnly";
 
+  /**
+   * Sums in the category tree are read from {@link DatabaseConstants#TABLE_CATEGORY_SUMS} for the
+   * period given by {@link DatabaseConstants#KEY_YEAR} and {@link DatabaseConstants#KEY_SECOND_GROUP}
+   * (calendar month), only honoured if there is no selection
+   */
+  public static final String QUERY_PARAMETER_CATEGORY_SUMS = "categorySums";
+
   /**
    * Colon separated list of account types
    */
@@ -350,6 +387,23 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   public static final String QUERY_PARAMETER_WITH_HIDDEN_ACCOUNT_COUNT = "withHiddenAccountCount";
 
+  /**
+   * Account list without aggregates over transactions, which are loaded from {@link #ACCOUNT_TOTALS_URI}
+   */
+  public static final String QUERY_PARAMETER_DEFER_TOTALS = "deferTotals";
+
+  /**
+   * Account list where aggregates over transactions are only calculated for the account with the
+   * given id, for callers that select only this account
+   */
+  public static final String QUERY_PARAMETER_TOTALS_FOR_ACCOUNT = "totalsForAccount";
+
+  /**
+   * Transaction query for the transaction given in {@link DatabaseConstants#KEY_TRANSACTIONID},
+   * that returns its tags, attachments and attributes in the extras of the cursor
+   */
+  public static final String QUERY_PARAMETER_WITH_LINKED_ROWS = "withLinkedRows";
+
   public static final String QUERY_PARAMETER_WITH_FILTER = "withFilter";
 
   public static final String QUERY_PARAMETER_TRANSACTION_ID_LIST = "transaction_id_list";
@@ -364,6 +418,30 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   public static final String METHOD_DELETE_ATTACHMENTS = "deleteAttachments";
 
+  /**
+   * arg is the name of a {@link BulkOperation}, extras select the transactions and hold the
+   * parameters of the operation, see {@link BulkOperationsKt}
+   */
+  public static final String METHOD_BULK_OPERATION = "bulkOperation";
+
+  /**
+   * returns a report of the collected {@link QueryMetrics}, if arg is "reset", metrics are
+   * cleared afterwards
+   */
+  public static final String METHOD_QUERY_METRICS = "queryMetrics";
+
+  /**
+   * rebuilds {@link DatabaseConstants#TABLE_CATEGORY_SUMS} if the time zone has changed since it
+   * has been calculated
+   */
+  public static final String METHOD_REFRESH_CATEGORY_SUMS = "refreshCategorySums";
+
+  /**
+   * extras hold the id of a split ({@link DatabaseConstants#KEY_PARENTID}) whose parts are copied
+   * as uncommitted parts of {@link DatabaseConstants#KEY_ROWID} for editing
+   */
+  public static final String METHOD_COPY_SPLIT_PARTS = "copySplitParts";
+
   public static final String KEY_RESULT = "result";
 
   private static final UriMatcher URI_MATCHER;
@@ -434,6 +512,9 @@ public class TransactionProvider extends BaseTransactionProvider {
           String mergeTransferSelection = KEY_TRANSFER_PEER + " IS NULL OR " + keepTransferPartCriterion;
           selection += " AND (" + mergeTransferSelection + ")";
         }
+        if (uri.getBooleanQueryParameter(QUERY_PARAMETER_WITH_LINKED_ROWS, false)) {
+          extras.putAll(linkedRows(db, Long.parseLong(uri.getQueryParameter(KEY_TRANSACTIONID))));
+        }
         break;
       }
       case UNCOMMITTED:
@@ -501,6 +582,12 @@ public class TransactionProvider extends BaseTransactionProvider {
           break;
         }
       }
+      case CATEGORIES_RANKED: {
+        String sql = DbConstantsKt.categoryRankingQuery(uri, System.currentTimeMillis() / 1000, limit);
+        c = measureAndLogQuery(db, uri, sql, selection, selectionArgs);
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+      }
       case CATEGORY_ID:
         String rowId = uri.getPathSegments().get(1);
         if (uri.getBooleanQueryParameter(QUERY_PARAMETER_HIERARCHICAL, false)) {
@@ -527,7 +614,10 @@ public class TransactionProvider extends BaseTransactionProvider {
                     "When calling accounts cursor with sums or aggregates, projection is ignored ", TAG
             );
           }
-          String sql = buildAccountQuery(minimal, mergeAggregate, selection, sortOrder);
+          String totalsForAccount = uri.getQueryParameter(QUERY_PARAMETER_TOTALS_FOR_ACCOUNT);
+          String sql = buildAccountQuery(minimal, mergeAggregate, selection, sortOrder,
+              uri.getBooleanQueryParameter(QUERY_PARAMETER_DEFER_TOTALS, false),
+              totalsForAccount == null ? null : Long.valueOf(totalsForAccount));
           c = measureAndLogQuery(db, uri, sql, selection, selectionArgs);
           if (uri.getBooleanQueryParameter(QUERY_PARAMETER_WITH_HIDDEN_ACCOUNT_COUNT, false)) {
             c = wrapWithResultCompat(c, hiddenAccountCount(db));
@@ -541,6 +631,11 @@ public class TransactionProvider extends BaseTransactionProvider {
           break;
         }
 
+      case ACCOUNT_TOTALS: {
+        c = measureAndLogQuery(db, uri, buildAccountTotalsQuery(selection), selection, selectionArgs);
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+        return c;
+      }
       case AGGREGATE_ID:
         String currencyId = uri.getPathSegments().get(2);
         if (Integer.parseInt(currencyId) == HOME_AGGREGATE_ID) {
@@ -563,7 +658,7 @@ public class TransactionProvider extends BaseTransactionProvider {
           c.setNotificationUri(getContext().getContentResolver(), uri);
           return c;
         }
-        qb = SupportSQLiteQueryBuilder.builder(TABLE_PAYEES);
+        qb = SupportSQLiteQueryBuilder.builder(Companion.payeeUsagesJoin(TABLE_PAYEES, TABLE_PAYEES));
         if (sortOrder == null) {
           sortOrder = KEY_PAYEE_NAME + " COLLATE " + getCollate();
         }
@@ -652,6 +747,16 @@ public class TransactionProvider extends BaseTransactionProvider {
         }
 
         break;
+      case TEMPLATES_PLAN_INSTANCES:
+        qb = SupportSQLiteQueryBuilder.builder(String.format(Locale.ROOT, "%1$s LEFT JOIN %2$s ON %1$s.%3$s = %4$s AND %5$s BETWEEN %6$s AND %7$s LEFT JOIN %8$s ON %8$s.%3$s = %2$s.%9$s",
+            VIEW_TEMPLATES_EXTENDED, TABLE_PLAN_INSTANCE_STATUS, KEY_ROWID, KEY_TEMPLATEID, KEY_INSTANCEID,
+            Long.parseLong(uri.getPathSegments().get(2)), Long.parseLong(uri.getPathSegments().get(3)),
+            TABLE_TRANSACTIONS, KEY_TRANSACTIONID));
+        projection = new String[]{VIEW_TEMPLATES_EXTENDED + "." + KEY_ROWID + " AS " + KEY_ROWID,
+            VIEW_TEMPLATES_EXTENDED + "." + KEY_PLANID + " AS " + KEY_PLANID, KEY_TITLE, KEY_COLOR, KEY_CURRENCY, KEY_SEALED,
+            VIEW_TEMPLATES_EXTENDED + "." + KEY_AMOUNT + " AS " + KEY_AMOUNT, KEY_INSTANCEID, KEY_TRANSACTIONID,
+            String.format(Locale.ROOT, "coalesce(%1$s.%2$s, %3$s.%2$s) AS %4$s", TABLE_TRANSACTIONS, KEY_AMOUNT, VIEW_TEMPLATES_EXTENDED, KEY_DISPLAY_AMOUNT)};
+        break;
       case TEMPLATES_UNCOMMITTED:
         qb = SupportSQLiteQueryBuilder.builder(VIEW_TEMPLATES_UNCOMMITTED);
         if (projection == null)
@@ -742,12 +847,14 @@ public class TransactionProvider extends BaseTransactionProvider {
         break;
       }
       case AUTOFILL:
-        qb = SupportSQLiteQueryBuilder.builder(VIEW_EXTENDED);
-        selection = KEY_ROWID + "= (SELECT max(" + KEY_ROWID + ") FROM " + TABLE_TRANSACTIONS
-            + " WHERE " + WHERE_NOT_SPLIT + " AND " + KEY_PAYEEID + " IN (?, (SELECT " + KEY_PARENTID  +" FROM " + TABLE_PAYEES +
-                " WHERE " + KEY_ROWID + " = ?)))";
+        qb = SupportSQLiteQueryBuilder.builder(TABLE_PAYEE_AUTOFILL);
+        selection = KEY_PAYEEID + " IN (?, (SELECT " + KEY_PARENTID  +" FROM " + TABLE_PAYEES +
+                " WHERE " + KEY_ROWID + " = ?))";
         String id = uri.getPathSegments().get(1);
         selectionArgs = new String[]{id,id};
+        sortOrder = KEY_TRANSACTIONID + " DESC";
+        limit = "1";
+        projection = Companion.autoFillProjection(projection);
         break;
       case ACCOUNT_EXCHANGE_RATE:
         qb = SupportSQLiteQueryBuilder.builder(TABLE_ACCOUNT_EXCHANGE_RATES);
@@ -759,6 +866,8 @@ public class TransactionProvider extends BaseTransactionProvider {
       case BUDGETS:
         qb = SupportSQLiteQueryBuilder.builder(getBudgetTableJoin());
         break;
+      case BUDGETS_PROGRESS:
+        return budgetProgressQuery(db, uri);
       case ACCOUNT_DEFAULT_BUDGET_ALLOCATIONS: {
         qb = SupportSQLiteQueryBuilder.builder(TABLE_BUDGET_ALLOCATIONS);
         Long budgetId = budgetDefaultSelect(db, uri);
@@ -888,8 +997,17 @@ public class TransactionProvider extends BaseTransactionProvider {
     return new IllegalArgumentException("Unknown URL " + uri);
   }
 
+  @Override
+  public int matchUri(@NonNull Uri uri) {
+    return URI_MATCHER.match(uri);
+  }
+
   @Override
   public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+    return measureWrite(uri, QueryMetrics.Operation.INSERT, () -> doInsert(uri, values), result -> result == null ? 0 : 1);
+  }
+
+  private Uri doInsert(@NonNull Uri uri, @Nullable ContentValues values) {
     log("INSERT Uri: %s, values: %s", uri, values);
     SupportSQLiteDatabase db = getHelper().getWritableDatabase();
     long id;
@@ -898,7 +1016,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     maybeSetDirty(uriMatch);
     switch (uriMatch) {
       case TRANSACTIONS, UNCOMMITTED -> {
-        id = MoreDbUtilsKt.insert(db, TABLE_TRANSACTIONS, values);
+        id = getStatementCache().insert(TABLE_TRANSACTIONS, CONFLICT_NONE, values);
         newUri = TRANSACTIONS_URI + "/" + id;
       }
       case ACCOUNTS -> {
@@ -986,7 +1104,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         newUri = TAGS_URI + "/" + id;
       }
       case TRANSACTIONS_TAGS -> {
-        db.insert(TABLE_TRANSACTIONS_TAGS, CONFLICT_IGNORE, values);
+        getStatementCache().insert(TABLE_TRANSACTIONS_TAGS, CONFLICT_IGNORE, values);
         //the table does not have primary ids, we return the base uri
         notifyChange(uri, callerIsNotSyncAdapter(uri));
         return TRANSACTIONS_TAGS_URI;
@@ -1013,15 +1131,15 @@ public class TransactionProvider extends BaseTransactionProvider {
       }
       // Currently not needed, until we implement Custom attributes
 /*      case ATTRIBUTES -> {
-        insertAttribute(db, values);
+        insertAttribute(values);
         return ATTRIBUTES_URI;
       }*/
       case TRANSACTION_ATTRIBUTES ->  {
-        insertTransactionAttribute(db, values);
+        insertTransactionAttribute(values);
         return TRANSACTIONS_ATTRIBUTES_URI;
       }
       case ACCOUNT_ATTRIBUTES ->  {
-        insertAccountAttribute(db, values);
+        insertAccountAttribute(values);
         return ACCOUNTS_ATTRIBUTES_URI;
       }
       case ATTACHMENTS ->  {
@@ -1040,7 +1158,7 @@ public class TransactionProvider extends BaseTransactionProvider {
           values.remove(KEY_URI);
         }
         values.put(KEY_ATTACHMENT_ID, id);
-        db.insert(TABLE_TRANSACTION_ATTACHMENTS, CONFLICT_IGNORE, values);
+        getStatementCache().insert(TABLE_TRANSACTION_ATTACHMENTS, CONFLICT_IGNORE, values);
         newUri = ATTACHMENTS_URI + "/" + id;
       }
       default -> throw unknownUri(uri);
@@ -1049,7 +1167,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     //the accounts cursor contains aggregates about transactions
     //we need to notify it when transactions change
     if (uriMatch == TRANSACTIONS) {
-      notifyChange(ACCOUNTS_URI, false);
+      notifyAccountTotals(accountsReferencedBy(values));
       notifyChange(DEBTS_URI, false);
       //notifyChange(UNCOMMITTED_URI, false);
     } else if (uriMatch == ACCOUNTS) {
@@ -1069,10 +1187,15 @@ public class TransactionProvider extends BaseTransactionProvider {
 
   @Override
   public int delete(@NonNull Uri uri, String where, String[] whereArgs) {
+    return measureWrite(uri, QueryMetrics.Operation.DELETE, () -> doDelete(uri, where, whereArgs), count -> count);
+  }
+
+  private int doDelete(@NonNull Uri uri, String where, String[] whereArgs) {
     log("Delete for URL: %s", uri);
     SupportSQLiteDatabase db = getHelper().getWritableDatabase();
     int count;
     String segment;
+    Set<Long> affectedAccounts = null;
     int uriMatch = URI_MATCHER.match(uri);
     maybeSetDirty(uriMatch);
     switch (uriMatch) {
@@ -1080,6 +1203,7 @@ public class TransactionProvider extends BaseTransactionProvider {
       case TRANSACTION_ID -> {
         //maybe TODO ?: where and whereArgs are ignored
         segment = uri.getPathSegments().get(1);
+        affectedAccounts = accountsAffectedBy(db, segment);
         //when we are deleting a transfer whose peer is part of a split, we cannot delete the peer,
         //because the split would be left in an invalid state, hence we transform the peer to a normal split part
         //first we find out the account label
@@ -1204,7 +1328,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     }
     if (uriMatch == TRANSACTIONS || (uriMatch == TRANSACTION_ID && callerIsNotInBulkOperation(uri))) {
       notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdapter(uri));
-      notifyChange(ACCOUNTS_URI, false);
+      notifyAccountTotals(affectedAccounts);
       notifyChange(DEBTS_URI, false);
       //notifyChange(UNCOMMITTED_URI, false);
     } else {
@@ -1237,9 +1361,15 @@ public class TransactionProvider extends BaseTransactionProvider {
   @Override
   public int update(@NonNull Uri uri, ContentValues values, String where,
                     String[] whereArgs) {
+    return measureWrite(uri, QueryMetrics.Operation.UPDATE, () -> doUpdate(uri, values, where, whereArgs), count -> count);
+  }
+
+  private int doUpdate(@NonNull Uri uri, ContentValues values, String where,
+                    String[] whereArgs) {
     SupportSQLiteDatabase db = getHelper().getWritableDatabase();
     String segment; // contains rowId
     int count;
+    Set<Long> affectedAccounts = null;
     int uriMatch = URI_MATCHER.match(uri);
     maybeSetDirty(uriMatch);
     Cursor c;
@@ -1247,10 +1377,14 @@ public class TransactionProvider extends BaseTransactionProvider {
     switch (uriMatch) {
       case TRANSACTIONS, UNCOMMITTED ->
               count = MoreDbUtilsKt.update(db, TABLE_TRANSACTIONS, values, where, whereArgs);
-      case TRANSACTION_ID, UNCOMMITTED_ID ->
-              count = MoreDbUtilsKt.update(db, TABLE_TRANSACTIONS, values,
-                      KEY_ROWID + " = " + uri.getLastPathSegment() + prefixAnd(where),
-                      whereArgs);
+      case TRANSACTION_ID, UNCOMMITTED_ID -> {
+        if (uriMatch == TRANSACTION_ID) {
+          affectedAccounts = accountsAffectedBy(db, uri.getLastPathSegment(), values);
+        }
+        count = MoreDbUtilsKt.update(db, TABLE_TRANSACTIONS, values,
+                KEY_ROWID + " = " + uri.getLastPathSegment() + prefixAnd(where),
+                whereArgs);
+      }
       case TRANSACTION_UNDELETE -> {
         segment = uri.getPathSegments().get(1);
         whereArgs = new String[]{segment, segment, segment};
@@ -1299,6 +1433,8 @@ public class TransactionProvider extends BaseTransactionProvider {
       case TRANSACTION_MOVE -> {
         segment = uri.getPathSegments().get(1);
         String target = uri.getPathSegments().get(3);
+        affectedAccounts = new HashSet<>(accountsAffectedBy(db, segment));
+        affectedAccounts.add(Long.parseLong(target));
         db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
                         " SET " +
                         KEY_ACCOUNTID + " = ?, " +
@@ -1319,6 +1455,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         count = 1;
       }
       case TRANSACTION_TOGGLE_CRSTATUS -> {
+        affectedAccounts = accountsAffectedBy(db, uri.getPathSegments().get(1));
         db.execSQL("UPDATE " + TABLE_TRANSACTIONS +
                         " SET " + KEY_CR_STATUS +
                         " = CASE " + KEY_CR_STATUS +
@@ -1502,7 +1639,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         uriMatch == CURRENCIES_CHANGE_FRACTION_DIGITS || uriMatch == TRANSACTION_UNDELETE ||
         uriMatch == TRANSACTION_MOVE || uriMatch == TRANSACTION_TOGGLE_CRSTATUS || uriMatch == TRANSACTION_LINK_TRANSFER) {
       notifyChange(TRANSACTIONS_URI, callerIsNotSyncAdapter(uri));
-      notifyChange(ACCOUNTS_URI, false);
+      notifyAccountTotals(affectedAccounts);
       notifyChange(DEBTS_URI, false);
       //notifyChange(UNCOMMITTED_URI, false);
       notifyChange(CATEGORIES_URI, false);
@@ -1549,6 +1686,7 @@ public class TransactionProvider extends BaseTransactionProvider {
   @Override
   public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
       throws OperationApplicationException {
+    final long startTime = System.nanoTime();
     final SupportSQLiteDatabase db = getHelper().getWritableDatabase();
     final boolean alreadyInBulk = getBulkInProgress();
     if (!alreadyInBulk) {
@@ -1578,6 +1716,7 @@ public class TransactionProvider extends BaseTransactionProvider {
         setBulkInProgress(false);
         notifyBulk();
       }
+      recordBatch(operations.size(), startTime);
     }
   }
 
@@ -1625,6 +1764,20 @@ public class TransactionProvider extends BaseTransactionProvider {
       case METHOD_CHECK_CORRUPTED_DATA_987 -> {
         return checkCorruptedData987();
       }
+      case METHOD_QUERY_METRICS -> {
+        return queryMetricsReport("reset".equals(arg));
+      }
+      case METHOD_BULK_OPERATION -> {
+        return bulkOperation(BulkOperation.valueOf(arg), extras);
+      }
+      case METHOD_COPY_SPLIT_PARTS -> {
+        return copySplitParts(extras);
+      }
+      case METHOD_REFRESH_CATEGORY_SUMS -> {
+        if (refreshCategorySumsIfTimeZoneChanged(getHelper().getWritableDatabase())) {
+          notifyChange(CATEGORIES_URI, false);
+        }
+      }
       case METHOD_DELETE_ATTACHMENTS ->  {
         Bundle result = new Bundle(1);
         result.putBoolean(KEY_RESULT, deleteAttachments(getHelper().getWritableDatabase(), extras.getLong(KEY_TRANSACTIONID), Arrays.asList(extras.getStringArray(KEY_URI_LIST))));
@@ -1650,6 +1803,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     URI_MATCHER.addURI(AUTHORITY, "transactions/" + URI_SEGMENT_UNSPLIT, UNSPLIT);
     URI_MATCHER.addURI(AUTHORITY, "categories", CATEGORIES);
     URI_MATCHER.addURI(AUTHORITY, "categories/#", CATEGORY_ID);
+    URI_MATCHER.addURI(AUTHORITY, "categories/ranked", CATEGORIES_RANKED);
     URI_MATCHER.addURI(AUTHORITY, "accounts", ACCOUNTS);
     URI_MATCHER.addURI(AUTHORITY, "accountsbase", ACCOUNTS_BASE);
     URI_MATCHER.addURI(AUTHORITY, "accounts/#", ACCOUNT_ID);
@@ -1667,6 +1821,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     URI_MATCHER.addURI(AUTHORITY, "templates", TEMPLATES);
     URI_MATCHER.addURI(AUTHORITY, "templatesUncommitted", TEMPLATES_UNCOMMITTED);
     URI_MATCHER.addURI(AUTHORITY, "templates/#", TEMPLATE_ID);
+    URI_MATCHER.addURI(AUTHORITY, "templates/" + URI_SEGMENT_PLAN_INSTANCES + "/#/#", TEMPLATES_PLAN_INSTANCES);
     URI_MATCHER.addURI(AUTHORITY, "templates/#/" + URI_SEGMENT_INCREASE_USAGE, TEMPLATES_INCREASE_USAGE);
     URI_MATCHER.addURI(AUTHORITY, "sqlite_sequence/*", SQLITE_SEQUENCE_TABLE);
     URI_MATCHER.addURI(AUTHORITY, "planinstance_transaction", PLANINSTANCE_TRANSACTION_STATUS);
@@ -1691,6 +1846,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     URI_MATCHER.addURI(AUTHORITY, "budgets/#/#", BUDGET_CATEGORY);
     URI_MATCHER.addURI(AUTHORITY, "currencies/*", CURRENCIES_CODE);
     URI_MATCHER.addURI(AUTHORITY, "accountsMinimal", ACCOUNTS_MINIMAL);
+    URI_MATCHER.addURI(AUTHORITY, "accountTotals", ACCOUNT_TOTALS);
     URI_MATCHER.addURI(AUTHORITY, "tags", TAGS);
     URI_MATCHER.addURI(AUTHORITY, "transactions/tags", TRANSACTIONS_TAGS);
     URI_MATCHER.addURI(AUTHORITY, "tags/#", TAG_ID);
@@ -1700,6 +1856,7 @@ public class TransactionProvider extends BaseTransactionProvider {
     URI_MATCHER.addURI(AUTHORITY, "debts", DEBTS);
     URI_MATCHER.addURI(AUTHORITY, "debts/#", DEBT_ID);
     URI_MATCHER.addURI(AUTHORITY, "budgets/allocations/", BUDGET_ALLOCATIONS);
+    URI_MATCHER.addURI(AUTHORITY, "budgets/progress", BUDGETS_PROGRESS);
     URI_MATCHER.addURI(AUTHORITY, "budgets/" + URI_SEGMENT_DEFAULT_BUDGET_ALLOCATIONS + "/*/*", ACCOUNT_DEFAULT_BUDGET_ALLOCATIONS);
     URI_MATCHER.addURI(AUTHORITY, "banks", BANKS);
     URI_MATCHER.addURI(AUTHORITY, "banks/#", BANK_ID);
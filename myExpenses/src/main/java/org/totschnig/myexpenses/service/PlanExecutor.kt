@@ -4,10 +4,8 @@ import android.annotation.SuppressLint
 import android.app.Notification
 import android.app.PendingIntent
 import android.content.ContentResolver
-import android.content.ContentUris
 import android.content.Context
 import android.content.Intent
-import android.provider.CalendarContract
 import androidx.work.ExistingWorkPolicy
 import androidx.work.OneTimeWorkRequest
 import androidx.work.OneTimeWorkRequestBuilder
@@ -20,6 +18,7 @@ import org.totschnig.myexpenses.activity.ExpenseEdit
 import org.totschnig.myexpenses.activity.MyExpenses
 import org.totschnig.myexpenses.db2.Repository
 import org.totschnig.myexpenses.db2.getLabelForAccount
+import org.totschnig.myexpenses.db2.loadOpenPlanInstances
 import org.totschnig.myexpenses.injector
 import org.totschnig.myexpenses.model.Template
 import org.totschnig.myexpenses.model.Transaction
@@ -27,7 +26,6 @@ import org.totschnig.myexpenses.model.planCount
 import org.totschnig.myexpenses.preference.PrefHandler
 import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.preference.TimePreference
-import org.totschnig.myexpenses.provider.CalendarProviderProxy
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.INVALID_CALENDAR_ID
 import org.totschnig.myexpenses.provider.PlannerUtils
@@ -174,17 +172,8 @@ class PlanExecutor(context: Context, workerParameters: WorkerParameters) :
         val instancesUntil = endOfDay + ADVANCE_DAYS * H24
         log("executing plans from %d to %d", instancesFrom, instancesUntil)
 
-        val eventsUriBuilder = CalendarProviderProxy.INSTANCES_URI.buildUpon()
-        ContentUris.appendId(eventsUriBuilder, instancesFrom)
-        ContentUris.appendId(eventsUriBuilder, instancesUntil)
-        val eventsUri = eventsUriBuilder.build()
-        try {
-            contentResolver.query(
-                eventsUri, null,
-                CalendarContract.Events.CALENDAR_ID + " = " + plannerCalendarId,
-                null,
-                CalendarContract.Instances.BEGIN + " ASC"
-            )
+        val instances = try {
+            repository.loadOpenPlanInstances(plannerCalendarId, instancesFrom, instancesUntil)
         } catch (e: Exception) {
             //} catch (SecurityException | IllegalArgumentException e) {
             report(e, TAG)
@@ -193,182 +182,179 @@ class PlanExecutor(context: Context, workerParameters: WorkerParameters) :
             //buggy calendar provider implementation on Sony (IllegalArgumentException)
             //sqlite database not yet available observed on samsung GT-N7100 (SQLiteException)
             return Result.failure()
-        }?.use { cursor ->
-            if (cursor.moveToFirst()) {
-                val today = LocalDate.now()
-                while (!cursor.isAfterLast && !isStopped) {
-                    val planId =
-                        cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.EVENT_ID))
-                    val date =
-                        cursor.getLong(cursor.getColumnIndexOrThrow(CalendarContract.Instances.BEGIN))
-                    val localDate = epochMillis2LocalDate(date)
-                    val diff = ChronoUnit.DAYS.between(today, localDate)
-                    val instanceId = CalendarProviderProxy.calculateId(date)
-                    //2) check if they are part of a plan linked to a template
-                    //3) execute the template
-                    log("found instance %d of plan %d", instanceId, planId)
-                    //TODO if we have multiple Event instances for one plan, we should maybe cache the template objects
-                    val template = Template.getInstanceForPlanIfInstanceIsOpen(contentResolver, planId, instanceId)
-                    if (!(template == null || template.isSealed)) {
-                        val dateSeconds = date / 1000
-                        if (template.planExecutionAdvance >= diff) {
-                            val accountLabel = repository.getLabelForAccount(template.accountId)
-                            if (accountLabel != null) {
-                                log("belongs to template %d", template.id)
-                                var notification: Notification
-                                val notificationId = (instanceId * planId % Int.MAX_VALUE).toInt()
-                                log("notification id %d", notificationId)
-                                var resultIntent: PendingIntent?
-                                val title = accountLabel + " : " + template.title
-                                val builder = NotificationBuilderWrapper(
-                                    applicationContext,
-                                    NotificationBuilderWrapper.CHANNEL_ID_PLANNER
-                                )
-                                    .setSmallIcon(R.drawable.ic_stat_notification_sigma)
-                                    .setContentTitle(title)
-                                builder.setWhen(date)
-                                var content: String = template.categoryPath?.let { "$it : " } ?: ""
-                                content += currencyFormatter.formatMoney(template.amount)
-                                builder.setContentText(content)
-                                if (template.isPlanExecutionAutomatic) {
-                                    val (t, second) = Transaction.getInstanceFromTemplateWithTags(
-                                        contentResolver, template
-                                    )
-                                    t.originPlanInstanceId = instanceId
-                                    t.date = dateSeconds
-                                    if (t.save(contentResolver, true) != null &&
-                                        t.saveTags(contentResolver, second)
-                                        ) {
-                                        val displayIntent: Intent =
-                                            Intent(applicationContext, MyExpenses::class.java)
-                                                .putExtra(
-                                                    DatabaseConstants.KEY_ROWID,
-                                                    template.accountId
-                                                )
-                                                .putExtra(
-                                                    DatabaseConstants.KEY_TRANSACTIONID,
-                                                    t.id
-                                                )
-                                        resultIntent = PendingIntent.getActivity(
-                                            applicationContext, notificationId, displayIntent,
-                                            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-                                        )
-                                        builder.setContentIntent(resultIntent)
-                                    } else {
-                                        builder.setContentText(wrappedContext.getString(R.string.save_transaction_error))
-                                    }
-                                    builder.setAutoCancel(true)
-                                    notification = builder.build()
-                                } else {
-                                    val cancelIntent: Intent =
-                                        Intent(
-                                            applicationContext,
-                                            PlanNotificationClickHandler::class.java
+        }
+        val today = LocalDate.now()
+        for (instance in instances) {
+            if (isStopped) break
+            val planId = instance.planId
+            val date = instance.begin
+            val localDate = epochMillis2LocalDate(date)
+            val diff = ChronoUnit.DAYS.between(today, localDate)
+            val instanceId = instance.instanceId
+            //2) check if they are part of a plan linked to a template
+            //3) execute the template
+            log("found instance %d of plan %d", instanceId, planId)
+            //instances have been filtered up front, but the user might have applied or cancelled
+            //them in the meantime, so we check the state of each instance again
+            val template =
+                Template.getInstanceForPlanIfInstanceIsOpen(contentResolver, planId, instanceId)
+            if (!(template == null || template.isSealed)) {
+                val dateSeconds = date / 1000
+                if (template.planExecutionAdvance >= diff) {
+                    val accountLabel = repository.getLabelForAccount(template.accountId)
+                    if (accountLabel != null) {
+                        log("belongs to template %d", template.id)
+                        var notification: Notification
+                        val notificationId = (instanceId * planId % Int.MAX_VALUE).toInt()
+                        log("notification id %d", notificationId)
+                        var resultIntent: PendingIntent?
+                        val title = accountLabel + " : " + template.title
+                        val builder = NotificationBuilderWrapper(
+                            applicationContext,
+                            NotificationBuilderWrapper.CHANNEL_ID_PLANNER
+                        )
+                            .setSmallIcon(R.drawable.ic_stat_notification_sigma)
+                            .setContentTitle(title)
+                        builder.setWhen(date)
+                        var content: String = template.categoryPath?.let { "$it : " } ?: ""
+                        content += currencyFormatter.formatMoney(template.amount)
+                        builder.setContentText(content)
+                        if (template.isPlanExecutionAutomatic) {
+                            val (t, second) = Transaction.getInstanceFromTemplateWithTags(
+                                contentResolver, template
+                            )
+                            t.originPlanInstanceId = instanceId
+                            t.date = dateSeconds
+                            if (t.save(contentResolver, true) != null &&
+                                t.saveTags(contentResolver, second)
+                                ) {
+                                val displayIntent: Intent =
+                                    Intent(applicationContext, MyExpenses::class.java)
+                                        .putExtra(
+                                            DatabaseConstants.KEY_ROWID,
+                                            template.accountId
                                         )
-                                            .setAction(ACTION_CANCEL)
-                                            .putExtra(
-                                                MyApplication.KEY_NOTIFICATION_ID,
-                                                notificationId
-                                            )
-                                            .putExtra(
-                                                DatabaseConstants.KEY_TEMPLATEID,
-                                                template.id
-                                            )
-                                            .putExtra(
-                                                DatabaseConstants.KEY_INSTANCEID,
-                                                instanceId
-                                            ) //we also put the title in the intent, because we need it while we update the notification
-                                            .putExtra(KEY_TITLE, title)
-                                    builder.addAction(
-                                        R.drawable.ic_menu_close_clear_cancel,
-                                        R.drawable.ic_menu_close_clear_cancel,
-                                        wrappedContext.getString(android.R.string.cancel),
-                                        PendingIntent.getService(
-                                            applicationContext,
-                                            notificationId,
-                                            cancelIntent,
-                                            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                                        .putExtra(
+                                            DatabaseConstants.KEY_TRANSACTIONID,
+                                            t.id
                                         )
+                                resultIntent = PendingIntent.getActivity(
+                                    applicationContext, notificationId, displayIntent,
+                                    PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                                )
+                                builder.setContentIntent(resultIntent)
+                            } else {
+                                builder.setContentText(wrappedContext.getString(R.string.save_transaction_error))
+                            }
+                            builder.setAutoCancel(true)
+                            notification = builder.build()
+                        } else {
+                            val cancelIntent: Intent =
+                                Intent(
+                                    applicationContext,
+                                    PlanNotificationClickHandler::class.java
+                                )
+                                    .setAction(ACTION_CANCEL)
+                                    .putExtra(
+                                        MyApplication.KEY_NOTIFICATION_ID,
+                                        notificationId
                                     )
-                                    val editIntent: Intent =
-                                        Intent(applicationContext, ExpenseEdit::class.java)
-                                            .putExtra(
-                                                MyApplication.KEY_NOTIFICATION_ID,
-                                                notificationId
-                                            )
-                                            .putExtra(
-                                                DatabaseConstants.KEY_TEMPLATEID,
-                                                template.id
-                                            )
-                                            .putExtra(DatabaseConstants.KEY_INSTANCEID, instanceId)
-                                    val useDateFromPlan =
-                                        "noon" == prefHandler.getString(
-                                            PrefKey.PLANNER_MANUAL_TIME,
-                                            "noon"
-                                        )
-                                    if (useDateFromPlan) {
-                                        editIntent.putExtra(DatabaseConstants.KEY_DATE, dateSeconds)
-                                    }
-                                    resultIntent = PendingIntent.getActivity(
-                                        applicationContext,
-                                        notificationId,
-                                        editIntent,
-                                        PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                                    .putExtra(
+                                        DatabaseConstants.KEY_TEMPLATEID,
+                                        template.id
                                     )
-                                    builder.addAction(
-                                        R.drawable.ic_menu_edit,
-                                        R.drawable.ic_menu_edit,
-                                        wrappedContext.getString(R.string.menu_edit),
-                                        resultIntent
+                                    .putExtra(
+                                        DatabaseConstants.KEY_INSTANCEID,
+                                        instanceId
+                                    ) //we also put the title in the intent, because we need it while we update the notification
+                                    .putExtra(KEY_TITLE, title)
+                            builder.addAction(
+                                R.drawable.ic_menu_close_clear_cancel,
+                                R.drawable.ic_menu_close_clear_cancel,
+                                wrappedContext.getString(android.R.string.cancel),
+                                PendingIntent.getService(
+                                    applicationContext,
+                                    notificationId,
+                                    cancelIntent,
+                                    PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                                )
+                            )
+                            val editIntent: Intent =
+                                Intent(applicationContext, ExpenseEdit::class.java)
+                                    .putExtra(
+                                        MyApplication.KEY_NOTIFICATION_ID,
+                                        notificationId
                                     )
-                                    val applyIntent =
-                                        Intent(
-                                            applicationContext,
-                                            PlanNotificationClickHandler::class.java
-                                        )
-                                    applyIntent.setAction(ACTION_APPLY)
-                                        .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
-                                        .putExtra(KEY_TITLE, title)
-                                        .putExtra(
-                                            DatabaseConstants.KEY_TEMPLATEID,
-                                            template.id
-                                        )
-                                        .putExtra(DatabaseConstants.KEY_INSTANCEID, instanceId)
-                                    if (useDateFromPlan) {
-                                        applyIntent.putExtra(DatabaseConstants.KEY_DATE, dateSeconds)
-                                    }
-                                    builder.addAction(
-                                        R.drawable.ic_menu_save,
-                                        R.drawable.ic_menu_save,
-                                        wrappedContext.getString(R.string.menu_apply_template),
-                                        PendingIntent.getService(
-                                            applicationContext,
-                                            notificationId,
-                                            applyIntent,
-                                            PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
-                                        )
+                                    .putExtra(
+                                        DatabaseConstants.KEY_TEMPLATEID,
+                                        template.id
                                     )
-                                    builder.setContentIntent(resultIntent)
-                                    notification = builder.build()
-                                    notification.flags =
-                                        notification.flags or Notification.FLAG_NO_CLEAR
-                                }
-                                notificationManager.notify(notificationId, notification)
-                            } else {
-                                log("Account.getInstanceFromDb returned null")
+                                    .putExtra(DatabaseConstants.KEY_INSTANCEID, instanceId)
+                            val useDateFromPlan =
+                                "noon" == prefHandler.getString(
+                                    PrefKey.PLANNER_MANUAL_TIME,
+                                    "noon"
+                                )
+                            if (useDateFromPlan) {
+                                editIntent.putExtra(DatabaseConstants.KEY_DATE, dateSeconds)
                             }
-                        } else {
-                            log(
-                                "Instance is not ready yet (%d days in the future), advance execution is %d",
-                                diff,
-                                template.planExecutionAdvance
+                            resultIntent = PendingIntent.getActivity(
+                                applicationContext,
+                                notificationId,
+                                editIntent,
+                                PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                            )
+                            builder.addAction(
+                                R.drawable.ic_menu_edit,
+                                R.drawable.ic_menu_edit,
+                                wrappedContext.getString(R.string.menu_edit),
+                                resultIntent
                             )
+                            val applyIntent =
+                                Intent(
+                                    applicationContext,
+                                    PlanNotificationClickHandler::class.java
+                                )
+                            applyIntent.setAction(ACTION_APPLY)
+                                .putExtra(MyApplication.KEY_NOTIFICATION_ID, notificationId)
+                                .putExtra(KEY_TITLE, title)
+                                .putExtra(
+                                    DatabaseConstants.KEY_TEMPLATEID,
+                                    template.id
+                                )
+                                .putExtra(DatabaseConstants.KEY_INSTANCEID, instanceId)
+                            if (useDateFromPlan) {
+                                applyIntent.putExtra(DatabaseConstants.KEY_DATE, dateSeconds)
+                            }
+                            builder.addAction(
+                                R.drawable.ic_menu_save,
+                                R.drawable.ic_menu_save,
+                                wrappedContext.getString(R.string.menu_apply_template),
+                                PendingIntent.getService(
+                                    applicationContext,
+                                    notificationId,
+                                    applyIntent,
+                                    PendingIntent.FLAG_UPDATE_CURRENT or PendingIntent.FLAG_IMMUTABLE
+                                )
+                            )
+                            builder.setContentIntent(resultIntent)
+                            notification = builder.build()
+                            notification.flags =
+                                notification.flags or Notification.FLAG_NO_CLEAR
                         }
+                        notificationManager.notify(notificationId, notification)
                     } else {
-                        log(if (template == null) "Template.getInstanceForPlanIfInstanceIsOpen returned null, instance might already have been dealt with" else "Plan refers to a closed account or debt")
+                        log("Account.getInstanceFromDb returned null")
                     }
-                    cursor.moveToNext()
+                } else {
+                    log(
+                        "Instance is not ready yet (%d days in the future), advance execution is %d",
+                        diff,
+                        template.planExecutionAdvance
+                    )
                 }
+            } else {
+                log(if (template == null) "Template.getInstanceForPlanIfInstanceIsOpen returned null, instance might already have been dealt with" else "Plan refers to a closed account or debt")
             }
         }
 
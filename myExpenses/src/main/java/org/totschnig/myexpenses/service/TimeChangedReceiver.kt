@@ -0,0 +1,52 @@
+package org.totschnig.myexpenses.service
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import org.totschnig.myexpenses.injector
+import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.util.doAsync
+import timber.log.Timber
+
+/**
+ * months of the category sums rollup are calculated in local time, and are rebuilt when the time
+ * zone changes. Cached account totals depend on the current time, and are dropped when the time
+ * or the time zone is changed.
+ */
+class TimeChangedReceiver : BroadcastReceiver() {
+    override fun onReceive(context: Context, intent: Intent) {
+        when (intent.action) {
+            Intent.ACTION_TIMEZONE_CHANGED -> {
+                context.injector.repository().accountTotalsCache.invalidate()
+                doAsync {
+                    refreshCategorySums(context)
+                }
+            }
+
+            Intent.ACTION_TIME_CHANGED -> {
+                context.injector.repository().accountTotalsCache.invalidate()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * no-op as long as the database has not been set up, or the time zone is unchanged
+         */
+        fun refreshCategorySums(context: Context) {
+            if (context.injector.prefHandler().getInt(PrefKey.CURRENT_VERSION, 0) > 0) {
+                try {
+                    context.contentResolver.call(
+                        TransactionProvider.DUAL_URI,
+                        TransactionProvider.METHOD_REFRESH_CATEGORY_SUMS,
+                        null,
+                        null
+                    )
+                } catch (e: Exception) {
+                    Timber.e(e)
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.annotation.SuppressLint
 import android.content.ContentValues
 import android.content.Context
 import android.content.SharedPreferences
+import android.graphics.Bitmap
 import android.net.Uri
 import android.provider.Settings
 import android.text.TextUtils
@@ -19,10 +20,11 @@ import org.totschnig.myexpenses.injector
 import org.totschnig.myexpenses.model.Model
 import org.totschnig.myexpenses.model2.Account
 import org.totschnig.myexpenses.myApplication
+import org.totschnig.myexpenses.preference.PrefKey
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_URI
+import org.totschnig.myexpenses.provider.DbUtils
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_UUID
 import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.provider.asSequence
 import org.totschnig.myexpenses.provider.fileName
 import org.totschnig.myexpenses.provider.filter.WhereFilter
 import org.totschnig.myexpenses.provider.useAndMap
@@ -31,7 +33,10 @@ import org.totschnig.myexpenses.sync.SyncBackendProvider.EncryptionException.Com
 import org.totschnig.myexpenses.sync.SyncBackendProvider.EncryptionException.Companion.wrongPassphrase
 import org.totschnig.myexpenses.sync.json.*
 import org.totschnig.myexpenses.sync.json.Utils.getChanges
+import org.totschnig.myexpenses.util.ImageOptimizer
 import org.totschnig.myexpenses.util.PictureDirHelper
+import org.totschnig.myexpenses.util.asExtension
+import org.totschnig.myexpenses.util.enumValueOrDefault
 import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.util.crypt.EncryptionHelper
@@ -59,6 +64,7 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         .registerTypeAdapterFactory(AdapterFactory.create())
         .create()
     private var appInstance: String? = null
+    private val attachmentTransferQueue = AttachmentTransferQueue()
     private var encryptionPassword: String? = null
     val mimeTypeForData: String
         get() = if (isEncrypted) MIME_TYPE_OCTET_STREAM else MIME_TYPE_JSON
@@ -251,17 +257,29 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     }
 
     private fun storeAttachmentToDatabase(fileName: String, uuid:String, inputStream: InputStream) {
-        val homeUri = PictureDirHelper.getOutputMediaUri(
-            false,
-            context.myApplication,
-            fileName = getNameWithoutExtension(fileName),
-            extension = getFileExtension(fileName)
-        )
-        val output = context.contentResolver
-            .openOutputStream(homeUri) ?: throw IOException("Unable to write picture")
-        FileCopyUtils.copy(maybeDecrypt(inputStream), output)
-        inputStream.close()
-        output.close()
+        //attachments are stored in parallel, the file is created right away, so that
+        //attachments with the same name do not end up in the same file
+        val (homeUri, homeFile) = synchronized(outputFileLock) {
+            val uri = PictureDirHelper.getOutputMediaUri(
+                false,
+                context.myApplication,
+                fileName = getNameWithoutExtension(fileName),
+                extension = getFileExtension(fileName)
+            )
+            uri to PictureDirHelper.getFileForUri(context, uri).also { it.createNewFile() }
+        }
+        try {
+            inputStream.use {
+                (context.contentResolver.openOutputStream(homeUri)
+                    ?: throw IOException("Unable to write picture")).use { output ->
+                    FileCopyUtils.copy(maybeDecrypt(it), output)
+                }
+            }
+        } catch (e: IOException) {
+            //not referenced from the database, it will be transferred again on next sync
+            homeFile.delete()
+            throw e
+        }
         context.contentResolver.insert(
             TransactionProvider.ATTACHMENTS_URI,
             ContentValues(2).apply {
@@ -284,28 +302,119 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
             null
         )?.useAndMap { it.getString(0) } ?: emptyList()
         log().w("ensureAttachmentsOnRead: found %s", existing.joinToString())
-        (attachments - existing.toSet()).forEach { uuid ->
-            val (fileName, inputStream) = getAttachment(uuid)
+        val missing = attachments - existing.toSet()
+        if (missing.isEmpty()) return
+        val remote = childrenForCollection(requireCollection(ATTACHMENT_FOLDER_NAME))
+        attachmentTransferQueue.transfer(missing) { uuid ->
+            val (fileName, inputStream) = getAttachment(uuid, remote)
             storeAttachmentToDatabase(fileName, uuid, inputStream)
         }
-
     }
 
     @Throws(IOException::class)
     fun getInputStreamForLegacyPicture(relativeUri: String) =
         getInputStream(getResInAccountDir(relativeUri) ?: throw FileNotFoundException())
 
+    /**
+     * @param candidates the content of the attachment folder, if it has already been listed
+     */
     @Throws(IOException::class)
-    fun getAttachment(uuid: String): Pair<String, InputStream> {
-        val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
-        val attachment = childrenForCollection(attachmentDir).find { nameForResource(it)?.startsWith(uuid) == true } ?: throw FileNotFoundException()
+    fun getAttachment(
+        uuid: String,
+        candidates: Collection<Res> = childrenForCollection(requireCollection(ATTACHMENT_FOLDER_NAME))
+    ): Pair<String, InputStream> {
+        val attachment = candidates.find { nameForResource(it)?.startsWith(uuid) == true } ?: throw FileNotFoundException()
         return nameForResource(attachment)!!.substringAfter("${uuid}_") to getInputStream(attachment)
     }
 
-    private fun storeAttachmentToBackendIfNeeded(uuid: String, uri: Uri, fileName: String) {
-        val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
-        if (childrenForCollection(attachmentDir).none { nameForResource(it)?.startsWith(uuid) == true }) {
-            saveUriToCollection("${uuid}_$fileName", uri, attachmentDir)
+    @Throws(IOException::class)
+    private fun storeAttachmentToBackend(uuid: String, uri: Uri, attachmentDir: Res) {
+        val fileName = uri.fileName(context)
+        val optimized = optimizeForUpload(uri)
+        if (optimized == null) {
+            saveAttachmentToCollection("${uuid}_$fileName", uri, attachmentDir) {}
+        } else {
+            val (optimizedUri, extension) = optimized
+            saveAttachmentToCollection(
+                "${uuid}_${getNameWithoutExtension(fileName)}.$extension",
+                optimizedUri,
+                attachmentDir
+            ) {
+                context.contentResolver.delete(optimizedUri, null, null)
+            }
+        }
+    }
+
+    /**
+     * same as [saveUriToCollection], [onStored] is called once [uri] is no longer needed, also if
+     * storing fails. Backends that read [uri] only when they commit the attachments in
+     * [storeAttachments] need to call it themselves.
+     */
+    @Throws(IOException::class)
+    protected open fun saveAttachmentToCollection(
+        fileName: String,
+        uri: Uri,
+        collection: Res,
+        onStored: () -> Unit
+    ) {
+        try {
+            saveUriToCollection(fileName, uri, collection)
+        } finally {
+            onStored()
+        }
+    }
+
+    /**
+     * runs [transfer], which stores the attachments of a change set, before the change file that
+     * refers to them is written. Backends that collect uploads need to commit them before
+     * returning, so that a change file is never written without its attachments.
+     */
+    @Throws(IOException::class)
+    protected open fun storeAttachments(transfer: () -> Unit) {
+        transfer()
+    }
+
+    /**
+     * if the user has opted in, pictures are downscaled with the settings used when they are
+     * attached to a transaction, the local copy is not touched. Since sync runs in its own process,
+     * the settings are read from the copy kept in the database.
+     *
+     * @return a temporary copy to upload and its extension, or null if [uri] is uploaded as is
+     */
+    private fun optimizeForUpload(uri: Uri): Pair<Uri, String>? {
+        val prefHandler = context.injector.prefHandler()
+        fun setting(prefKey: PrefKey) =
+            DbUtils.loadSetting(context.contentResolver, prefHandler.getKey(prefKey))
+        if (setting(PrefKey.SYNC_OPTIMIZE_PICTURES) != java.lang.Boolean.TRUE.toString() ||
+            context.contentResolver.getType(uri)?.startsWith("image") != true
+        ) return null
+        val format = enumValueOrDefault(
+            setting(PrefKey.OPTIMIZE_PICTURE_FORMAT),
+            Bitmap.CompressFormat.WEBP
+        )
+        val maxSize = setting(PrefKey.OPTIMIZE_PICTURE_MAX_SIZE)?.toIntOrNull() ?: 1000
+        val quality = (setting(PrefKey.OPTIMIZE_PICTURE_QUALITY)?.toIntOrNull() ?: 80)
+            .coerceAtLeast(0).coerceAtMost(100)
+        val tempUri = PictureDirHelper.getOutputMediaUri(
+            true,
+            context.myApplication,
+            extension = format.asExtension
+        )
+        return try {
+            ImageOptimizer.optimize(
+                context.contentResolver,
+                uri,
+                tempUri,
+                format,
+                maxSize,
+                maxSize,
+                quality
+            )
+            tempUri to format.asExtension
+        } catch (e: IOException) {
+            log().w(e)
+            context.contentResolver.delete(tempUri, null, null)
+            null
         }
     }
 
@@ -327,17 +436,27 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
         }
     }
 
-    private fun getChangeSetFromResource(shardNumber: Int, resource: Res): ChangeSet = getChangeSetFromInputStream(
-        SequenceNumber(shardNumber, getSequenceFromFileName(nameForResource(resource))),
-        getInputStream(resource)
-    )
-
-    final override fun getChangeSetSince(sequenceNumber: SequenceNumber): ChangeSet? =
-        merge(
-            shardResolvingFilterStrategy(sequenceNumber).map {
-                getChangeSetFromResource(it.first, it.second)
-            }
+    final override fun getChangeSetSince(sequenceNumber: SequenceNumber): ChangeSet? {
+        val resources = shardResolvingFilterStrategy(sequenceNumber)
+        return merge(
+            resources.asSequence().zip(getInputStreams(resources.map { it.second }))
+                .map { (shardAndResource, inputStream) ->
+                    val (shardNumber, resource) = shardAndResource
+                    getChangeSetFromInputStream(
+                        SequenceNumber(shardNumber, getSequenceFromFileName(nameForResource(resource))),
+                        inputStream
+                    )
+                }.toList()
         )
+    }
+
+    /**
+     * opens the change files in the order they are read, one at a time. Backends that can
+     * fetch several resources at once can override this.
+     */
+    @Throws(IOException::class)
+    protected open fun getInputStreams(resources: List<Res>): Sequence<InputStream> =
+        resources.asSequence().map { getInputStream(it) }
 
     @Throws(IOException::class)
     private fun ensureAttachmentsOnWrite(changeSet: List<TransactionChange>) {
@@ -349,11 +468,20 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
                 "$KEY_UUID ${WhereFilter.Operation.IN.getOp(attachments.size)}",
                 attachments.toTypedArray(),
                 null
-            )?.use { cursor ->
-                cursor.asSequence.forEach {
-                    val uuid = it.getString(0)
-                    val attachmentUri = Uri.parse(it.getString(1))
-                    storeAttachmentToBackendIfNeeded(uuid, attachmentUri, attachmentUri.fileName(context))
+            )?.useAndMap {
+                it.getString(0) to Uri.parse(it.getString(1))
+            }?.takeIf { it.isNotEmpty() }?.let { local ->
+                val attachmentDir = requireCollection(ATTACHMENT_FOLDER_NAME)
+                //attachments are stored as ${uuid}_$fileName
+                val remote = childrenForCollection(attachmentDir)
+                    .mapNotNull { nameForResource(it)?.substringBefore('_') }
+                    .toSet()
+                storeAttachments {
+                    attachmentTransferQueue.transfer(
+                        local.filter { (uuid, _) -> uuid !in remote }
+                    ) { (uuid, uri) ->
+                        storeAttachmentToBackend(uuid, uri, attachmentDir)
+                    }
                 }
             }
         }
@@ -483,6 +611,12 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     @Throws(IOException::class)
     protected abstract fun writeAccount(account: Account, update: Boolean)
 
+    /**
+     * see [namesSignature], backends that can tell cheaper should override
+     */
+    @Throws(IOException::class)
+    override fun probeChanges(lastProbe: String?): String? = namesSignature()
+
     @Throws(IOException::class)
     override fun lock() {
         val existingLockToken = lockToken
@@ -535,6 +669,10 @@ abstract class AbstractSyncBackendProvider<Res>(protected val context: Context)
     }
 
     companion object {
+        /**
+         * attachments are stored to the picture folder by backends syncing in parallel
+         */
+        private val outputFileLock = Any()
         const val LOCK_FILE = ".lock.txt"
         const val KEY_LOCK_TOKEN = "lockToken"
         const val BACKUP_FOLDER_NAME = "BACKUPS"
@@ -0,0 +1,37 @@
+package org.totschnig.myexpenses.sync
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.io.IOException
+
+/**
+ * transfers attachments between the database and a backend, at most [parallelism] at the same
+ * time. Attachments are identified by their uuid and only transferred if they are missing on the
+ * receiving side, so a sync that has been interrupted resumes with the attachments that were not
+ * transferred yet.
+ */
+class AttachmentTransferQueue(private val parallelism: Int = MAX_PARALLEL_TRANSFERS) {
+
+    /**
+     * blocks until all [items] have been transferred, the first failure is rethrown
+     */
+    @Throws(IOException::class)
+    fun <T> transfer(items: Collection<T>, transfer: (T) -> Unit) {
+        when (items.size) {
+            0 -> {}
+            1 -> transfer(items.first())
+            else -> runBlocking(Dispatchers.IO) {
+                val semaphore = Semaphore(parallelism)
+                items.map { async { semaphore.withPermit { transfer(it) } } }.awaitAll()
+            }
+        }
+    }
+
+    companion object {
+        const val MAX_PARALLEL_TRANSFERS = 4
+    }
+}
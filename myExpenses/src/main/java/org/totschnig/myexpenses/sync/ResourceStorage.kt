@@ -1,5 +1,6 @@
 package org.totschnig.myexpenses.sync
 
+import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.io.getFileExtension
 import org.totschnig.myexpenses.util.io.getNameWithoutExtension
 import timber.log.Timber
@@ -144,6 +145,26 @@ interface ResourceStorage<Res> {
                 )
             } ?: start
     }
+    /**
+     * new change sets are always written to new files, either in the account folder or in the last
+     * shard, so comparing the names found there tells if the account has changed. The lock file is
+     * left out, so that locking does not count as change.
+     */
+    @Throws(IOException::class)
+    fun namesSignature(): String {
+        val mainEntries = childrenForCollection(null)
+        val lastShard = mainEntries
+            .filter { isCollection(it) && nameForResource(it)?.let { name -> isAtLeastShardDir(1, name) } == true }
+            .maxByOrNull { getSequenceFromFileName(nameForResource(it)) }
+        return Utils.md5(
+            (mainEntries + (lastShard?.let { childrenForCollection(it) } ?: emptyList()))
+                .mapNotNull { nameForResource(it) }
+                .filter { it != AbstractSyncBackendProvider.LOCK_FILE }
+                .sorted()
+                .joinToString("/")
+        )
+    }
+
     fun log() = Timber.tag(SyncAdapter.TAG)
 
 }
\ No newline at end of file
@@ -15,6 +15,13 @@ import android.os.Bundle
 import android.os.RemoteException
 import android.util.SparseArray
 import androidx.core.util.Pair
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.totschnig.myexpenses.BuildConfig
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.activity.ManageSyncBackends
@@ -42,9 +49,12 @@ import timber.log.Timber
 import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
 import javax.inject.Inject
 import javax.inject.Provider
+import kotlin.math.max
 import kotlin.math.pow
 
 class SyncAdapter @JvmOverloads constructor(
@@ -53,6 +63,12 @@ class SyncAdapter @JvmOverloads constructor(
     allowParallelSyncs: Boolean = false
 ) : AbstractThreadedSyncAdapter(context, autoInitialize, allowParallelSyncs) {
     private val notificationContent = SparseArray<MutableList<StringBuilder>?>()
+
+    /**
+     * remote changes are written with the change trigger paused, which must not overlap between
+     * accounts synced in parallel
+     */
+    private val dbLock = Any()
     private var shouldNotify = true
 
     @Inject
@@ -200,6 +216,11 @@ class SyncAdapter @JvmOverloads constructor(
                                 KEY_LAST_SYNCED_REMOTE(accountId),
                                 null
                             )
+                            accountManager.setUserData(
+                                account,
+                                KEY_LAST_PROBE(accountId),
+                                null
+                            )
                         } catch (e: RemoteException) {
                             syncResult.databaseError = true
                             notifyDatabaseError(e, account)
@@ -214,254 +235,415 @@ class SyncAdapter @JvmOverloads constructor(
             }
 
 
-            try {
+            val accountIds = try {
                 provider.query(
                     TransactionProvider.ACCOUNTS_URI, projection, selection, selectionArgs,
                     KEY_ROWID
-                )
+                )?.useAndMap { it.getLong(0) }
             } catch (e: RemoteException) {
                 syncResult.databaseError = true
                 notifyDatabaseError(e, account)
                 return
-            }?.use { cursor ->
-                if (cursor.moveToFirst()) {
-                    do {
-                        val accountId = cursor.getLong(0)
-                        val lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId)
-                        val lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId)
-                        var lastSyncedLocal = getUserDataWithDefault(
-                            accountManager, account,
-                            lastLocalSyncKey, "0"
-                        ).toLong()
-                        var lastSyncedRemote = parse(
-                            getUserDataWithDefault(
-                                accountManager, account,
-                                lastRemoteSyncKey, "0"
-                            )
-                        )
-                        log().i("lastSyncedLocal: $lastSyncedLocal; lastSyncedRemote: $lastSyncedRemote")
-                        val instanceFromDb = repository.loadAccount(accountId)
-                            ?: // might have been deleted by user in the meantime
-                                continue
-                        syncDelegate.account = instanceFromDb
-                        if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
-                            try {
-                                backend.resetAccountData(uuidFromExtras)
-                                appendToNotification(
-                                    context.getString(
-                                        R.string.sync_success_reset_account_data,
-                                        instanceFromDb.label
-                                    ), account, true
-                                )
-                            } catch (e: IOException) {
-                                log().w(e)
-                                if (handleAuthException(e, account)) {
-                                    return
-                                }
-                                syncResult.stats.numIoExceptions++
-                                syncResult.delayUntil = ioDefaultDelaySeconds
-                                notifyIoException(
-                                    R.string.sync_io_exception_reset_account_data,
-                                    account
-                                )
-                            }
-                            break
-                        }
-                        appendToNotification(
-                            context.getString(
-                                R.string.synchronization_start,
-                                instanceFromDb.label
-                            ), account, true
-                        )
-                        try {
-                            backend.withAccount(instanceFromDb)
-                        } catch (e: IOException) {
-                            log().w(e)
-                            if (handleAuthException(e, account)) {
-                                return
-                            }
-                            syncResult.stats.numIoExceptions++
-                            syncResult.delayUntil = ioDefaultDelaySeconds
-                            notifyIoException(
-                                R.string.sync_io_exception_setup_remote_account,
-                                account
-                            )
-                            continue
-                        }
+            } ?: emptyList()
+            if (uuidFromExtras != null && extras.getBoolean(KEY_RESET_REMOTE_ACCOUNT)) {
+                accountIds.firstNotNullOfOrNull { repository.loadAccount(it) }?.let {
+                    resetRemoteAccount(account, uuidFromExtras, it.label, backend, syncResult)
+                }
+                return
+            }
+            syncAccounts(account, accountIds, backend, provider, syncResult, accountManager)
+        }
+    }
+
+    private fun resetRemoteAccount(
+        account: Account,
+        uuid: String,
+        label: String,
+        backend: SyncBackendProvider,
+        syncResult: SyncResult
+    ) {
+        try {
+            backend.resetAccountData(uuid)
+            appendToNotification(
+                context.getString(R.string.sync_success_reset_account_data, label),
+                account,
+                true
+            )
+        } catch (e: IOException) {
+            log().w(e)
+            if (!handleAuthException(e, account)) {
+                syncResult.onIoException(ioDefaultDelaySeconds)
+                notifyIoException(R.string.sync_io_exception_reset_account_data, account)
+            }
+        }
+    }
+
+    /**
+     * set while [syncAccounts] is running, so that [onSyncCanceled] can give up the accounts that
+     * have not been started yet
+     */
+    @Volatile
+    private var syncAborted: AtomicBoolean? = null
+
+    override fun onSyncCanceled() {
+        syncAborted?.set(true)
+        super.onSyncCanceled()
+    }
+
+    /**
+     * syncs up to [MAX_PARALLEL_ACCOUNTS] accounts at the same time, each with its own backend
+     * instance and [SyncDelegate]. Accounts that have not been started yet are given up if the
+     * sync is cancelled or the user needs to log in again. Accounts already running are always
+     * completed and unlocked before this returns, also if the sync thread is interrupted.
+     */
+    private fun syncAccounts(
+        account: Account,
+        accountIds: List<Long>,
+        backend: SyncBackendProvider,
+        provider: ContentProviderClient,
+        syncResult: SyncResult,
+        accountManager: AccountManager
+    ) {
+        val backends = ConcurrentLinkedQueue(listOf(backend))
+        val semaphore = Semaphore(MAX_PARALLEL_ACCOUNTS)
+        val aborted = AtomicBoolean(Thread.currentThread().isInterrupted)
+        syncAborted = aborted
+        //workers are not children of runBlocking, which would stop waiting for them when interrupted,
+        //failures are rethrown from await
+        val job = CoroutineScope(Dispatchers.IO).async {
+            accountIds.forEach { accountId ->
+                launch {
+                    semaphore.withPermit {
+                        if (aborted.get()) return@withPermit
+                        val accountBackend = backends.poll()
+                            ?: createBackend(account, syncResult, aborted)
+                            ?: return@withPermit
                         try {
-                            backend.lock()
-                        } catch (e: IOException) {
-                            log().w(e)
-                            if (handleAuthException(e, account)) {
-                                return
+                            if (!syncAccount(
+                                    account,
+                                    accountId,
+                                    accountBackend,
+                                    provider,
+                                    syncResult,
+                                    accountManager,
+                                    syncDelegateProvider.get()
+                                )
+                            ) {
+                                aborted.set(true)
                             }
-                            notifyIoException(R.string.sync_io_exception_locking, account)
-                            syncResult.stats.numIoExceptions++
-                            syncResult.delayUntil = ioLockDelaySeconds
-                            continue
+                        } finally {
+                            backends.offer(accountBackend)
                         }
-                        var completedWithoutError = false
-                        var successRemote2Local = 0
-                        var successLocal2Remote = 0
-                        try {
-                            val changeSetSince =
-                                backend.getChangeSetSince(lastSyncedRemote)
-                            var remoteChanges: List<TransactionChange> =
-                                if (changeSetSince != null) {
-                                    lastSyncedRemote = changeSetSince.sequenceNumber
-                                    log().i("lastSyncedRemote: $lastSyncedRemote")
-                                    changeSetSince.changes
-                                } else emptyList()
-                            var localChanges: MutableList<TransactionChange> = mutableListOf()
-                            var sequenceToTest = lastSyncedLocal
-                            while (true) {
-                                sequenceToTest++
-                                val nextChanges =
-                                    getLocalChanges(provider, accountId, sequenceToTest)
-                                lastSyncedLocal = if (nextChanges.isNotEmpty()) {
-                                    localChanges.addAll(nextChanges.filter { !it.isEmpty })
-                                    sequenceToTest
-                                } else {
-                                    break
-                                }
-                            }
-                            log().i("lastSyncedLocal: $lastSyncedLocal")
-                            if (localChanges.isNotEmpty() || remoteChanges.isNotEmpty()) {
-                                var localMetadataChange =
-                                    syncDelegate.findMetadataChange(localChanges)
-                                var remoteMetadataChange =
-                                    syncDelegate.findMetadataChange(remoteChanges)
-                                if (remoteMetadataChange != null) {
-                                    remoteChanges = syncDelegate.removeMetadataChange(remoteChanges)
-                                }
-                                if (localMetadataChange != null && remoteMetadataChange != null) {
-                                    if (localMetadataChange.timeStamp() > remoteMetadataChange.timeStamp()) {
-                                        remoteMetadataChange = null
-                                    } else {
-                                        localMetadataChange = null
-                                        localChanges =
-                                            syncDelegate.removeMetadataChange(localChanges)
-                                                .toMutableList()
-                                    }
-                                }
-                                if (localMetadataChange != null) {
-                                    backend.updateAccount(instanceFromDb)
-                                } else if (remoteMetadataChange != null) {
-                                    backend.readAccountMetaData().onSuccess {
-                                        if (updateAccountFromMetadata(provider, syncDelegate, it)) {
-                                            successRemote2Local += 1
-                                        } else {
-                                            appendToNotification(
-                                                "Error while writing account metadata to database",
-                                                account,
-                                                false
-                                            )
-                                        }
-                                    }
-                                }
-                                if (localChanges.size > 0) {
-                                    localChanges =
-                                        syncDelegate.collectSplits(localChanges).toMutableList()
-                                }
-                                val mergeResult: Pair<List<TransactionChange>, List<TransactionChange>> =
-                                    syncDelegate.mergeChangeSets(localChanges, remoteChanges)
-                                localChanges = mergeResult.first.toMutableList()
-                                remoteChanges = mergeResult.second
-                                if (remoteChanges.isNotEmpty()) {
-                                    syncDelegate.writeRemoteChangesToDb(provider, remoteChanges)
-                                    accountManager.setUserData(
-                                        account,
-                                        lastRemoteSyncKey,
-                                        lastSyncedRemote.toString()
-                                    )
-                                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
-                                    successRemote2Local += remoteChanges.size
-                                }
-                                if (localChanges.size > 0) {
-                                    lastSyncedRemote =
-                                        backend.writeChangeSet(
-                                            lastSyncedRemote,
-                                            localChanges,
-                                            context
-                                        )
-                                    accountManager.setUserData(
-                                        account,
-                                        lastLocalSyncKey,
-                                        lastSyncedLocal.toString()
-                                    )
-                                    log().i("storing lastSyncedLocal: $lastSyncedLocal")
-                                    accountManager.setUserData(
-                                        account,
-                                        lastRemoteSyncKey,
-                                        lastSyncedRemote.toString()
-                                    )
-                                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
-                                    successLocal2Remote = localChanges.size
-                                }
-                                if (!BuildConfig.DEBUG) {
-                                    // on debug build for auditing purposes, we keep changes in the table
-                                    provider.delete(
-                                        TransactionProvider.CHANGES_URI,
-                                        "$KEY_ACCOUNTID = ? AND $KEY_SYNC_SEQUENCE_LOCAL <= ?",
-                                        arrayOf(accountId.toString(), lastSyncedLocal.toString())
-                                    )
-                                }
-                            }
-                            completedWithoutError = true
-                        } catch (e: IOException) {
-                            log().w(e)
-                            if (handleAuthException(e, account)) {
-                                return
-                            }
-                            syncResult.stats.numIoExceptions++
-                            syncResult.delayUntil = ioDefaultDelaySeconds
-                            notifyIoException(R.string.sync_io_exception_syncing, account)
-                        } catch (e: RemoteException) {
-                            syncResult.databaseError = true
-                            notifyDatabaseError(e, account)
-                        } catch (e: OperationApplicationException) {
-                            syncResult.databaseError = true
-                            notifyDatabaseError(e, account)
-                        } catch (e: SQLiteException) {
-                            syncResult.databaseError = true
-                            nonRecoverableError(account, e.safeMessage)
-                        } catch (e: Exception) {
+                    }
+                }
+            }
+        }
+        var interrupted = false
+        try {
+            while (true) {
+                try {
+                    runBlocking { job.await() }
+                    break
+                } catch (e: InterruptedException) {
+                    log().i("Sync cancelled, waiting for accounts in progress")
+                    interrupted = true
+                    aborted.set(true)
+                }
+            }
+        } finally {
+            syncAborted = null
+            if (interrupted) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+
+    /**
+     * backends keep the account they are working on, so each account synced in parallel needs
+     * its own instance
+     */
+    private fun createBackend(
+        account: Account,
+        syncResult: SyncResult,
+        aborted: AtomicBoolean
+    ) = SyncBackendProviderFactory[context, account, false].onFailure {
+        log().w(it)
+        if (handleAuthException(it, account)) {
+            aborted.set(true)
+        } else {
+            syncResult.onIoException(ioDefaultDelaySeconds)
+            notifyIoException(R.string.sync_io_error_cannot_connect, account)
+        }
+    }.getOrNull()
+
+    /**
+     * @return false if syncing needs to be given up for all accounts
+     */
+    private fun syncAccount(
+        account: Account,
+        accountId: Long,
+        backend: SyncBackendProvider,
+        provider: ContentProviderClient,
+        syncResult: SyncResult,
+        accountManager: AccountManager,
+        syncDelegate: SyncDelegate
+    ): Boolean {
+        val lastLocalSyncKey = KEY_LAST_SYNCED_LOCAL(accountId)
+        val lastRemoteSyncKey = KEY_LAST_SYNCED_REMOTE(accountId)
+        val lastProbeKey = KEY_LAST_PROBE(accountId)
+        var lastSyncedLocal = getUserDataWithDefault(
+            accountManager, account,
+            lastLocalSyncKey, "0"
+        ).toLong()
+        var lastSyncedRemote = parse(
+            getUserDataWithDefault(
+                accountManager, account,
+                lastRemoteSyncKey, "0"
+            )
+        )
+        log().i("lastSyncedLocal: $lastSyncedLocal; lastSyncedRemote: $lastSyncedRemote")
+        val instanceFromDb = repository.loadAccount(accountId)
+            ?: // might have been deleted by user in the meantime
+                return true
+        syncDelegate.account = instanceFromDb
+        val line = startNotificationLine(
+            context.getString(
+                R.string.synchronization_start,
+                instanceFromDb.label
+            ), account
+        )
+        try {
+            backend.withAccount(instanceFromDb)
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            syncResult.onIoException(ioDefaultDelaySeconds)
+            notifyIoException(
+                R.string.sync_io_exception_setup_remote_account,
+                account
+            )
+            return true
+        }
+        val lastProbe = accountManager.getUserData(account, lastProbeKey)
+        val probe = probeChanges(backend, lastProbe)
+        if (probe != null && probe == lastProbe &&
+            !hasPendingLocalChanges(provider, accountId, lastSyncedLocal)
+        ) {
+            log().i("No changes found for %s, skipping", instanceFromDb.label)
+            appendToNotification(
+                context.getString(R.string.synchronization_end_success_none),
+                account,
+                line
+            )
+            return true
+        }
+        try {
+            backend.lock()
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            notifyIoException(R.string.sync_io_exception_locking, account)
+            syncResult.onIoException(ioLockDelaySeconds)
+            return true
+        }
+        var completedWithoutError = false
+        var successRemote2Local = 0
+        var successLocal2Remote = 0
+        try {
+            val changeSetSince =
+                backend.getChangeSetSince(lastSyncedRemote)
+            var remoteChanges: List<TransactionChange> =
+                if (changeSetSince != null) {
+                    lastSyncedRemote = changeSetSince.sequenceNumber
+                    log().i("lastSyncedRemote: $lastSyncedRemote")
+                    changeSetSince.changes
+                } else emptyList()
+            var localChanges: MutableList<TransactionChange> = mutableListOf()
+            var sequenceToTest = lastSyncedLocal
+            while (true) {
+                sequenceToTest++
+                val nextChanges =
+                    getLocalChanges(provider, accountId, sequenceToTest)
+                lastSyncedLocal = if (nextChanges.isNotEmpty()) {
+                    localChanges.addAll(nextChanges.filter { !it.isEmpty })
+                    sequenceToTest
+                } else {
+                    break
+                }
+            }
+            log().i("lastSyncedLocal: $lastSyncedLocal")
+            if (localChanges.isNotEmpty() || remoteChanges.isNotEmpty()) {
+                var localMetadataChange =
+                    syncDelegate.findMetadataChange(localChanges)
+                var remoteMetadataChange =
+                    syncDelegate.findMetadataChange(remoteChanges)
+                if (remoteMetadataChange != null) {
+                    remoteChanges = syncDelegate.removeMetadataChange(remoteChanges)
+                }
+                if (localMetadataChange != null && remoteMetadataChange != null) {
+                    if (localMetadataChange.timeStamp() > remoteMetadataChange.timeStamp()) {
+                        remoteMetadataChange = null
+                    } else {
+                        localMetadataChange = null
+                        localChanges =
+                            syncDelegate.removeMetadataChange(localChanges)
+                                .toMutableList()
+                    }
+                }
+                if (localMetadataChange != null) {
+                    backend.updateAccount(instanceFromDb)
+                } else if (remoteMetadataChange != null) {
+                    backend.readAccountMetaData().onSuccess {
+                        if (updateAccountFromMetadata(provider, syncDelegate, it)) {
+                            successRemote2Local += 1
+                        } else {
                             appendToNotification(
-                                "ERROR (${e.javaClass.simpleName}): ${e.message} ",
-                                account, true
+                                "Error while writing account metadata to database",
+                                account,
+                                line
                             )
-                            report(e)
-                        } finally {
-                            if (successLocal2Remote > 0 || successRemote2Local > 0) {
-                                appendToNotification(
-                                    context.getString(
-                                        R.string.synchronization_end_success,
-                                        successRemote2Local,
-                                        successLocal2Remote
-                                    ), account, false
-                                )
-                            } else if (completedWithoutError) {
-                                appendToNotification(
-                                    context.getString(R.string.synchronization_end_success_none),
-                                    account,
-                                    false
-                                )
-                            }
-                            try {
-                                backend.unlock()
-                            } catch (e: IOException) {
-                                log().w(e)
-                                if (!handleAuthException(e, account)) {
-                                    notifyIoException(R.string.sync_io_exception_unlocking, account)
-                                    syncResult.stats.numIoExceptions++
-                                    syncResult.delayUntil = ioLockDelaySeconds
-                                }
-                            }
                         }
-                    } while (cursor.moveToNext())
+                    }
+                }
+                if (localChanges.size > 0) {
+                    localChanges =
+                        syncDelegate.collectSplits(localChanges).toMutableList()
+                }
+                val mergeResult: Pair<List<TransactionChange>, List<TransactionChange>> =
+                    syncDelegate.mergeChangeSets(localChanges, remoteChanges)
+                localChanges = mergeResult.first.toMutableList()
+                remoteChanges = mergeResult.second
+                if (remoteChanges.isNotEmpty()) {
+                    synchronized(dbLock) {
+                        syncDelegate.writeRemoteChangesToDb(provider, remoteChanges)
+                    }
+                    accountManager.setUserData(
+                        account,
+                        lastRemoteSyncKey,
+                        lastSyncedRemote.toString()
+                    )
+                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
+                    successRemote2Local += remoteChanges.size
+                }
+                if (localChanges.size > 0) {
+                    lastSyncedRemote =
+                        backend.writeChangeSet(
+                            lastSyncedRemote,
+                            localChanges,
+                            context
+                        )
+                    accountManager.setUserData(
+                        account,
+                        lastLocalSyncKey,
+                        lastSyncedLocal.toString()
+                    )
+                    log().i("storing lastSyncedLocal: $lastSyncedLocal")
+                    accountManager.setUserData(
+                        account,
+                        lastRemoteSyncKey,
+                        lastSyncedRemote.toString()
+                    )
+                    log().i("storing lastSyncedRemote: $lastSyncedRemote")
+                    successLocal2Remote = localChanges.size
+                }
+                if (!BuildConfig.DEBUG) {
+                    // on debug build for auditing purposes, we keep changes in the table
+                    provider.delete(
+                        TransactionProvider.CHANGES_URI,
+                        "$KEY_ACCOUNTID = ? AND $KEY_SYNC_SEQUENCE_LOCAL <= ?",
+                        arrayOf(accountId.toString(), lastSyncedLocal.toString())
+                    )
+                }
+            }
+            completedWithoutError = true
+        } catch (e: IOException) {
+            log().w(e)
+            if (handleAuthException(e, account)) {
+                return false
+            }
+            syncResult.onIoException(ioDefaultDelaySeconds)
+            notifyIoException(R.string.sync_io_exception_syncing, account)
+        } catch (e: RemoteException) {
+            syncResult.databaseError = true
+            notifyDatabaseError(e, account)
+        } catch (e: OperationApplicationException) {
+            syncResult.databaseError = true
+            notifyDatabaseError(e, account)
+        } catch (e: SQLiteException) {
+            syncResult.databaseError = true
+            nonRecoverableError(account, e.safeMessage)
+        } catch (e: Exception) {
+            appendToNotification(
+                "ERROR (${e.javaClass.simpleName}): ${e.message} ",
+                account, true
+            )
+            report(e)
+        } finally {
+            if (successLocal2Remote > 0 || successRemote2Local > 0) {
+                appendToNotification(
+                    context.getString(
+                        R.string.synchronization_end_success,
+                        successRemote2Local,
+                        successLocal2Remote
+                    ), account, line
+                )
+            } else if (completedWithoutError) {
+                appendToNotification(
+                    context.getString(R.string.synchronization_end_success_none),
+                    account,
+                    line
+                )
+            }
+            try {
+                backend.unlock()
+                if (completedWithoutError) {
+                    //the probe was taken before locking, so that changes
+                    //written by others while we were syncing are not missed
+                    accountManager.setUserData(account, lastProbeKey, probe)
+                }
+            } catch (e: IOException) {
+                log().w(e)
+                if (!handleAuthException(e, account)) {
+                    notifyIoException(R.string.sync_io_exception_unlocking, account)
+                    syncResult.onIoException(ioLockDelaySeconds)
                 }
             }
         }
+        return true
+    }
+
+    private fun SyncResult.onIoException(delayUntil: Long) {
+        synchronized(this) {
+            stats.numIoExceptions++
+            this.delayUntil = max(this.delayUntil, delayUntil)
+        }
+    }
+
+    /**
+     * failing to probe is not an error, we just do a regular sync
+     */
+    private fun probeChanges(backend: SyncBackendProvider, lastProbe: String?) = try {
+        backend.probeChanges(lastProbe)
+    } catch (e: IOException) {
+        log().w(e)
+        null
+    }
+
+    /**
+     * if we cannot tell, we assume there are
+     */
+    private fun hasPendingLocalChanges(
+        provider: ContentProviderClient,
+        accountId: Long,
+        lastSyncedLocal: Long
+    ) = try {
+        hasLocalChanges(provider, buildChangesUri(lastSyncedLocal + 1, accountId))
+    } catch (e: RemoteException) {
+        true
     }
 
     @Throws(RemoteException::class, OperationApplicationException::class)
@@ -510,7 +692,7 @@ class SyncAdapter @JvmOverloads constructor(
             )
         }
         ops.add(TransactionProvider.resumeChangeTrigger())
-        val contentProviderResults = provider.applyBatch(ops)
+        val contentProviderResults = synchronized(dbLock) { provider.applyBatch(ops) }
         val opsSize = ops.size
         val resultsSize = contentProviderResults.size
         if (opsSize != resultsSize) {
@@ -586,24 +768,60 @@ class SyncAdapter @JvmOverloads constructor(
     private fun appendToNotification(content: String, account: Account, newLine: Boolean) {
         log().i(content)
         if (shouldNotify) {
-            val contentBuilders = notificationContent[account.hashCode()]
-            val contentBuilder: StringBuilder
-            if (contentBuilders!!.isEmpty() || newLine) {
-                contentBuilder = StringBuilder()
-                contentBuilders.add(0, contentBuilder)
-            } else {
-                contentBuilder = contentBuilders[0]
+            synchronized(notificationContent) {
+                val contentBuilders = notificationContent[account.hashCode()]
+                val contentBuilder: StringBuilder
+                if (contentBuilders!!.isEmpty() || newLine) {
+                    contentBuilder = StringBuilder()
+                    contentBuilders.add(0, contentBuilder)
+                } else {
+                    contentBuilder = contentBuilders[0]
+                }
+                appendToLine(contentBuilder, content, contentBuilders, account)
             }
-            if (contentBuilder.isNotEmpty()) {
-                contentBuilder.append(" ")
+        }
+    }
+
+    /**
+     * starts a new line for the progress of one account, which is continued by passing it to
+     * [appendToNotification], even if accounts synced in parallel have added lines in between
+     */
+    private fun startNotificationLine(content: String, account: Account) =
+        StringBuilder().also { line ->
+            log().i(content)
+            if (shouldNotify) {
+                synchronized(notificationContent) {
+                    val contentBuilders = notificationContent[account.hashCode()]!!
+                    contentBuilders.add(0, line)
+                    appendToLine(line, content, contentBuilders, account)
+                }
             }
-            contentBuilder.append(content)
-            notifyUser(
-                notificationTitle,
-                concat(contentBuilders),
-                account, null
-            )
         }
+
+    private fun appendToNotification(content: String, account: Account, line: StringBuilder) {
+        log().i(content)
+        if (shouldNotify) {
+            synchronized(notificationContent) {
+                appendToLine(line, content, notificationContent[account.hashCode()]!!, account)
+            }
+        }
+    }
+
+    private fun appendToLine(
+        line: StringBuilder,
+        content: String,
+        contentBuilders: List<StringBuilder>,
+        account: Account
+    ) {
+        if (line.isNotEmpty()) {
+            line.append(" ")
+        }
+        line.append(content)
+        notifyUser(
+            notificationTitle,
+            concat(contentBuilders),
+            account, null
+        )
     }
 
     fun concat(contentBuilders: List<CharSequence>) =
@@ -842,6 +1060,7 @@ class SyncAdapter @JvmOverloads constructor(
 
     companion object {
         const val BATCH_SIZE = 100
+        private const val MAX_PARALLEL_ACCOUNTS = 4
         const val KEY_RESET_REMOTE_ACCOUNT = "reset_remote_account"
         const val KEY_UPLOAD_AUTO_BACKUP_URI = "upload_auto_backup_uri"
         const val KEY_UPLOAD_AUTO_BACKUP_NAME = "upload_auto_backup_name"
@@ -863,6 +1082,11 @@ class SyncAdapter @JvmOverloads constructor(
             return "last_synced_local_$accountId"
         }
 
+        @JvmStatic
+        fun KEY_LAST_PROBE(accountId: Long): String {
+            return "last_probe_$accountId"
+        }
+
         private val ioDefaultDelaySeconds: Long
             get() = System.currentTimeMillis() / 1000 + IO_DEFAULT_DELAY_SECONDS
         private val ioLockDelaySeconds: Long
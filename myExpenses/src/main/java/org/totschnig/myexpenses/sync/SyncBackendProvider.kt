@@ -21,6 +21,15 @@ interface SyncBackendProvider {
     @Throws(IOException::class)
     fun resetAccountData(uuid: String)
 
+    /**
+     * cheap check if the current account has been changed by other devices, without locking it
+     * @param lastProbe the result of the previous call for the current account, null if not known
+     * @return a value identifying the current state of the account, equal to [lastProbe] if it
+     * has not changed since, null if the backend cannot tell
+     */
+    @Throws(IOException::class)
+    fun probeChanges(lastProbe: String?): String? = null
+
     @Throws(IOException::class)
     fun lock()
 
@@ -1,5 +1,6 @@
 package org.totschnig.myexpenses.task;
 
+import static org.totschnig.myexpenses.activity.ProtectedFragmentActivity.PROGRESS_TAG;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENT_BALANCE;
 import static org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID;
 import static org.totschnig.myexpenses.provider.filter.FilterPersistenceKt.KEY_FILTER;
@@ -10,9 +11,11 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 
 import androidx.documentfile.provider.DocumentFile;
+import androidx.fragment.app.FragmentActivity;
 
 import org.totschnig.myexpenses.MyApplication;
 import org.totschnig.myexpenses.R;
+import org.totschnig.myexpenses.dialog.ProgressDialogFragment;
 import org.totschnig.myexpenses.export.pdf.PdfPrinter;
 import org.totschnig.myexpenses.provider.filter.WhereFilter;
 import org.totschnig.myexpenses.util.AppDirHelper;
@@ -20,9 +23,11 @@ import org.totschnig.myexpenses.util.ExceptionUtilsKt;
 import org.totschnig.myexpenses.util.Result;
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler;
 
+import java.util.concurrent.CancellationException;
+
 import timber.log.Timber;
 
-public class PrintTask extends AsyncTask<Void, String, Result<Uri>> {
+public class PrintTask extends AsyncTask<Void, Integer, Result<Uri>> implements PdfPrinter.ProgressListener {
     private final TaskExecutionFragment taskExecutionFragment;
     private long accountId;
     private WhereFilter filter;
@@ -47,6 +52,30 @@ public class PrintTask extends AsyncTask<Void, String, Result<Uri>> {
         }
     }
 
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        if (this.taskExecutionFragment.mCallbacks != null) {
+            ProgressDialogFragment f = (ProgressDialogFragment) ((FragmentActivity) this.taskExecutionFragment.mCallbacks)
+                    .getSupportFragmentManager().findFragmentByTag(PROGRESS_TAG);
+            if (f != null && f.getMax() != values[1]) {
+                f.setMax(values[1]);
+            }
+            this.taskExecutionFragment.mCallbacks.onProgressUpdate(values[0]);
+        }
+    }
+
+    @Override
+    protected void onCancelled(Result<Uri> result) {
+        if (this.taskExecutionFragment.mCallbacks != null) {
+            this.taskExecutionFragment.mCallbacks.onCancelled();
+        }
+    }
+
+    @Override
+    public void onProgress(int current, int total) {
+        publishProgress(current, total);
+    }
+
     /* (non-Javadoc)
      * this is where the bulk of the work is done via calls to {@link #importCatsMain()}
      * and {@link #importCatsSub()}
@@ -62,7 +91,9 @@ public class PrintTask extends AsyncTask<Void, String, Result<Uri>> {
             return Result.ofFailure(R.string.io_error_appdir_null);
         }
         try {
-            return new PdfPrinter(accountId, appDir, filter, currentBalance).print(context);
+            return new PdfPrinter(accountId, appDir, filter, currentBalance).print(context, this);
+        } catch (CancellationException e) {
+            return null;
         } catch (Exception e) {
             CrashHandler.report(e);
             return Result.ofFailure(R.string.export_sdcard_failure, appDir.getName(), ExceptionUtilsKt.getSafeMessage(e));
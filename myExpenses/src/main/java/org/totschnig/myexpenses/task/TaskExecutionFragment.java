@@ -18,6 +18,7 @@ package org.totschnig.myexpenses.task;
 
 
 import android.app.Activity;
+import android.os.AsyncTask;
 import android.net.Uri;
 import android.os.Bundle;
 
@@ -84,6 +85,8 @@ public class TaskExecutionFragment<T> extends Fragment {
   //TODO refactor so that callbacks are not visible to hosted tasks
   TaskCallbacks mCallbacks;
 
+  private AsyncTask<?, ?, ?> task;
+
   @Deprecated
   public static <T> TaskExecutionFragment<T> newInstance(int taskId, T[] objectIds,
                                                       Serializable extra) {
@@ -159,14 +162,14 @@ public class TaskExecutionFragment<T> extends Fragment {
     crashHandler.addBreadcrumb(String.valueOf(taskId));
     switch (taskId) {
       case TASK_GRISBI_IMPORT:
-        new GrisbiImportTask(this, args).execute();
+        task = new GrisbiImportTask(this, args).execute();
         break;
       case TASK_PRINT:
-        new PrintTask(this, args).execute();
+        task = new PrintTask(this, args).execute();
         break;
       default:
         try {
-          new GenericTask<T>(this, taskId, args.getSerializable(KEY_EXTRA))
+          task = new GenericTask<T>(this, taskId, args.getSerializable(KEY_EXTRA))
               .execute((T[]) args.getSerializable(KEY_OBJECT_IDS));
         } catch (ClassCastException e) {
           Timber.e(e);
@@ -174,6 +177,15 @@ public class TaskExecutionFragment<T> extends Fragment {
     }
   }
 
+  /**
+   * Requests cancellation of the running task, it is up to the task to check for it
+   */
+  public void cancel() {
+    if (task != null) {
+      task.cancel(false);
+    }
+  }
+
   /**
    * Set the callback to null so we don't accidentally leak the Activity
    * instance.
@@ -11,6 +11,8 @@ import java.math.BigDecimal
 import java.text.DecimalFormat
 import java.text.NumberFormat
 import java.util.Currency
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.pow
 
 interface ICurrencyFormatter {
     fun formatCurrency(
@@ -19,6 +21,15 @@ interface ICurrencyFormatter {
         configure: ((DecimalFormat) -> Unit)? = null
     ): String
 
+    /**
+     * formats an amount given in minor units, implementations should avoid creating a [BigDecimal]
+     */
+    fun formatMinor(
+        amountMinor: Long,
+        currency: CurrencyUnit,
+        configure: ((DecimalFormat) -> Unit)? = null
+    ) = formatCurrency(Money(currency, amountMinor).amountMajor, currency, configure)
+
     fun invalidate(contentResolver: ContentResolver, currency: String? = null) {}
 }
 
@@ -39,10 +50,7 @@ object DebugCurrencyFormatter : ICurrencyFormatter {
 fun ICurrencyFormatter.formatMoney(
     money: Money,
     configure: ((DecimalFormat) -> Unit)? = null
-): String {
-    val amount = money.amountMajor
-    return formatCurrency(amount, money.currencyUnit, configure)
-}
+) = formatMinor(money.amountMinor, money.currencyUnit, configure)
 
 /**
  * utility method that calls formatters for amount this method can be called
@@ -50,15 +58,52 @@ fun ICurrencyFormatter.formatMoney(
  *
  * @return formatted string
  */
-fun ICurrencyFormatter.convAmount(amount: Long, currency: CurrencyUnit): String {
-    return formatMoney(Money(currency, amount))
-}
+fun ICurrencyFormatter.convAmount(amount: Long, currency: CurrencyUnit) =
+    formatMinor(amount, currency)
 
+/**
+ * Formats are prepared once per currency. Since [NumberFormat] is not thread-safe, each thread
+ * formats with its own copy, together with the variants created by the configure callbacks
+ * it has recently been called with.
+ */
 open class CurrencyFormatter(
     private val prefHandler: PrefHandler,
     private val application: MyApplication
 ) : ICurrencyFormatter {
-    private val numberFormats: MutableMap<String, NumberFormat> = HashMap()
+    private val numberFormats: MutableMap<String, CurrencyFormat> = ConcurrentHashMap()
+
+    private class CurrencyFormat(private val prototype: DecimalFormat) {
+        private inner class ThreadFormats {
+            val plain = prototype.clone() as DecimalFormat
+            val configured = object : LinkedHashMap<(DecimalFormat) -> Unit, DecimalFormat>(
+                MAX_CONFIGURED, 0.75f, true
+            ) {
+                override fun removeEldestEntry(eldest: MutableMap.MutableEntry<(DecimalFormat) -> Unit, DecimalFormat>?) =
+                    size > MAX_CONFIGURED
+            }
+        }
+
+        private val perThread = object : ThreadLocal<ThreadFormats>() {
+            override fun initialValue() = ThreadFormats()
+        }
+
+        fun get(configure: ((DecimalFormat) -> Unit)?): DecimalFormat = perThread.get()!!.let {
+            if (configure == null) it.plain else it.configured.getOrPut(configure) {
+                (prototype.clone() as DecimalFormat).also(configure)
+            }
+        }
+    }
+
+    companion object {
+        private const val MAX_CONFIGURED = 4
+        private val POWERS_OF_TEN = LongArray(16) { 10.0.pow(it).toLong() }
+
+        /**
+         * amounts below this limit have at most 15 significant digits, hence are represented
+         * exactly by the double nearest to amountMinor / 10^fractionDigits
+         */
+        private const val MAX_EXACT_MINOR = 1_000_000_000_000_000L
+    }
 
     override fun invalidate(contentResolver: ContentResolver, currency: String?) {
         if (currency == null) {
@@ -90,37 +135,51 @@ open class CurrencyFormatter(
         return NumberFormat.getCurrencyInstance(application.userPreferredLocale)
     }
 
-    private fun getNumberFormat(currencyUnit: CurrencyUnit): NumberFormat {
-        var numberFormat = numberFormats[currencyUnit.code]
-        if (numberFormat == null) {
-            numberFormat = initNumberFormat()
-            val fractionDigits = currencyUnit.fractionDigits
-            try {
-                numberFormat.currency = Currency.getInstance(currencyUnit.code)
-            } catch (ignored: Exception) { /*Custom locale}*/
-            }
-            val currencySymbol = currencyUnit.symbol
-            val decimalFormatSymbols = (numberFormat as DecimalFormat).decimalFormatSymbols
-            decimalFormatSymbols.currencySymbol = currencySymbol
-            numberFormat.decimalFormatSymbols = decimalFormatSymbols
-            if (fractionDigits <= 3) {
-                numberFormat.minimumFractionDigits = fractionDigits
-            }
-            numberFormat.maximumFractionDigits = fractionDigits
-            numberFormats[currencyUnit.code] = numberFormat
+    private fun buildNumberFormat(currencyUnit: CurrencyUnit): DecimalFormat {
+        val numberFormat = initNumberFormat()
+        val fractionDigits = currencyUnit.fractionDigits
+        try {
+            numberFormat.currency = Currency.getInstance(currencyUnit.code)
+        } catch (ignored: Exception) { /*Custom locale}*/
         }
+        val currencySymbol = currencyUnit.symbol
+        val decimalFormatSymbols = (numberFormat as DecimalFormat).decimalFormatSymbols
+        decimalFormatSymbols.currencySymbol = currencySymbol
+        numberFormat.decimalFormatSymbols = decimalFormatSymbols
+        if (fractionDigits <= 3) {
+            numberFormat.minimumFractionDigits = fractionDigits
+        }
+        numberFormat.maximumFractionDigits = fractionDigits
         return numberFormat
     }
 
+    private fun getNumberFormat(
+        currencyUnit: CurrencyUnit,
+        configure: ((DecimalFormat) -> Unit)?
+    ): DecimalFormat = (numberFormats[currencyUnit.code] ?: CurrencyFormat(
+        buildNumberFormat(currencyUnit)
+    ).also { numberFormats[currencyUnit.code] = it }).get(configure)
+
     override fun formatCurrency(
         amount: BigDecimal,
         currency: CurrencyUnit,
         configure: ((DecimalFormat) -> Unit)?
+    ): String = getNumberFormat(currency, configure).format(amount)
+
+    override fun formatMinor(
+        amountMinor: Long,
+        currency: CurrencyUnit,
+        configure: ((DecimalFormat) -> Unit)?
     ): String {
-        return getNumberFormat(currency).let { nf ->
-            if (configure != null && nf is DecimalFormat) {
-                (nf.clone() as DecimalFormat).also { configure(it) }
-            } else nf
-        }.format(amount)
+        val numberFormat = getNumberFormat(currency, configure)
+        val fractionDigits = currency.fractionDigits
+        return when {
+            fractionDigits == 0 -> numberFormat.format(amountMinor)
+            fractionDigits in 1 until POWERS_OF_TEN.size &&
+                    amountMinor > -MAX_EXACT_MINOR && amountMinor < MAX_EXACT_MINOR ->
+                numberFormat.format(amountMinor.toDouble() / POWERS_OF_TEN[fractionDigits])
+
+            else -> numberFormat.format(Money(currency, amountMinor).amountMajor)
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,11 +3,16 @@ package org.totschnig.myexpenses.util
 import android.annotation.SuppressLint
 import android.content.Context
 import android.text.TextUtils
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flow
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import timber.log.Timber
 import java.text.SimpleDateFormat
 import java.time.DayOfWeek
+import java.time.Duration
 import java.time.Instant
 import java.time.LocalDate
 import java.time.LocalDateTime
@@ -54,6 +59,19 @@ fun getDateTimeFormatter(context: Context, shortYear: Boolean = false): DateTime
         }
     } ?: DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT)
 
+/**
+ * emits the current date, and again after each midnight, for data that depends on the day. Since
+ * the delay does not advance while the device sleeps, the new date may be emitted late.
+ */
+fun currentDateFlow(): Flow<LocalDate> = flow {
+    while (true) {
+        val today = LocalDate.now()
+        emit(today)
+        val nextDay = today.plusDays(1).atStartOfDay(ZoneId.systemDefault())
+        delay(Duration.between(ZonedDateTime.now(), nextDay).toMillis().coerceAtLeast(1000))
+    }
+}.distinctUntilChanged()
+
 fun LocalDate.toStartOfDayEpoch(): Long = localDateTime2Epoch(this.atTime(LocalTime.MIN))
 fun LocalDate.toEndOfDayEpoch(): Long = localDateTime2Epoch(this.atTime(LocalTime.MAX))
 
@@ -55,6 +55,11 @@ abstract class AbstractSyncBackendViewModel(application: Application) :
                         SyncAdapter.KEY_LAST_SYNCED_REMOTE(account.first),
                         null
                     )
+                    accountManager.setUserData(
+                        syncAccount,
+                        SyncAdapter.KEY_LAST_PROBE(account.first),
+                        null
+                    )
 
                     repository.updateAccount(account.first) {
                         putNull(KEY_SYNC_ACCOUNT_NAME)
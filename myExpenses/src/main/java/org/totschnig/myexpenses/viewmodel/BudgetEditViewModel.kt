@@ -38,6 +38,8 @@ class BudgetEditViewModel(application: Application) : BudgetViewModel(applicatio
                 immediatePersist = false, restoreFromPreferences = false)
         whereFilter.criteria.forEach { filterPersistence.addCriteria(it) }
         filterPersistence.persistAll()
+        //the filter is applied when computing budget progress
+        repository.budgetAmountsCache.invalidate()
     }
 
     companion object {
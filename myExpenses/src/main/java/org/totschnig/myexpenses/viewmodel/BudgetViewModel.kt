@@ -3,24 +3,15 @@ package org.totschnig.myexpenses.viewmodel
 import android.app.Application
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.liveData
-import androidx.lifecycle.viewModelScope
 import app.cash.copper.flow.mapToList
-import app.cash.copper.flow.mapToOne
 import app.cash.copper.flow.observeQuery
-import arrow.core.Tuple4
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.MutableSharedFlow
-import kotlinx.coroutines.flow.combine
-import kotlinx.coroutines.flow.flattenMerge
-import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.launch
-import org.totschnig.myexpenses.db2.budgetAllocationQueryUri
-import org.totschnig.myexpenses.db2.sumLoaderForBudget
+import kotlinx.coroutines.flow.flatMapLatest
+import org.totschnig.myexpenses.db2.loadBudgetAmounts
 import org.totschnig.myexpenses.provider.DataBaseAccount.Companion.HOME_AGGREGATE_ID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNT_LABEL
-import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CODE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COLOR
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
@@ -31,17 +22,15 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_DEFAULT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_START
-import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_ACCOUNTS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_BUDGETS
 import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_CURRENCIES
-import org.totschnig.myexpenses.provider.DatabaseConstants.THIS_YEAR
 import org.totschnig.myexpenses.provider.TransactionProvider
-import org.totschnig.myexpenses.provider.getLong
-import org.totschnig.myexpenses.viewmodel.BudgetViewModel2.Companion.aggregateNeutralPrefKey
+import org.totschnig.myexpenses.provider.budgetFilterPrefNameForCriteria
+import org.totschnig.myexpenses.util.currentDateFlow
 import org.totschnig.myexpenses.viewmodel.data.Budget
-import java.util.Locale
+import org.totschnig.myexpenses.viewmodel.data.BudgetAmounts
 
 open class BudgetViewModel(application: Application) :
     ContentResolvingAndroidViewModel(application) {
@@ -57,12 +46,6 @@ open class BudgetViewModel(application: Application) :
      */
     val databaseResult = MutableLiveData<Long>()
 
-    /**
-     * pair of position to budget
-     */
-    private val budgetLoaderFlow = MutableSharedFlow<Pair<Int, Budget>>()
-
-
     fun budget(budgetId: Long) = liveData(context = coroutineContext()) {
         contentResolver.query(
             TransactionProvider.BUDGETS_URI,
@@ -72,45 +55,14 @@ open class BudgetViewModel(application: Application) :
         }
     }
 
+    /**
+     * spent and allocated amounts of all budgets, keyed by budget id, loaded in one query and
+     * shared with the budget widget
+     */
     @OptIn(ExperimentalCoroutinesApi::class)
-    val amounts: Flow<Tuple4<Int, Long, Long, Long>> by lazy {
-        budgetLoaderFlow.map { budgetPair ->
-            dataStore.data.map {
-                Triple(
-                    budgetPair.first,
-                    budgetPair.second,
-                    it[aggregateNeutralPrefKey(budgetPair.second.id)] == true
-                )
-            }
-        }.flattenMerge().map { (position, budget, aggregateNeutral) ->
-            val (sumUri, sumSelection, sumSelectionArguments) = repository.sumLoaderForBudget(
-                budget,
-                aggregateNeutral
-            )
-
-            val allocationUri = budgetAllocationQueryUri(
-                budget.id,
-                0,
-                budget.grouping,
-                THIS_YEAR,
-                budget.grouping.queryArgumentForThisSecond
-            )
-
-            combine(
-                contentResolver.observeQuery(
-                    sumUri,
-                    arrayOf(KEY_SUM_EXPENSES), sumSelection, sumSelectionArguments, null, true
-                )
-                    .mapToOne { it.getLong(KEY_SUM_EXPENSES) },
-                contentResolver.observeQuery(allocationUri)
-                    .mapToOne(0) { it.getLong(KEY_BUDGET) }
-            ) { spent, allocated -> Tuple4(position, budget.id, spent, allocated) }
-        }.flattenMerge()
-    }
-
-    fun loadBudgetAmounts(position: Int, budget: Budget) {
-        viewModelScope.launch {
-            budgetLoaderFlow.emit(position to budget)
+    val amounts: Flow<Map<Long, BudgetAmounts>> by lazy {
+        currentDateFlow().flatMapLatest { today ->
+            repository.budgetAmountsCache.observe(today) { repository.loadBudgetAmounts() }
         }
     }
 
@@ -131,7 +83,6 @@ open class BudgetViewModel(application: Application) :
 
         fun q(column: String) = "$TABLE_BUDGETS.$column"
 
-        fun prefNameForCriteria(budgetId: Long): String =
-            "budgetFilter_%%s_%d".format(Locale.ROOT, budgetId)
+        fun prefNameForCriteria(budgetId: Long) = budgetFilterPrefNameForCriteria(budgetId)
     }
 }
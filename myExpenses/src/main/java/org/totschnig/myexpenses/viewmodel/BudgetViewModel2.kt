@@ -6,7 +6,6 @@ import android.content.ContentUris
 import android.content.ContentValues
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.snapshots.SnapshotStateMap
-import androidx.datastore.preferences.core.booleanPreferencesKey
 import androidx.lifecycle.SavedStateHandle
 import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
@@ -33,6 +32,7 @@ import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.budgetAggregateNeutralPrefKey
 import org.totschnig.myexpenses.provider.filter.FilterPersistence
 import org.totschnig.myexpenses.util.crashreporting.CrashHandler
 import org.totschnig.myexpenses.viewmodel.data.Budget
@@ -300,13 +300,13 @@ class BudgetViewModel2(application: Application, savedStateHandle: SavedStateHan
 
     override suspend fun persistAggregateNeutral(aggregateNeutral: Boolean) {
         super.persistAggregateNeutral(aggregateNeutral)
+        repository.budgetAmountsCache.invalidate()
         updateWidgets(getApplication(), BudgetWidget::class.java, WIDGET_LIST_DATA_CHANGED)
     }
 
     override val withIncomeSum = false
 
     companion object {
-        fun aggregateNeutralPrefKey(budgetId: Long) = booleanPreferencesKey(AGGREGATE_NEUTRAL_PREF_KEY_PREFIX + budgetId)
-        private const val AGGREGATE_NEUTRAL_PREF_KEY_PREFIX = "budgetAggregateNeutral_"
+        fun aggregateNeutralPrefKey(budgetId: Long) = budgetAggregateNeutralPrefKey(budgetId)
     }
 }
\ No newline at end of file
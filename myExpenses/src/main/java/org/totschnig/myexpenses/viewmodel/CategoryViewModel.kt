@@ -25,6 +25,7 @@ import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.mapNotNull
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.flow.update
@@ -33,8 +34,10 @@ import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.FLAG_NEUTRAL
+import org.totschnig.myexpenses.db2.RankingContext
+import org.totschnig.myexpenses.db2.cachedLikelyCategories
 import org.totschnig.myexpenses.db2.deleteCategory
-import org.totschnig.myexpenses.db2.ensureCategoryTree
+import org.totschnig.myexpenses.db2.importCategoryTrees
 import org.totschnig.myexpenses.db2.getCategoryPath
 import org.totschnig.myexpenses.db2.moveCategory
 import org.totschnig.myexpenses.db2.saveCategory
@@ -163,6 +166,16 @@ open class CategoryViewModel(
     }
         .stateIn(viewModelScope, SharingStarted.Lazily, LoadingState.Loading)
 
+    /**
+     * offered above the tree while it is loading and afterwards, empty unless the caller passed a
+     * [RankingContext] with [KEY_RANKING_CONTEXT]
+     */
+    val likelyCategories: Flow<List<Category>> = flow {
+        emit(savedStateHandle.get<RankingContext>(KEY_RANKING_CONTEXT)?.let {
+            repository.cachedLikelyCategories(it)
+        } ?: emptyList())
+    }
+
     val categoryTreeForSelect: Flow<LoadingState>
         get() = categoryTree(sortOrder = sortOrder.value.toOrderByWithDefault(defaultSort, collate))
 
@@ -454,7 +467,7 @@ open class CategoryViewModel(
                 .flatMap { it.categories }
                 .fold(
                     onSuccess = { list ->
-                        "Imported ${list.sumOf { repository.ensureCategoryTree(it, null) }} categories"
+                        "Imported ${repository.importCategoryTrees(list)} categories"
                                 },
                     onFailure = {
                         if (it !is FileNotFoundException) {
@@ -477,6 +490,7 @@ open class CategoryViewModel(
     companion object {
 
         const val KEY_TYPE_FILTER = "typeFilter"
+        const val KEY_RANKING_CONTEXT = "rankingContext"
 
         fun ingest(
             withColors: Boolean,
@@ -169,27 +169,17 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
 
     open fun deleteTransactions(ids: LongArray, markAsVoid: Boolean = false) {
         viewModelScope.launch(context = coroutineContext()) {
-            var success = 0
-            var failure = 0
-            ids.forEach {
-                try {
-                    if (repository.deleteTransaction(it, markAsVoid, true))
-                        success++ else failure++
-                } catch (e: SQLiteConstraintException) {
-                    CrashHandler.reportWithDbSchema(contentResolver, e)
-                    failure++
-                }
-                bulkDeleteStateInternal.update {
-                    DeleteState.DeleteProgress(success + failure, ids.size)
-                }
-            }
-            contentResolver.notifyChange(TRANSACTIONS_URI, null, true)
-            contentResolver.notifyChange(ACCOUNTS_URI, null, false)
-            contentResolver.notifyChange(DEBTS_URI, null, false)
-            contentResolver.notifyChange(UNCOMMITTED_URI, null, false)
-            bulkDeleteStateInternal.update {
-                DeleteState.DeleteComplete(success, failure)
+            val result = try {
+                repository.deleteTransactions(ids.toList(), markAsVoid) { done, total ->
+                    bulkDeleteStateInternal.update {
+                        DeleteState.DeleteProgress(done, total)
+                    }
+                }.let { DeleteState.DeleteComplete(it.applied, it.failed) }
+            } catch (e: SQLiteConstraintException) {
+                CrashHandler.reportWithDbSchema(contentResolver, e)
+                DeleteState.DeleteComplete(0, ids.size)
             }
+            bulkDeleteStateInternal.update { result }
         }
     }
 
@@ -221,6 +211,10 @@ abstract class ContentResolvingAndroidViewModel(application: Application) :
                             syncAccount,
                             SyncAdapter.KEY_LAST_SYNCED_REMOTE(accountId), null
                         )
+                        accountManager.setUserData(
+                            syncAccount,
+                            SyncAdapter.KEY_LAST_PROBE(accountId), null
+                        )
                     }
                 } catch (e: Exception) {
                     CrashHandler.report(e)
@@ -26,11 +26,13 @@ import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.mapNotNull
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import kotlinx.parcelize.Parcelize
 import org.totschnig.myexpenses.R
+import org.totschnig.myexpenses.db2.InvalidatingCache
 import org.totschnig.myexpenses.db2.updateCategoryColor
 import org.totschnig.myexpenses.model.Grouping
 import org.totschnig.myexpenses.provider.DatabaseConstants
@@ -229,6 +231,37 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
     open val defaultDisplayTitle: String?
         get() = getString(R.string.menu_aggregates)
 
+    /**
+     * identifies the result of [categoryTreeWithSum]. keepCriteria is not part of the key, each
+     * subclass is expected to always pass in the same criteria.
+     */
+    data class ChartDataKey<T>(
+        val accountInfo: T,
+        val incomeType: Boolean,
+        val aggregateNeutral: Boolean,
+        val groupingInfo: GroupingInfo,
+        val whereFilter: WhereFilter,
+        val queryParameter: Map<String, String>
+    )
+
+    private val chartDataCache = InvalidatingCache<ChartDataKey<T>, Category>(
+        contentResolver,
+        CHART_DATA_CACHE_SIZE,
+        TransactionProvider.TRANSACTIONS_URI,
+        TransactionProvider.CATEGORIES_URI,
+        TransactionProvider.BUDGETS_URI
+    )
+
+    override fun onCleared() {
+        super.onCleared()
+        chartDataCache.close()
+    }
+
+    /**
+     * Results are served from [chartDataCache] and only reloaded after the provider notifies a
+     * change. Once the data for [groupingInfo] is available, the previous and the next period are
+     * loaded in the background, so that [forward] and [backward] can render without delay.
+     */
     fun categoryTreeWithSum(
         accountInfo: T,
         incomeType: Boolean,
@@ -237,9 +270,41 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
         whereFilter: WhereFilter = WhereFilter.empty(),
         keepCriteria: ((Category) -> Boolean)? = null,
         queryParameter: Map<String, String> = emptyMap(),
-    ): Flow<Category> =
+    ): Flow<Category> {
+        val key = ChartDataKey(
+            accountInfo, incomeType, aggregateNeutral, groupingInfo, whereFilter, queryParameter
+        )
+        val loader: suspend (ChartDataKey<T>) -> Category = { loadCategoryTreeWithSum(it, keepCriteria) }
+        return chartDataCache.observe(key) { loader(key) }.onEach {
+            chartDataCache.prefetch(
+                viewModelScope,
+                adjacentPeriods(groupingInfo).map { key.copy(groupingInfo = it) },
+                loader
+            )
+        }
+    }
+
+    private fun adjacentPeriods(groupingInfo: GroupingInfo): List<GroupingInfo> =
+        when (groupingInfo.grouping) {
+            Grouping.NONE -> emptyList()
+            Grouping.YEAR -> listOf(
+                groupingInfo.copy(year = groupingInfo.year - 1),
+                groupingInfo.copy(year = groupingInfo.year + 1)
+            )
+
+            else -> dateInfoExtra.value?.let {
+                listOf(groupingInfo.previous(it), groupingInfo.next(it))
+            } ?: emptyList()
+        }
+
+    private suspend fun loadCategoryTreeWithSum(
+        key: ChartDataKey<T>,
+        keepCriteria: ((Category) -> Boolean)?
+    ): Category = with(key) {
+        val fromCategorySums = canUseCategorySums(groupingInfo, whereFilter)
         categoryTree(
-            selection = buildFilterClause(groupingInfo, whereFilter, VIEW_WITH_ACCOUNT),
+            selection = if (fromCategorySums) null else
+                buildFilterClause(groupingInfo, whereFilter, VIEW_WITH_ACCOUNT),
             projection = buildList {
                 add("$TREE_CATEGORIES.*")
                 add(KEY_SUM)
@@ -250,9 +315,12 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
                     add(KEY_ONE_TIME)
                 }
             }.toTypedArray(),
-            additionalSelectionArgs = whereFilter.getSelectionArgs(true),
+            additionalSelectionArgs = if (fromCategorySums) null else whereFilter.getSelectionArgs(true),
             queryParameter = queryParameter + buildMap {
                 put(KEY_TYPE, incomeType.toString())
+                if (fromCategorySums) {
+                    put(TransactionProvider.QUERY_PARAMETER_CATEGORY_SUMS, true.toString())
+                }
                 put(
                     TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL,
                     aggregateNeutral.toString()
@@ -271,12 +339,25 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
                 }
             },
             keepCriteria = keepCriteria
-        ).mapNotNull {
+        ).first().let {
             when (it) {
                 is LoadingState.Empty -> Category.EMPTY
                 is LoadingState.Data -> it.data
             }
         }
+    }
+
+    /**
+     * sums for whole calendar years and months (or all time) without further filter are read
+     * from the sums per month maintained by the database
+     */
+    private fun canUseCategorySums(groupingInfo: GroupingInfo, whereFilter: WhereFilter) =
+        whereFilter.isEmpty && when (groupingInfo.grouping) {
+            Grouping.NONE -> dateFilterClause(groupingInfo) == null
+            Grouping.YEAR -> true
+            Grouping.MONTH -> prefHandler.monthStart == 1
+            else -> false
+        }
 
     val filterClause: String
         get() = buildFilterClause(groupingInfo!!, _whereFilter.value, VIEW_COMMITTED)
@@ -376,6 +457,10 @@ abstract class DistributionViewModelBase<T : DistributionAccountInfo>(
         }
     }
 
+    companion object {
+        const val CHART_DATA_CACHE_SIZE = 24
+    }
+
     @Parcelize
     data class GroupingInfo(
         val grouping: Grouping = Grouping.NONE,
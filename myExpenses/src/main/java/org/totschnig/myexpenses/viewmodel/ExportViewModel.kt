@@ -3,14 +3,20 @@ package org.totschnig.myexpenses.viewmodel
 import android.app.Application
 import android.net.Uri
 import android.os.Bundle
+import androidx.documentfile.provider.DocumentFile
 import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
 import org.totschnig.myexpenses.db2.loadAccount
@@ -46,6 +52,7 @@ import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.abs
 
 class ExportViewModel(application: Application) : ContentResolvingAndroidViewModel(application) {
@@ -65,6 +72,11 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
         const val EXPORT_HANDLE_DELETED_DO_NOTHING = -1
         const val EXPORT_HANDLE_DELETED_UPDATE_BALANCE = 0
         const val EXPORT_HANDLE_DELETED_CREATE_HELPER = 1
+
+        /**
+         * accounts exported to separate files at the same time
+         */
+        const val MAX_PARALLEL_EXPORTS = 4
     }
 
     private val _publishProgress: MutableSharedFlow<String?> = MutableSharedFlow()
@@ -117,7 +129,6 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
                     AppDirHelper.getAppDir(application).onFailure {
                         publishProgress(localizedContext.getString(R.string.io_error_appdir_null))
                     }.onSuccess { appDir ->
-                        var account: Account?
                         val oneFile = accountIds.size == 1 || mergeP
                         val destDir = if (oneFile) {
                             appDir
@@ -125,112 +136,172 @@ class ExportViewModel(application: Application) : ContentResolvingAndroidViewMod
                             AppDirHelper.newDirectory(appDir, fileName)
                         }
                         if (destDir != null) {
-                            val successfullyExported = ArrayList<Account>()
-                            val simpleDateFormat = SimpleDateFormat("yyyMMdd-HHmmss", Locale.US)
-                            val now = Date()
-                            for (i in accountIds.indices) {
-                                account = repository.loadAccount(accountIds[i])
-                                if (account == null) continue
-                                publishProgress(account.label + " ...")
-                                try {
-                                    val append = mergeP && i > 0
-                                    val fileNameForAccount =
-                                        if (oneFile) fileName else String.format(
-                                            "%s-%s", Utils.escapeForFileName(account.label),
-                                            simpleDateFormat.format(now)
-                                        )
-                                    val exporter = when (format) {
-                                        ExportFormat.CSV -> CsvExporter(
-                                            account,
-                                            currencyContext,
-                                            filter,
-                                            notYetExportedP,
-                                            dateFormat,
-                                            decimalSeparator,
-                                            encoding,
-                                            !append,
-                                            delimiter,
-                                            mergeP,
-                                            prefHandler.getBoolean(PrefKey.CSV_EXPORT_SPLIT_CATEGORIES, false),
-                                            prefHandler.getBoolean(PrefKey.CSV_EXPORT_SPLIT_AMOUNT, true),
-                                            timeFormat
-                                        )
-                                        ExportFormat.QIF -> QifExporter(
-                                            account,
-                                            currencyContext,
-                                            filter,
-                                            notYetExportedP,
-                                            dateFormat,
-                                            decimalSeparator,
-                                            encoding
-                                        )
-                                        ExportFormat.JSON -> JSONExporter(
-                                            account,
-                                            currencyContext,
-                                            filter,
-                                            notYetExportedP,
-                                            dateFormat,
-                                            decimalSeparator,
-                                            encoding,
-                                            preamble = if (mergeP && i == 0) "[" else "",
-                                            appendix = if (mergeP) if (i < accountIds.size - 1) "," else "]" else ""
-                                        )
-                                    }
-                                    val result = exporter.export(localizedContext, lazy {
-                                        AppDirHelper.buildFile(
-                                            destDir,
-                                            "$fileNameForAccount.${format.extension}",
-                                            format.mimeType,
-                                            append
-                                        )?.let {
-                                            Result.success(it)
-                                        } ?: Result.failure(
-                                            createFileFailure(
-                                                localizedContext,
-                                                destDir,
-                                                fileName
-                                            )
-                                        )
-                                    }, append)
-                                    result.onSuccess {
-                                        if (!append && prefHandler.getBoolean(
-                                                PrefKey.PERFORM_SHARE,
-                                                false
-                                            )
-                                        ) {
-                                            add(it.uri)
-                                        }
-                                        successfullyExported.add(account)
-                                        publishProgress(
-                                            "..." + localizedContext.getString(
-                                                R.string.export_sdcard_success,
-                                                it.displayName
+                            //formatted once, SimpleDateFormat is not safe to share between parallel exports
+                            val now = SimpleDateFormat("yyyMMdd-HHmmss", Locale.US).format(Date())
+                            val accounts = accountIds.mapNotNull { repository.loadAccount(it) }
+                            val done = AtomicInteger()
+
+                            fun outputFile(fileNameForAccount: String, append: Boolean) = lazy {
+                                AppDirHelper.buildFile(
+                                    destDir,
+                                    "$fileNameForAccount.${format.extension}",
+                                    format.mimeType,
+                                    append
+                                )?.let {
+                                    Result.success(it)
+                                } ?: Result.failure(
+                                    createFileFailure(
+                                        localizedContext,
+                                        destDir,
+                                        fileName
+                                    )
+                                )
+                            }
+
+                            fun ioFailure(e: IOException) = Result.failure<DocumentFile>(
+                                IOException(
+                                    localizedContext.getString(
+                                        R.string.export_sdcard_failure,
+                                        appDir.name,
+                                        e.message
+                                    ), e
+                                )
+                            )
+
+                            suspend fun publishResult(
+                                account: Account,
+                                result: Result<DocumentFile>
+                            ) {
+                                publishProgress(
+                                    "(${done.incrementAndGet()}/${accounts.size}) " + account.label + " ..." +
+                                            result.fold(
+                                                onSuccess = {
+                                                    localizedContext.getString(
+                                                        R.string.export_sdcard_success,
+                                                        it.displayName
+                                                    )
+                                                },
+                                                onFailure = { " " + it.message }
                                             )
-                                        )
-                                    }.onFailure {
-                                        publishProgress("... " + it.message)
-                                    }
-                                } catch (e: IOException) {
-                                    publishProgress(
-                                        "... " + localizedContext.getString(
-                                            R.string.export_sdcard_failure,
-                                            appDir.name,
-                                            e.message
-                                        )
+                                )
+                            }
+
+                            fun jsonExporter(account: Account) = JSONExporter(
+                                account,
+                                currencyContext,
+                                filter,
+                                notYetExportedP,
+                                dateFormat,
+                                decimalSeparator,
+                                encoding
+                            )
+
+                            suspend fun export(
+                                account: Account,
+                                fileNameForAccount: String,
+                                append: Boolean
+                            ): Result<DocumentFile> = try {
+                                when (format) {
+                                    ExportFormat.CSV -> CsvExporter(
+                                        account,
+                                        currencyContext,
+                                        filter,
+                                        notYetExportedP,
+                                        dateFormat,
+                                        decimalSeparator,
+                                        encoding,
+                                        !append,
+                                        delimiter,
+                                        mergeP,
+                                        prefHandler.getBoolean(PrefKey.CSV_EXPORT_SPLIT_CATEGORIES, false),
+                                        prefHandler.getBoolean(PrefKey.CSV_EXPORT_SPLIT_AMOUNT, true),
+                                        timeFormat
+                                    )
+                                    ExportFormat.QIF -> QifExporter(
+                                        account,
+                                        currencyContext,
+                                        filter,
+                                        notYetExportedP,
+                                        dateFormat,
+                                        decimalSeparator,
+                                        encoding
+                                    )
+                                    ExportFormat.JSON -> jsonExporter(account)
+                                }.export(
+                                    localizedContext,
+                                    outputFile(fileNameForAccount, append),
+                                    append
+                                )
+                            } catch (e: IOException) {
+                                ioFailure(e)
+                            }.also { publishResult(account, it) }
+
+                            val results: List<Pair<Account, Result<DocumentFile>>> = when {
+                                //all accounts are written in one pass into a single JSON array
+                                format == ExportFormat.JSON && mergeP -> try {
+                                    JSONExporter.exportMerged(
+                                        localizedContext,
+                                        accounts.map { jsonExporter(it) },
+                                        outputFile(fileName, false)
                                     )
+                                } catch (e: IOException) {
+                                    accounts.map { ioFailure(e) }
+                                }.let { accounts.zip(it) }.onEach { publishResult(it.first, it.second) }
+
+                                //accounts are appended to the same file one after the other
+                                mergeP -> buildList {
+                                    var append = false
+                                    accounts.forEach { account ->
+                                        val result = export(account, fileName, append)
+                                        add(account to result)
+                                        append = append || result.isSuccess
+                                    }
+                                }
+
+                                else -> coroutineScope {
+                                    val semaphore = Semaphore(MAX_PARALLEL_EXPORTS)
+                                    accounts.map { account ->
+                                        async {
+                                            semaphore.withPermit {
+                                                account to export(
+                                                    account,
+                                                    if (oneFile) fileName else String.format(
+                                                        "%s-%s",
+                                                        Utils.escapeForFileName(account.label),
+                                                        now
+                                                    ),
+                                                    false
+                                                )
+                                            }
+                                        }
+                                    }.awaitAll()
                                 }
                             }
-                            for (a in successfullyExported) {
-                                try {
-                                    if (deleteP) {
+
+                            if (prefHandler.getBoolean(PrefKey.PERFORM_SHARE, false)) {
+                                addAll(results.mapNotNull { it.second.getOrNull()?.uri }.distinct())
+                            }
+                            val successfullyExported =
+                                results.filter { it.second.isSuccess }.map { it.first }
+                            if (deleteP) {
+                                for (a in successfullyExported) {
+                                    try {
                                         if (a.isSealed) {
                                             publishProgress(getString(R.string.object_sealed))
                                         } else {
                                             reset(a, filter, handleDelete, fileName)
                                         }
-                                    } else {
-                                        repository.markAsExported(a.id, filter)
+                                    } catch (e: Exception) {
+                                        publishProgress("ERROR: " + e.message)
+                                        CrashHandler.report(e)
                                     }
+                                }
+                            } else {
+                                try {
+                                    repository.markAsExported(
+                                        successfullyExported.map { it.id },
+                                        filter
+                                    )
                                 } catch (e: Exception) {
                                     publishProgress("ERROR: " + e.message)
                                     CrashHandler.report(e)
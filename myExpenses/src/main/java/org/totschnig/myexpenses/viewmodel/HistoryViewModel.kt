@@ -5,12 +5,29 @@ import androidx.datastore.preferences.core.edit
 import androidx.datastore.preferences.core.stringPreferencesKey
 import androidx.lifecycle.SavedStateHandle
 import androidx.lifecycle.viewModelScope
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
+import org.totschnig.myexpenses.db2.InvalidatingCache
 import org.totschnig.myexpenses.model.Grouping
+import org.totschnig.myexpenses.provider.BaseTransactionProvider.Companion.groupingUriBuilder
+import org.totschnig.myexpenses.provider.DataBaseAccount
 import org.totschnig.myexpenses.provider.DatabaseConstants
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUP_START
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_EXPENSES
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_INCOME
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM_TRANSFERS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
+import org.totschnig.myexpenses.provider.filter.WhereFilter
+import org.totschnig.myexpenses.provider.getInt
+import org.totschnig.myexpenses.provider.getIntIfExistsOr0
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getLongIfExistsOr0
 import org.totschnig.myexpenses.util.enumValueOrDefault
 
 class HistoryViewModel(application: Application, val savedStateHandle: SavedStateHandle) :
@@ -36,4 +53,86 @@ class HistoryViewModel(application: Application, val savedStateHandle: SavedStat
             }
         }
     }
-}
\ No newline at end of file
+
+    data class HistoryKey(
+        val accountId: Long,
+        val currency: String,
+        val grouping: Grouping,
+        val includeTransfers: Boolean,
+        val whereFilter: WhereFilter
+    )
+
+    data class HistoryGroup(
+        val year: Int,
+        val second: Int,
+        val groupStart: Int,
+        val sumIncome: Long,
+        val sumExpense: Long,
+        val sumTransfer: Long
+    )
+
+    /**
+     * the sums only depend on the query, toggling how they are rendered in the chart is served
+     * from the cache
+     */
+    private val chartDataCache = InvalidatingCache<HistoryKey, List<HistoryGroup>>(
+        contentResolver,
+        HISTORY_CACHE_SIZE,
+        TransactionProvider.TRANSACTIONS_URI,
+        TransactionProvider.ACCOUNTS_URI
+    )
+
+    override fun onCleared() {
+        super.onCleared()
+        chartDataCache.close()
+    }
+
+    fun historyGroups(key: HistoryKey): Flow<List<HistoryGroup>> =
+        chartDataCache.observe(key) { loadHistoryGroups(key) }
+
+    private fun loadHistoryGroups(key: HistoryKey): List<HistoryGroup> {
+        val builder = groupingUriBuilder(key.grouping)
+        val selection = key.whereFilter.takeIf { !it.isEmpty }
+            //GROUP query uses extended view
+            ?.getSelectionForParts(DatabaseConstants.VIEW_EXTENDED)
+            ?.takeIf { it.isNotEmpty() }
+        val selectionArgs = selection?.let { key.whereFilter.getSelectionArgs(true) }
+        if (!DataBaseAccount.isHomeAggregate(key.accountId)) {
+            if (DataBaseAccount.isAggregate(key.accountId)) {
+                builder.appendQueryParameter(DatabaseConstants.KEY_CURRENCY, key.currency)
+            } else {
+                builder.appendQueryParameter(
+                    DatabaseConstants.KEY_ACCOUNTID,
+                    key.accountId.toString()
+                )
+            }
+        }
+        if (key.grouping == Grouping.WEEK || key.grouping == Grouping.DAY) {
+            builder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_WITH_JULIAN_START)
+        }
+        if (key.includeTransfers) {
+            builder.appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_INCLUDE_TRANSFERS)
+        }
+        return contentResolver.query(builder.build(), null, selection, selectionArgs, null)
+            ?.use { cursor ->
+                buildList {
+                    while (cursor.moveToNext()) {
+                        add(
+                            HistoryGroup(
+                                year = cursor.getInt(KEY_YEAR),
+                                second = cursor.getInt(KEY_SECOND_GROUP),
+                                groupStart = cursor.getIntIfExistsOr0(KEY_GROUP_START),
+                                sumIncome = cursor.getLong(KEY_SUM_INCOME),
+                                sumExpense = cursor.getLong(KEY_SUM_EXPENSES),
+                                sumTransfer = cursor.getLongIfExistsOr0(KEY_SUM_TRANSFERS)
+                            )
+                        )
+                    }
+                }
+            } ?: emptyList()
+    }
+
+    companion object {
+        private const val HISTORY_CACHE_SIZE = 8
+    }
+}
@@ -8,7 +8,6 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.R
-import org.totschnig.myexpenses.db2.AutoFillInfo
 import org.totschnig.myexpenses.db2.CategoryHelper
 import org.totschnig.myexpenses.db2.countAccounts
 import org.totschnig.myexpenses.db2.createAccount
@@ -35,7 +34,6 @@ data class ImportResult(val label: String, val successCount: Int)
 val accountTitleToAccount: MutableMap<String, Account> = mutableMapOf()
 
 private val payeeToId: MutableMap<String, Long> = mutableMapOf()
-private val autoFillCache: MutableMap<Long, AutoFillInfo> = mutableMapOf()
 private val categoryToId: MutableMap<String, Long> = mutableMapOf()
 val tagToId: MutableMap<String, Long> = mutableMapOf()
 
@@ -181,10 +179,7 @@ abstract class ImportDataViewModel(application: Application) :
 
     private fun findCategory(transaction: ImportTransaction, t: Transaction, autofill: Boolean) {
         t.catId = categoryToId[transaction.category] ?: if (autofill) {
-            t.payeeId?.let {
-                (autoFillCache[it] ?: repository.autoFill(it)
-                    ?.apply { autoFillCache[it] = this })?.categoryId
-            }
+            t.payeeId?.let { repository.autoFill(it)?.categoryId }
         } else null
     }
 }
\ No newline at end of file
@@ -37,6 +37,12 @@ import org.totschnig.myexpenses.compose.toggle
 import org.totschnig.myexpenses.compose.unselect
 import org.totschnig.myexpenses.db2.loadAccount
 import org.totschnig.myexpenses.db2.loadBanks
+import org.totschnig.myexpenses.db2.loadTransactionDetails
+import org.totschnig.myexpenses.db2.remapTransactions
+import org.totschnig.myexpenses.db2.tagTransactions
+import org.totschnig.myexpenses.db2.toggleCrStatus
+import org.totschnig.myexpenses.db2.undeleteTransactions
+import org.totschnig.myexpenses.db2.withTotals
 import org.totschnig.myexpenses.model.*
 import org.totschnig.myexpenses.model.Transaction
 import org.totschnig.myexpenses.model2.Bank
@@ -259,10 +265,17 @@ open class MyExpensesViewModel(
             )
         }
 
+    /**
+     * The account list is queried without totals, which are completed from
+     * [org.totschnig.myexpenses.db2.Repository.accountTotalsCache], so that a change to one
+     * account only requires its totals to be recalculated.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
     val accountData: StateFlow<Result<List<FullAccount>>?> = contentResolver.observeQuery(
         uri = ACCOUNTS_URI.buildUpon()
             .appendBooleanQueryParameter(QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES)
             .appendBooleanQueryParameter(QUERY_PARAMETER_WITH_HIDDEN_ACCOUNT_COUNT)
+            .appendBooleanQueryParameter(QUERY_PARAMETER_DEFER_TOTALS)
             .build(),
         selection = "$KEY_HIDDEN = 0",
         notifyForDescendants = true
@@ -275,8 +288,23 @@ open class MyExpensesViewModel(
             }
         }
         .map { result -> result.map { it.second } }
+        //repository is injected after construction, hence only accessed once the flow is collected
+        .combine(flow { emitAll(repository.accountTotalsCache.generation) }) { result, _ -> result }
+        .mapLatest { result ->
+            result.fold(
+                onSuccess = { accounts -> runCatching { repository.withTotals(accounts) } },
+                onFailure = { Result.failure(it) }
+            )
+        }
         .stateIn(viewModelScope, SharingStarted.Lazily, null)
 
+    /**
+     * future transactions might have become due while the screen was not shown
+     */
+    fun expireAccountTotals() {
+        repository.accountTotalsCache.expire()
+    }
+
     fun headerData(account: PageAccount) = headerData.getValue(account)
 
     fun budgetData(account: PageAccount): Flow<BudgetData?> =
@@ -454,105 +482,68 @@ open class MyExpensesViewModel(
 
     fun undeleteTransactions(itemIds: List<Long>): LiveData<Int> =
         liveData(context = coroutineContext()) {
-            emit(itemIds.count {
+            emit(
                 try {
-                    Transaction.undelete(contentResolver, it) > 0
+                    repository.undeleteTransactions(itemIds).applied
                 } catch (e: SQLiteConstraintException) {
                     CrashHandler.reportWithDbSchema(contentResolver, e)
-                    false
+                    0
                 }
-            })
+            )
         }
 
-    private val cloneAndRemapProgressInternal = MutableLiveData<Pair<Int, Int>>()
-    val cloneAndRemapProgress: LiveData<Pair<Int, Int>>
+    sealed class CloneAndRemapState {
+        data class Progress(val done: Int, val total: Int) : CloneAndRemapState()
+        data class Complete(val success: Int, val failure: Int) : CloneAndRemapState()
+    }
+
+    private val cloneAndRemapProgressInternal = MutableLiveData<CloneAndRemapState>()
+    val cloneAndRemapProgress: LiveData<CloneAndRemapState>
         get() = cloneAndRemapProgressInternal
 
     fun cloneAndRemap(transactionIds: List<Long>, column: String, rowId: Long) {
         viewModelScope.launch(coroutineDispatcher) {
-            var successCount = 0
-            var failureCount = 0
-            for (id in transactionIds) {
-                val transaction = Transaction.getInstanceFromDb(contentResolver, id, homeCurrencyProvider.homeCurrencyUnit)
-                transaction.prepareForEdit(contentResolver, true, false)
-                val ops = transaction.buildSaveOperations(contentResolver,true)
-                val newUpdate =
-                    ContentProviderOperation.newUpdate(TRANSACTIONS_URI).withValue(column, rowId)
-                if (transaction.isSplit) {
-                    var selection = "$KEY_ROWID = ${transaction.id}"
-                    if (column == KEY_ACCOUNTID) {
-                        selection += " OR $KEY_PARENTID = ${transaction.id}"
-                    }
-                    newUpdate.withSelection(selection, null)
-                } else {
-                    var selection = "$KEY_ROWID = ?"
-                    val isCategoryUpdate = column == KEY_CATID
-                    if (isCategoryUpdate) {
-                        selection += " OR $KEY_TRANSFER_PEER = ?"
-                    }
-                    newUpdate.withSelection(selection, arrayOfNulls(if (isCategoryUpdate) 2 else 1))//replaced by back reference
-                        .withSelectionBackReference(0, 0)
-                    if (isCategoryUpdate) {
-                        newUpdate.withSelectionBackReference(1, 0)
-                    }
-                }
-                ops.add(newUpdate.build())
-                if (contentResolver.applyBatch(
-                        AUTHORITY,
-                        ops
-                    ).size == ops.size
-                ) {
-                    successCount++
-                } else {
-                    failureCount++
+            cloneAndRemapProgressInternal.postValue(
+                try {
+                    repository.remapTransactions(
+                        transactionIds, column, rowId, clone = true
+                    ) { done, total ->
+                        cloneAndRemapProgressInternal.postValue(CloneAndRemapState.Progress(done, total))
+                    }.let { CloneAndRemapState.Complete(it.applied, it.failed) }
+                } catch (e: SQLiteConstraintException) {
+                    CrashHandler.reportWithDbSchema(contentResolver, e)
+                    CloneAndRemapState.Complete(0, transactionIds.size)
                 }
-                cloneAndRemapProgressInternal.postValue(Pair(successCount, failureCount))
-            }
+            )
         }
     }
 
     fun remap(transactionIds: List<Long>, column: String, rowId: Long): LiveData<Int> =
         liveData(context = viewModelScope.coroutineContext + Dispatchers.IO) {
-            emit(run {
-                val list = transactionIds.joinToString()
-                var selection = "$KEY_ROWID IN ($list)"
-                if (column == KEY_ACCOUNTID) {
-                    selection += " OR $KEY_PARENTID IN ($list)"
-                }
-                if (column == KEY_CATID) {
-                    selection += " OR $KEY_TRANSFER_PEER IN ($list)"
-                }
-                contentResolver.update(
-                    TRANSACTIONS_URI,
-                    ContentValues().apply { put(column, rowId) },
-                    selection,
-                    null
-                )
-            })
+            emit(repository.remapTransactions(transactionIds, column, rowId).applied)
         }
 
     fun tag(transactionIds: List<Long>, tagList: ArrayList<Tag>, replace: Boolean) {
         val tagIds = tagList.map { tag -> tag.id }
         viewModelScope.launch(coroutineDispatcher) {
-            val ops = ArrayList<ContentProviderOperation>()
-            for (id in transactionIds) {
-                ops.addAll(saveTagLinks(tagIds, id, null, replace))
-            }
-            contentResolver.applyBatch(AUTHORITY, ops)
+            repository.tagTransactions(transactionIds, tagIds, replace)
+        }
+    }
+
+    /**
+     * warms [org.totschnig.myexpenses.db2.Repository.transactionDetailsCache] while the user
+     * decides which action to take on the transaction
+     */
+    fun prefetchTransactionDetails(id: Long) {
+        repository.transactionDetailsCache.prefetch(viewModelScope, listOf(id)) {
+            repository.loadTransactionDetails(localizedContext, it)
         }
     }
 
     fun toggleCrStatus(id: Long) {
         selectionState.unselect { it.id == id }
         viewModelScope.launch(coroutineDispatcher) {
-            contentResolver.update(
-                TRANSACTIONS_URI
-                    .buildUpon()
-                    .appendPath(id.toString())
-                    .appendPath(URI_SEGMENT_TOGGLE_CRSTATUS)
-                    .build(),
-                null, null, null
-            )
+            repository.toggleCrStatus(listOf(id))
         }
     }
 
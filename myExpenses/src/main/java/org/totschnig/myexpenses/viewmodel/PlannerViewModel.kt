@@ -1,10 +1,7 @@
 package org.totschnig.myexpenses.viewmodel
 
 import android.app.Application
-import android.content.ContentUris
-import android.database.Cursor
 import android.net.Uri
-import android.provider.CalendarContract
 import android.text.Spannable
 import android.text.SpannableString
 import android.text.TextUtils
@@ -13,19 +10,17 @@ import android.view.View
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.viewModelScope
-import app.cash.copper.flow.mapToList
-import app.cash.copper.flow.mapToOne
-import app.cash.copper.flow.observeQuery
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.db2.observePlanInstances
 import org.totschnig.myexpenses.model.Transaction
-import org.totschnig.myexpenses.provider.CalendarProviderProxy
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSACTIONID
+import org.totschnig.myexpenses.provider.INVALID_CALENDAR_ID
 import org.totschnig.myexpenses.provider.PlannerUtils
 import org.totschnig.myexpenses.provider.getLongOrNull
 import org.totschnig.myexpenses.util.getDateTimeFormatter
@@ -83,8 +78,6 @@ class PlannerViewModel(application: Application) : ContentResolvingAndroidViewMo
 
     private val formatter: DateTimeFormatter
 
-    private var updateMap: MutableMap<Uri, Flow<PlanInstanceUpdate>> = mutableMapOf()
-
     init {
         val nowZDT = ZonedDateTime.now().toLocalDate()
         first = Month(nowZDT.year, nowZDT.monthValue)
@@ -119,33 +112,30 @@ class PlannerViewModel(application: Application) : ContentResolvingAndroidViewMo
                 endMonth = first
             }
         }
-        val builder = CalendarProviderProxy.INSTANCES_URI.buildUpon()
-        ContentUris.appendId(builder, startMonth.startMillis())
-        ContentUris.appendId(builder, endMonth.endMillis())
         viewModelScope.launch {
-            val plannerCalendarId = withContext(Dispatchers.Default) { plannerUtils.checkPlanner() }
-            contentResolver.observeQuery( builder.build(), null,
-                CalendarContract.Events.CALENDAR_ID + " = " + plannerCalendarId,
-                null, CalendarContract.Instances.BEGIN + " ASC", false)
-                .mapToList { PlanInstance.fromEventCursor(it, contentResolver, currencyContext) }
-                .collect {
-                    val start = SpannableString(first.startDate().format(formatter))
-                    val end = SpannableString(last.endDate().format(formatter))
-                    start.setSpan(
-                        ClickableDateSpan(false),
-                        0,
-                        start.length,
-                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-                    )
-                    end.setSpan(
-                        ClickableDateSpan(true),
-                        0,
-                        end.length,
-                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-                    )
-                    title.postValue(TextUtils.concat(start, " - ", end))
-                    instances.postValue(Event(Pair(later ?: false, it.filterNotNull())))
-                }
+            val plannerCalendarId = withContext(Dispatchers.IO) {
+                plannerUtils.checkPlanner()?.takeIf { it != INVALID_CALENDAR_ID }
+            }
+            (plannerCalendarId?.let {
+                repository.observePlanInstances(it, startMonth.startMillis(), endMonth.endMillis())
+            } ?: flowOf(emptyList())).collect {
+                val start = SpannableString(first.startDate().format(formatter))
+                val end = SpannableString(last.endDate().format(formatter))
+                start.setSpan(
+                    ClickableDateSpan(false),
+                    0,
+                    start.length,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
+                )
+                end.setSpan(
+                    ClickableDateSpan(true),
+                    0,
+                    end.length,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
+                )
+                title.value = TextUtils.concat(start, " - ", end)
+                instances.value = Event(Pair(later ?: false, it))
+            }
         }
     }
 
@@ -155,34 +145,28 @@ class PlannerViewModel(application: Application) : ContentResolvingAndroidViewMo
         }
     }
 
+    /**
+     * queries the state of the plan instance [uri] once, called when the provider notifies a
+     * change, or after instances have been applied
+     */
     fun getUpdateFor(uri: Uri) {
-        if (!updateMap.contains(uri)) {
-            val templateId = uri.pathSegments[1].toLong()
-            val instanceId = uri.pathSegments[2].toLong()
-            val mapper = { cursor: Cursor ->
-                val transactionId = cursor.getLongOrNull(KEY_TRANSACTIONID)
-                val newState =
-                    if (transactionId == null) PlanInstanceState.CANCELLED else PlanInstanceState.APPLIED
-                val amount = cursor.getLongOrNull(KEY_AMOUNT)
-                PlanInstanceUpdate(templateId, instanceId, newState, transactionId, amount)
+        val templateId = uri.pathSegments[1].toLong()
+        val instanceId = uri.pathSegments[2].toLong()
+        viewModelScope.launch {
+            updates.value = withContext(Dispatchers.IO) {
+                contentResolver.query(uri, null, null, null, null)?.use { cursor ->
+                    if (cursor.moveToFirst()) {
+                        val transactionId = cursor.getLongOrNull(KEY_TRANSACTIONID)
+                        PlanInstanceUpdate(
+                            templateId,
+                            instanceId,
+                            if (transactionId == null) PlanInstanceState.CANCELLED else PlanInstanceState.APPLIED,
+                            transactionId,
+                            cursor.getLongOrNull(KEY_AMOUNT)
+                        )
+                    } else null
+                } ?: PlanInstanceUpdate(templateId, instanceId, PlanInstanceState.OPEN, null, null)
             }
-            updateMap[uri] = contentResolver.observeQuery(uri, null, null, null, null, false)
-                .mapToOne(
-                    default = PlanInstanceUpdate(
-                        templateId,
-                        instanceId,
-                        PlanInstanceState.OPEN,
-                        null,
-                        null
-                    ),
-                    mapper = mapper
-                ).also {
-                    viewModelScope.launch {
-                        it.collect {
-                            updates.value = it
-                        }
-                    }
-                }
         }
     }
 
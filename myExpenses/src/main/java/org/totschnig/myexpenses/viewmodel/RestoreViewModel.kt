@@ -484,6 +484,12 @@ class RestoreViewModel(application: Application) : ContentResolvingAndroidViewMo
                             remoteKey,
                             sharedPreferences.getString(remoteKey, null)
                         )
+                        //the remote state we probed last is unrelated to the restored data
+                        accountManager.setUserData(
+                            account,
+                            SyncAdapter.KEY_LAST_PROBE(accountId),
+                            null
+                        )
                         activeAccounts.add(accountName)
                         restored++
                     } else {
@@ -3,6 +3,7 @@ package org.totschnig.myexpenses.viewmodel
 import android.Manifest
 import android.app.Application
 import android.content.pm.PackageManager
+import android.graphics.Bitmap
 import androidx.annotation.RequiresPermission
 import androidx.core.app.ActivityCompat
 import androidx.documentfile.provider.DocumentFile
@@ -17,6 +18,7 @@ import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.launch
 import org.totschnig.myexpenses.MyApplication
 import org.totschnig.myexpenses.preference.PrefKey
+import org.totschnig.myexpenses.preference.enumValueOrDefault
 import org.totschnig.myexpenses.provider.DatabaseConstants
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNT_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
@@ -96,6 +98,13 @@ class SettingsViewModel(application: Application) : ContentResolvingAndroidViewM
         TransactionProvider.METHOD_CHECK_CORRUPTED_DATA_987, null, null
     )?.getLongArray(TransactionProvider.KEY_RESULT)
 
+    fun queryMetricsReport() = liveData(context = coroutineContext()) {
+        contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_QUERY_METRICS, null, null
+        )?.getString(TransactionProvider.KEY_RESULT)?.let { emit(it) }
+    }
+
     fun dataCorrupted() = liveData(context = coroutineContext()) {
         corruptedIdList()?.let {
             emit(it.size)
@@ -160,6 +169,30 @@ class SettingsViewModel(application: Application) : ContentResolvingAndroidViewM
         }
     }
 
+    /**
+     * picture optimization settings are only stored in the database when they are changed, sync
+     * reads them from there, hence their current values are stored when sync starts optimizing
+     * pictures
+     */
+    fun storePictureOptimizationSettings() {
+        viewModelScope.launch(context = coroutineContext()) {
+            mapOf(
+                PrefKey.OPTIMIZE_PICTURE_FORMAT to prefHandler.enumValueOrDefault(
+                    PrefKey.OPTIMIZE_PICTURE_FORMAT,
+                    Bitmap.CompressFormat.WEBP
+                ).name,
+                PrefKey.OPTIMIZE_PICTURE_MAX_SIZE to prefHandler.getInt(
+                    PrefKey.OPTIMIZE_PICTURE_MAX_SIZE, 1000
+                ).toString(),
+                PrefKey.OPTIMIZE_PICTURE_QUALITY to prefHandler.getInt(
+                    PrefKey.OPTIMIZE_PICTURE_QUALITY, 80
+                ).toString()
+            ).forEach { (prefKey, value) ->
+                DbUtils.storeSetting(contentResolver, prefHandler.getKey(prefKey), value)
+            }
+        }
+    }
+
     fun storeSetting(key: String, value: String) = liveData(context = coroutineContext()) {
         emit(doAndWait(
             shouldWait = { it } //in case of error we show a new snackbar, so no need to delay
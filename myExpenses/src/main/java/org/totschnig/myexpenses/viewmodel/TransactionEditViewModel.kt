@@ -17,17 +17,22 @@ import androidx.lifecycle.liveData
 import androidx.lifecycle.viewModelScope
 import app.cash.copper.flow.mapToList
 import app.cash.copper.flow.observeQuery
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.transform
 import kotlinx.coroutines.flow.update
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.totschnig.myexpenses.adapter.SplitPartRVAdapter
+import org.totschnig.myexpenses.db2.RankingContext
 import org.totschnig.myexpenses.db2.addAttachments
 import org.totschnig.myexpenses.db2.deleteAttachments
 import org.totschnig.myexpenses.db2.getCategoryPath
@@ -35,6 +40,7 @@ import org.totschnig.myexpenses.db2.getCurrencyUnitForAccount
 import org.totschnig.myexpenses.db2.getLastUsedOpenAccount
 import org.totschnig.myexpenses.db2.loadActiveTagsForAccount
 import org.totschnig.myexpenses.db2.loadAttachments
+import org.totschnig.myexpenses.db2.loadLikelyCategories
 import org.totschnig.myexpenses.exception.UnknownPictureSaveException
 import org.totschnig.myexpenses.model.*
 import org.totschnig.myexpenses.preference.PrefKey
@@ -60,12 +66,15 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PLANID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SEALED
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TAGLIST
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TRANSFER_ACCOUNT_LABEL
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
 import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TEMPLATES
+import org.totschnig.myexpenses.provider.DatabaseConstants.TABLE_TRANSACTIONS
 import org.totschnig.myexpenses.provider.PlannerUtils
 import org.totschnig.myexpenses.provider.ProviderUtils
 import org.totschnig.myexpenses.provider.TRANSFER_ACCOUNT_LABEL
@@ -377,8 +386,14 @@ class TransactionEditViewModel(application: Application, savedStateHandle: Saved
         splitPartLoader.tryEmit(parentId to parentIsTemplate)
     }
 
+    /**
+     * parts of the split loaded with [loadSplitParts], only emitted when they differ from the
+     * previous emission, since the provider notifies changes to any transaction. The sum of the
+     * parts is aggregated by the database in the same query, instead of being recalculated from
+     * the list.
+     */
     @OptIn(ExperimentalCoroutinesApi::class)
-    val splitParts = splitPartLoader.filterNotNull().flatMapLatest {
+    val splitParts: Flow<SplitParts> = splitPartLoader.filterNotNull().flatMapLatest {
         val (parentId, parentIsTemplate) = it
         contentResolver.observeQuery(
             uri = if (parentIsTemplate) TransactionProvider.TEMPLATES_UNCOMMITTED_URI
@@ -392,12 +407,24 @@ class TransactionEditViewModel(application: Application, savedStateHandle: Saved
                 TRANSFER_ACCOUNT_LABEL,
                 if (parentIsTemplate) null else BaseTransactionProvider.DEBT_LABEL_EXPRESSION,
                 KEY_TAGLIST,
-                KEY_ICON
+                KEY_ICON,
+                "(SELECT sum($KEY_AMOUNT) FROM ${if (parentIsTemplate) TABLE_TEMPLATES else TABLE_TRANSACTIONS} WHERE $KEY_PARENTID = $parentId AND $KEY_STATUS = $STATUS_UNCOMMITTED) AS $KEY_SUM"
             ).toTypedArray(),
             selection = "$KEY_PARENTID = ?",
             selectionArgs = arrayOf(parentId.toString())
-        ).mapToList(mapper = SplitPart.Companion::fromCursor)
+        ).transform { query ->
+            query.run()?.use { cursor ->
+                val parts = buildList {
+                    while (cursor.moveToNext()) {
+                        add(SplitPart.fromCursor(cursor))
+                    }
+                }
+                SplitParts(parts, if (cursor.moveToFirst()) cursor.getLong(KEY_SUM) else 0L)
+            }?.let { emit(it) }
+        }
     }
+        .distinctUntilChanged()
+        .flowOn(Dispatchers.IO)
 
     fun moveUnCommittedSplitParts(transactionId: Long, accountId: Long, isTemplate: Boolean) {
         _moveResult.update {
@@ -423,6 +450,12 @@ class TransactionEditViewModel(application: Application, savedStateHandle: Saved
         }
     }
 
+    fun prefetchLikelyCategories(rankingContext: RankingContext) {
+        repository.likelyCategoriesCache.prefetch(viewModelScope, listOf(rankingContext)) {
+            repository.loadLikelyCategories(it)
+        }
+    }
+
     fun moveResultProcessed() {
         _moveResult.update {
             null
@@ -620,6 +653,11 @@ class TransactionEditViewModel(application: Application, savedStateHandle: Saved
         }
     }
 
+    /**
+     * @param sum of the amounts of [parts], the unsplit amount is derived from it
+     */
+    data class SplitParts(val parts: List<SplitPart>, val sum: Long)
+
     enum class InstantiationTask { TRANSACTION, TEMPLATE, TRANSACTION_FROM_TEMPLATE, FROM_INTENT_EXTRAS, TEMPLATE_FROM_TRANSACTION }
 }
 
@@ -10,15 +10,13 @@ import org.totschnig.myexpenses.provider.DataBaseAccount.Companion.HOME_AGGREGAT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_BUDGET
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CURRENCY
-import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DESCRIPTION
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_END
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_GROUPING
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_IS_DEFAULT
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_START
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TITLE
-import org.totschnig.myexpenses.util.toEndOfDayEpoch
-import org.totschnig.myexpenses.util.toStartOfDayEpoch
+import org.totschnig.myexpenses.provider.budgetDurationFilter
 import java.time.LocalDate
 import java.time.format.DateTimeFormatter
 import java.time.format.DateTimeFormatter.ISO_LOCAL_DATE
@@ -75,7 +73,7 @@ data class Budget(
 
     private fun startIso(): String = start!!.format(ISO_LOCAL_DATE)
     private fun endIso(): String = end!!.format(ISO_LOCAL_DATE)
-    fun durationAsSqlFilter() = "$KEY_DATE BETWEEN ${start!!.toStartOfDayEpoch()}  AND ${end!!.toEndOfDayEpoch()}"
+    fun durationAsSqlFilter() = budgetDurationFilter(start!!, end!!)
 
     fun durationPrettyPrint(): String {
         val dateFormat = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT)
@@ -0,0 +1,19 @@
+package org.totschnig.myexpenses.viewmodel.data
+
+/**
+ * @param spent sum of expenses in the current period, negative
+ * @param allocated amount allocated for the current period
+ * @param rollOverPrevious amount rolled over from the previous period
+ */
+data class BudgetAmounts(
+    val spent: Long,
+    val allocated: Long,
+    val rollOverPrevious: Long
+) {
+    val totalAllocated: Long
+        get() = allocated + rollOverPrevious
+
+    companion object {
+        val EMPTY = BudgetAmounts(0, 0, 0)
+    }
+}
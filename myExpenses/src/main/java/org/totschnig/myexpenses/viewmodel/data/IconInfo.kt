@@ -46,13 +46,6 @@ sealed interface IIconInfo {
                 }
             }
 
-        fun searchIcons(context: Context, searchTerm: String) =
-            (FontAwesomeIcons + ExtraIcons).filter {
-                context.getString(it.value.label).contains(
-                    searchTerm,
-                    true
-                )
-            }
     }
 }
 
@@ -0,0 +1,158 @@
+package org.totschnig.myexpenses.viewmodel.data
+
+import android.content.Context
+import androidx.core.os.ConfigurationCompat
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.text.Collator
+import java.text.Normalizer
+import java.util.Locale
+
+/**
+ * Token index over the localized labels of all icons, and the labels of the categories they
+ * belong to, so that searching does not resolve string resources on each keystroke.
+ * Text is lowercased for the locale and stripped of diacritics, so that "cafe" finds "Café".
+ */
+class IconSearchIndex private constructor(
+    val locale: Locale,
+    private val entries: List<Entry>,
+    private val tokens: Array<String>,
+    private val postings: Array<IntArray>
+) {
+    private class Entry(
+        val key: String,
+        val icon: IIconInfo,
+        val label: String,
+        val tokens: List<String>
+    )
+
+    /**
+     * @param icons key, icon and localized label of the matching icons; icons where each word of
+     * the query is the prefix of a token come first, then those where it only occurs inside a
+     * token, each group in label order
+     */
+    class Result internal constructor(
+        internal val query: String,
+        internal val words: List<String>,
+        internal val matches: IntArray,
+        val icons: List<Triple<String, IIconInfo, String>>
+    )
+
+    /**
+     * @param previous result for the query typed before; if [query] extends it, only its matches
+     * are checked again
+     */
+    fun search(query: String, previous: Result? = null): Result {
+        val normalized = normalize(query.trim(), locale)
+        val words = tokenize(normalized).distinct()
+        if (words.isEmpty()) return Result(normalized, words, IntArray(0), emptyList())
+        val candidates = if (previous != null && previous.words.isNotEmpty() &&
+            normalized.startsWith(previous.query)
+        ) previous.matches else lookup(words.maxBy { it.length })
+        val matches = candidates.filter { index ->
+            words.all { word -> entries[index].tokens.any { it.contains(word) } }
+        }.toIntArray()
+        val (prefixMatches, substringMatches) = matches.partition { index ->
+            words.all { word -> entries[index].tokens.any { it.startsWith(word) } }
+        }
+        return Result(
+            normalized,
+            words,
+            matches,
+            (prefixMatches + substringMatches).map {
+                with(entries[it]) { Triple(key, icon, label) }
+            }
+        )
+    }
+
+    /**
+     * indices of the entries with a token containing [word], in label order
+     */
+    private fun lookup(word: String): IntArray {
+        val result = sortedSetOf<Int>()
+        //tokens are sorted, those starting with word form a contiguous range
+        var position = tokens.binarySearch(word).let { if (it < 0) -it - 1 else it }
+        while (position < tokens.size && tokens[position].startsWith(word)) {
+            postings[position].forEach { result.add(it) }
+            position++
+        }
+        tokens.forEachIndexed { index, token ->
+            if (!token.startsWith(word) && token.contains(word)) {
+                postings[index].forEach { result.add(it) }
+            }
+        }
+        return result.toIntArray()
+    }
+
+    companion object {
+        private val SEPARATOR = Regex("[^\\p{L}\\p{N}]+")
+        private val DIACRITICS = Regex("\\p{Mn}+")
+
+        @Volatile
+        private var cached: IconSearchIndex? = null
+        private val mutex = Mutex()
+
+        private fun normalize(text: String, locale: Locale) =
+            Normalizer.normalize(text.lowercase(locale), Normalizer.Form.NFD)
+                .replace(DIACRITICS, "")
+
+        private fun tokenize(text: String) = text.split(SEPARATOR).filter { it.isNotEmpty() }
+
+        private fun Context.locale(): Locale =
+            ConfigurationCompat.getLocales(resources.configuration)[0] ?: Locale.getDefault()
+
+        /**
+         * @return the index for the locale of [context], which is built on a background thread
+         * the first time it is requested for a locale
+         */
+        suspend fun forContext(context: Context): IconSearchIndex {
+            val locale = context.locale()
+            cached?.takeIf { it.locale == locale }?.let { return it }
+            return mutex.withLock {
+                cached?.takeIf { it.locale == locale } ?: withContext(Dispatchers.Default) {
+                    build(context, locale)
+                }.also { cached = it }
+            }
+        }
+
+        private fun build(context: Context, locale: Locale): IconSearchIndex {
+            val resources = context.resources
+            val categoryLabels = HashMap<String, MutableList<String>>()
+            IconCategory.values.forEach { category ->
+                val label = context.getString(category.label)
+                (resources.getStringArray(category.fontAweSomeIcons).asSequence() +
+                        (category.extraIcons?.let { resources.getStringArray(it).asSequence() }
+                            ?: emptySequence())).forEach {
+                    categoryLabels.getOrPut(it) { mutableListOf() }.add(label)
+                }
+            }
+            val collator = Collator.getInstance(locale)
+            val entries = (FontAwesomeIcons + ExtraIcons).map { (key, icon) ->
+                val label = context.getString(icon.label)
+                Entry(
+                    key,
+                    icon,
+                    label,
+                    tokenize(
+                        normalize(
+                            (listOf(label) + categoryLabels[key].orEmpty()).joinToString(" "),
+                            locale
+                        )
+                    ).distinct()
+                )
+            }.sortedWith { e1, e2 -> collator.compare(e1.label, e2.label) }
+            val postings = sortedMapOf<String, MutableList<Int>>()
+            entries.forEachIndexed { index, entry ->
+                entry.tokens.forEach { postings.getOrPut(it) { mutableListOf() }.add(index) }
+            }
+            return IconSearchIndex(
+                locale,
+                entries,
+                postings.keys.toTypedArray(),
+                postings.values.map { it.toIntArray() }.toTypedArray()
+            )
+        }
+    }
+}
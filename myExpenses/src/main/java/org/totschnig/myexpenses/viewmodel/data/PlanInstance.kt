@@ -1,15 +1,9 @@
 package org.totschnig.myexpenses.viewmodel.data
 
-import android.content.ContentResolver
-import android.database.Cursor
 import android.os.Parcelable
-import android.provider.CalendarContract
 import kotlinx.parcelize.Parcelize
-import org.totschnig.myexpenses.model.CurrencyContext
 import org.totschnig.myexpenses.model.Money
-import org.totschnig.myexpenses.model.Template
 import org.totschnig.myexpenses.provider.CalendarProviderProxy
-import org.totschnig.myexpenses.provider.getLong
 import org.totschnig.myexpenses.util.epochMillis2LocalDate
 import java.time.LocalDate
 import java.time.ZoneId
@@ -34,18 +28,6 @@ data class PlanInstance(val templateId: Long, val transactionId: Long?, val titl
     val instanceId: Long
         get() = CalendarProviderProxy.calculateId(date)
 
-    companion object {
-        fun fromEventCursor(
-            cursor: Cursor,
-            contentResolver: ContentResolver,
-            currencyContext: CurrencyContext
-        ) = Template.getPlanInstance(
-                contentResolver,
-                currencyContext,
-                cursor.getLong(CalendarContract.Instances.EVENT_ID),
-                cursor.getLong(CalendarContract.Instances.BEGIN)
-        )
-    }
 }
 
 @Parcelize
@@ -23,6 +23,7 @@ import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
 import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TOTAL
 import org.totschnig.myexpenses.provider.TransactionProvider.ACCOUNTS_FULL_URI
 import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES
+import org.totschnig.myexpenses.provider.TransactionProvider.QUERY_PARAMETER_TOTALS_FOR_ACCOUNT
 import org.totschnig.myexpenses.util.ICurrencyFormatter
 import org.totschnig.myexpenses.util.formatMoney
 import javax.inject.Inject
@@ -198,7 +199,9 @@ class AccountRemoteViewsFactory(
             val selection: String
             val selectionArgs: Array<String>?
             if (accountId.toLong().let { it > 0L && it != Long.MAX_VALUE }) {
-                uri = ACCOUNTS_FULL_URI
+                uri = ACCOUNTS_FULL_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_TOTALS_FOR_ACCOUNT, accountId)
+                    .build()
                 selection = "$KEY_ROWID = ?"
                 selectionArgs = arrayOf(accountId)
             } else {
@@ -0,0 +1,143 @@
+package org.totschnig.myexpenses.calendar
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+
+@RunWith(RobolectricTestRunner::class)
+class RecurrenceExpanderTest {
+    private val zone = ZoneId.of("Europe/Vienna")
+
+    private fun millis(date: LocalDate, time: LocalTime = LocalTime.NOON) =
+        ZonedDateTime.of(date, time, zone).toInstant().toEpochMilli()
+
+    private fun expand(
+        rRule: String?,
+        dtStart: LocalDate,
+        windowStart: LocalDate,
+        windowEnd: LocalDate
+    ) = RecurrenceExpander.expand(
+        millis(dtStart),
+        zone.id,
+        false,
+        rRule,
+        millis(windowStart, LocalTime.MIN),
+        millis(windowEnd, LocalTime.MAX)
+    )?.map { ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli(it), zone).toLocalDate() }
+
+    @Test
+    fun oneTimeEvent() {
+        val date = LocalDate.of(2024, 3, 15)
+        assertThat(expand(null, date, date.minusDays(1), date.plusDays(1))).containsExactly(date)
+        assertThat(expand(null, date, date.plusDays(1), date.plusDays(2))).isEmpty()
+    }
+
+    @Test
+    fun weeklyKeepsTimeOfDayAcrossDaylightSavingTime() {
+        val start = LocalDate.of(2024, 3, 21)
+        val result = RecurrenceExpander.expand(
+            millis(start), zone.id, false, "FREQ=WEEKLY;INTERVAL=1;WKST=MO;BYDAY=TH",
+            millis(start, LocalTime.MIN), millis(start.plusDays(14), LocalTime.MAX)
+        )!!
+        assertThat(result.map { ZonedDateTime.ofInstant(java.time.Instant.ofEpochMilli(it), zone).toLocalTime() })
+            .containsExactly(LocalTime.NOON, LocalTime.NOON, LocalTime.NOON)
+    }
+
+    @Test
+    fun monthlySkipsShortMonths() {
+        assertThat(
+            expand(
+                "FREQ=MONTHLY;INTERVAL=1;WKST=MO",
+                LocalDate.of(2023, 1, 31),
+                LocalDate.of(2024, 1, 1),
+                LocalDate.of(2024, 5, 31)
+            )
+        ).containsExactly(
+            LocalDate.of(2024, 1, 31),
+            LocalDate.of(2024, 3, 31),
+            LocalDate.of(2024, 5, 31)
+        ).inOrder()
+    }
+
+    @Test
+    fun lastDayOfMonth() {
+        assertThat(
+            expand(
+                "FREQ=MONTHLY;INTERVAL=1;BYDAY=SU,MO,TU,WE,TH,FR,SA;BYSETPOS=-1",
+                LocalDate.of(2024, 1, 31),
+                LocalDate.of(2024, 1, 1),
+                LocalDate.of(2024, 4, 30)
+            )
+        ).containsExactly(
+            LocalDate.of(2024, 1, 31),
+            LocalDate.of(2024, 2, 29),
+            LocalDate.of(2024, 3, 31),
+            LocalDate.of(2024, 4, 30)
+        ).inOrder()
+    }
+
+    @Test
+    fun monthlyByDayWithOrdinal() {
+        assertThat(
+            expand(
+                "FREQ=MONTHLY;BYDAY=2MO,-1FR",
+                LocalDate.of(2024, 1, 1),
+                LocalDate.of(2024, 2, 1),
+                LocalDate.of(2024, 2, 29)
+            )
+        ).containsExactly(LocalDate.of(2024, 2, 12), LocalDate.of(2024, 2, 23)).inOrder()
+    }
+
+    @Test
+    fun countIsAppliedFromStartEvenIfWindowIsLater() {
+        assertThat(
+            expand(
+                "FREQ=DAILY;INTERVAL=2;COUNT=5",
+                LocalDate.of(2024, 1, 1),
+                LocalDate.of(2024, 1, 6),
+                LocalDate.of(2024, 1, 31)
+            )
+        ).containsExactly(LocalDate.of(2024, 1, 7), LocalDate.of(2024, 1, 9)).inOrder()
+    }
+
+    @Test
+    fun untilIsInclusive() {
+        assertThat(
+            expand(
+                "FREQ=YEARLY;UNTIL=20260301",
+                LocalDate.of(2020, 3, 1),
+                LocalDate.of(2024, 1, 1),
+                LocalDate.of(2030, 12, 31)
+            )
+        ).containsExactly(
+            LocalDate.of(2024, 3, 1),
+            LocalDate.of(2025, 3, 1),
+            LocalDate.of(2026, 3, 1)
+        ).inOrder()
+    }
+
+    @Test
+    fun startsRightBeforeWindowForLongRunningPlans() {
+        assertThat(
+            expand(
+                "FREQ=DAILY;INTERVAL=3",
+                LocalDate.of(2000, 1, 1),
+                LocalDate.of(2024, 6, 1),
+                LocalDate.of(2024, 6, 7)
+            )
+        ).hasSize(2)
+    }
+
+    @Test
+    fun unsupportedRuleReturnsNull() {
+        val date = LocalDate.of(2024, 1, 1)
+        assertThat(expand("FREQ=HOURLY", date, date, date)).isNull()
+        assertThat(expand("FREQ=DAILY;BYHOUR=8,20", date, date, date)).isNull()
+        assertThat(expand("FREQ=YEARLY;BYWEEKNO=20", date, date, date)).isNull()
+    }
+}
@@ -8,6 +8,7 @@ import org.junit.Test
 import org.junit.runner.RunWith
 import org.totschnig.myexpenses.BaseTestWithRepository
 import org.totschnig.myexpenses.db2.Repository.Companion.UUID_SEPARATOR
+import org.totschnig.myexpenses.sync.json.CategoryExport
 import org.totschnig.myexpenses.sync.json.CategoryInfo
 import org.totschnig.myexpenses.viewmodel.data.Category
 
@@ -204,4 +205,64 @@ class RepositoryTest : BaseTestWithRepository() {
             assertThat(uuid!!.split(UUID_SEPARATOR)).containsExactly("uuid1", "uuid2")
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    fun importCategoryTreesUpdatesChangedAndCreatesNew() {
+        val main = ContentUris.parseId(repository.saveCategory(Category(label = "Main", uuid = "uuid1"))!!)
+        val sub = ContentUris.parseId(
+            repository.saveCategory(Category(label = "Sub", parentId = main, uuid = "uuid2"))!!
+        )
+        val created = repository.importCategoryTrees(
+            listOf(
+                CategoryExport(
+                    "uuid1", "Main", "food", null, null, listOf(
+                        CategoryExport("uuid2", "Sub renamed", null, null, null, emptyList()),
+                        CategoryExport("uuid3", "New", null, Color.RED, null, emptyList())
+                    )
+                )
+            )
+        )
+        assertThat(created).isEqualTo(1)
+        assertThat(repository.loadCategory(main)!!.icon).isEqualTo("food")
+        with(repository.loadCategory(sub)!!) {
+            assertThat(label).isEqualTo("Sub renamed")
+            assertThat(parentId).isEqualTo(main)
+        }
+        assertThat(repository.findCategory("New", main)).isGreaterThan(0)
+    }
+
+    @Test
+    fun importCategoryTreesMergesLikeEnsureCategory() {
+        val existing1 = ContentUris.parseId(repository.saveCategory(Category(label = "Test1", uuid = "uuid1"))!!)
+        val existing2 = ContentUris.parseId(repository.saveCategory(Category(label = "Test2", uuid = "uuid2"))!!)
+        repository.importCategoryTrees(
+            listOf(CategoryExport("uuid1", "Test2", null, null, null, emptyList()))
+        )
+        assertThat(repository.loadCategory(existing1)).isNull()
+        with(repository.loadCategory(existing2)!!) {
+            assertThat(uuid!!.split(UUID_SEPARATOR)).containsExactly("uuid1", "uuid2")
+        }
+    }
+
+    /**
+     * A new category Food comes before the existing Food, which has been renamed to Eats. As with
+     * [ensureCategory] for each of them, the new one is merged into the existing one, before that
+     * is renamed.
+     */
+    @Test
+    fun importCategoryTreesKeepsTreeOrder() {
+        val existing = ContentUris.parseId(repository.saveCategory(Category(label = "Food", uuid = "uuid1"))!!)
+        val created = repository.importCategoryTrees(
+            listOf(
+                CategoryExport("uuid2", "Food", null, null, null, emptyList()),
+                CategoryExport("uuid1", "Eats", null, null, null, emptyList())
+            )
+        )
+        assertThat(created).isEqualTo(0)
+        assertThat(repository.findCategory("Food")).isEqualTo(-1)
+        assertThat(repository.findCategory("Eats")).isEqualTo(existing)
+        with(repository.loadCategory(existing)!!) {
+            assertThat(uuid!!.split(UUID_SEPARATOR)).containsExactly("uuid1", "uuid2")
+        }
+    }
+}
@@ -584,6 +584,49 @@ class ExportTest: BaseTestWithRepository() {
         compare(linesQIF)
     }
 
+    @Test
+    @Throws(IOException::class)
+    fun testExportMultipleAccountsToOneFileJSON() {
+        val (account1, account2) = insertData3()
+        val results = JSONExporter.exportMerged(
+            context,
+            listOf(jsonExporter(account1), jsonExporter(account2)),
+            lazyFile
+        )
+        expect.that(results.all { it.isSuccess }).isTrue()
+        val accounts = JsonParser.parseReader(FileReader(outFile)).asJsonArray
+        expect.that(accounts.map { it.asJsonObject["label"].asString })
+            .containsExactly("Account 1", "Account 2").inOrder()
+        accounts.forEach {
+            expect.that(it.asJsonObject["transactions"].asJsonArray.size()).isEqualTo(1)
+        }
+    }
+
+    @Test
+    @Throws(IOException::class)
+    fun testExportJSONAcrossChunks() {
+        val tagId = repository.writeTag("Tag One")
+        val account = buildAccount1()
+        val op = Transaction.getNewInstance(account.id, CurrencyUnit.DebugInstance)
+            ?: throw IllegalStateException()
+        op.amount = Money(CurrencyUnit.DebugInstance, expense1)
+        repeat(AbstractExporter.CHUNK_SIZE + 1) {
+            op.date = baseSinceEpoch + it
+            op.saveAsNew(contentResolver)
+        }
+        context.contentResolver.applyBatch(
+            TransactionProvider.AUTHORITY,
+            ArrayList(saveTagLinks(listOf(tagId), op.id, null, true))
+        )
+        expect.that(jsonExporter(account).export(context, lazyFile, false).isSuccess).isTrue()
+        val transactions = JsonParser.parseReader(FileReader(outFile))
+            .asJsonObject["transactions"].asJsonArray
+        expect.that(transactions.size()).isEqualTo(AbstractExporter.CHUNK_SIZE + 1)
+        expect.that(transactions.count { it.asJsonObject.has("tags") }).isEqualTo(1)
+        expect.that(transactions.last().asJsonObject["uuid"].asString).isEqualTo(op.uuid)
+        expect.that(transactions.last().asJsonObject.has("tags")).isTrue()
+    }
+
     @Test
     fun testCategoryExporter() {
         val cat1Id = writeCategory("Main")
@@ -727,21 +770,23 @@ class ExportTest: BaseTestWithRepository() {
             '.',
             "UTF-8"
         )
-        ExportFormat.JSON -> JSONExporter(
-            account,
-            currencyContext,
-            null,
-            notYetExportedP,
-            "dd/MM/yyyy",
-            '.',
-            "UTF-8"
-        )
+        ExportFormat.JSON -> jsonExporter(account, notYetExportedP)
     }.export(
         context,
         lazyFile,
         append
     )
 
+    private fun jsonExporter(account: Account, notYetExportedP: Boolean = false) = JSONExporter(
+        account,
+        currencyContext,
+        null,
+        notYetExportedP,
+        "dd/MM/yyyy",
+        '.',
+        "UTF-8"
+    )
+
     private val lazyFile = lazy { Result.success(DocumentFile.fromFile(outFile)) }
 
     companion object {
@@ -132,4 +132,41 @@ class QifReduceTransfersTest {
         assertThat(reduced[0].transactions[0].splits!![0].isTransfer).isTrue()
         assertThat(reduced[1].transactions.size).isEqualTo(0)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun pairsLargeNumberOfTransfers() {
+        val count = 50_000
+        val start = System.currentTimeMillis()
+        fun transfer(toAccount: String, amount: Int, day: Int) = ImportTransaction.Builder()
+            .toAccount(toAccount)
+            .date(Date(start - day * 86_400_000L))
+            .amount(BigDecimal(amount))
+        val fromAccount = ImportAccount(memo = account1,
+            transactions = List(count) { transfer(account2, -(it % 100 + 1), it).build() } +
+                    transfer(account2, -7, count).build()
+        )
+        val toAccount = ImportAccount(memo = account2,
+            transactions = List(count) { transfer(account1, it % 100 + 1, it).build() }
+        )
+        val reduced = QifUtils.reduceTransfers(listOf(fromAccount, toAccount))
+        assertThat(reduced[0].transactions.size).isEqualTo(1)
+        assertThat(reduced[0].transactions[0].isTransfer).isFalse()
+        assertThat(reduced[1].transactions.size).isEqualTo(count)
+        assertThat(reduced[1].transactions.all { it.isTransfer }).isTrue()
+    }
+
+    @Test
+    fun transformTransferToSameAccount() {
+        val now = Date(System.currentTimeMillis())
+        val fromAccount = ImportAccount(memo = account1,
+            transactions = listOf(
+                ImportTransaction.Builder()
+                    .toAccount(account1)
+                    .date(now)
+                    .amount(BigDecimal(-5)).build()
+            ))
+        val reduced = QifUtils.reduceTransfers(listOf(fromAccount))
+        assertThat(reduced[0].transactions.size).isEqualTo(1)
+        assertThat(reduced[0].transactions[0].isTransfer).isFalse()
+    }
+}
@@ -0,0 +1,63 @@
+package org.totschnig.myexpenses.provider
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class QueryMetricsTest {
+
+    private fun millis(value: Long) = TimeUnit.MILLISECONDS.toNanos(value)
+
+    @Test
+    fun aggregatesPerUriMatchAndOperation() {
+        val metrics = QueryMetrics()
+        metrics.record(1, QueryMetrics.Operation.QUERY, millis(2), 10, "/transactions")
+        metrics.record(1, QueryMetrics.Operation.QUERY, millis(20), 5)
+        metrics.record(1, QueryMetrics.Operation.INSERT, millis(1), 1)
+        val stats = metrics.stats(1, QueryMetrics.Operation.QUERY)!!
+        assertThat(stats.count).isEqualTo(2)
+        assertThat(stats.rows).isEqualTo(15)
+        assertThat(stats.maxNanos).isEqualTo(millis(20))
+        assertThat(stats.averageMillis).isWithin(0.001).of(11.0)
+        assertThat(metrics.stats(1, QueryMetrics.Operation.INSERT)!!.count).isEqualTo(1)
+        assertThat(metrics.stats(2, QueryMetrics.Operation.QUERY)).isNull()
+        assertThat(metrics.labelFor(1)).isEqualTo("1 (/transactions)")
+    }
+
+    @Test
+    fun histogramBuckets() {
+        assertThat(QueryMetrics.bucketFor(millis(0))).isEqualTo(0)
+        assertThat(QueryMetrics.bucketFor(millis(1))).isEqualTo(1)
+        assertThat(QueryMetrics.bucketFor(millis(99))).isEqualTo(4)
+        assertThat(QueryMetrics.bucketFor(millis(5000)))
+            .isEqualTo(QueryMetrics.HISTOGRAM_BOUNDS_MILLIS.size)
+    }
+
+    @Test
+    fun slowQueriesAreCapped() {
+        val metrics = QueryMetrics(slowQueryThresholdMillis = 50, maxSlowQueries = 2)
+        assertThat(metrics.isSlow(millis(49))).isFalse()
+        assertThat(metrics.isSlow(millis(50))).isTrue()
+        repeat(3) {
+            metrics.recordSlowQuery(QueryMetrics.SlowQuery(1, "uri", "sql$it", 60, "plan"))
+        }
+        assertThat(metrics.slowQueries().map { it.sql }).containsExactly("sql1", "sql2").inOrder()
+    }
+
+    @Test
+    fun batchesAndReset() {
+        val metrics = QueryMetrics()
+        metrics.recordBatch(3, millis(1))
+        metrics.recordBatch(7, millis(1))
+        with(metrics.batchStats()) {
+            assertThat(count).isEqualTo(2)
+            assertThat(totalOperations).isEqualTo(10)
+            assertThat(maxOperations).isEqualTo(7)
+        }
+        metrics.record(1, QueryMetrics.Operation.QUERY, millis(2), 10)
+        assertThat(metrics.report()).contains("QUERY")
+        metrics.reset()
+        assertThat(metrics.snapshot()).isEmpty()
+        assertThat(metrics.batchStats().count).isEqualTo(0)
+    }
+}
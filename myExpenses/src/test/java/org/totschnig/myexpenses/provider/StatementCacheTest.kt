@@ -0,0 +1,116 @@
+package org.totschnig.myexpenses.provider
+
+import android.content.ContentValues
+import android.database.sqlite.SQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteOpenHelper
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Assert.assertThrows
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class StatementCacheTest {
+    private lateinit var helper: SupportSQLiteOpenHelper
+    private lateinit var db: SupportSQLiteDatabase
+    private lateinit var cache: StatementCache
+
+    @Before
+    fun setup() {
+        helper = FrameworkSQLiteOpenHelperFactory().create(
+            SupportSQLiteOpenHelper.Configuration.builder(ApplicationProvider.getApplicationContext())
+                .name(null)
+                .callback(object : SupportSQLiteOpenHelper.Callback(1) {
+                    override fun onCreate(db: SupportSQLiteDatabase) {
+                        db.execSQL("CREATE TABLE items (_id integer primary key autoincrement, label text unique, amount integer, flag integer)")
+                    }
+
+                    override fun onUpgrade(db: SupportSQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+                })
+                .build()
+        )
+        db = helper.writableDatabase
+        cache = StatementCache(db)
+    }
+
+    @After
+    fun tearDown() {
+        cache.close()
+        helper.close()
+    }
+
+    private fun values(label: String, amount: Long? = null) = ContentValues().apply {
+        put("label", label)
+        amount?.let { put("amount", it) }
+    }
+
+    private fun count() = db.query("SELECT count(*) FROM items").use {
+        it.moveToFirst()
+        it.getInt(0)
+    }
+
+    @Test
+    fun insertsWithReusedStatement() {
+        assertThat(cache.insert("items", SQLiteDatabase.CONFLICT_NONE, values("a", 1))).isEqualTo(1)
+        assertThat(cache.insert("items", SQLiteDatabase.CONFLICT_NONE, values("b", 2))).isEqualTo(2)
+        assertThat(cache.insert("items", SQLiteDatabase.CONFLICT_NONE, values("c"))).isEqualTo(3)
+        db.query("SELECT label, amount FROM items ORDER BY _id").use {
+            it.moveToLast()
+            assertThat(it.getString(0)).isEqualTo("c")
+            assertThat(it.isNull(1)).isTrue()
+        }
+        assertThat(count()).isEqualTo(3)
+    }
+
+    @Test
+    fun conflictIsIgnored() {
+        cache.insert("items", SQLiteDatabase.CONFLICT_IGNORE, values("a"))
+        assertThat(cache.insert("items", SQLiteDatabase.CONFLICT_IGNORE, values("a"))).isEqualTo(-1)
+        assertThat(count()).isEqualTo(1)
+    }
+
+    @Test
+    fun bindsValuesOfAllTypes() {
+        cache.insert("items", SQLiteDatabase.CONFLICT_NONE, ContentValues().apply {
+            put("label", "a")
+            put("amount", 5)
+            put("flag", true)
+        })
+        db.query("SELECT amount, flag FROM items").use {
+            it.moveToFirst()
+            assertThat(it.getLong(0)).isEqualTo(5)
+            assertThat(it.getInt(1)).isEqualTo(1)
+        }
+    }
+
+    @Test
+    fun bindingsAreClearedBetweenUses() {
+        val sql = "INSERT INTO items (label, amount) VALUES (?, ?)"
+        cache.withStatement(sql) {
+            it.bindString(1, "a")
+            it.bindLong(2, 1)
+            it.executeInsert()
+        }
+        cache.withStatement(sql) {
+            it.bindString(1, "b")
+            it.executeInsert()
+        }
+        db.query("SELECT amount FROM items WHERE label = 'b'").use {
+            it.moveToFirst()
+            assertThat(it.isNull(0)).isTrue()
+        }
+    }
+
+    @Test
+    fun closedCacheThrows() {
+        cache.close()
+        assertThrows(IllegalStateException::class.java) {
+            cache.insert("items", SQLiteDatabase.CONFLICT_NONE, values("a"))
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import android.content.ContentValues
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.AccountTotals
+import org.totschnig.myexpenses.db2.createAccount
+import org.totschnig.myexpenses.db2.loadAccountTotals
+import org.totschnig.myexpenses.db2.withTotals
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_HIDDEN
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.appendBooleanQueryParameter
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.viewmodel.data.FullAccount
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Date
+
+@RunWith(RobolectricTestRunner::class)
+class AccountTotalsTest : BaseTestWithRepository() {
+
+    private var account1: Long = 0
+    private var account2: Long = 0
+
+    @Before
+    fun setup() {
+        account1 = repository.createAccount(
+            Account(label = "Account 1", currency = "EUR", openingBalance = 1000)
+        ).id
+        account2 = repository.createAccount(
+            Account(label = "Account 2", currency = "EUR", openingBalance = 500)
+        ).id
+    }
+
+    private fun insertTransaction(
+        accountId: Long,
+        amount: Long,
+        date: LocalDateTime = LocalDateTime.now()
+    ) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(
+                accountId = accountId,
+                amount = amount,
+                date = Date.from(date.atZone(ZoneId.systemDefault()).toInstant())
+            ).contentValues
+        )!!
+    )
+
+    private fun loadAccounts(deferTotals: Boolean) = contentResolver.query(
+        TransactionProvider.ACCOUNTS_URI.buildUpon()
+            .appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_MERGE_CURRENCY_AGGREGATES)
+            .apply {
+                if (deferTotals) appendBooleanQueryParameter(TransactionProvider.QUERY_PARAMETER_DEFER_TOTALS)
+            }
+            .build(),
+        null, "$KEY_HIDDEN = 0", null, null
+    )!!.useAndMap { FullAccount.fromCursor(it, currencyContext) }
+
+    @Test
+    fun deferredTotalsMatchFullQuery() {
+        insertTransaction(account1, 300)
+        insertTransaction(account1, -200)
+        val cleared = insertTransaction(account2, -50)
+        contentResolver.update(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, cleared),
+            ContentValues(1).apply { put(KEY_CR_STATUS, CrStatus.CLEARED.name) },
+            null, null
+        )
+        val deferred = loadAccounts(true)
+        assertThat(deferred.first { it.id == account1 }.currentBalance).isEqualTo(1000)
+        val completed = runBlocking { repository.withTotals(deferred) }
+        assertThat(completed).containsExactlyElementsIn(loadAccounts(false)).inOrder()
+        assertThat(completed.first { it.id == account1 }.currentBalance).isEqualTo(1100)
+        assertThat(completed.first { it.isAggregate }.currentBalance).isEqualTo(1550)
+    }
+
+    @Test
+    fun accountsWithoutTransactionsAreOmitted() {
+        insertTransaction(account1, 300)
+        assertThat(repository.loadAccountTotals(listOf(account1, account2)).keys)
+            .containsExactly(account1)
+    }
+
+    @Test
+    fun changeOnlyInvalidatesAffectedAccount() {
+        insertTransaction(account1, 300)
+        runBlocking { repository.withTotals(loadAccounts(true)) }
+        val cache = repository.accountTotalsCache
+        assertThat(cache.peek(account1)).isNotNull()
+        assertThat(cache.peek(account2)).isNotNull()
+        insertTransaction(account1, 100)
+        assertThat(cache.peek(account1)).isNull()
+        assertThat(cache.peek(account2)).isNotNull()
+        val completed = runBlocking { repository.withTotals(loadAccounts(true)) }
+        assertThat(completed.first { it.id == account1 }.currentBalance).isEqualTo(1400)
+    }
+
+    @Test
+    fun totalsAreValidUntilNextFutureTransactionIsDue() {
+        val due = LocalDate.now().plusDays(3)
+        insertTransaction(account1, 300, due.atTime(15, 0))
+        insertTransaction(account1, 100, due.plusDays(2).atTime(8, 0))
+        insertTransaction(account2, -50)
+        val totals = repository.loadAccountTotals(listOf(account1, account2))
+        //with the default end of day criterion, a transaction is due from the start of its day
+        assertThat(totals.getValue(account1).validUntil)
+            .isEqualTo(due.atStartOfDay(ZoneId.systemDefault()).toEpochSecond())
+        assertThat(totals.getValue(account2).validUntil).isNull()
+    }
+
+    @Test
+    fun expiredTotalsAreReloaded() {
+        val cache = repository.accountTotalsCache
+        runBlocking {
+            cache.getOrLoad(listOf(account1, account2)) {
+                mapOf(
+                    account1 to AccountTotals(current = 1, validUntil = 0),
+                    account2 to AccountTotals(current = 1)
+                )
+            }
+        }
+        cache.expire()
+        assertThat(cache.peek(account1)).isNull()
+        assertThat(cache.peek(account2)).isNotNull()
+        val reloaded = runBlocking {
+            cache.getOrLoad(listOf(account1, account2)) { mapOf(account1 to AccountTotals(current = 2)) }
+        }
+        assertThat(reloaded.getValue(account1).current).isEqualTo(2)
+        assertThat(reloaded.getValue(account2).current).isEqualTo(1)
+    }
+
+    @Test
+    fun totalsCanBeRestrictedToOneAccount() {
+        insertTransaction(account1, 300)
+        insertTransaction(account2, -50)
+        fun loadAccount(restricted: Boolean) = contentResolver.query(
+            TransactionProvider.ACCOUNTS_FULL_URI.buildUpon().apply {
+                if (restricted) appendQueryParameter(
+                    TransactionProvider.QUERY_PARAMETER_TOTALS_FOR_ACCOUNT,
+                    account1.toString()
+                )
+            }.build(),
+            null, "$KEY_ROWID = ?", arrayOf(account1.toString()), null
+        )!!.useAndMap { FullAccount.fromCursor(it, currencyContext) }.single()
+        val restricted = loadAccount(true)
+        assertThat(restricted.currentBalance).isEqualTo(1300)
+        assertThat(restricted).isEqualTo(loadAccount(false))
+    }
+}
@@ -0,0 +1,260 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import android.content.ContentValues
+import android.os.Bundle
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.createAccount
+import org.totschnig.myexpenses.db2.createParty
+import org.totschnig.myexpenses.db2.deleteTransactions
+import org.totschnig.myexpenses.db2.loadAccountTotals
+import org.totschnig.myexpenses.db2.remapTransactions
+import org.totschnig.myexpenses.db2.saveTagsForTransaction
+import org.totschnig.myexpenses.db2.tagTransactions
+import org.totschnig.myexpenses.db2.toggleCrStatus
+import org.totschnig.myexpenses.db2.undeleteTransactions
+import org.totschnig.myexpenses.db2.writeTag
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.Transfer
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.getString
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.viewmodel.data.Tag
+
+@RunWith(RobolectricTestRunner::class)
+class BulkOperationTest : BaseTestWithRepository() {
+
+    private val currencyUnit = CurrencyUnit.DebugInstance
+    private var account1: Long = 0
+    private var account2: Long = 0
+
+    @Before
+    fun setup() {
+        account1 = repository.createAccount(Account(label = "Account 1", currency = currencyUnit.code)).id
+        account2 = repository.createAccount(Account(label = "Account 2", currency = currencyUnit.code)).id
+    }
+
+    private fun insertTransaction(amount: Long = -100, accountId: Long = account1) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = accountId, amount = amount).contentValues
+        )!!
+    )
+
+    private fun sealAccount(accountId: Long) {
+        contentResolver.update(
+            ContentUris.withAppendedId(TransactionProvider.ACCOUNTS_URI, accountId),
+            ContentValues(1).apply { put(KEY_SEALED, true) },
+            null, null
+        )
+    }
+
+    private fun insertTransfer() = Transfer(account1, Money(currencyUnit, -100L), account2).apply {
+        save(contentResolver)
+    }
+
+    private data class Row(
+        val id: Long,
+        val accountId: Long,
+        val payeeId: Long?,
+        val transferPeer: Long?,
+        val uuid: String,
+        val crStatus: String
+    )
+
+    private fun loadRows() = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_URI,
+        arrayOf(KEY_ROWID, KEY_ACCOUNTID, KEY_PAYEEID, KEY_TRANSFER_PEER, KEY_UUID, KEY_CR_STATUS),
+        null, null, KEY_ROWID
+    )!!.useAndMap {
+        Row(
+            it.getLong(0),
+            it.getLong(1),
+            it.getLongOrNull(KEY_PAYEEID),
+            it.getLongOrNull(KEY_TRANSFER_PEER),
+            it.getString(KEY_UUID),
+            it.getString(KEY_CR_STATUS)
+        )
+    }
+
+    private fun loadTagIds(transactionId: Long) = contentResolver.query(
+        TransactionProvider.TRANSACTIONS_TAGS_URI,
+        arrayOf(KEY_TAGID),
+        "$KEY_TRANSACTIONID = ?", arrayOf(transactionId.toString()), null
+    )!!.useAndMap { it.getLong(0) }
+
+    @Test
+    fun remapAppliesToAllSelectedTransactions() {
+        val ids = List(3) { insertTransaction() }
+        val payee = repository.createParty("Payee").id
+        val result = repository.remapTransactions(ids.take(2), KEY_PAYEEID, payee)
+        assertThat(result.applied).isEqualTo(2)
+        assertThat(loadRows().map { it.payeeId }).containsExactly(payee, payee, null).inOrder()
+    }
+
+    @Test
+    fun cloneAndRemapClonesTransferPair() {
+        val transfer = insertTransfer()
+        val payee = repository.createParty("Payee").id
+        val progress = mutableListOf<Int>()
+        val result = repository.remapTransactions(
+            listOf(transfer.id), KEY_PAYEEID, payee, clone = true
+        ) { done, _ -> progress.add(done) }
+        assertThat(result.applied).isEqualTo(1)
+        assertThat(result.failed).isEqualTo(0)
+        assertThat(progress).isNotEmpty()
+        val rows = loadRows()
+        assertThat(rows).hasSize(4)
+        val (original, originalPeer) = rows.take(2)
+        assertThat(original.payeeId).isNull()
+        assertThat(originalPeer.transferPeer).isEqualTo(original.id)
+        val clone = rows.single { it.id > originalPeer.id && it.accountId == account1 }
+        val clonePeer = rows.single { it.id > originalPeer.id && it.accountId == account2 }
+        assertThat(clone.payeeId).isEqualTo(payee)
+        assertThat(clone.transferPeer).isEqualTo(clonePeer.id)
+        assertThat(clonePeer.transferPeer).isEqualTo(clone.id)
+        assertThat(clone.uuid).isEqualTo(clonePeer.uuid)
+        assertThat(clone.uuid).isNotEqualTo(original.uuid)
+    }
+
+    @Test
+    fun voidUndeleteAndDelete() {
+        val transfer = insertTransfer()
+        val other = insertTransaction()
+        val selection = listOf(transfer.id)
+        assertThat(repository.deleteTransactions(selection, markAsVoid = true).applied).isEqualTo(1)
+        assertThat(loadRows().map { it.crStatus }).containsExactly(
+            CrStatus.VOID.name, CrStatus.VOID.name, CrStatus.UNRECONCILED.name
+        ).inOrder()
+        assertThat(repository.undeleteTransactions(selection).applied).isEqualTo(1)
+        assertThat(loadRows().map { it.crStatus }).containsNoneOf(CrStatus.VOID.name)
+        assertThat(repository.deleteTransactions(selection, markAsVoid = false).applied).isEqualTo(1)
+        assertThat(loadRows().map { it.id }).containsExactly(other)
+    }
+
+    @Test
+    fun tagWithAndWithoutReplace() {
+        val ids = List(2) { insertTransaction() }
+        val tag1 = repository.writeTag("Tag 1")
+        val tag2 = repository.writeTag("Tag 2")
+        repository.tagTransactions(ids, listOf(tag1), false)
+        repository.tagTransactions(ids.take(1), listOf(tag2), false)
+        assertThat(loadTagIds(ids[0])).containsExactly(tag1, tag2)
+        repository.tagTransactions(ids, listOf(tag2), true)
+        assertThat(loadTagIds(ids[0])).containsExactly(tag2)
+        assertThat(loadTagIds(ids[1])).containsExactly(tag2)
+    }
+
+    @Test
+    fun toggleCrStatus() {
+        val ids = List(2) { insertTransaction() }
+        assertThat(repository.toggleCrStatus(ids).applied).isEqualTo(2)
+        assertThat(loadRows().map { it.crStatus }).containsExactly(
+            CrStatus.CLEARED.name, CrStatus.CLEARED.name
+        )
+    }
+
+    @Test
+    fun transactionsInSealedAccountFailWithoutAbortingTheRest() {
+        val open = insertTransaction()
+        val sealed = insertTransaction(accountId = account2)
+        sealAccount(account2)
+        val selection = listOf(open, sealed)
+        repository.toggleCrStatus(selection).let {
+            assertThat(it.applied).isEqualTo(1)
+            assertThat(it.failed).isEqualTo(1)
+        }
+        repository.deleteTransactions(selection, markAsVoid = false).let {
+            assertThat(it.applied).isEqualTo(1)
+            assertThat(it.failed).isEqualTo(1)
+        }
+        assertThat(loadRows().map { it.id }).containsExactly(sealed)
+    }
+
+    @Test
+    fun remapToSealedAccountFails() {
+        val ids = List(2) { insertTransaction() }
+        sealAccount(account2)
+        val result = repository.remapTransactions(ids, KEY_ACCOUNTID, account2)
+        assertThat(result.applied).isEqualTo(0)
+        assertThat(result.failed).isEqualTo(2)
+        assertThat(loadRows().map { it.accountId }).containsExactly(account1, account1)
+    }
+
+    @Test
+    fun onlyTotalsOfAffectedAccountsAreInvalidated() {
+        val ids = List(2) { insertTransaction() }
+        val cache = repository.accountTotalsCache
+        fun fillCache() = runBlocking {
+            cache.getOrLoad(listOf(account1, account2)) { repository.loadAccountTotals(it) }
+        }
+        fillCache()
+        repository.tagTransactions(ids, listOf(repository.writeTag("Tag")), false)
+        assertThat(cache.peek(account1)).isNotNull()
+        assertThat(cache.peek(account2)).isNotNull()
+        repository.toggleCrStatus(ids)
+        assertThat(cache.peek(account1)).isNull()
+        assertThat(cache.peek(account2)).isNotNull()
+        fillCache()
+        repository.remapTransactions(ids.take(1), KEY_ACCOUNTID, account2)
+        assertThat(cache.peek(account1)).isNull()
+        assertThat(cache.peek(account2)).isNull()
+    }
+
+    @Test
+    fun copySplitPartsForEdit() {
+        fun insert(info: TransactionInfo, parentId: Long? = null) = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                info.contentValues.apply { parentId?.let { put(KEY_PARENTID, it) } }
+            )!!
+        )
+        val split = insert(TransactionInfo(accountId = account1, amount = -200, catId = SPLIT_CATID))
+        val part = insert(TransactionInfo(accountId = account1, amount = -100), split)
+        Transfer(account1, Money(currencyUnit, -100L), account2).apply {
+            parentId = split
+            save(contentResolver)
+        }
+        val tag = repository.writeTag("Tag")
+        repository.saveTagsForTransaction(listOf(Tag(tag, "Tag")), part)
+        fun copy() = contentResolver.call(
+            TransactionProvider.DUAL_URI,
+            TransactionProvider.METHOD_COPY_SPLIT_PARTS,
+            null,
+            Bundle(2).apply {
+                putLong(KEY_PARENTID, split)
+                putLong(KEY_ROWID, split)
+            }
+        )!!.getInt(TransactionProvider.KEY_RESULT)
+        assertThat(copy()).isEqualTo(2)
+        val copies = contentResolver.query(
+            TransactionProvider.UNCOMMITTED_URI,
+            arrayOf(KEY_ROWID, KEY_ACCOUNTID, KEY_PARENTID, KEY_TRANSFER_PEER),
+            null, null, null
+        )!!.useAndMap {
+            listOf(it.getLong(0), it.getLong(1), it.getLongOrNull(KEY_PARENTID), it.getLongOrNull(KEY_TRANSFER_PEER))
+        }
+        assertThat(copies).hasSize(3)
+        val (parts, peers) = copies.partition { it[2] == split }
+        assertThat(parts).hasSize(2)
+        val peer = peers.single()
+        assertThat(peer[1]).isEqualTo(account2)
+        val transferPart = parts.single { it[3] != null }
+        assertThat(transferPart[3]).isEqualTo(peer[0])
+        assertThat(peer[3]).isEqualTo(transferPart[0])
+        assertThat(loadTagIds(parts.single { it[3] == null }[0]!!)).containsExactly(tag)
+        assertThat(copy()).isEqualTo(0)
+    }
+}
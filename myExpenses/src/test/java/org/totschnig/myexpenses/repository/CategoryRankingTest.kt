@@ -0,0 +1,112 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.FLAG_EXPENSE
+import org.totschnig.myexpenses.db2.FLAG_INCOME
+import org.totschnig.myexpenses.db2.RankingContext
+import org.totschnig.myexpenses.db2.cachedLikelyCategories
+import org.totschnig.myexpenses.db2.createAccount
+import org.totschnig.myexpenses.db2.loadLikelyCategories
+import org.totschnig.myexpenses.db2.requireParty
+import org.totschnig.myexpenses.db2.saveCategory
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.viewmodel.data.Category
+import java.util.Currency
+
+@RunWith(RobolectricTestRunner::class)
+class CategoryRankingTest : BaseTestWithRepository() {
+
+    private var accountId: Long = 0
+    private var payeeId: Long = 0
+    private var foodId: Long = 0
+    private var groceriesId: Long = 0
+    private var rentId: Long = 0
+    private var salaryId: Long = 0
+
+    @Before
+    fun setup() {
+        Mockito.`when`(repository.homeCurrencyProvider.homeCurrencyString).thenReturn("EUR")
+        Mockito.`when`(repository.homeCurrencyProvider.homeCurrencyUnit)
+            .thenReturn(CurrencyUnit(Currency.getInstance("EUR")))
+        accountId = repository.createAccount(Account(label = "Account", currency = "EUR")).id
+        payeeId = repository.requireParty("Landlord")
+        foodId = writeCategory("Food", typeFlags = FLAG_EXPENSE)
+        groceriesId = writeCategory("Groceries", parentId = foodId)
+        rentId = writeCategory("Rent", typeFlags = FLAG_EXPENSE)
+        salaryId = writeCategory("Salary", typeFlags = FLAG_INCOME)
+        insertTransaction(-100, groceriesId)
+        insertTransaction(-50, groceriesId)
+        insertTransaction(-20, groceriesId)
+        insertTransaction(-1000, rentId, payeeId)
+        insertTransaction(2000, salaryId)
+    }
+
+    private fun writeCategory(label: String, parentId: Long? = null, typeFlags: Byte? = null) =
+        ContentUris.parseId(
+            repository.saveCategory(
+                Category(label = label, parentId = parentId, typeFlags = typeFlags)
+            )!!
+        )
+
+    private fun insertTransaction(amount: Long, catId: Long, payeeId: Long? = null) {
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = accountId, amount = amount, catId = catId, payeeId = payeeId)
+                .contentValues
+        )
+    }
+
+    @Test
+    fun ranksByUsageInAccount() {
+        val ranked = repository.loadLikelyCategories(
+            RankingContext(accountId = accountId, type = FLAG_EXPENSE)
+        )
+        assertThat(ranked.map { it.id }).containsExactly(groceriesId, foodId, rentId).inOrder()
+        with(ranked.first()) {
+            assertThat(path).isEqualTo("Food > Groceries")
+            assertThat(level).isEqualTo(2)
+            assertThat(typeFlags).isEqualTo(FLAG_EXPENSE)
+        }
+    }
+
+    @Test
+    fun payeeBoostsCategoriesUsedWithIt() {
+        val ranked = repository.loadLikelyCategories(
+            RankingContext(payeeId = payeeId, type = FLAG_EXPENSE)
+        )
+        assertThat(ranked.map { it.id }).containsExactly(rentId, foodId, groceriesId).inOrder()
+    }
+
+    @Test
+    fun filtersByType() {
+        assertThat(
+            repository.loadLikelyCategories(RankingContext(type = FLAG_INCOME)).map { it.id }
+        ).containsExactly(salaryId)
+    }
+
+    @Test
+    fun respectsLimit() {
+        assertThat(repository.loadLikelyCategories(RankingContext(), limit = 2)).hasSize(2)
+    }
+
+    @Test
+    fun cacheIsInvalidatedByNewTransaction() {
+        val rankingContext = RankingContext(accountId = accountId, type = FLAG_EXPENSE)
+        val cache = repository.likelyCategoriesCache
+        runBlocking { repository.cachedLikelyCategories(rankingContext) }
+        assertThat(cache.peek(rankingContext)).isNotNull()
+        insertTransaction(-10, rentId)
+        assertThat(cache.peek(rankingContext)).isNull()
+    }
+}
@@ -0,0 +1,243 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import android.content.ContentValues
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.db2.createAccount
+import org.totschnig.myexpenses.db2.saveCategory
+import org.totschnig.myexpenses.db2.storeExchangeRate
+import org.totschnig.myexpenses.model.CrStatus
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.BaseTransactionProvider
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ACCOUNTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_CR_STATUS
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_DATE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_EQUIVALENT_AMOUNT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_ROWID
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SECOND_GROUP
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_SUM
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_TYPE
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_YEAR
+import org.totschnig.myexpenses.provider.DatabaseConstants.MONTH_PLAIN
+import org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID
+import org.totschnig.myexpenses.provider.DatabaseConstants.YEAR
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getLong
+import org.totschnig.myexpenses.provider.getLongOrNull
+import org.totschnig.myexpenses.provider.useAndMap
+import org.totschnig.myexpenses.viewmodel.data.Category
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Date
+
+@RunWith(RobolectricTestRunner::class)
+class CategorySumsTest : BaseTestWithRepository() {
+
+    private var account1: Long = 0
+    private var account2: Long = 0
+    private var mainCategory: Long = 0
+    private var subCategory: Long = 0
+
+    /**
+     * period as passed by the distribution screen, month is 0 based
+     */
+    private data class Period(val year: Int?, val month: Int?)
+
+    private val periods = listOf(
+        Period(null, null),
+        Period(2023, null),
+        Period(2023, 0),
+        Period(2023, 1)
+    )
+
+    @Before
+    fun setup() {
+        account1 = repository.createAccount(
+            Account(label = "Account 1", currency = "EUR")
+        ).id
+        account2 = repository.createAccount(
+            Account(label = "Account 2", currency = "EUR")
+        ).id
+        mainCategory = writeCategory("Main", null)
+        subCategory = writeCategory("Sub", mainCategory)
+    }
+
+    private fun writeCategory(label: String, parentId: Long?) =
+        ContentUris.parseId(repository.saveCategory(Category(label = label, parentId = parentId))!!)
+
+    private fun date(month: Int, day: Int = 15) = Date.from(
+        LocalDateTime.of(2023, month, day, 12, 0).atZone(ZoneId.systemDefault()).toInstant()
+    )
+
+    private fun insertTransaction(
+        accountId: Long,
+        amount: Long,
+        catId: Long?,
+        month: Int,
+        configure: ContentValues.() -> Unit = {}
+    ) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = accountId, amount = amount, catId = catId, date = date(month))
+                .contentValues.apply(configure)
+        )!!
+    )
+
+    private fun updateTransaction(id: Long, configure: ContentValues.() -> Unit) {
+        contentResolver.update(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, id),
+            ContentValues().apply(configure),
+            null, null
+        )
+    }
+
+    private fun insertSplit(month: Int): Long {
+        val parent = insertTransaction(account1, -200, SPLIT_CATID, month) {
+            put(KEY_EQUIVALENT_AMOUNT, -300)
+        }
+        insertTransaction(account1, -120, mainCategory, month) { put(KEY_PARENTID, parent) }
+        insertTransaction(account1, -80, subCategory, month) { put(KEY_PARENTID, parent) }
+        return parent
+    }
+
+    private fun loadSums(
+        period: Period,
+        fromCategorySums: Boolean,
+        accountId: Long?,
+        income: Boolean,
+        aggregateNeutral: Boolean
+    ): Map<Long, Long?> {
+        val uri = BaseTransactionProvider.CATEGORY_TREE_URI.buildUpon().apply {
+            appendQueryParameter(KEY_TYPE, income.toString())
+            appendQueryParameter(
+                TransactionProvider.QUERY_PARAMETER_AGGREGATE_NEUTRAL,
+                aggregateNeutral.toString()
+            )
+            accountId?.let { appendQueryParameter(KEY_ACCOUNTID, it.toString()) }
+            period.year?.let { appendQueryParameter(KEY_YEAR, it.toString()) }
+            period.month?.let { appendQueryParameter(KEY_SECOND_GROUP, it.toString()) }
+            if (fromCategorySums) {
+                appendQueryParameter(TransactionProvider.QUERY_PARAMETER_CATEGORY_SUMS, "true")
+            }
+        }.build()
+        val selection = if (fromCategorySums) null else listOfNotNull(
+            period.year?.let { "$YEAR = $it" },
+            period.month?.let { "$MONTH_PLAIN = $it" }
+        ).joinToString(" AND ")
+        return contentResolver.query(uri, arrayOf(KEY_ROWID, KEY_SUM), selection, null, null)!!
+            .useAndMap { it.getLong(KEY_ROWID) to it.getLongOrNull(KEY_SUM) }
+            .toMap()
+    }
+
+    private fun assertCategorySumsMatchTransactions() {
+        for (period in periods) {
+            for (accountId in listOf(null, account1)) {
+                for (income in listOf(false, true)) {
+                    for (aggregateNeutral in listOf(false, true)) {
+                        assertThat(loadSums(period, true, accountId, income, aggregateNeutral))
+                            .isEqualTo(loadSums(period, false, accountId, income, aggregateNeutral))
+                    }
+                }
+            }
+        }
+    }
+
+    private fun populate(): Map<String, Long> = mapOf(
+        "expense" to insertTransaction(account1, -100, mainCategory, 1),
+        "sub" to insertTransaction(account1, -50, subCategory, 2),
+        "refund" to insertTransaction(account1, 30, mainCategory, 1),
+        "equivalent" to insertTransaction(account2, -70, mainCategory, 1) {
+            put(KEY_EQUIVALENT_AMOUNT, -140)
+        },
+        "void" to insertTransaction(account2, -500, subCategory, 2) {
+            put(KEY_CR_STATUS, CrStatus.VOID.name)
+        },
+        "split" to insertSplit(1)
+    )
+
+    @Test
+    fun sumsMatchAfterInsert() {
+        populate()
+        assertCategorySumsMatchTransactions()
+        //neutral category, the refund is only included when aggregating neutral
+        assertThat(loadSums(Period(2023, 0), true, account1, false, false)[mainCategory])
+            .isEqualTo(-100L - 120)
+        assertThat(loadSums(Period(2023, 0), true, account1, false, true)[mainCategory])
+            .isEqualTo(-100L + 30 - 120)
+    }
+
+    @Test
+    fun sumsMatchAfterUpdate() {
+        val transactions = populate()
+        updateTransaction(transactions.getValue("expense")) { put(KEY_AMOUNT, -150) }
+        updateTransaction(transactions.getValue("sub")) { put(KEY_CATID, mainCategory) }
+        updateTransaction(transactions.getValue("refund")) {
+            put(KEY_DATE, date(2).time / 1000)
+        }
+        updateTransaction(transactions.getValue("equivalent")) { put(KEY_ACCOUNTID, account1) }
+        updateTransaction(transactions.getValue("void")) {
+            put(KEY_CR_STATUS, CrStatus.CLEARED.name)
+        }
+        assertCategorySumsMatchTransactions()
+    }
+
+    @Test
+    fun sumsMatchAfterSplitChange() {
+        val split = populate().getValue("split")
+        updateTransaction(split) { put(KEY_EQUIVALENT_AMOUNT, -250) }
+        assertCategorySumsMatchTransactions()
+        updateTransaction(split) { put(KEY_CR_STATUS, CrStatus.VOID.name) }
+        assertCategorySumsMatchTransactions()
+    }
+
+    @Test
+    fun sumsMatchAfterDelete() {
+        val transactions = populate()
+        contentResolver.delete(
+            ContentUris.withAppendedId(
+                TransactionProvider.TRANSACTIONS_URI,
+                transactions.getValue("expense")
+            ), null, null
+        )
+        contentResolver.delete(
+            ContentUris.withAppendedId(
+                TransactionProvider.TRANSACTIONS_URI,
+                transactions.getValue("split")
+            ), null, null
+        )
+        assertCategorySumsMatchTransactions()
+        assertThat(loadSums(Period(2023, 0), true, account1, false, true)[mainCategory])
+            .isEqualTo(30L)
+    }
+
+    @Test
+    fun homeSumsAreTruncatedOncePerRow() {
+        val homeCurrency = ApplicationProvider.getApplicationContext<MyApplication>()
+            .appComponent.homeCurrencyProvider().homeCurrencyString
+        val account = repository.createAccount(
+            Account(label = "Account 3", currency = "USD")
+        ).id
+        repository.storeExchangeRate(account, 1.5, "USD", homeCurrency)
+        insertTransaction(account, -3, mainCategory, 1)
+        insertTransaction(account, -3, mainCategory, 1)
+        val period = Period(2023, 0)
+        //each transaction is converted to -4.5 and truncated to -4
+        assertThat(loadSums(period, false, null, false, false)[mainCategory]).isEqualTo(-8L)
+        //the rollup holds -6 unconverted, which is converted to -9 for the row
+        assertThat(loadSums(period, true, null, false, false)[mainCategory]).isEqualTo(-9L)
+        //per account, no conversion takes place
+        assertThat(loadSums(period, true, account, false, false)[mainCategory])
+            .isEqualTo(loadSums(period, false, account, false, false)[mainCategory])
+    }
+}
@@ -0,0 +1,89 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import android.content.ContentValues
+import com.google.common.truth.Truth.assertThat
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.createParty
+import org.totschnig.myexpenses.model.AccountType
+import org.totschnig.myexpenses.provider.AccountInfo
+import org.totschnig.myexpenses.provider.BaseTransactionProvider
+import org.totschnig.myexpenses.provider.DatabaseConstants.*
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.provider.getBoolean
+import org.totschnig.myexpenses.provider.getInt
+
+@RunWith(RobolectricTestRunner::class)
+class PayeeUsageTest : BaseTestWithRepository() {
+
+    private var testAccountId: Long = 0
+    private var payee1: Long = 0
+    private var payee2: Long = 0
+
+    @Before
+    fun setup() {
+        testAccountId = ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.ACCOUNTS_URI,
+                AccountInfo("Test account", AccountType.CASH, 0, "USD").contentValues
+            )!!
+        )
+        payee1 = repository.createParty("Payee 1").id
+        payee2 = repository.createParty("Payee 2").id
+    }
+
+    private fun insertTransaction(payeeId: Long) = ContentUris.parseId(
+        contentResolver.insert(
+            TransactionProvider.TRANSACTIONS_URI,
+            TransactionInfo(accountId = testAccountId, amount = 100, payeeId = payeeId).contentValues
+        )!!
+    )
+
+    private fun assertUsage(payeeId: Long, expected: Int) {
+        contentResolver.query(
+            TransactionProvider.PAYEES_URI,
+            null, "$TABLE_PAYEES.$KEY_ROWID = ?", arrayOf(payeeId.toString()), null
+        )!!.use {
+            assertThat(it.moveToFirst()).isTrue()
+            assertThat(it.getInt(KEY_USAGES)).isEqualTo(expected)
+            assertThat(it.getBoolean(KEY_MAPPED_TRANSACTIONS)).isEqualTo(expected > 0)
+        }
+    }
+
+    @Test
+    fun usagesFollowTransactions() {
+        assertUsage(payee1, 0)
+        val id = insertTransaction(payee1)
+        insertTransaction(payee1)
+        assertUsage(payee1, 2)
+        contentResolver.update(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, id),
+            ContentValues().apply { put(KEY_PAYEEID, payee2) }, null, null
+        )
+        assertUsage(payee1, 1)
+        assertUsage(payee2, 1)
+        contentResolver.delete(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, id), null, null
+        )
+        assertUsage(payee2, 0)
+    }
+
+    @Test
+    fun mostUsedPayeeIsSortedFirst() {
+        insertTransaction(payee2)
+        contentResolver.query(
+            TransactionProvider.PAYEES_URI,
+            arrayOf(KEY_ROWID),
+            null, null,
+            BaseTransactionProvider.PAYEE_USAGES_SORT
+        )!!.use {
+            assertThat(it.moveToFirst()).isTrue()
+            assertThat(it.getLong(0)).isEqualTo(payee2)
+        }
+    }
+}
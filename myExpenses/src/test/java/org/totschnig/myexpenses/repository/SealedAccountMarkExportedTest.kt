@@ -43,4 +43,30 @@ class SealedAccountMarkExportedTest: BaseTestWithRepository() {
         assertThat(cursor.getInt(0)).isEqualTo(1)
         cursor.close()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun markSeveralAccountsAsExportedInOneBatch() {
+        val currency = CurrencyUnit.DebugInstance
+        val resolver = ApplicationProvider.getApplicationContext<MyApplication>().contentResolver
+        val accounts = (1..3).map {
+            Account(label = "Account $it", currency = currency.code).createIn(repository).also { account ->
+                val transaction = Transaction.getNewInstance(account.id, currency)
+                transaction.amount = Money(currency, 500L)
+                transaction.save(contentResolver)
+            }
+        }
+        repository.markAsExported(accounts.take(2).map { it.id }, null)
+        val cursor = resolver.query(
+            TransactionProvider.TRANSACTIONS_URI,
+            arrayOf(DatabaseConstants.KEY_ACCOUNTID),
+            "${DatabaseConstants.KEY_STATUS} = ${DatabaseConstants.STATUS_EXPORTED}",
+            null,
+            null
+        )!!
+        val exported = buildList {
+            while (cursor.moveToNext()) add(cursor.getLong(0))
+        }
+        cursor.close()
+        assertThat(exported).containsExactlyInAnyOrder(accounts[0].id, accounts[1].id)
+    }
+}
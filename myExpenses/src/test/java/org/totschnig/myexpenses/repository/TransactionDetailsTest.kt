@@ -0,0 +1,106 @@
+package org.totschnig.myexpenses.repository
+
+import android.content.ContentUris
+import android.content.ContentValues
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.BaseTestWithRepository
+import org.totschnig.myexpenses.db2.cachedTransactionDetails
+import org.totschnig.myexpenses.db2.FinTsAttribute
+import org.totschnig.myexpenses.db2.createAccount
+import org.totschnig.myexpenses.db2.loadTransactionDetails
+import org.totschnig.myexpenses.db2.saveTagsForTransaction
+import org.totschnig.myexpenses.db2.saveTransactionAttributes
+import org.totschnig.myexpenses.db2.writeTag
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_COMMENT
+import org.totschnig.myexpenses.provider.DatabaseConstants.KEY_PARENTID
+import org.totschnig.myexpenses.provider.DatabaseConstants.SPLIT_CATID
+import org.totschnig.myexpenses.provider.TransactionInfo
+import org.totschnig.myexpenses.provider.TransactionProvider
+import org.totschnig.myexpenses.viewmodel.data.Tag
+import java.util.Currency
+
+@RunWith(RobolectricTestRunner::class)
+class TransactionDetailsTest : BaseTestWithRepository() {
+
+    private var accountId: Long = 0
+
+    @Before
+    fun setup() {
+        Mockito.`when`(repository.homeCurrencyProvider.homeCurrencyString).thenReturn("EUR")
+        Mockito.`when`(repository.homeCurrencyProvider.homeCurrencyUnit)
+            .thenReturn(CurrencyUnit(Currency.getInstance("EUR")))
+        accountId = repository.createAccount(Account(label = "Account", currency = "EUR")).id
+    }
+
+    private fun insertTransaction(amount: Long, catId: Long?, parentId: Long? = null) =
+        ContentUris.parseId(
+            contentResolver.insert(
+                TransactionProvider.TRANSACTIONS_URI,
+                TransactionInfo(accountId = accountId, amount = amount, catId = catId)
+                    .contentValues.apply { parentId?.let { put(KEY_PARENTID, it) } }
+            )!!
+        )
+
+    private fun tag(label: String) = Tag(repository.writeTag(label), label)
+
+    @Test
+    fun loadsSplitWithPartsAndTags() {
+        val split = insertTransaction(-200, SPLIT_CATID)
+        val part1 = insertTransaction(-120, null, split)
+        val part2 = insertTransaction(-80, null, split)
+        val tag = tag("Tag")
+        repository.saveTagsForTransaction(listOf(tag), split)
+        val details = runBlocking {
+            repository.loadTransactionDetails(repository.context, split)
+        }
+        assertThat(details.transactions.map { it.id })
+            .containsExactly(split, part1, part2)
+        assertThat(details.transactions.first().id).isEqualTo(split)
+        assertThat(details.tags.map { it.label }).containsExactly("Tag")
+        assertThat(details.attachments).isEmpty()
+        assertThat(details.attributes).isEmpty()
+    }
+
+    @Test
+    fun loadsAttributes() {
+        val id = insertTransaction(-100, null)
+        repository.saveTransactionAttributes(id, mapOf(FinTsAttribute.EREF to "ref"))
+        val details = runBlocking {
+            repository.loadTransactionDetails(repository.context, id)
+        }
+        assertThat(details.attributes[FinTsAttribute.CONTEXT])
+            .containsExactly(FinTsAttribute.EREF to "ref")
+    }
+
+    @Test
+    fun cacheIsInvalidatedByChanges() {
+        val id = insertTransaction(-100, null)
+        val cache = repository.transactionDetailsCache
+        runBlocking { repository.cachedTransactionDetails(repository.context, id) }
+        assertThat(cache.peek(id)).isNotNull()
+        repository.saveTagsForTransaction(listOf(tag("Tag")), id)
+        assertThat(cache.peek(id)).isNull()
+        assertThat(
+            runBlocking { repository.cachedTransactionDetails(repository.context, id) }
+                .tags.map { it.label }
+        ).containsExactly("Tag")
+        contentResolver.update(
+            ContentUris.withAppendedId(TransactionProvider.TRANSACTIONS_URI, id),
+            ContentValues(1).apply { put(KEY_COMMENT, "Changed") },
+            null, null
+        )
+        assertThat(cache.peek(id)).isNull()
+        assertThat(
+            runBlocking { repository.cachedTransactionDetails(repository.context, id) }
+                .transactions.single().comment
+        ).isEqualTo("Changed")
+    }
+}
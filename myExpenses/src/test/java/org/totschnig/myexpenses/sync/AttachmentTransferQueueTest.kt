@@ -0,0 +1,40 @@
+package org.totschnig.myexpenses.sync
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import java.io.IOException
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+class AttachmentTransferQueueTest {
+
+    @Test
+    fun transfersAllItems() {
+        val transferred = Collections.synchronizedSet(mutableSetOf<Int>())
+        AttachmentTransferQueue().transfer((1..20).toList()) { transferred.add(it) }
+        assertThat(transferred).containsExactlyElementsIn(1..20)
+    }
+
+    @Test
+    fun concurrencyIsBounded() {
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        AttachmentTransferQueue(parallelism = 3).transfer((1..20).toList()) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), ::maxOf)
+            Thread.sleep(10)
+            running.decrementAndGet()
+        }
+        assertThat(maxRunning.get()).isAtMost(3)
+        assertThat(maxRunning.get()).isGreaterThan(1)
+    }
+
+    @Test
+    fun failureIsRethrown() {
+        assertThrows(IOException::class.java) {
+            AttachmentTransferQueue().transfer((1..5).toList()) {
+                if (it == 3) throw IOException()
+            }
+        }
+    }
+}
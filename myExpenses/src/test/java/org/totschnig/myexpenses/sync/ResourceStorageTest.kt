@@ -75,4 +75,20 @@ class ResourceStorageTest {
             .containsExactly(0 to one, 0 to two, 1 to one, 1 to two )
             .inOrder()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testNamesSignature() {
+        val one = Resource("_1.txt")
+        val two = Resource("_2.txt")
+        fun storage(vararg members: Resource) = Storage(Folder(setOf(*members), "ROOT"))
+        val signature = storage(one, Folder(setOf(one), "_1")).namesSignature()
+        Truth.assertThat(
+            storage(one, Folder(setOf(one), "_1"), Resource(AbstractSyncBackendProvider.LOCK_FILE))
+                .namesSignature()
+        ).isEqualTo(signature)
+        Truth.assertThat(storage(one, Folder(setOf(one, two), "_1")).namesSignature())
+            .isNotEqualTo(signature)
+        Truth.assertThat(storage(one, two, Folder(setOf(one), "_1")).namesSignature())
+            .isNotEqualTo(signature)
+    }
+}
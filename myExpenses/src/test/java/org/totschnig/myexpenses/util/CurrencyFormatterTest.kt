@@ -13,6 +13,7 @@ import org.totschnig.myexpenses.model.Money
 import org.totschnig.myexpenses.prefHandler
 import org.totschnig.myexpenses.preference.PrefKey
 import java.util.*
+import java.util.concurrent.Executors
 
 class CurrencyFormatterTest {
     //TODO extend
@@ -35,4 +36,51 @@ class CurrencyFormatterTest {
         //newer Java version uses non-breaking space
         assertThat(currencyFormatter.formatMoney(Money(eur, 150))).isEqualTo(if (javaVersion >= 10) "1,50 €" else "1,50 €")
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testMinorUnitsMatchBigDecimal() {
+        whenever(application.userPreferredLocale).thenReturn(Locale.US)
+        for (currency in listOf(
+            CurrencyUnit("EUR", "€", 2),
+            CurrencyUnit("JPY", "¥", 0),
+            CurrencyUnit("BHD", "BD", 3),
+            CurrencyUnit("BTC", "₿", 8)
+        )) {
+            for (amount in longArrayOf(0, 1, -1, 150, -99999, 123456789, 999_999_999_999_999, Long.MAX_VALUE, Long.MIN_VALUE)) {
+                assertThat(currencyFormatter.formatMinor(amount, currency)).isEqualTo(
+                    currencyFormatter.formatCurrency(Money(currency, amount).amountMajor, currency)
+                )
+            }
+        }
+    }
+
+    @Test
+    fun testConfigureDoesNotAffectPlainFormat() {
+        val eur = CurrencyUnit("EUR", "€", 2)
+        whenever(application.userPreferredLocale).thenReturn(Locale.GERMANY)
+        val plain = currencyFormatter.formatMinor(-150, eur)
+        val configured = currencyFormatter.formatMinor(-150, eur) {
+            it.negativePrefix = "⊖"
+        }
+        assertThat(configured).startsWith("⊖")
+        assertThat(currencyFormatter.formatMinor(-150, eur)).isEqualTo(plain)
+    }
+
+    @Test
+    fun testConcurrentFormatting() {
+        val eur = CurrencyUnit("EUR", "€", 2)
+        whenever(application.userPreferredLocale).thenReturn(Locale.GERMANY)
+        val expected = (0 until 1000L).map { currencyFormatter.formatMinor(it * 1234567, eur) }
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val results = (0 until 4).map {
+                executor.submit<List<String>> {
+                    (0 until 1000L).map { currencyFormatter.formatMinor(it * 1234567, eur) }
+                }
+            }.map { it.get() }
+            results.forEach { assertThat(it).isEqualTo(expected) }
+        } finally {
+            executor.shutdown()
+        }
+    }
+}
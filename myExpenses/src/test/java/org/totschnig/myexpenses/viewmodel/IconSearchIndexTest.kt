@@ -0,0 +1,52 @@
+package org.totschnig.myexpenses.viewmodel
+
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.totschnig.myexpenses.viewmodel.data.IconSearchIndex
+
+@RunWith(RobolectricTestRunner::class)
+class IconSearchIndexTest {
+
+    private val index by lazy {
+        runBlocking { IconSearchIndex.forContext(ApplicationProvider.getApplicationContext()) }
+    }
+
+    private fun IconSearchIndex.Result.keys() = icons.map { it.first }
+
+    @Test
+    fun findsIconsByLabelIgnoringCase() {
+        assertThat(index.search("CAR").keys()).contains("car")
+    }
+
+    @Test
+    fun prefixMatchesComeFirst() {
+        val labels = index.search("car").icons.map { it.third.lowercase() }
+        val firstSubstringMatch = labels.indexOfFirst { label ->
+            label.split(Regex("[^\\p{L}\\p{N}]+")).none { it.startsWith("car") }
+        }
+        if (firstSubstringMatch != -1) {
+            assertThat(labels.drop(firstSubstringMatch).all { label ->
+                label.split(Regex("[^\\p{L}\\p{N}]+")).none { it.startsWith("car") }
+            }).isTrue()
+        }
+    }
+
+    @Test
+    fun incrementalSearchYieldsSameResultAsFreshSearch() {
+        var previous: IconSearchIndex.Result? = null
+        listOf("c", "ca", "car", "car ", "car s").forEach {
+            val incremental = index.search(it, previous)
+            assertThat(incremental.keys()).containsExactlyElementsIn(index.search(it).keys()).inOrder()
+            previous = incremental
+        }
+    }
+
+    @Test
+    fun emptyQueryFindsNothing() {
+        assertThat(index.search("  ").icons).isEmpty()
+    }
+}
@@ -0,0 +1,59 @@
+package org.totschnig.myexpenses.viewmodel
+
+import androidx.lifecycle.SavedStateHandle
+import androidx.test.core.app.ApplicationProvider
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.totschnig.myexpenses.MyApplication
+import org.totschnig.myexpenses.model.CurrencyUnit
+import org.totschnig.myexpenses.model.Money
+import org.totschnig.myexpenses.model.SplitTransaction
+import org.totschnig.myexpenses.model.Transaction
+import org.totschnig.myexpenses.model2.Account
+import org.totschnig.myexpenses.provider.DatabaseConstants.STATUS_UNCOMMITTED
+
+@RunWith(AndroidJUnit4::class)
+class TransactionEditViewModelTest : BaseViewModelTest() {
+
+    private lateinit var viewModel: TransactionEditViewModel
+
+    private val application: MyApplication
+        get() = ApplicationProvider.getApplicationContext()
+
+    @Before
+    fun setupViewModel() {
+        viewModel = TransactionEditViewModel(application, SavedStateHandle())
+        application.appComponent.inject(viewModel)
+    }
+
+    @Test
+    fun splitPartsAreEmittedWithTheirSum() {
+        val account = Account(label = "Account 1", currency = CurrencyUnit.DebugInstance.code)
+            .createIn(repository)
+        val split = SplitTransaction.getNewInstance(
+            contentResolver, account.id, CurrencyUnit.DebugInstance
+        ) ?: throw IllegalStateException()
+        listOf(-100L, -250L).forEach {
+            with(
+                Transaction.getNewInstance(account.id, CurrencyUnit.DebugInstance, split.id)
+                    ?: throw IllegalStateException()
+            ) {
+                amount = Money(CurrencyUnit.DebugInstance, it)
+                status = STATUS_UNCOMMITTED
+                save(contentResolver)
+            }
+        }
+        viewModel.loadSplitParts(split.id, false)
+        val splitParts = runBlocking {
+            withTimeout(2000) { viewModel.splitParts.first() }
+        }
+        assertThat(splitParts.parts.map { it.amountRaw }).containsExactly(-100L, -250L)
+        assertThat(splitParts.sum).isEqualTo(-350L)
+    }
+}
@@ -73,8 +73,9 @@ public class LockableDavResource extends DavResource {
         .url(location)
         .head()
         .build();
-    Response response = httpClient.newCall(request).execute();
-    return response.code() != 404;
+    try (Response response = httpClient.newCall(request).execute()) {
+      return response.code() != 404;
+    }
   }
 
   /**
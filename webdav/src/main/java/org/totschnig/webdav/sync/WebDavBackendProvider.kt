@@ -9,6 +9,14 @@ import at.bitfire.dav4android.DavResource
 import at.bitfire.dav4android.LockableDavResource
 import at.bitfire.dav4android.exception.DavException
 import at.bitfire.dav4android.exception.HttpException
+import at.bitfire.dav4android.property.GetCTag
+import at.bitfire.dav4android.property.SyncToken
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import okhttp3.HttpUrl
 import okhttp3.MediaType
 import okhttp3.MediaType.Companion.toMediaTypeOrNull
@@ -23,12 +31,15 @@ import org.totschnig.myexpenses.sync.GenericAccountService
 import org.totschnig.myexpenses.sync.SyncBackendProvider.SyncParseException
 import org.totschnig.myexpenses.sync.getSyncProviderUrl
 import org.totschnig.myexpenses.sync.json.AccountMetaData
+import org.totschnig.myexpenses.util.Utils
 import org.totschnig.myexpenses.util.io.calculateSize
 import org.totschnig.myexpenses.util.io.getMimeType
 import org.totschnig.webdav.sync.client.CertificateHelper.fromString
 import org.totschnig.webdav.sync.client.InvalidCertificateException
 import org.totschnig.webdav.sync.client.WebDavClient
+import java.io.FileNotFoundException
 import java.io.IOException
+import java.io.InputStream
 import java.security.cert.CertificateException
 import java.security.cert.X509Certificate
 
@@ -71,12 +82,10 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
     }
 
     override fun readAccountMetaData(): Result<AccountMetaData> {
-        return getAccountMetaDataFromDavResource(
-            webDavClient.getResource(
-                accountMetadataFilename,
-                accountUuid
-            )
-        )
+        return webDavClient.getConditionally(
+            webDavClient.getResource(accountMetadataFilename, accountUuid)
+        )?.let { getAccountMetaDataFromInputStream(it.inputStream()) }
+            ?: Result.failure(FileNotFoundException())
     }
 
     @Throws(IOException::class)
@@ -101,22 +110,15 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
             webDavClient.getResource(fileName), maybeDecrypt
     )
 
+    /**
+     * one conditional GET instead of checking for existence first, see [WebDavClient.getConditionally]
+     */
     @Throws(IOException::class)
     private fun readResourceIfExists(
         resource: LockableDavResource,
         maybeDecrypt: Boolean
-    ): String? {
-        return if (resource.exists()) {
-            try {
-                StreamReader(maybeDecrypt(resource["text/plain"].byteStream(), maybeDecrypt)).read()
-            } catch (e: HttpException) {
-                throw IOException(e)
-            } catch (e: DavException) {
-                throw IOException(e)
-            }
-        } else {
-            null
-        }
+    ): String? = webDavClient.getConditionally(resource)?.let {
+        StreamReader(maybeDecrypt(it.inputStream(), maybeDecrypt)).read()
     }
 
     @Throws(IOException::class)
@@ -152,6 +154,28 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
     private val lockFile: LockableDavResource
         get() = webDavClient.getResource(LOCK_FILE, accountUuid)
 
+    /**
+     * one PROPFIND on the account folder: new change sets are written to new files, either in the
+     * account folder, whose member names we compare, or in a shard folder, whose sync-token or
+     * getctag changes when a file is added to it. The ETag of a collection is not required to
+     * change with its members (RFC 4918), so if the server reports neither for one of the shard
+     * folders, we fall back to [namesSignature].
+     */
+    @Throws(IOException::class)
+    override fun probeChanges(lastProbe: String?): String? {
+        val members = webDavClient.getFolderMembersWithCollectionTags(accountUuid)
+            .filter { it.fileName() != LOCK_FILE }
+            .map {
+                it.fileName() to if (LockableDavResource.isCollection(it))
+                    (it.collectionTag ?: return namesSignature()) else ""
+            }
+        return Utils.md5(members.sortedBy { it.first }.joinToString("/") { "${it.first}:${it.second}" })
+    }
+
+    private val DavResource.collectionTag: String?
+        get() = (properties[SyncToken.NAME] as? SyncToken)?.token
+            ?: (properties[GetCTag.NAME] as? GetCTag)?.cTag
+
     override fun getCollection(collectionName: String, require: Boolean): DavResource? {
         if (require) {
             webDavClient.mkCol(collectionName)
@@ -167,6 +191,22 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
         throw IOException(e)
     }
 
+    /**
+     * change files are fetched in parallel, over HTTP/2 the requests share one connection
+     */
+    @Throws(IOException::class)
+    override fun getInputStreams(resources: List<DavResource>): Sequence<InputStream> =
+        runBlocking(Dispatchers.IO) {
+            val semaphore = Semaphore(MAX_PARALLEL_DOWNLOADS)
+            resources.map { resource ->
+                async {
+                    semaphore.withPermit {
+                        getInputStream(resource).use { it.readBytes() }
+                    }
+                }
+            }.awaitAll()
+        }.asSequence().map { it.inputStream() }
+
     override fun getResInAccountDir(resourceName: String) =
         webDavClient.getCollection(resourceName, accountUuid)
             .takeIf { it.exists() }
@@ -285,27 +325,22 @@ class WebDavBackendProvider @SuppressLint("MissingPermission") internal construc
             .asSequence()
             .filter { davResource: DavResource? -> LockableDavResource.isCollection(davResource) }
             .filter { davResource: DavResource -> getLastPathSegment(davResource.location) != BACKUP_FOLDER_NAME }
-            .map { davResource: DavResource ->
-                webDavClient.getResource(
-                    davResource.location,
-                    accountMetadataFilename
-                )
-            }
-            .filter { obj: LockableDavResource -> obj.exists() }
-            .map { lockableDavResource: LockableDavResource ->
-                getAccountMetaDataFromDavResource(
-                    lockableDavResource
+            .mapNotNull { davResource: DavResource ->
+                webDavClient.getConditionally(
+                    webDavClient.getResource(
+                        davResource.location,
+                        accountMetadataFilename
+                    )
                 )
             }
+            .map { getAccountMetaDataFromInputStream(it.inputStream()) }
             .toList()
 
-    private fun getAccountMetaDataFromDavResource(lockableDavResource: LockableDavResource): Result<AccountMetaData> =
-        getAccountMetaDataFromInputStream(lockableDavResource[mimeTypeForData].byteStream())
-
     companion object {
         const val KEY_WEB_DAV_CERTIFICATE = "webDavCertificate"
         const val KEY_WEB_DAV_FALLBACK_TO_CLASS1 = "fallbackToClass1"
         const val KEY_ALLOW_UNVERIFIED = "allow_unverified"
+        private const val MAX_PARALLEL_DOWNLOADS = 4
     }
 
     init {
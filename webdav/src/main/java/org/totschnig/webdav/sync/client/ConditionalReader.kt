@@ -0,0 +1,63 @@
+package org.totschnig.webdav.sync.client
+
+import okhttp3.HttpUrl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * reads resources with If-None-Match, keeping the content together with its ETag, so that a
+ * resource that has not changed is answered by the server with 304 and served from memory. Meant
+ * for small resources that are read on every sync.
+ */
+class ConditionalReader {
+    private class Cached(val eTag: String, val content: ByteArray)
+
+    private val cache = ConcurrentHashMap<HttpUrl, Cached>()
+
+    /**
+     * @return null if the resource does not exist
+     */
+    @Throws(IOException::class)
+    fun read(httpClient: OkHttpClient, url: HttpUrl): ByteArray? {
+        var location = url
+        repeat(MAX_REDIRECTS) {
+            val cached = cache[url]
+            val request = Request.Builder()
+                .url(location)
+                .get()
+                .apply { cached?.let { header("If-None-Match", it.eTag) } }
+                .build()
+            httpClient.newCall(request).execute().use { response ->
+                when {
+                    response.isRedirect -> {
+                        location = response.header("Location")?.let { location.resolve(it) }
+                            ?: throw IOException("Redirect without location from $location")
+                    }
+                    response.code == 404 -> {
+                        cache.remove(url)
+                        return null
+                    }
+                    response.code == 304 && cached != null -> return cached.content
+                    response.isSuccessful -> {
+                        val content = response.body!!.bytes()
+                        val eTag = response.header("ETag")
+                        if (eTag == null) {
+                            cache.remove(url)
+                        } else {
+                            cache[url] = Cached(eTag, content)
+                        }
+                        return content
+                    }
+                    else -> throw IOException("GET $location failed with ${response.code}")
+                }
+            }
+        }
+        throw IOException("Too many redirects for $url")
+    }
+
+    companion object {
+        const val MAX_REDIRECTS = 5
+    }
+}
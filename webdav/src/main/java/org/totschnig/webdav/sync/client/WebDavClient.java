@@ -27,9 +27,16 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -47,7 +54,9 @@ import at.bitfire.dav4android.XmlUtils;
 import at.bitfire.dav4android.exception.DavException;
 import at.bitfire.dav4android.exception.HttpException;
 import at.bitfire.dav4android.property.DisplayName;
+import at.bitfire.dav4android.property.GetCTag;
 import at.bitfire.dav4android.property.ResourceType;
+import at.bitfire.dav4android.property.SyncToken;
 import dagger.internal.Preconditions;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -63,6 +72,32 @@ public class WebDavClient {
   private final MediaType MIME_XML = MediaType.parse("application/xml; charset=utf-8");
   private static final String NS_WEBDAV = "DAV:";
 
+  private static final int MAX_HTTP_CLIENTS = 4;
+
+  /**
+   * clients are shared by all instances with the same configuration, so that connections to the
+   * server, over HTTP/2 where supported, are kept alive across syncs and shared by the accounts
+   * synced in parallel. The configuration is keyed by its hash, so that credentials are not held
+   * in the keys, and only the most recently used clients are kept, so that clients for removed or
+   * reconfigured backends are released.
+   */
+  private static final Map<String, OkHttpClient> HTTP_CLIENTS = new LinkedHashMap<String, OkHttpClient>(MAX_HTTP_CLIENTS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, OkHttpClient> eldest) {
+      if (size() > MAX_HTTP_CLIENTS) {
+        eldest.getValue().connectionPool().evictAll();
+        return true;
+      }
+      return false;
+    }
+  };
+
+  /**
+   * account metadata and the lock file are read on every sync, they are only transferred again if
+   * they have changed
+   */
+  private static final ConditionalReader CONDITIONAL_READER = new ConditionalReader();
+
   private final OkHttpClient httpClient;
   private final HttpUrl mBaseUri;
   private String currentLockToken;
@@ -85,6 +120,39 @@ public class WebDavClient {
 
     int timeout = prefHandler.getInt(PrefKey.WEBDAV_TIMEOUT,10);
 
+    String clientKey = clientKey(baseUrl, userName, password, trustedCertificate, allowUnverified, timeout);
+    synchronized (HTTP_CLIENTS) {
+      OkHttpClient client = HTTP_CLIENTS.get(clientKey);
+      if (client == null) {
+        client = buildHttpClient(userName, password, trustedCertificate, allowUnverified, timeout);
+        HTTP_CLIENTS.put(clientKey, client);
+      }
+      httpClient = client;
+    }
+  }
+
+  private static String clientKey(String baseUrl, String userName, String password, X509Certificate trustedCertificate, boolean allowUnverified, int timeout) throws InvalidCertificateException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      for (String part : new String[]{baseUrl, userName, password, String.valueOf(allowUnverified), String.valueOf(timeout)}) {
+        if (part != null) {
+          digest.update(part.getBytes(StandardCharsets.UTF_8));
+        }
+        //separates the parts and distinguishes null from empty
+        digest.update((byte) (part == null ? 1 : 0));
+      }
+      if (trustedCertificate != null) {
+        digest.update(trustedCertificate.getEncoded());
+      }
+      return new BigInteger(1, digest.digest()).toString(16);
+    } catch (CertificateEncodingException e) {
+      throw new InvalidCertificateException(trustedCertificate, e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private OkHttpClient buildHttpClient(String userName, String password, final X509Certificate trustedCertificate, boolean allowUnverified, int timeout) throws InvalidCertificateException {
     builder.connectTimeout(timeout, TimeUnit.SECONDS);
     builder.readTimeout(timeout, TimeUnit.SECONDS);
     builder.writeTimeout(timeout, TimeUnit.SECONDS);
@@ -109,11 +177,12 @@ public class WebDavClient {
         }
       });
     } else if(allowUnverified) {
-      builder.hostnameVerifier((hostname, session) -> mBaseUri.host().equals(hostname));
+      final String host = mBaseUri.host();
+      builder.hostnameVerifier((hostname, session) -> host.equals(hostname));
     }
     builder.followRedirects(false);
 
-    httpClient = builder.build();
+    return builder.build();
   }
 
   public void upload(String fileName, String fileContent, MediaType mediaType, DavResource parent) throws IOException, HttpException {
@@ -168,6 +237,29 @@ public class WebDavClient {
     return folder.members;
   }
 
+  /**
+   * like {@link #getFolderMembers(String...)}, but collections also carry their {@link SyncToken}
+   * (RFC 6578) or {@link GetCTag}, if the server reports them. Unlike the ETag of a collection,
+   * these change whenever one of its members changes.
+   */
+  public Set<DavResource> getFolderMembersWithCollectionTags(String... folderPath) throws IOException {
+    DavResource folder = new DavResource(httpClient, buildCollectionUri(folderPath));
+    try {
+      folder.propfind(1, DisplayName.NAME, ResourceType.NAME, SyncToken.NAME, GetCTag.NAME);
+    } catch (DavException | HttpException e) {
+      throw new IOException(e);
+    }
+    return folder.members;
+  }
+
+  /**
+   * @return null if the resource does not exist
+   */
+  @Nullable
+  public byte[] getConditionally(DavResource resource) throws IOException {
+    return CONDITIONAL_READER.read(httpClient, resource.location);
+  }
+
   public LockableDavResource getBase() {
     return new LockableDavResource(httpClient, mBaseUri);
   }
@@ -0,0 +1,89 @@
+package org.totschnig.webdav.sync.client
+
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import java.io.IOException
+
+class ConditionalReaderTest {
+    private lateinit var server: MockWebServer
+    private val httpClient = OkHttpClient.Builder().followRedirects(false).build()
+    private val reader = ConditionalReader()
+
+    @Before
+    fun setup() {
+        server = MockWebServer()
+        server.start()
+    }
+
+    @After
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private fun read() = reader.read(httpClient, server.url("/account/metadata.json"))?.let { String(it) }
+
+    @Test
+    fun servesUnchangedResourceFromMemory() {
+        server.enqueue(MockResponse().setBody("v1").setHeader("ETag", "\"1\""))
+        server.enqueue(MockResponse().setResponseCode(304))
+        assertThat(read()).isEqualTo("v1")
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isNull()
+        assertThat(read()).isEqualTo("v1")
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isEqualTo("\"1\"")
+    }
+
+    @Test
+    fun readsChangedResource() {
+        server.enqueue(MockResponse().setBody("v1").setHeader("ETag", "\"1\""))
+        server.enqueue(MockResponse().setBody("v2").setHeader("ETag", "\"2\""))
+        server.enqueue(MockResponse().setResponseCode(304))
+        assertThat(read()).isEqualTo("v1")
+        assertThat(read()).isEqualTo("v2")
+        assertThat(read()).isEqualTo("v2")
+        server.takeRequest()
+        server.takeRequest()
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isEqualTo("\"2\"")
+    }
+
+    @Test
+    fun missingResourceIsNull() {
+        server.enqueue(MockResponse().setBody("v1").setHeader("ETag", "\"1\""))
+        server.enqueue(MockResponse().setResponseCode(404))
+        server.enqueue(MockResponse().setBody("v2"))
+        assertThat(read()).isEqualTo("v1")
+        assertThat(read()).isNull()
+        assertThat(read()).isEqualTo("v2")
+        server.takeRequest()
+        server.takeRequest()
+        assertThat(server.takeRequest().getHeader("If-None-Match")).isNull()
+    }
+
+    @Test
+    fun followsRedirect() {
+        server.enqueue(MockResponse().setResponseCode(301).setHeader("Location", "/moved/metadata.json"))
+        server.enqueue(MockResponse().setBody("v1"))
+        assertThat(read()).isEqualTo("v1")
+        server.takeRequest()
+        assertThat(server.takeRequest().path).isEqualTo("/moved/metadata.json")
+    }
+
+    @Test
+    fun serverErrorThrows() {
+        server.enqueue(MockResponse().setResponseCode(500))
+        assertThatThrownBy { read() }.isInstanceOf(IOException::class.java)
+    }
+
+    @Test
+    fun reusesConnection() {
+        repeat(3) { server.enqueue(MockResponse().setBody("v1").setHeader("ETag", "\"1\"")) }
+        repeat(3) { read() }
+        //sequence number counts requests per connection
+        assertThat((1..3).map { server.takeRequest().sequenceNumber }).containsExactly(0, 1, 2)
+    }
+}